@@ -0,0 +1,472 @@
+// BuildCheckpoint.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+
+import util.Vector3f;
+
+import static util.swing.SwingUtil.log;
+
+/** Record of the squares placed by a SurfaceReconstructor build, kept
+  * in a local file so an interrupted build can be resumed.
+  *
+  * Every square the builder places is determined by its base square,
+  * its own latitude and longitude, and the (unchanging) observations
+  * and options.  So rather than try to save and restore the state of
+  * the builder's loops, the checkpoint just remembers the outcome of
+  * each placement, keyed by the locations of the base and new square.
+  * A resumed build runs the same loops from the start, but each
+  * placement that is in the checkpoint is reconstructed from it
+  * instead of being solved for again, which is nearly free.  When the
+  * builder reaches the first placement the checkpoint does not have,
+  * it carries on normally, appending to the file.
+  *
+  * The file is a short header identifying the settings, followed by
+  * one fixed-format binary record per placement.  Records are appended
+  * through a buffer that is flushed every 'flushIntervalMillis', so a
+  * crash loses at most that much work.  A partial record at the end,
+  * from a crash in mid-write, is discarded when the file is loaded.
+  * If the header does not match the current settings, the file is
+  * started over. */
+public class BuildCheckpoint {
+    // ---- Constants ----
+    /** First four bytes of a checkpoint file: "ESCP". */
+    private static final int MAGIC = 0x45534350;
+
+    /** File format version. */
+    private static final int VERSION = 1;
+
+    /** Record kind: the placement failed, so the strip stopped. */
+    private static final byte KIND_FAILED = 0;
+
+    /** Record kind: a square was placed. */
+    private static final byte KIND_PLACED = 1;
+
+    // ---- Types ----
+    /** Locations of the base and new square of one placement. */
+    private static class Key {
+        public final float baseLatitude, baseLongitude;
+        public final float latitude, longitude;
+
+        public Key(float baseLatitude_, float baseLongitude_,
+            float latitude_, float longitude_)
+        {
+            this.baseLatitude = baseLatitude_;
+            this.baseLongitude = baseLongitude_;
+            this.latitude = latitude_;
+            this.longitude = longitude_;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)obj;
+            return this.baseLatitude == k.baseLatitude &&
+                   this.baseLongitude == k.baseLongitude &&
+                   this.latitude == k.latitude &&
+                   this.longitude == k.longitude;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int h = Float.hashCode(this.baseLatitude);
+            h = h*31 + Float.hashCode(this.baseLongitude);
+            h = h*31 + Float.hashCode(this.latitude);
+            h = h*31 + Float.hashCode(this.longitude);
+            return h;
+        }
+    }
+
+    /** The saved outcome of one placement. */
+    public static class Record {
+        /** True if the placement failed.  The rest is then unused. */
+        public final boolean failed;
+
+        /** Geometry of the placed square.  Its location is in the key,
+          * and its base is whatever square it is replayed against. */
+        private float sizeKm;
+        private Vector3f center, north, up;
+        private Vector3f baseMidpoint;
+        private Vector3f rotationFromBase, rotationFromNominal;
+
+        private Record(boolean failed_)
+        {
+            this.failed = failed_;
+        }
+
+        /** Reconstruct the square at 'latitude' and 'longitude' built
+          * on 'base'.  Its observations are not filled in. */
+        public SurfaceSquare makeSquare(SurfaceSquare base,
+            float latitude, float longitude)
+        {
+            SurfaceSquare ret = new SurfaceSquare(
+                this.center, this.north, this.up,
+                this.sizeKm,
+                latitude, longitude,
+                base, this.baseMidpoint,
+                this.rotationFromBase);
+
+            // The constructor computes this from 'base', which should
+            // give the same answer, but use the saved value so the
+            // replay is exact.
+            ret.rotationFromNominal = this.rotationFromNominal;
+            return ret;
+        }
+    }
+
+    // ---- Instance data ----
+    /** File being written. */
+    private final File file;
+
+    /** Placements loaded from the file when it was opened. */
+    private final HashMap<Key, Record> saved = new HashMap<Key, Record>();
+
+    /** Appends records to 'file'.  Null after 'close'. */
+    private DataOutputStream out;
+
+    /** How often to flush 'out'. */
+    private final long flushIntervalMillis;
+
+    /** When 'out' was last flushed. */
+    private long lastFlushMillis;
+
+    /** Number of placements answered from 'saved'. */
+    public int numReplayed = 0;
+
+    /** Number of placements appended to the file. */
+    public int numRecorded = 0;
+
+    // ---- Methods ----
+    /** Open 'file_', loading its placements if it was written with the
+      * same 'signature', and otherwise starting it over.  'signature'
+      * should describe everything the placements depend on. */
+    public BuildCheckpoint(File file_, String signature, long flushIntervalMillis_)
+        throws IOException
+    {
+        this.file = file_;
+        this.flushIntervalMillis = flushIntervalMillis_;
+
+        long validLength = this.file.exists()? this.load(signature) : 0;
+        if (validLength == 0) {
+            // Start over.
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(this.file, false /*append*/)));
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            this.out.writeUTF(signature);
+            this.out.flush();
+        }
+        else {
+            // Drop any partial record, then continue after the rest.
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                raf.setLength(validLength);
+            }
+            finally {
+                raf.close();
+            }
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(this.file, true /*append*/)));
+        }
+        this.lastFlushMillis = System.currentTimeMillis();
+    }
+
+    /** Read the placements in 'file' into 'saved'.  Return the length
+      * of the part of the file that is usable, or 0 if none of it is
+      * because it is not a checkpoint or has a different signature. */
+    private long load(String signature)
+        throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(this.file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        // Header.
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log("checkpoint: "+this.file+" is not a checkpoint; starting over");
+                return 0;
+            }
+            if (!in.readUTF().equals(signature)) {
+                log("checkpoint: "+this.file+" has different settings; starting over");
+                return 0;
+            }
+        }
+        catch (EOFException e) {
+            log("checkpoint: "+this.file+" has a truncated header; starting over");
+            return 0;
+        }
+        long validLength = bytes.length - in.available();
+
+        // Records, up to the last complete one.
+        try {
+            while (in.available() > 0) {
+                this.readRecord(in);
+                validLength = bytes.length - in.available();
+            }
+        }
+        catch (EOFException e) {
+            log("checkpoint: discarding partial record at end of "+this.file);
+        }
+
+        log("checkpoint: loaded "+this.saved.size()+" placements from "+this.file);
+        return validLength;
+    }
+
+    /** Read one record from 'in' and add it to 'saved'. */
+    private void readRecord(DataInputStream in)
+        throws IOException
+    {
+        byte kind = in.readByte();
+        Key key = new Key(in.readFloat(), in.readFloat(),
+            in.readFloat(), in.readFloat());
+
+        Record r;
+        if (kind == KIND_FAILED) {
+            r = new Record(true);
+        }
+        else if (kind == KIND_PLACED) {
+            r = new Record(false);
+            r.sizeKm = in.readFloat();
+            r.center = readVector(in);
+            r.north = readVector(in);
+            r.up = readVector(in);
+            r.baseMidpoint = readVector(in);
+            r.rotationFromBase = readVector(in);
+            r.rotationFromNominal = readVector(in);
+        }
+        else {
+            throw new IOException("checkpoint: bad record kind: "+kind);
+        }
+        this.saved.put(key, r);
+    }
+
+    private static Vector3f readVector(DataInputStream in)
+        throws IOException
+    {
+        float x = in.readFloat();
+        float y = in.readFloat();
+        float z = in.readFloat();
+        return new Vector3f(x, y, z);
+    }
+
+    private static void writeVector(DataOutputStream out, Vector3f v)
+        throws IOException
+    {
+        out.writeFloat(v.x());
+        out.writeFloat(v.y());
+        out.writeFloat(v.z());
+    }
+
+    /** If the placement of a square at 'latitude' and 'longitude' on
+      * 'base' is in the checkpoint, return it, else null. */
+    public synchronized Record lookup(SurfaceSquare base,
+        float latitude, float longitude)
+    {
+        Record r = this.saved.get(
+            new Key(base.latitude, base.longitude, latitude, longitude));
+        if (r != null) {
+            this.numReplayed++;
+        }
+        return r;
+    }
+
+    /** Append the outcome of placing a square at 'latitude' and
+      * 'longitude' on 'base'.  'placed' is the new square, or null if
+      * the placement failed. */
+    public synchronized void record(SurfaceSquare base,
+        float latitude, float longitude, SurfaceSquare placed)
+        throws IOException
+    {
+        if (this.out == null) {
+            return;        // Closed, presumably because the build was canceled.
+        }
+
+        this.out.writeByte(placed == null? KIND_FAILED : KIND_PLACED);
+        this.out.writeFloat(base.latitude);
+        this.out.writeFloat(base.longitude);
+        this.out.writeFloat(latitude);
+        this.out.writeFloat(longitude);
+        if (placed != null) {
+            this.out.writeFloat(placed.sizeKm);
+            writeVector(this.out, placed.center);
+            writeVector(this.out, placed.north);
+            writeVector(this.out, placed.up);
+            writeVector(this.out, placed.baseMidpoint);
+            writeVector(this.out, placed.rotationFromBase);
+            writeVector(this.out, placed.rotationFromNominal);
+        }
+        this.numRecorded++;
+
+        long now = System.currentTimeMillis();
+        if (now - this.lastFlushMillis >= this.flushIntervalMillis) {
+            this.out.flush();
+            this.lastFlushMillis = now;
+        }
+    }
+
+    /** Flush and close the file. */
+    public synchronized void close()
+        throws IOException
+    {
+        if (this.out != null) {
+            this.out.close();
+            this.out = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "BuildCheckpoint("+
+            "file="+this.file+
+            ", saved="+this.saved.size()+
+            ", replayed="+this.numReplayed+
+            ", recorded="+this.numRecorded+
+            ")";
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check that 'a' and 'b' are exactly the same squares. */
+    private static void checkSameSquares(List<SurfaceSquare> a, List<SurfaceSquare> b)
+    {
+        assert(a.size() == b.size()) : a.size()+" "+b.size();
+        for (int i=0; i < a.size(); i++) {
+            SurfaceSquare s = a.get(i);
+            SurfaceSquare t = b.get(i);
+            assert(s.latitude == t.latitude && s.longitude == t.longitude) : i;
+            assert(Vector3f.identical(s.center, t.center)) : i;
+            assert(Vector3f.identical(s.north, t.north)) : i;
+            assert(Vector3f.identical(s.up, t.up)) : i;
+            assert(Vector3f.identical(s.rotationFromNominal, t.rotationFromNominal)) : i;
+            assert(s.starObs.keySet().equals(t.starObs.keySet())) : i;
+        }
+    }
+
+    /** Build the surface with 'r', using 'file' as the checkpoint. */
+    private static List<SurfaceSquare> build(SurfaceReconstructor r, File file)
+    {
+        r.options.checkpointFile = file.getPath();
+        try {
+            return r.buildEarthSurfaceFromStarData(BuildProgress.NONE).getSurfaceSquares();
+        }
+        finally {
+            r.options.checkpointFile = null;
+        }
+    }
+
+    /** Return the signature in the header of 'file'. */
+    private static String readSignature(File file)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assert(in.readInt() == MAGIC);
+            assert(in.readInt() == VERSION);
+            return in.readUTF();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /** Open 'file' with 'signature', check how many placements it
+      * loaded, and return its length afterward. */
+    private static long openAndCheck(File file, String signature, int expectSaved)
+        throws IOException
+    {
+        BuildCheckpoint cp = new BuildCheckpoint(file, signature, 0);
+        try {
+            assert(cp.saved.size() == expectSaved) : cp.saved.size()+" "+expectSaved;
+        }
+        finally {
+            cp.close();
+        }
+        return file.length();
+    }
+
+    /** Check that a build with a checkpoint gives the same squares as
+      * one without, that replaying all of it gives them again without
+      * recording anything, that a file cut in the middle of a record
+      * keeps the records before it, and that a file made with other
+      * settings is started over. */
+    private static void testReplay()
+        throws IOException
+    {
+        File file = File.createTempFile("checkpoint", ".bin");
+        file.deleteOnExit();
+        file.delete();
+
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        List<SurfaceSquare> plain =
+            r.buildEarthSurfaceFromStarData(BuildProgress.NONE).getSurfaceSquares();
+
+        // Fresh build.
+        List<SurfaceSquare> fresh = build(r, file);
+        checkSameSquares(plain, fresh);
+        String signature = readSignature(file);
+        long fullLength = file.length();
+        BuildCheckpoint cp = new BuildCheckpoint(file, signature, 0);
+        int numSaved = cp.saved.size();
+        cp.close();
+        assert(numSaved >= plain.size()-1) : numSaved+" "+plain.size();
+        assert(file.length() == fullLength);
+
+        // Full replay: nothing new is appended.
+        List<SurfaceSquare> replayed = build(r, file);
+        checkSameSquares(plain, replayed);
+        assert(file.length() == fullLength);
+
+        // Cut the last record short.  Opening the file drops the rest
+        // of that record and keeps the others; a build then places
+        // that one square again and appends it.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(fullLength - 1);
+        }
+        finally {
+            raf.close();
+        }
+        long prefixLength = openAndCheck(file, signature, numSaved-1);
+        assert(prefixLength < fullLength-1) : prefixLength+" "+fullLength;
+        List<SurfaceSquare> resumed = build(r, file);
+        checkSameSquares(plain, resumed);
+        assert(file.length() == fullLength);
+
+        // Other settings: the placements are not used and the file is
+        // reduced to just its header.
+        String other = signature+" (changed)";
+        assert(openAndCheck(file, other, 0) < prefixLength);
+        assert(readSignature(file).equals(other));
+        assert(openAndCheck(file, signature, 0) < prefixLength);
+
+        file.delete();
+        System.out.println("checkpoint: "+numSaved+" placements, "+fullLength+" bytes");
+    }
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        testReplay();
+        System.out.println("BuildCheckpoint tests passed");
+    }
+}
+
+// EOF
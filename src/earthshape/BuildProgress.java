@@ -0,0 +1,36 @@
+// BuildProgress.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+/** Channel through which a long-running surface construction reports
+  * its progress and learns whether it has been canceled.  In the GUI,
+  * this is implemented by a MySwingWorker that drives a ProgressDialog;
+  * headless callers can use 'NONE' or supply their own. */
+public interface BuildProgress {
+    /** True if the client wants the computation to stop early.  The
+      * builder polls this periodically. */
+    public boolean isCancelled();
+
+    /** Describe what the builder is currently doing. */
+    public void setStatus(String status);
+
+    /** Report the approximate fraction of the work done, in [0,1]. */
+    public void setProgressFraction(float fraction);
+
+    /** Progress object that ignores all reports and never cancels. */
+    public static final BuildProgress NONE = new BuildProgress() {
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        public void setStatus(String status)
+        {}
+
+        public void setProgressFraction(float fraction)
+        {}
+    };
+}
+
+// EOF
@@ -0,0 +1,1354 @@
+// BundleAdjuster.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import util.FloatUtil;
+import util.Matrix3d;
+import util.Matrixd;
+import util.Vector3d;
+import util.Vector3f;
+
+import static util.swing.SwingUtil.log;
+
+/** Global refinement of a reconstructed surface.
+  *
+  * The star-data build is greedy: each square is oriented against its
+  * base square only, and then never moved again, so errors accumulate
+  * along the strips.  This instead adjusts the orientation and position
+  * of every square at once, to best satisfy the constraints between
+  * all pairs of neighboring squares, not just the square/base pairs:
+  *
+  *   - The star rays observed at both squares of a pair should agree.
+  *     When stars are infinitely far away, they are compared the way
+  *     'SurfaceReconstructor.fitOfObservations' compares a square to
+  *     its base.  Otherwise, the rays to a star from the two squares
+  *     should lie in one plane with the line between the centers, and
+  *     the residual is the angle by which one misses that plane, plus,
+  *     if the rays diverge (or nearly so), the angle by which they do.
+  *     (The modified closest approach that 'fitOfObservations' uses
+  *     jumps when two rays go from converging to diverging, which is
+  *     fine for a search that stays near one base square, but makes it
+  *     useless for a derivative-based solver, and neighbors that are
+  *     not each other's base are very often on the wrong side of that
+  *     jump.)
+  *
+  *   - The vector between the centers should be the one implied by the
+  *     travel observation and the two orientations, as it is in
+  *     'SurfaceReconstructor.createRotatedAdjacentSquare'.
+  *
+  * This is a nonlinear least squares problem with six unknowns per
+  * square, solved with Levenberg-Marquardt.  Each residual depends on
+  * only two squares, so the normal equations are block sparse, with
+  * one 6x6 block per square and one per neighbor pair.  They are
+  * solved with conjugate gradients and a block Jacobi preconditioner,
+  * which never forms anything larger than those blocks, so memory and
+  * time per iteration are linear in the number of squares.  When the
+  * options ask for a parallel build, the per-pair and per-square loops
+  * run on the common fork-join pool; the sums that combine them are
+  * always done in the same order, so the result does not depend on
+  * whether it ran in parallel.
+  *
+  * Squares without a base square are held fixed, which anchors the
+  * solution (otherwise the whole surface could rotate freely). */
+public class BundleAdjuster {
+    // ---- Constants ----
+    /** Unknowns per square: a rotation vector in world coordinates,
+      * in degrees, followed by a displacement of the center, in space
+      * units. */
+    private static final int PARAMS = 6;
+
+    /** Step for numerically differentiating the residuals with respect
+      * to rotation, in degrees. */
+    private static final double ROTATION_STEP_DEGREES = 1e-3;
+
+    /** Step for differentiating with respect to center position, in
+      * space units (this is 10 meters). */
+    private static final double CENTER_STEP = 1e-5;
+
+    /** Number of loop iterations below which a parallel loop stops
+      * splitting. */
+    private static final int PARALLEL_GRAIN = 64;
+
+    /** With finite star distances, rays to the same star from two
+      * neighbors are penalized if they converge by less than this.
+      * The true answer for distant stars is that they are parallel,
+      * but 'fitOfObservations' treats diverging rays as a very bad
+      * fit, so this keeps the adjusted squares, after rounding to
+      * single precision, on the converging side.  This corresponds to
+      * a star about 57 million km away. */
+    private static final double MINIMUM_CONVERGENCE_DEGREES = 1e-3;
+
+    /** Weight of the penalty for rays that converge by less than
+      * 'MINIMUM_CONVERGENCE_DEGREES', relative to other star residuals.
+      * This is large because the penalty stands in for a constraint. */
+    private static final double DIVERGENCE_WEIGHT = 100;
+
+    /** Nominal North and up vectors of a square with no rotation. */
+    private static final double[] NOMINAL_NORTH = { 0, 0, -1 };
+    private static final double[] NOMINAL_UP = { 0, 1, 0 };
+
+    // ---- Settings ----
+    /** Two squares are neighbors if they have the same latitude and
+      * longitudes within this many degrees, or vice versa.  This is
+      * initially the spacing of the star-data build. */
+    public float neighborDegrees;
+
+    /** Weight of the travel constraint between two squares, relative
+      * to a star ray.  The travel residual is the error in the center
+      * of one square as seen from the other, as an angle in degrees,
+      * times this. */
+    public double travelWeight = 1;
+
+    /** Maximum number of Levenberg-Marquardt iterations. */
+    public int maxIterations = 50;
+
+    /** Stop once an iteration reduces the sum of squared residuals by
+      * less than this fraction. */
+    public double relativeTolerance = 1e-3;
+
+    /** Maximum number of conjugate gradient iterations per solve. */
+    public int maxConjugateGradientIterations = 500;
+
+    /** Conjugate gradients stop when the residual norm has dropped by
+      * this factor. */
+    public double conjugateGradientTolerance = 1e-8;
+
+    /** True to run the loops on the fork-join pool.  This is initially
+      * 'parallelBuild' from the reconstructor's options. */
+    public boolean parallel;
+
+    // ---- Results ----
+    /** Number of neighbor pairs found. */
+    public int numPairs = 0;
+
+    /** Number of star observations compared across all pairs. */
+    public int numStarSamples = 0;
+
+    /** Average squared star residual over all pairs, in square
+      * degrees, before and after adjustment.  With infinite star
+      * distance, this is the same measure as 'ObservationStats.variance',
+      * but over all neighbor pairs rather than only square/base pairs. */
+    public double initialVariance = 0;
+    public double finalVariance = 0;
+
+    /** Number of Levenberg-Marquardt iterations that improved the fit. */
+    public int iterations = 0;
+
+    // ---- Private data ----
+    /** Source of travel observations and comparison options. */
+    private SurfaceReconstructor reconstructor;
+
+    /** Squares being adjusted. */
+    private List<SurfaceSquare> squares;
+
+    /** For each square, the index of its unknowns in the solution
+      * vector, divided by PARAMS, or -1 if it is held fixed. */
+    private int[] paramIndex;
+
+    /** Number of squares that are not held fixed. */
+    private int numFree;
+
+    /** For each square, its row-major nominal-to-world rotation, 9
+      * entries per square, and its center, 3 per square. */
+    private double[] orientations;
+    private double[] centers;
+
+    /** State being tried by the current iteration. */
+    private double[] trialOrientations;
+    private double[] trialCenters;
+
+    /** Neighbor pairs. */
+    private Pair[] pairs;
+
+    /** For each square, the indices in 'pairs' of the pairs it is in. */
+    private int[][] squarePairs;
+
+    /** For each square, the index of the pair joining it to its base
+      * square, or -1. */
+    private int[] basePair;
+
+    /** For each free square, the diagonal block of the normal matrix
+      * (J^T J), 36 entries, and the gradient (J^T r), 6 entries. */
+    private double[] diagonalBlocks;
+    private double[] gradient;
+
+    /** Two neighboring squares and what they observed. */
+    private static class Pair {
+        /** Indices of the squares.  When one is the base of the other,
+          * 'i' is the base. */
+        public int i, j;
+
+        /** Half of the distance between them, in space units. */
+        public double halfDistance;
+
+        /** Direction of travel from i to j at each square, in that
+          * square's nominal coordinates. */
+        public double[] travelI, travelJ;
+
+        /** Number of stars observed at both squares. */
+        public int numStars;
+
+        /** Rays to those stars in the nominal coordinates of each
+          * square, 3 entries per star. */
+        public double[] raysI, raysJ;
+
+        /** Normal matrix blocks and gradients from the most recent
+          * linearization: J_i^T J_i, J_j^T J_j, J_i^T J_j, J_i^T r,
+          * and J_j^T r. */
+        public double[] hii = new double[PARAMS*PARAMS];
+        public double[] hjj = new double[PARAMS*PARAMS];
+        public double[] hij = new double[PARAMS*PARAMS];
+        public double[] gi = new double[PARAMS];
+        public double[] gj = new double[PARAMS];
+
+        /** Sum of squared residuals, and of the star residuals alone,
+          * from the most recent evaluation. */
+        public double cost, starCost;
+
+        public int numResiduals()
+        {
+            return 3 + 3*this.numStars;
+        }
+    }
+
+    /** Scratch space for evaluating pairs, one per loop chunk. */
+    private static class Workspace {
+        public double[] raysI, raysJ, residuals, plus, minus, jacobian;
+        public double[] up = new double[3];
+        public double[] rotation = new double[9];
+        public double[] perturbedI = new double[9];
+        public double[] perturbedJ = new double[9];
+        public double[] centerI = new double[3];
+        public double[] centerJ = new double[3];
+
+        public Workspace(int maxResiduals)
+        {
+            this.raysI = new double[maxResiduals];
+            this.raysJ = new double[maxResiduals];
+            this.residuals = new double[maxResiduals];
+            this.plus = new double[maxResiduals];
+            this.minus = new double[maxResiduals];
+            this.jacobian = new double[2*PARAMS*maxResiduals];
+        }
+    }
+
+    // ---- Methods ----
+    /** Prepare to adjust 'squares', comparing them the way 'reconstructor'
+      * would and using its travel observations. */
+    public BundleAdjuster(SurfaceReconstructor reconstructor_, List<SurfaceSquare> squares_)
+    {
+        this.reconstructor = reconstructor_;
+        this.parallel = reconstructor_.options.parallelBuild;
+        this.neighborDegrees = reconstructor_.options.buildStepDegrees;
+        this.squares = squares_;
+    }
+
+    /** Run the adjustment and return a new surface made of adjusted
+      * copies of the squares.  The original squares are not modified.
+      * If 'task' is canceled, stop early and return the best solution
+      * found so far. */
+    public ReconstructedSurface adjust(BuildProgress task)
+    {
+        task.setStatus("Bundle adjustment: finding neighbors");
+        this.findPairs();
+        this.loadState();
+
+        double cost = this.totalCost(this.orientations, this.centers);
+        this.initialVariance = this.starVariance();
+        this.finalVariance = this.initialVariance;
+        log("bundleAdjust: squares="+this.squares.size()+" free="+this.numFree+
+            " pairs="+this.numPairs+" stars="+this.numStarSamples+
+            " cost="+cost+" var="+this.initialVariance);
+
+        // Damping factor.
+        double lambda = 1e-3;
+
+        for (int iter=0; iter < this.maxIterations && this.numFree > 0; iter++) {
+            if (task.isCancelled()) {
+                log("bundleAdjust: canceled");
+                break;
+            }
+            task.setStatus("Bundle adjustment iteration "+(iter+1)+
+                ", variance "+(float)this.finalVariance);
+            task.setProgressFraction(iter / (float)this.maxIterations);
+
+            this.linearize();
+
+            // Find a damping that yields an improvement.
+            double newCost = cost;
+            while (lambda < 1e12) {
+                double[] delta = this.solve(lambda);
+                this.applyStep(delta);
+                newCost = this.totalCost(this.trialOrientations, this.trialCenters);
+                if (newCost < cost) {
+                    break;
+                }
+                lambda *= 10;
+            }
+            if (!( newCost < cost )) {
+                log("bundleAdjust: converged after "+iter+" iterations");
+                break;
+            }
+
+            // Accept the step.
+            double[] tmp = this.orientations;
+            this.orientations = this.trialOrientations;
+            this.trialOrientations = tmp;
+            tmp = this.centers;
+            this.centers = this.trialCenters;
+            this.trialCenters = tmp;
+            this.finalVariance = this.starVariance();
+            this.iterations++;
+            lambda = Math.max(lambda / 10, 1e-9);
+
+            log("bundleAdjust: iter="+iter+" cost="+newCost+" var="+this.finalVariance+
+                " lambda="+lambda);
+
+            boolean done = (cost - newCost) < this.relativeTolerance * cost;
+            cost = newCost;
+            if (done) {
+                break;
+            }
+        }
+
+        // 'pairs' has the star costs of the last trial, which might
+        // have been rejected.
+        this.totalCost(this.orientations, this.centers);
+        this.finalVariance = this.starVariance();
+        log("bundleAdjust: done: var "+this.initialVariance+" -> "+this.finalVariance);
+
+        return this.makeSurface();
+    }
+
+    // ---------------------------- Setup ---------------------------------
+    /** Identify neighboring squares and record what they observed. */
+    private void findPairs()
+    {
+        int n = this.squares.size();
+        IdentityHashMap<SurfaceSquare, Integer> indexOf =
+            new IdentityHashMap<SurfaceSquare, Integer>();
+        for (int k=0; k < n; k++) {
+            indexOf.put(this.squares.get(k), k);
+        }
+
+        ArrayList<Pair> pairList = new ArrayList<Pair>();
+        HashSet<Long> seen = new HashSet<Long>();
+        this.basePair = new int[n];
+
+        // Square/base pairs first, so they have the base as 'i'.
+        for (int k=0; k < n; k++) {
+            this.basePair[k] = -1;
+            SurfaceSquare base = this.squares.get(k).baseSquare;
+            Integer b = (base == null)? null : indexOf.get(base);
+            if (b != null && seen.add(pairKey(b, k))) {
+                Pair p = this.makePair(b, k);
+                if (p != null) {
+                    this.basePair[k] = pairList.size();
+                    pairList.add(p);
+                }
+            }
+        }
+
+        // Then all other neighbors.  Bucket the squares by location so
+        // this takes linear time.
+        HashMap<Long, ArrayList<Integer>> buckets = new HashMap<Long, ArrayList<Integer>>();
+        for (int k=0; k < n; k++) {
+            SurfaceSquare s = this.squares.get(k);
+            Long key = this.bucketKey(s.latitude, s.longitude, 0, 0);
+            ArrayList<Integer> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Integer>();
+                buckets.put(key, bucket);
+            }
+            bucket.add(k);
+        }
+        for (int k=0; k < n; k++) {
+            SurfaceSquare s = this.squares.get(k);
+            for (int dLat=-1; dLat <= 1; dLat++) {
+                for (int dLon=-1; dLon <= 1; dLon++) {
+                    ArrayList<Integer> bucket =
+                        buckets.get(this.bucketKey(s.latitude, s.longitude, dLat, dLon));
+                    if (bucket == null) {
+                        continue;
+                    }
+                    for (int other : bucket) {
+                        if (other > k &&
+                            this.areNeighbors(s, this.squares.get(other)) &&
+                            seen.add(pairKey(k, other)))
+                        {
+                            Pair p = this.makePair(k, other);
+                            if (p != null) {
+                                pairList.add(p);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        this.pairs = pairList.toArray(new Pair[pairList.size()]);
+        this.numPairs = this.pairs.length;
+
+        // Index the pairs by square.
+        int[] counts = new int[n];
+        for (Pair p : this.pairs) {
+            counts[p.i]++;
+            counts[p.j]++;
+            this.numStarSamples += p.numStars;
+        }
+        this.squarePairs = new int[n][];
+        for (int k=0; k < n; k++) {
+            this.squarePairs[k] = new int[counts[k]];
+            counts[k] = 0;
+        }
+        for (int e=0; e < this.pairs.length; e++) {
+            Pair p = this.pairs[e];
+            this.squarePairs[p.i][counts[p.i]++] = e;
+            this.squarePairs[p.j][counts[p.j]++] = e;
+        }
+
+        // Squares without a base anchor the solution; squares with no
+        // neighbors have nothing to adjust them.
+        this.paramIndex = new int[n];
+        this.numFree = 0;
+        for (int k=0; k < n; k++) {
+            if (this.squares.get(k).baseSquare != null && this.squarePairs[k].length > 0) {
+                this.paramIndex[k] = this.numFree++;
+            }
+            else {
+                this.paramIndex[k] = -1;
+            }
+        }
+    }
+
+    /** Key identifying an unordered pair of square indices. */
+    private static long pairKey(int a, int b)
+    {
+        return ((long)Math.min(a, b) << 32) | Math.max(a, b);
+    }
+
+    /** Key of the location bucket containing (latitude, longitude),
+      * offset by the given number of buckets. */
+    private Long bucketKey(float latitude, float longitude, int dLat, int dLon)
+    {
+        int numLonBuckets = Math.max(1, (int)Math.floor(360 / this.neighborDegrees));
+        long latBucket = (long)Math.floor((latitude + 90) / this.neighborDegrees) + dLat;
+        long lonBucket = (long)Math.floor((longitude + 180) / this.neighborDegrees) + dLon;
+        lonBucket = ((lonBucket % numLonBuckets) + numLonBuckets) % numLonBuckets;
+        return Long.valueOf(latBucket * numLonBuckets + lonBucket);
+    }
+
+    /** True if 'a' and 'b' are adjacent in the latitude/longitude grid. */
+    private boolean areNeighbors(SurfaceSquare a, SurfaceSquare b)
+    {
+        final float tolerance = 1e-3f;
+        float dLat = Math.abs(a.latitude - b.latitude);
+        float dLon = Math.abs(FloatUtil.modulus2f(a.longitude - b.longitude, -180, 180));
+        if (dLat < tolerance) {
+            return tolerance <= dLon && dLon <= this.neighborDegrees + tolerance;
+        }
+        if (dLon < tolerance) {
+            return dLat <= this.neighborDegrees + tolerance;
+        }
+        return false;
+    }
+
+    /** Make the pair of squares 'i' and 'j', or return null if they
+      * are in the same place. */
+    private Pair makePair(int i, int j)
+    {
+        SurfaceSquare si = this.squares.get(i);
+        SurfaceSquare sj = this.squares.get(j);
+        TravelObservation tobs = this.reconstructor.getWorldObservations().getTravelObservation(
+            si.latitude, si.longitude, sj.latitude, sj.longitude);
+        if (tobs.distanceKm <= 0) {
+            return null;
+        }
+
+        Pair p = new Pair();
+        p.i = i;
+        p.j = j;
+        p.halfDistance = tobs.distanceKm / 2.0 * SurfaceSquare.SPACE_UNITS_PER_KM;
+
+        // Travel directions, as in 'createRotatedAdjacentSquare', then
+        // taken back to nominal coordinates.
+        p.travelI = toNominal(si,
+            si.north.rotateDeg(-tobs.startToEndHeading, si.up));
+        p.travelJ = toNominal(sj,
+            sj.north.rotateDeg(-tobs.endToStartHeading + 180, sj.up));
+
+        ArrayList<StarObservation> obsI = new ArrayList<StarObservation>();
+        ArrayList<StarObservation> obsJ = new ArrayList<StarObservation>();
+        for (StarObservation so : sj.starObs.values()) {
+            StarObservation other = si.findObservation(so.name);
+            if (other != null) {
+                obsI.add(other);
+                obsJ.add(so);
+            }
+        }
+        p.numStars = obsJ.size();
+        p.raysI = new double[p.numStars * 3];
+        p.raysJ = new double[p.numStars * 3];
+        for (int k=0; k < p.numStars; k++) {
+            copy(Vector3f.azimuthElevationToVector(obsI.get(k).azimuth, obsI.get(k).elevation),
+                p.raysI, k*3);
+            copy(Vector3f.azimuthElevationToVector(obsJ.get(k).azimuth, obsJ.get(k).elevation),
+                p.raysJ, k*3);
+        }
+        return p;
+    }
+
+    /** Express world vector 'v' in the nominal coordinates of 's'. */
+    private static double[] toNominal(SurfaceSquare s, Vector3f v)
+    {
+        return rotationMatrix(s.rotationFromNominal).transpose()
+            .times(new Vector3d(v)).getArray();
+    }
+
+    /** Return the matrix for a rotation vector with length in degrees. */
+    private static Matrix3d rotationMatrix(Vector3f angleAxis)
+    {
+        Vector3d aa = new Vector3d(angleAxis);
+        return Matrix3d.rotateRad(FloatUtil.degreesToRadians(aa.length()), aa);
+    }
+
+    /** Copy 'v' into 'dest' starting at 'index'. */
+    private static void copy(Vector3f v, double[] dest, int index)
+    {
+        dest[index] = v.x();
+        dest[index+1] = v.y();
+        dest[index+2] = v.z();
+    }
+
+    /** Initialize the state from the squares. */
+    private void loadState()
+    {
+        int n = this.squares.size();
+        this.orientations = new double[n*9];
+        this.centers = new double[n*3];
+        this.trialOrientations = new double[n*9];
+        this.trialCenters = new double[n*3];
+        for (int k=0; k < n; k++) {
+            SurfaceSquare s = this.squares.get(k);
+            Matrix3d m = rotationMatrix(s.rotationFromNominal);
+            double[] o = this.orientations;
+            o[k*9]   = m.a11(); o[k*9+1] = m.a12(); o[k*9+2] = m.a13();
+            o[k*9+3] = m.a21(); o[k*9+4] = m.a22(); o[k*9+5] = m.a23();
+            o[k*9+6] = m.a31(); o[k*9+7] = m.a32(); o[k*9+8] = m.a33();
+            this.centers[k*3] = s.center.x();
+            this.centers[k*3+1] = s.center.y();
+            this.centers[k*3+2] = s.center.z();
+        }
+        this.diagonalBlocks = new double[this.numFree * PARAMS*PARAMS];
+        this.gradient = new double[this.numFree * PARAMS];
+    }
+
+    // ----------------------------- Residuals ----------------------------
+    /** Largest number of residuals of any pair. */
+    private int maxResiduals()
+    {
+        int ret = 3;
+        for (Pair p : this.pairs) {
+            ret = Math.max(ret, p.numResiduals());
+        }
+        return ret;
+    }
+
+    /** Compute the residuals of 'p' into 'ws.residuals' when square i
+      * has orientation 'oi' and center 'ci', and likewise for j, and
+      * return their sum of squares.  Also sets 'p.starCost'.
+      *
+      * The first three residuals are the travel constraint, and then
+      * there are three per star: with infinite star distance, as
+      * described at 'TrialRotationEvaluator.compareRays', with j
+      * compared to i, and otherwise the plane angle and divergence
+      * described in the class comment, followed by a zero. */
+    private double evaluatePair(Pair p, double[] oi, double[] ci,
+        double[] oj, double[] cj, Workspace ws, double[] out)
+    {
+        // Travel: the centers should differ by the half distance along
+        // the travel direction at each end.
+        TrialRotationEvaluator.transform(oi, p.travelI, 0, ws.up, 0);
+        double scale = this.travelWeight * (180 / Math.PI) / (2 * p.halfDistance);
+        for (int a=0; a < 3; a++) {
+            out[a] = (cj[a] - ci[a]) - p.halfDistance * ws.up[a];
+        }
+        TrialRotationEvaluator.transform(oj, p.travelJ, 0, ws.up, 0);
+        double travelCost = 0;
+        for (int a=0; a < 3; a++) {
+            out[a] = (out[a] - p.halfDistance * ws.up[a]) * scale;
+            travelCost += out[a] * out[a];
+        }
+
+        // Stars.
+        TrialRotationEvaluator.transform(oj, NOMINAL_UP, 0, ws.up, 0);
+        double starCost = 0;
+        SolverOptions options = this.reconstructor.options;
+        for (int k=0; k < p.numStars; k++) {
+            TrialRotationEvaluator.transform(oi, p.raysI, k*3, ws.raysI, k*3);
+            TrialRotationEvaluator.transform(oj, p.raysJ, k*3, ws.raysJ, k*3);
+            if (options.assumeInfiniteStarDistance) {
+                TrialRotationEvaluator.compareRays(
+                    true, options.onlyCompareElevations,
+                    cj, ws.up, ws.raysJ, k*3,
+                    ci, ws.raysI, k*3,
+                    out, 3 + k*3);
+            }
+            else {
+                out[3 + k*3] = planeAngle(ci, cj, ws.raysI, ws.raysJ, k*3);
+                out[4 + k*3] = DIVERGENCE_WEIGHT * Math.min(0,
+                    convergenceAngle(ci, cj, ws.raysI, ws.raysJ, k*3) -
+                    MINIMUM_CONVERGENCE_DEGREES);
+                out[5 + k*3] = 0;
+            }
+            for (int a=3+k*3; a < 6+k*3; a++) {
+                starCost += out[a] * out[a];
+            }
+        }
+
+        p.starCost = starCost;
+        return travelCost + starCost;
+    }
+
+    /** Return the angle, in degrees, between the ray in 'raysJ' at 'k'
+      * and the plane containing the line from 'ci' to 'cj' and the
+      * ray in 'raysI' at 'k'.  If the ray from i is along that line,
+      * there is no plane, and this returns 0. */
+    private static double planeAngle(double[] ci, double[] cj,
+        double[] raysI, double[] raysJ, int k)
+    {
+        double dx = cj[0] - ci[0];
+        double dy = cj[1] - ci[1];
+        double dz = cj[2] - ci[2];
+        double bx = raysI[k];
+        double by = raysI[k+1];
+        double bz = raysI[k+2];
+
+        // Normal to the plane.
+        double nx = dy*bz - dz*by;
+        double ny = dz*bx - dx*bz;
+        double nz = dx*by - dy*bx;
+        double nLen = Math.sqrt(nx*nx + ny*ny + nz*nz);
+        if (nLen == 0) {
+            return 0;
+        }
+
+        double sine = (nx*raysJ[k] + ny*raysJ[k+1] + nz*raysJ[k+2]) / nLen;
+        return FloatUtil.radiansToDegrees(Math.asin(FloatUtil.clamp(sine, -1, 1)));
+    }
+
+    /** Return the angle, in degrees, by which the rays at 'k' in 'raysI'
+      * and 'raysJ', from 'ci' and 'cj' respectively, converge.  This is
+      * positive if they would meet in front of both squares, like rays
+      * to a star at a finite distance, and negative if they diverge. */
+    private static double convergenceAngle(double[] ci, double[] cj,
+        double[] raysI, double[] raysJ, int k)
+    {
+        // In the triangle formed by the centers and the star, the angle
+        // at i is that between the baseline and the ray from i, and the
+        // angle at j is 180 minus that between the baseline and the ray
+        // from j.  They add to less than 180 if the rays meet.
+        double dx = cj[0] - ci[0];
+        double dy = cj[1] - ci[1];
+        double dz = cj[2] - ci[2];
+        return TrialRotationEvaluator.separationAngleDegrees(
+                   dx, dy, dz, raysJ[k], raysJ[k+1], raysJ[k+2]) -
+               TrialRotationEvaluator.separationAngleDegrees(
+                   dx, dy, dz, raysI[k], raysI[k+1], raysI[k+2]);
+    }
+
+    /** Evaluate every pair at the given state and return the total
+      * sum of squared residuals. */
+    private double totalCost(final double[] orientations, final double[] centers)
+    {
+        final int maxResiduals = this.maxResiduals();
+        this.forRange(this.pairs.length, new RangeBody() {
+            public void run(int lo, int hi) {
+                Workspace ws = new Workspace(maxResiduals);
+                for (int e=lo; e < hi; e++) {
+                    Pair p = BundleAdjuster.this.pairs[e];
+                    BundleAdjuster.this.getState(orientations, centers, p.i, ws.perturbedI, ws.centerI);
+                    BundleAdjuster.this.getState(orientations, centers, p.j, ws.perturbedJ, ws.centerJ);
+                    p.cost = BundleAdjuster.this.evaluatePair(p,
+                        ws.perturbedI, ws.centerI, ws.perturbedJ, ws.centerJ, ws, ws.residuals);
+                }
+            }
+        });
+
+        double ret = 0;
+        for (Pair p : this.pairs) {
+            ret += p.cost;
+        }
+        return ret;
+    }
+
+    /** Average squared star separation as of the last evaluation. */
+    private double starVariance()
+    {
+        if (this.numStarSamples == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (Pair p : this.pairs) {
+            sum += p.starCost;
+        }
+        return sum / this.numStarSamples;
+    }
+
+    /** Copy the orientation and center of square 'k' out of the state
+      * arrays. */
+    private void getState(double[] orientations, double[] centers, int k,
+        double[] orientation, double[] center)
+    {
+        System.arraycopy(orientations, k*9, orientation, 0, 9);
+        System.arraycopy(centers, k*3, center, 0, 3);
+    }
+
+    // --------------------------- Linearization --------------------------
+    /** Compute the normal matrix blocks and gradient at the current
+      * state. */
+    private void linearize()
+    {
+        final int maxResiduals = this.maxResiduals();
+        this.forRange(this.pairs.length, new RangeBody() {
+            public void run(int lo, int hi) {
+                Workspace ws = new Workspace(maxResiduals);
+                for (int e=lo; e < hi; e++) {
+                    BundleAdjuster.this.linearizePair(BundleAdjuster.this.pairs[e], ws);
+                }
+            }
+        });
+
+        // Gather the blocks for each square.  Each square only writes
+        // its own blocks, so this can also be done in parallel.
+        this.forRange(this.squares.size(), new RangeBody() {
+            public void run(int lo, int hi) {
+                for (int k=lo; k < hi; k++) {
+                    BundleAdjuster.this.gatherSquare(k);
+                }
+            }
+        });
+    }
+
+    /** Compute the Jacobian of the residuals of 'p' by central
+      * differences, and from it the normal matrix blocks. */
+    private void linearizePair(Pair p, Workspace ws)
+    {
+        int m = p.numResiduals();
+        double[] oi = new double[9];
+        double[] oj = new double[9];
+        double[] ci = new double[3];
+        double[] cj = new double[3];
+        this.getState(this.orientations, this.centers, p.i, oi, ci);
+        this.getState(this.orientations, this.centers, p.j, oj, cj);
+
+        p.cost = this.evaluatePair(p, oi, ci, oj, cj, ws, ws.residuals);
+
+        // Columns 0-5 are for square i, 6-11 for j.
+        double[] J = ws.jacobian;
+        for (int col=0; col < 2*PARAMS; col++) {
+            boolean isI = col < PARAMS;
+            int param = col % PARAMS;
+            if (this.paramIndex[isI? p.i : p.j] < 0) {
+                for (int r=0; r < m; r++) {
+                    J[col*m + r] = 0;
+                }
+                continue;
+            }
+            double step = (param < 3)? ROTATION_STEP_DEGREES : CENTER_STEP;
+
+            for (int sign=-1; sign <= 1; sign += 2) {
+                double[] o = isI? ws.perturbedI : ws.perturbedJ;
+                double[] c = isI? ws.centerI : ws.centerJ;
+                System.arraycopy(isI? oi : oj, 0, o, 0, 9);
+                System.arraycopy(isI? ci : cj, 0, c, 0, 3);
+                if (param < 3) {
+                    TrialRotationEvaluator.rotationMatrixDegrees(
+                        (param == 0)? sign * step : 0,
+                        (param == 1)? sign * step : 0,
+                        (param == 2)? sign * step : 0,
+                        ws.rotation);
+                    TrialRotationEvaluator.multiply(ws.rotation, isI? oi : oj, o);
+                }
+                else {
+                    c[param-3] += sign * step;
+                }
+                this.evaluatePair(p,
+                    isI? o : oi, isI? c : ci,
+                    isI? oj : o, isI? cj : c,
+                    ws, (sign < 0)? ws.minus : ws.plus);
+            }
+            for (int r=0; r < m; r++) {
+                J[col*m + r] = (ws.plus[r] - ws.minus[r]) / (2 * step);
+            }
+        }
+
+        // The perturbed evaluations overwrote this.
+        this.evaluatePair(p, oi, ci, oj, cj, ws, ws.residuals);
+
+        for (int a=0; a < PARAMS; a++) {
+            for (int b=0; b < PARAMS; b++) {
+                p.hii[a*PARAMS + b] = dot(J, a*m, J, b*m, m);
+                p.hjj[a*PARAMS + b] = dot(J, (PARAMS+a)*m, J, (PARAMS+b)*m, m);
+                p.hij[a*PARAMS + b] = dot(J, a*m, J, (PARAMS+b)*m, m);
+            }
+            p.gi[a] = dot(J, a*m, ws.residuals, 0, m);
+            p.gj[a] = dot(J, (PARAMS+a)*m, ws.residuals, 0, m);
+        }
+    }
+
+    /** Dot product of 'n' entries of 'a' and 'b' starting at the given
+      * offsets. */
+    private static double dot(double[] a, int aOffset, double[] b, int bOffset, int n)
+    {
+        double sum = 0;
+        for (int k=0; k < n; k++) {
+            sum += a[aOffset+k] * b[bOffset+k];
+        }
+        return sum;
+    }
+
+    /** Sum the blocks of the pairs containing square 'k' into its
+      * diagonal block and gradient. */
+    private void gatherSquare(int k)
+    {
+        int pk = this.paramIndex[k];
+        if (pk < 0) {
+            return;
+        }
+        int dOffset = pk * PARAMS*PARAMS;
+        int gOffset = pk * PARAMS;
+        for (int a=0; a < PARAMS*PARAMS; a++) {
+            this.diagonalBlocks[dOffset + a] = 0;
+        }
+        for (int a=0; a < PARAMS; a++) {
+            this.gradient[gOffset + a] = 0;
+        }
+        for (int e : this.squarePairs[k]) {
+            Pair p = this.pairs[e];
+            double[] h = (p.i == k)? p.hii : p.hjj;
+            double[] g = (p.i == k)? p.gi : p.gj;
+            for (int a=0; a < PARAMS*PARAMS; a++) {
+                this.diagonalBlocks[dOffset + a] += h[a];
+            }
+            for (int a=0; a < PARAMS; a++) {
+                this.gradient[gOffset + a] += g[a];
+            }
+        }
+    }
+
+    // ------------------------------ Solving -----------------------------
+    /** Amount added to the diagonal of each block, relative to the
+      * largest diagonal entry, so that directions the data does not
+      * constrain at all stay where they are instead of making the
+      * system singular. */
+    private static final double REGULARIZATION = 1e-9;
+
+    /** Solve (H + lambda*diag(H)) delta = -g for the step 'delta', by
+      * preconditioned conjugate gradients. */
+    private double[] solve(final double lambda)
+    {
+        final int size = this.numFree * PARAMS;
+
+        // Damped diagonal, and the inverse of each damped block for
+        // the preconditioner.
+        final double[] damping = new double[size];
+        final double[] preconditioner = new double[this.numFree * PARAMS*PARAMS];
+        this.forRange(this.numFree, new RangeBody() {
+            public void run(int lo, int hi) {
+                for (int k=lo; k < hi; k++) {
+                    BundleAdjuster.this.prepareBlock(k, lambda, damping, preconditioner);
+                }
+            }
+        });
+
+        double[] x = new double[size];
+        double[] r = new double[size];
+        for (int a=0; a < size; a++) {
+            r[a] = -this.gradient[a];      // Residual of x=0.
+        }
+        double[] z = new double[size];
+        this.applyPreconditioner(preconditioner, r, z);
+        double[] d = z.clone();
+        double[] q = new double[size];
+
+        double rz = dot(r, 0, z, 0, size);
+        double initialNorm = Math.sqrt(dot(r, 0, r, 0, size));
+        int iter = 0;
+        for (; iter < this.maxConjugateGradientIterations; iter++) {
+            if (Math.sqrt(dot(r, 0, r, 0, size)) <=
+                    this.conjugateGradientTolerance * initialNorm) {
+                break;
+            }
+            this.multiplyNormalMatrix(damping, d, q);
+            double dq = dot(d, 0, q, 0, size);
+            if (!( dq > 0 )) {
+                break;
+            }
+            double alpha = rz / dq;
+            for (int a=0; a < size; a++) {
+                x[a] += alpha * d[a];
+                r[a] -= alpha * q[a];
+            }
+            this.applyPreconditioner(preconditioner, r, z);
+            double newRz = dot(r, 0, z, 0, size);
+            double beta = newRz / rz;
+            rz = newRz;
+            for (int a=0; a < size; a++) {
+                d[a] = z[a] + beta * d[a];
+            }
+        }
+        log("bundleAdjust: lambda="+lambda+" cg iterations="+iter);
+        return x;
+    }
+
+    /** For free square number 'k', compute the amount added to each
+      * diagonal entry, and invert the damped diagonal block. */
+    private void prepareBlock(int k, double lambda, double[] damping,
+        double[] preconditioner)
+    {
+        int offset = k * PARAMS*PARAMS;
+        double maxDiagonal = 0;
+        for (int a=0; a < PARAMS; a++) {
+            maxDiagonal = Math.max(maxDiagonal,
+                this.diagonalBlocks[offset + a*PARAMS + a]);
+        }
+        double[] block = new double[PARAMS*PARAMS];
+        System.arraycopy(this.diagonalBlocks, offset, block, 0, PARAMS*PARAMS);
+        for (int a=0; a < PARAMS; a++) {
+            double extra = lambda * this.diagonalBlocks[offset + a*PARAMS + a] +
+                REGULARIZATION * (1 + maxDiagonal);
+            damping[k*PARAMS + a] = extra;
+            block[a*PARAMS + a] += extra;
+        }
+
+        Matrixd inv = new Matrixd(PARAMS, PARAMS, block).inverse();
+        for (int a=0; a < PARAMS; a++) {
+            for (int b=0; b < PARAMS; b++) {
+                preconditioner[offset + a*PARAMS + b] = inv.get(a, b);
+            }
+        }
+    }
+
+    /** Set 'z' to the block Jacobi preconditioner applied to 'r'. */
+    private void applyPreconditioner(final double[] preconditioner,
+        final double[] r, final double[] z)
+    {
+        this.forRange(this.numFree, new RangeBody() {
+            public void run(int lo, int hi) {
+                for (int k=lo; k < hi; k++) {
+                    multiplyBlock(preconditioner, k * PARAMS*PARAMS, false,
+                        r, k*PARAMS, z, k*PARAMS, true);
+                }
+            }
+        });
+    }
+
+    /** Set 'y' to the damped normal matrix times 'x'.  Each square
+      * computes its own part of 'y' from its blocks and those of its
+      * pairs. */
+    private void multiplyNormalMatrix(final double[] damping,
+        final double[] x, final double[] y)
+    {
+        this.forRange(this.squares.size(), new RangeBody() {
+            public void run(int lo, int hi) {
+                for (int k=lo; k < hi; k++) {
+                    int pk = BundleAdjuster.this.paramIndex[k];
+                    if (pk < 0) {
+                        continue;
+                    }
+                    multiplyBlock(BundleAdjuster.this.diagonalBlocks, pk * PARAMS*PARAMS,
+                        false, x, pk*PARAMS, y, pk*PARAMS, true);
+                    for (int a=0; a < PARAMS; a++) {
+                        y[pk*PARAMS + a] += damping[pk*PARAMS + a] * x[pk*PARAMS + a];
+                    }
+                    for (int e : BundleAdjuster.this.squarePairs[k]) {
+                        Pair p = BundleAdjuster.this.pairs[e];
+                        boolean isI = (p.i == k);
+                        int other = BundleAdjuster.this.paramIndex[isI? p.j : p.i];
+                        if (other >= 0) {
+                            // The block below the diagonal is the
+                            // transpose of the one above.
+                            multiplyBlock(p.hij, 0, !isI,
+                                x, other*PARAMS, y, pk*PARAMS, false);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** Multiply the 6x6 block in 'm' at 'mOffset', or its transpose,
+      * by the vector in 'x' at 'xOffset', and store into, or add to,
+      * 'y' at 'yOffset'. */
+    private static void multiplyBlock(double[] m, int mOffset, boolean transpose,
+        double[] x, int xOffset, double[] y, int yOffset, boolean store)
+    {
+        for (int a=0; a < PARAMS; a++) {
+            double sum = 0;
+            for (int b=0; b < PARAMS; b++) {
+                double entry = transpose? m[mOffset + b*PARAMS + a] : m[mOffset + a*PARAMS + b];
+                sum += entry * x[xOffset + b];
+            }
+            if (store) {
+                y[yOffset + a] = sum;
+            }
+            else {
+                y[yOffset + a] += sum;
+            }
+        }
+    }
+
+    /** Set the trial state to the current state changed by 'delta'. */
+    private void applyStep(double[] delta)
+    {
+        int n = this.squares.size();
+        System.arraycopy(this.orientations, 0, this.trialOrientations, 0, n*9);
+        System.arraycopy(this.centers, 0, this.trialCenters, 0, n*3);
+        double[] rotation = new double[9];
+        double[] current = new double[9];
+        double[] rotated = new double[9];
+        for (int k=0; k < n; k++) {
+            int pk = this.paramIndex[k];
+            if (pk < 0) {
+                continue;
+            }
+            int d = pk * PARAMS;
+            TrialRotationEvaluator.rotationMatrixDegrees(
+                delta[d], delta[d+1], delta[d+2], rotation);
+            System.arraycopy(this.orientations, k*9, current, 0, 9);
+            TrialRotationEvaluator.multiply(rotation, current, rotated);
+            System.arraycopy(rotated, 0, this.trialOrientations, k*9, 9);
+            for (int a=0; a < 3; a++) {
+                this.trialCenters[k*3 + a] += delta[d+3+a];
+            }
+        }
+    }
+
+    // ------------------------------ Output ------------------------------
+    /** Make a surface containing the squares at their adjusted places. */
+    private ReconstructedSurface makeSurface()
+    {
+        IdentityHashMap<SurfaceSquare, SurfaceSquare> replacements =
+            new IdentityHashMap<SurfaceSquare, SurfaceSquare>();
+        IdentityHashMap<SurfaceSquare, Integer> indexOf =
+            new IdentityHashMap<SurfaceSquare, Integer>();
+        for (int k=0; k < this.squares.size(); k++) {
+            indexOf.put(this.squares.get(k), k);
+        }
+
+        ReconstructedSurface ret = new ReconstructedSurface();
+        for (int k=0; k < this.squares.size(); k++) {
+            ret.addSurfaceSquare(this.makeSquare(k, indexOf, replacements));
+        }
+        return ret;
+    }
+
+    /** Make the adjusted version of square 'k', after its base. */
+    private SurfaceSquare makeSquare(int k,
+        IdentityHashMap<SurfaceSquare, Integer> indexOf,
+        IdentityHashMap<SurfaceSquare, SurfaceSquare> replacements)
+    {
+        SurfaceSquare old = this.squares.get(k);
+        SurfaceSquare ret = replacements.get(old);
+        if (ret != null) {
+            return ret;
+        }
+
+        // Find the replacement base.  A base that is not among the
+        // squares being adjusted stays as it is.
+        SurfaceSquare base = old.baseSquare;
+        if (base != null && indexOf.containsKey(base)) {
+            base = this.makeSquare(indexOf.get(base), indexOf, replacements);
+        }
+
+        double[] o = new double[9];
+        double[] c = new double[3];
+        this.getState(this.orientations, this.centers, k, o, c);
+        Matrix3d orientation = new Matrix3d(o[0], o[1], o[2],
+                                            o[3], o[4], o[5],
+                                            o[6], o[7], o[8]);
+
+        Vector3f rotationFromBase;
+        Vector3f midpoint = null;
+        if (base == null) {
+            rotationFromBase = orientation.rotationVectorDegrees().toVector3f();
+        }
+        else {
+            rotationFromBase = orientation.times(rotationMatrix(base.rotationFromNominal).transpose())
+                .rotationVectorDegrees().toVector3f();
+            if (this.basePair[k] >= 0) {
+                // Half way along the travel direction from the base.
+                Pair p = this.pairs[this.basePair[k]];
+                double[] travel = new double[3];
+                this.getState(this.orientations, this.centers, p.i, o, c);
+                TrialRotationEvaluator.transform(o, p.travelI, 0, travel, 0);
+                midpoint = new Vector3f(
+                    (float)(c[0] + p.halfDistance * travel[0]),
+                    (float)(c[1] + p.halfDistance * travel[1]),
+                    (float)(c[2] + p.halfDistance * travel[2]));
+                this.getState(this.orientations, this.centers, k, o, c);
+            }
+            else {
+                midpoint = old.baseMidpoint;
+            }
+        }
+
+        ret = new SurfaceSquare(
+            new Vector3f((float)c[0], (float)c[1], (float)c[2]),
+            orientation.times(new Vector3d(NOMINAL_NORTH[0], NOMINAL_NORTH[1], NOMINAL_NORTH[2])).toVector3f(),
+            orientation.times(new Vector3d(NOMINAL_UP[0], NOMINAL_UP[1], NOMINAL_UP[2])).toVector3f(),
+            old.sizeKm,
+            old.latitude,
+            old.longitude,
+            base,
+            midpoint,
+            rotationFromBase);
+        ret.starObs = old.starObs;
+        ret.drawStarRays = old.drawStarRays;
+
+        replacements.put(old, ret);
+        return ret;
+    }
+
+    // ----------------------------- Parallelism --------------------------
+    /** Body of a loop over a range of indices. */
+    private static interface RangeBody {
+        public void run(int lo, int hi);
+    }
+
+    /** Fork-join task that runs a RangeBody over [lo,hi), splitting
+      * the range in half until it is small. */
+    private static class RangeTask extends RecursiveAction {
+        /** Generated serial ID (ForkJoinTask is Serializable). */
+        private static final long serialVersionUID = 6129873453062193587L;
+
+        private RangeBody body;
+        private int lo, hi;
+
+        public RangeTask(RangeBody body_, int lo_, int hi_)
+        {
+            this.body = body_;
+            this.lo = lo_;
+            this.hi = hi_;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (this.hi - this.lo <= PARALLEL_GRAIN) {
+                this.body.run(this.lo, this.hi);
+            }
+            else {
+                int mid = (this.lo + this.hi) / 2;
+                invokeAll(new RangeTask(this.body, this.lo, mid),
+                          new RangeTask(this.body, mid, this.hi));
+            }
+        }
+    }
+
+    /** Run 'body' over [0,count), in parallel if so configured.  The
+      * body must only write to locations that belong to its indices. */
+    private void forRange(int count, RangeBody body)
+    {
+        if (this.parallel) {
+            ForkJoinPool.commonPool().invoke(new RangeTask(body, 0, count));
+        }
+        else {
+            body.run(0, count);
+        }
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Adjust a surface built from 'obs', serially and in parallel, and
+      * check that the fit improves and that both give the same result. */
+    private static void testAdjust(WorldObservations obs)
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(obs);
+        r.options.assumeInfiniteStarDistance = true;
+        ReconstructedSurface built = r.buildEarthSurfaceFromStarData(BuildProgress.NONE);
+
+        ReconstructedSurface[] results = new ReconstructedSurface[2];
+        for (int p=0; p < 2; p++) {
+            BundleAdjuster adjuster = new BundleAdjuster(r, built.getSurfaceSquares());
+            adjuster.parallel = (p == 1);
+            results[p] = adjuster.adjust(BuildProgress.NONE);
+            if (!( adjuster.finalVariance < adjuster.initialVariance )) {
+                throw new RuntimeException("testAdjust: did not improve: "+
+                    adjuster.initialVariance+" -> "+adjuster.finalVariance);
+            }
+        }
+
+        List<SurfaceSquare> before = built.getSurfaceSquares();
+        List<SurfaceSquare> serial = results[0].getSurfaceSquares();
+        List<SurfaceSquare> parallel = results[1].getSurfaceSquares();
+        if (serial.size() != before.size() || parallel.size() != before.size()) {
+            throw new RuntimeException("testAdjust: wrong number of squares");
+        }
+        for (int k=0; k < before.size(); k++) {
+            SurfaceSquare a = serial.get(k);
+            SurfaceSquare b = parallel.get(k);
+            if (!Vector3f.identical(a.center, b.center) ||
+                !Vector3f.identical(a.rotationFromNominal, b.rotationFromNominal))
+            {
+                throw new RuntimeException("testAdjust: parallel result differs: "+
+                    a+" vs "+b);
+            }
+            if (a.latitude != before.get(k).latitude ||
+                (a.baseSquare == null) != (before.get(k).baseSquare == null))
+            {
+                throw new RuntimeException("testAdjust: square "+k+" changed identity");
+            }
+        }
+    }
+
+    /** Throw if 'actual' is not within 'tolerance' of 'expect'. */
+    private static void checkNear(String what, double actual, double expect,
+        double tolerance)
+    {
+        if (!( Math.abs(actual - expect) <= tolerance )) {
+            throw new RuntimeException(what+": expected "+expect+", got "+actual);
+        }
+    }
+
+    /** Check the finite-distance star residuals on a triangle whose
+      * angles are known. */
+    private static void testStarAngles()
+    {
+        // Centers one unit apart on X, and a star two units above the
+        // point half way between them.
+        double[] ci = { 0, 0, 0 };
+        double[] cj = { 1, 0, 0 };
+        double len = Math.sqrt(0.25 + 4);
+        double[] raysI = { 0.5/len, 0, 2/len };
+        double[] raysJ = { -0.5/len, 0, 2/len };
+        double subtended = FloatUtil.radiansToDegrees(2 * Math.atan(0.25));
+
+        checkNear("planeAngle in plane", planeAngle(ci, cj, raysI, raysJ, 0), 0, 1e-9);
+        checkNear("convergenceAngle", convergenceAngle(ci, cj, raysI, raysJ, 0),
+            subtended, 1e-9);
+
+        // Swapping the rays makes them diverge by as much.
+        checkNear("convergenceAngle diverging", convergenceAngle(ci, cj, raysJ, raysI, 0),
+            -subtended, 1e-9);
+
+        // Tilting the ray from j out of the plane, which is XZ, toward
+        // +Y.  The plane's normal, baseline cross ray, points to -Y.
+        double tilt = 3;
+        double c = Math.cos(FloatUtil.degreesToRadians(tilt));
+        double sn = Math.sin(FloatUtil.degreesToRadians(tilt));
+        double[] tilted = { raysJ[0]*c, sn, raysJ[2]*c };
+        checkNear("planeAngle tilted", planeAngle(ci, cj, raysI, tilted, 0), -tilt, 1e-9);
+
+        // A ray from i along the baseline defines no plane.
+        double[] along = { 1, 0, 0 };
+        checkNear("planeAngle degenerate", planeAngle(ci, cj, along, raysJ, 0), 0, 0);
+    }
+
+    /** Set 'o' and 'c' to square 'k' of the adjuster's state moved by
+      * 'h' times the part of 'delta' at 'offset'. */
+    private void perturbState(int k, double[] delta, int offset, double h,
+        double[] o, double[] c)
+    {
+        double[] current = new double[9];
+        double[] rotation = new double[9];
+        this.getState(this.orientations, this.centers, k, current, c);
+        TrialRotationEvaluator.rotationMatrixDegrees(
+            h * delta[offset], h * delta[offset+1], h * delta[offset+2], rotation);
+        TrialRotationEvaluator.multiply(rotation, current, o);
+        for (int a=0; a < 3; a++) {
+            c[a] += h * delta[offset+3+a];
+        }
+    }
+
+    /** With finite star distances, check the Jacobian 'linearizePair'
+      * computes against differences of the residuals along random
+      * directions that move both squares at once, the way 'applyStep'
+      * moves them. */
+    private static void testJacobian()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new CloseStarObservations());
+        r.options.assumeInfiniteStarDistance = false;
+        r.options.buildStepDegrees = 30;
+        List<SurfaceSquare> squares =
+            r.buildEarthSurfaceFromStarData(BuildProgress.NONE).getSurfaceSquares();
+        BundleAdjuster adjuster = new BundleAdjuster(r, squares);
+        adjuster.findPairs();
+        adjuster.loadState();
+
+        Workspace ws = new Workspace(adjuster.maxResiduals());
+        int maxResiduals = adjuster.maxResiduals();
+        double[] plus = new double[maxResiduals];
+        double[] minus = new double[maxResiduals];
+        double[] oi = new double[9], ci = new double[3];
+        double[] oj = new double[9], cj = new double[3];
+        Random random = new Random(1);
+        double h = 1e-2;
+
+        int numChecked = 0;
+        for (Pair p : adjuster.pairs) {
+            if (adjuster.paramIndex[p.i] < 0 || adjuster.paramIndex[p.j] < 0 ||
+                p.numStars == 0)
+            {
+                continue;
+            }
+            adjuster.linearizePair(p, ws);
+            int m = p.numResiduals();
+
+            for (int trial=0; trial < 3; trial++) {
+                // Rotations of up to a degree, moves of up to a km.
+                double[] delta = new double[2*PARAMS];
+                for (int a=0; a < 2*PARAMS; a++) {
+                    double scale = (a % PARAMS < 3)? 1 : SurfaceSquare.SPACE_UNITS_PER_KM;
+                    delta[a] = (random.nextDouble() * 2 - 1) * scale;
+                }
+
+                adjuster.perturbState(p.i, delta, 0, h, oi, ci);
+                adjuster.perturbState(p.j, delta, PARAMS, h, oj, cj);
+                adjuster.evaluatePair(p, oi, ci, oj, cj, ws, plus);
+                adjuster.perturbState(p.i, delta, 0, -h, oi, ci);
+                adjuster.perturbState(p.j, delta, PARAMS, -h, oj, cj);
+                adjuster.evaluatePair(p, oi, ci, oj, cj, ws, minus);
+
+                for (int row=0; row < m; row++) {
+                    // Skip the divergence penalty where it is at its kink.
+                    if ((plus[row] == 0) != (minus[row] == 0)) {
+                        continue;
+                    }
+                    double predicted = 0;
+                    for (int col=0; col < 2*PARAMS; col++) {
+                        predicted += ws.jacobian[col*m + row] * delta[col];
+                    }
+                    double measured = (plus[row] - minus[row]) / (2 * h);
+                    checkNear("testJacobian: pair "+p.i+"-"+p.j+" row "+row,
+                        predicted, measured, 1e-4 * (1 + Math.abs(measured)));
+                }
+            }
+            numChecked++;
+        }
+        if (numChecked == 0) {
+            throw new RuntimeException("testJacobian: no pairs to check");
+        }
+        System.out.println("Jacobian agrees with differences for "+numChecked+" pairs");
+    }
+
+    public static void main(String args[])
+    {
+        testStarAngles();
+        testJacobian();
+        testAdjust(new CloseStarObservations());
+        System.out.println("BundleAdjuster tests passed");
+    }
+}
+
+// EOF
@@ -0,0 +1,230 @@
+// CachedObservations.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Vector3f;
+import util.Vector4f;
+
+/** Another set of observations that remembers every star and Sun
+  * observation it is asked for, so that builds sharing it compute
+  * each one only once.
+  *
+  * VisibleStarCache already does this within one reconstructor, but
+  * its entries are filtered by the enabled stars and solver settings,
+  * so builds that differ in those cannot share them.  This sits below
+  * that filtering, and so serves any number of such builds, on any
+  * number of threads.  It is not bounded, since it is meant to live
+  * for one batch of builds over the same grid of locations. */
+public class CachedObservations extends WorldObservations {
+    // ---- Types ----
+    /** A time and place that was asked about. */
+    private static class Key {
+        public final double unixTime;
+        public final float latitude;
+        public final float longitude;
+
+        /** For 'sunIsAbove' and 'getStarObservationsAbove', the
+          * elevation asked about.  Otherwise NaN. */
+        public final float elevation;
+
+        public Key(double unixTime_, float latitude_, float longitude_, float elevation_)
+        {
+            this.unixTime = unixTime_;
+            this.latitude = latitude_;
+            this.longitude = longitude_;
+            this.elevation = elevation_;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)obj;
+            return Double.compare(this.unixTime, k.unixTime) == 0 &&
+                   Float.compare(this.latitude, k.latitude) == 0 &&
+                   Float.compare(this.longitude, k.longitude) == 0 &&
+                   Float.compare(this.elevation, k.elevation) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int h = Double.hashCode(this.unixTime);
+            h = h*31 + Float.hashCode(this.latitude);
+            h = h*31 + Float.hashCode(this.longitude);
+            h = h*31 + Float.hashCode(this.elevation);
+            return h;
+        }
+    }
+
+    // ---- Instance data ----
+    /** Observations being cached. */
+    private final WorldObservations base;
+
+    /** Star observations by time, place, and minimum elevation, if
+      * any.  The lists are unmodifiable, since every caller gets the
+      * same one. */
+    private final ConcurrentHashMap<Key, List<StarObservation>> starObservations =
+        new ConcurrentHashMap<Key, List<StarObservation>>();
+
+    /** Answers of 'sunIsAbove' by time, place, and elevation. */
+    private final ConcurrentHashMap<Key, Boolean> sunAbove =
+        new ConcurrentHashMap<Key, Boolean>();
+
+    /** Statistics, counting both kinds of lookup together. */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // ---- Methods ----
+    public CachedObservations(WorldObservations base_)
+    {
+        this.base = base_;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return this.base.getDescription();
+    }
+
+    @Override
+    public TravelObservation getTravelObservation(
+        float startLatitude, float startLongitude,
+        float endLatitude, float endLongitude)
+    {
+        return this.base.getTravelObservation(startLatitude, startLongitude,
+            endLatitude, endLongitude);
+    }
+
+    @Override
+    public List<String> getAllStars()
+    {
+        return this.base.getAllStars();
+    }
+
+    @Override
+    public List<StarObservation> getStarObservations(
+        double unixTime,
+        float latitude,
+        float longitude)
+    {
+        Key k = new Key(unixTime, latitude, longitude, Float.NaN);
+        List<StarObservation> ret = this.starObservations.get(k);
+        if (ret != null) {
+            this.hits.incrementAndGet();
+            return ret;
+        }
+
+        // Two threads might both compute this, but they get the same
+        // answer, so it does not matter which one is kept.
+        this.misses.incrementAndGet();
+        ret = Collections.unmodifiableList(
+            this.base.getStarObservations(unixTime, latitude, longitude));
+        List<StarObservation> prev = this.starObservations.putIfAbsent(k, ret);
+        return (prev != null)? prev : ret;
+    }
+
+    @Override
+    public List<StarObservation> getStarObservationsAbove(
+        double unixTime,
+        float latitude,
+        float longitude,
+        float minimumElevation)
+    {
+        Key k = new Key(unixTime, latitude, longitude, minimumElevation);
+        List<StarObservation> ret = this.starObservations.get(k);
+        if (ret != null) {
+            this.hits.incrementAndGet();
+            return ret;
+        }
+
+        this.misses.incrementAndGet();
+        ret = Collections.unmodifiableList(this.base.getStarObservationsAbove(
+            unixTime, latitude, longitude, minimumElevation));
+        List<StarObservation> prev = this.starObservations.putIfAbsent(k, ret);
+        return (prev != null)? prev : ret;
+    }
+
+    @Override
+    public StarObservation getSunObservation(
+        double unixTime,
+        float latitude,
+        float longitude)
+    {
+        return this.base.getSunObservation(unixTime, latitude, longitude);
+    }
+
+    @Override
+    public boolean sunIsAbove(
+        double unixTime,
+        float latitude,
+        float longitude,
+        float elevationDegrees)
+    {
+        Key k = new Key(unixTime, latitude, longitude, elevationDegrees);
+        Boolean ret = this.sunAbove.get(k);
+        if (ret != null) {
+            this.hits.incrementAndGet();
+            return ret;
+        }
+
+        this.misses.incrementAndGet();
+        ret = this.base.sunIsAbove(unixTime, latitude, longitude, elevationDegrees);
+        this.sunAbove.putIfAbsent(k, ret);
+        return ret;
+    }
+
+    @Override
+    public boolean hasModelPoints()
+    {
+        return this.base.hasModelPoints();
+    }
+
+    @Override
+    public Vector3f getModelPt(float latitude, float longitude)
+    {
+        return this.base.getModelPt(latitude, longitude);
+    }
+
+    @Override
+    public Map<String, Vector4f> getModelStarMap()
+    {
+        return this.base.getModelStarMap();
+    }
+
+    @Override
+    public SurfaceSquare getModelSquare(float latitude, float longitude)
+    {
+        return this.base.getModelSquare(latitude, longitude);
+    }
+
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CachedObservations(stars="+this.starObservations.size()+
+            ", sun="+this.sunAbove.size()+
+            ", hits="+this.hits.get()+
+            ", misses="+this.misses.get()+")";
+    }
+}
+
+// EOF
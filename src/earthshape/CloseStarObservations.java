@@ -99,6 +99,16 @@ public class CloseStarObservations extends ManifoldObservations {
         return rwo.getSunObservation(unixTime, latitude, longitude);
     }
 
+    @Override
+    public boolean sunIsAbove(
+        double unixTime,
+        float latitude,
+        float longitude,
+        float elevationDegrees)
+    {
+        return rwo.sunIsAbove(unixTime, latitude, longitude, elevationDegrees);
+    }
+
     @Override
     public Vector3f getModelPt(float latitude, float longitude)
     {
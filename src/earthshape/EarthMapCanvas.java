@@ -96,7 +96,7 @@ public class EarthMapCanvas
 
     // --------- Public constants ----------
     /** Units in 3D space coordinates per km in surface being mapped. */
-    public static final float SPACE_UNITS_PER_KM = 0.001f;
+    public static final float SPACE_UNITS_PER_KM = SurfaceSquare.SPACE_UNITS_PER_KM;
 
     // ---------- Instance variables ----------
     /** EarthShape application frame into which we are embedded.  That
@@ -257,10 +257,6 @@ public class EarthMapCanvas
       * each time we draw a new frame. */
     private ArrayList<CoordinateLabel> worldLabels = new ArrayList<CoordinateLabel>();
 
-    // ---- Virtual 3D map we are building or have built ----
-    /** Squares of the surface we have built. */
-    private ArrayList<SurfaceSquare> surfaceSquares = new ArrayList<SurfaceSquare>();
-
     // ---------- Methods ----------
     public EarthMapCanvas(EarthShape earthShapeFrame_, GLCapabilities caps)
     {
@@ -754,9 +750,9 @@ public class EarthMapCanvas
     private void doDrawWorldModel(GL2 gl)
     {
         if ((this.drawWorldWireframe || this.drawWorldStars) &&
-            this.earthShapeFrame.worldObservations.hasModelPoints())
+            this.earthShapeFrame.getReconstructor().getWorldObservations().hasModelPoints())
         {
-            WorldObservations wo = this.earthShapeFrame.worldObservations;
+            WorldObservations wo = this.earthShapeFrame.getReconstructor().getWorldObservations();
 
             gl.glLineWidth(2);
             gl.glNormal3f(0, 1, 0);
@@ -769,8 +765,9 @@ public class EarthMapCanvas
 
             // Get the square in original manifold coordinates
             // corresponding to the first reconstruction square.
-            if (!this.surfaceSquares.isEmpty()) {
-                SurfaceSquare firstPlaced = this.surfaceSquares.get(0);
+            SurfaceGraph surfaceSquares = this.earthShapeFrame.getSurfaceSquares();
+            if (surfaceSquares.size() > 0) {
+                SurfaceSquare firstPlaced = surfaceSquares.next(null, true);
                 SurfaceSquare rootSquare =
                     wo.getModelSquare(firstPlaced.latitude, firstPlaced.longitude);
                 rootSquare.sizeKm = firstPlaced.sizeKm;
@@ -1135,45 +1132,10 @@ public class EarthMapCanvas
         }
     }
 
-    /** Add a square to 'surfaceSquares'. */
-    public void addSurfaceSquare(SurfaceSquare s)
-    {
-        this.surfaceSquares.add(s);
-        //log("added square: "+s);
-    }
-
-    /** Remove a single surface square. */
-    public void removeSurfaceSquare(SurfaceSquare s)
-    {
-        this.surfaceSquares.remove(s);
-
-        // Go through the remaining squares and clean up any dangling
-        // base references.
-        for (SurfaceSquare r : this.surfaceSquares) {
-            if (r.baseSquare == s) {
-                r.baseSquare = null;
-                r.baseMidpoint = null;
-            }
-        }
-    }
-
-    /** Remove all surface squares. */
-    public void clearSurfaceSquares()
-    {
-        this.surfaceSquares.clear();
-        log("cleared all surface squares");
-    }
-
-    /** Return current number of surface squares. */
-    public int numSurfaceSquares()
-    {
-        return this.surfaceSquares.size();
-    }
-
-    /** Draw what is in 'surfaceSquares'. */
+    /** Draw the frame's surface squares. */
     private void drawEarthSurface(GL2 gl)
     {
-        for (SurfaceSquare s : this.surfaceSquares) {
+        for (SurfaceSquare s : this.earthShapeFrame.getSurfaceSquares().getSquares()) {
             this.drawSquare(gl, s);
         }
     }
@@ -1350,7 +1312,7 @@ public class EarthMapCanvas
             float rayBrightness = (s.showAsActive? 1.0f : 0.4f);
 
             // Ray to star in world coordinates.
-            Vector3f starRay = EarthShape.rayToStar(s, so);
+            Vector3f starRay = SurfaceReconstructor.rayToStar(s, so);
 
             gl.glBegin(GL.GL_LINES);
             glMaterialColor3f(gl, rayBrightness, rayBrightness, rayBrightness);
@@ -1390,20 +1352,20 @@ public class EarthMapCanvas
                 if (baseObservation != null) {
                     // Get ray from base square to the base observation star
                     // in world coordinates.
-                    Vector3f baseStarRay = EarthShape.rayToStar(s.baseSquare, baseObservation);
+                    Vector3f baseStarRay = SurfaceReconstructor.rayToStar(s.baseSquare, baseObservation);
 
                     // Get the visual separation angle.  This is a float
                     // in order to avoid cluttering the 3D display with
                     // too many digits.
                     float sep;
-                    if (this.earthShapeFrame.assumeInfiniteStarDistance) {
+                    if (this.earthShapeFrame.getReconstructor().options.assumeInfiniteStarDistance) {
                         // Angle between *rays*.
-                        sep = (float)this.earthShapeFrame.
+                        sep = (float)this.earthShapeFrame.getReconstructor().
                             getStarRayDifference(s.up, starRay, baseStarRay);
                     }
                     else {
                         // Get info about visual separation of *lines*.
-                        Vector3d.ClosestApproach ca = EarthShape.getModifiedClosestApproach(
+                        Vector3d.ClosestApproach ca = SurfaceReconstructor.getModifiedClosestApproach(
                             s.center, starRay,
                             s.baseSquare.center, baseStarRay);
                         sep = (float)ca.separationAngleDegrees;
@@ -1477,13 +1439,13 @@ public class EarthMapCanvas
 
         // Get observation vectors for both stars for both locations.
         Vector3f baseA =
-            EarthShape.rayToStar(base, base.starObs.get(starNameA));
+            SurfaceReconstructor.rayToStar(base, base.starObs.get(starNameA));
         Vector3f derivedA =
-            EarthShape.rayToStar(square, square.starObs.get(starNameA));
+            SurfaceReconstructor.rayToStar(square, square.starObs.get(starNameA));
         Vector3f baseB =
-            EarthShape.rayToStar(base, base.starObs.get(starNameB));
+            SurfaceReconstructor.rayToStar(base, base.starObs.get(starNameB));
         Vector3f derivedB =
-            EarthShape.rayToStar(square, square.starObs.get(starNameB));
+            SurfaceReconstructor.rayToStar(square, square.starObs.get(starNameB));
 
         // Compute and draw the cross product of this square's
         // A observation and that of the base square.
@@ -1977,47 +1939,9 @@ public class EarthMapCanvas
         this.earthShapeFrame.updateUIState();
     }
 
-    /** Get the square after 'sq' in 'surfaceSquares'.  This behaves like
-      * the list has an extra 'null' element, corresponding to the state
-      * where no square is active. */
-    public SurfaceSquare getNextSquare(SurfaceSquare sq, boolean forward)
-    {
-        if (sq == null) {
-            if (this.surfaceSquares.isEmpty()) {
-                return null;
-            }
-            else if (forward) {
-                return this.surfaceSquares.get(0);
-            }
-            else {
-                return this.surfaceSquares.get(this.surfaceSquares.size()-1);
-            }
-        }
-        else {
-            int i = this.surfaceSquares.indexOf(sq);
-            if (i < 0) {
-                return null;
-            }
-
-            if (forward) {
-                i++;
-            }
-            else {
-                i--;
-            }
-
-            if (0 <= i && i < this.surfaceSquares.size()) {
-                return this.surfaceSquares.get(i);
-            }
-            else {
-                return null;
-            }
-        }
-    }
-
     public void turnOffAllStarRays()
     {
-        for (SurfaceSquare s : this.surfaceSquares) {
+        for (SurfaceSquare s : this.earthShapeFrame.getSurfaceSquares().getSquares()) {
             s.drawStarRays = false;
         }
     }
@@ -2134,7 +2058,7 @@ public class EarthMapCanvas
 
         // Check all squares to see which ones intersect the look
         // vector, and of those, which is closest.
-        for (SurfaceSquare s : this.surfaceSquares) {
+        for (SurfaceSquare s : this.earthShapeFrame.getSurfaceSquares().getSquares()) {
             // Camera to that surface's center.  (For calculating 'toPlane',
             // any point on the plane will do, since they will all yield
             // the same projection onto the surface normal.)
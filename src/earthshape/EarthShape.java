@@ -13,7 +13,6 @@ import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,7 +31,6 @@ import javax.swing.SwingUtilities;
 import com.jogamp.opengl.GLCapabilities;
 
 import util.FloatUtil;
-import util.Vector3d;
 import util.Vector3f;
 import util.swing.ModalDialog;
 import util.swing.MyJFrame;
@@ -46,9 +44,11 @@ import static util.swing.SwingUtil.log;
   * stars from various locations at a fixed point in time.
   *
   * This class, EarthShape, manages UI components external to the 3D
-  * display, such as the menu and status bars.  It also contains all of
-  * the code to construct the virtual 3D map using various algorithms.
-  * The 3D display, along with its camera controls, is in EarthMapCanvas. */
+  * display, such as the menu and status bars.  It also contains the
+  * code for interactively building the virtual 3D map.  The algorithms
+  * for constructing the map from star observations are in
+  * SurfaceReconstructor, which does not depend on the UI.  The 3D
+  * display, along with its camera controls, is in EarthMapCanvas. */
 public class EarthShape extends MyJFrame {
     // --------- Constants ----------
     /** AWT boilerplate generated serial ID. */
@@ -63,20 +63,39 @@ public class EarthShape extends MyJFrame {
       * which it is reset when a new square is created. */
     private static final float DEFAULT_ADJUST_ORIENTATION_DEGREES = 1.0f;
 
-    /** Do not let 'adjustOrientationDegrees' go below this value.  Below
-      * this value is pointless because the precision of the variance is
-      * not high enough to discriminate among the choices. */
-    private static final float MINIMUM_ADJUST_ORIENTATION_DEGREES = 1e-7f;
-
     // ---------- Instance variables ----------
     // ---- Observation Information ----
-    /** The observations that will drive surface reconstruction.
-      * By default, this will be data from the real world, but it
-      * can be swapped out at the user's option. */
-    public WorldObservations worldObservations = new RealWorldObservations();
-
-    /** Set of stars that are enabled. */
-    private LinkedHashMap<String, Boolean> enabledStars = new LinkedHashMap<String, Boolean>();
+    /** Holds the observations that will drive surface reconstruction,
+      * the set of enabled stars, and the solver options, and runs the
+      * reconstruction algorithms.  By default, the observations will
+      * be data from the real world, but they can be swapped out at
+      * the user's option. */
+    private SurfaceReconstructor reconstructor =
+        new SurfaceReconstructor(new RealWorldObservations());
+
+    /** Announces every change to the squares on the map, including
+      * each square placed by a star-data build while it runs, to
+      * whoever else wants to follow them.  Nothing here reads from it. */
+    private final SquareEventBus squareEvents = new SquareEventBus();
+
+    /** The squares on the map.  This is the authoritative copy, which
+      * the map draws from.  It is only changed on the event dispatch
+      * thread: right away by the edits made here, and by the squares
+      * builds announce on 'buildEvents', which are passed on to
+      * 'squareEvents' as they are applied.  So it can be read right
+      * after an edit, and after 'catchUpWithBuilds'. */
+    private final SurfaceGraph surfaceSquares = new SurfaceGraph(this.reconstructor);
+
+    /** Where builds, which may run on other threads, announce the
+      * squares they place. */
+    private final SquareEventBus buildEvents = new SquareEventBus();
+
+    /** Events received from 'buildEvents' and not yet applied to
+      * 'surfaceSquares'.  Guarded by itself. */
+    private final ArrayList<SquareEvent> pendingBuildEvents = new ArrayList<SquareEvent>();
+
+    /** True while a redraw requested by 'redrawSoon' is waiting. */
+    private boolean redrawPending = false;
 
     // ---- Interactive surface construction state ----
     /** The square we will build upon when the next square is added.
@@ -88,37 +107,19 @@ public class EarthShape extends MyJFrame {
     private float adjustOrientationDegrees = DEFAULT_ADJUST_ORIENTATION_DEGREES;
 
     // ---- Options ----
-    /** When true, star observations are only compared by their
-      * direction.  When false, we also consider the location of the
-      * observer, which allows us to handle nearby objects. */
-    public boolean assumeInfiniteStarDistance = false;
-
-    /** When true, star observations are only compared by their
-      * direction, and furthermore, only the elevation, ignoring
-      * azimuth.  This is potentially interesting because, in
-      * practice, it is difficult to accurately measure azimuth
-      * with just a hand-held sextant. */
-    public boolean onlyCompareElevations = false;
+    // Options that affect the reconstruction algorithms are in
+    // 'reconstructor.options'.
 
     /** When analyzing the solution space, use this many points of
       * rotation on each side of 0, for each axis.  Note that the
       * algorithm is cubic in this parameter. */
     private int solutionAnalysisPointsPerSide = 20;
 
-    /** If the Sun's elevation is higher than this value, then
-      * we cannot see any stars. */
-    private float maximumSunElevation = -5;
-
-    /** When true, take the Sun's elevation into account. */
-    private boolean useSunElevation = true;
-
-    /** When true, use the "new" orientation algorithm that
-      * repeatedly applies the recommended command.  Otherwise,
-      * use the older one based on average deviation.  The old
-      * algorithm is faster, but slightly less accurate, and
-      * does not mimic the process a user would use to manually
-      * adjust a square's orientation. */
-    private boolean newAutomaticOrientationAlgorithm = true;
+    /** Number of walkers, steps per walker, and seed of the next
+      * random walk build. */
+    private int randomWalkWalkers = 1;
+    private int randomWalkSteps = 1000;
+    private long randomWalkSeed = 1;
 
     // ---- Widgets ----
     /** Canvas showing the Earth surface built so far. */
@@ -146,8 +147,16 @@ public class EarthShape extends MyJFrame {
     private JCheckBoxMenuItem invertHorizontalCameraMovementCBItem;
     private JCheckBoxMenuItem invertVerticalCameraMovementCBItem;
     private JCheckBoxMenuItem newAutomaticOrientationAlgorithmCBItem;
+    private JCheckBoxMenuItem closedFormOrientationCBItem;
+    private JCheckBoxMenuItem levenbergMarquardtOrientationCBItem;
+    private JCheckBoxMenuItem patternSearchOrientationCBItem;
     private JCheckBoxMenuItem assumeInfiniteStarDistanceCBItem;
     private JCheckBoxMenuItem onlyCompareElevationsCBItem;
+    private JCheckBoxMenuItem parallelBuildCBItem;
+    private JCheckBoxMenuItem bestFirstBuildCBItem;
+    private JCheckBoxMenuItem bundleAdjustCBItem;
+    private JCheckBoxMenuItem closeLoopsCBItem;
+    private JCheckBoxMenuItem adaptiveRefinementCBItem;
     private JCheckBoxMenuItem drawWorldWireframeCBItem;
     private JCheckBoxMenuItem drawWorldStarsCBItem;
     private JCheckBoxMenuItem drawSkyboxCBItem;
@@ -161,14 +170,29 @@ public class EarthShape extends MyJFrame {
         this.setLayout(new BorderLayout());
         this.setIcon();
 
-        for (String starName : this.worldObservations.getAllStars()) {
-            // Initially all stars are enabled.
-            this.enabledStars.put(starName, true);
-        }
-
         this.setSize(1150, 800);
         this.setLocationByPlatform(true);
 
+        this.surfaceSquares.events = this.squareEvents;
+
+        // The events of builds arrive on the subscription's thread, and
+        // are handed to the event dispatch thread without waiting for
+        // it, as the bus requires.
+        this.buildEvents.subscribe(new SquareEventBus.Listener() {
+            public void handleSquareEvents(List<SquareEvent> batch)
+            {
+                synchronized (EarthShape.this.pendingBuildEvents) {
+                    EarthShape.this.pendingBuildEvents.addAll(batch);
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        EarthShape.this.applyBuildEvents();
+                    }
+                });
+            }
+        });
+
         this.setupJOGL();
 
         this.buildMenuBar();
@@ -780,13 +804,34 @@ public class EarthShape extends MyJFrame {
                     EarthShape.this.setMaximumSunElevation();
                 }
             });
+        addMenuItem(menu, "Set observation epochs...",
+            null,
+            new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    EarthShape.this.setObservationEpochs();
+                }
+            });
+        addMenuItem(menu, "Set random walk parameters...",
+            null,
+            new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    EarthShape.this.setRandomWalkParameters();
+                }
+            });
+        addMenuItem(menu, "Set minimum star elevation...",
+            null,
+            new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    EarthShape.this.setMinimumStarElevation();
+                }
+            });
         this.useSunElevationCBItem =
             addCBMenuItem(menu, "Take Sun elevation into account", null,
-                this.useSunElevation,
+                this.reconstructor.options.useSunElevation,
                 new ActionListener() {
                     public void actionPerformed(ActionEvent e) {
-                        EarthShape.this.useSunElevation =
-                            !EarthShape.this.useSunElevation;
+                        EarthShape.this.reconstructor.options.useSunElevation =
+                            !EarthShape.this.reconstructor.options.useSunElevation;
                         EarthShape.this.updateUIState();
                     }
                 });
@@ -818,34 +863,114 @@ public class EarthShape extends MyJFrame {
 
         this.newAutomaticOrientationAlgorithmCBItem =
             addCBMenuItem(menu, "Use new automatic orientation algorithm", null,
-                this.newAutomaticOrientationAlgorithm,
+                this.reconstructor.options.newAutomaticOrientationAlgorithm,
+                new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        EarthShape.this.reconstructor.options.newAutomaticOrientationAlgorithm =
+                            !EarthShape.this.reconstructor.options.newAutomaticOrientationAlgorithm;
+                        EarthShape.this.updateUIState();
+                    }
+                });
+        this.closedFormOrientationCBItem =
+            addCBMenuItem(menu, "Use closed-form orientation for infinitely far stars", null,
+                this.reconstructor.options.closedFormOrientation,
                 new ActionListener() {
                     public void actionPerformed(ActionEvent e) {
-                        EarthShape.this.newAutomaticOrientationAlgorithm =
-                            !EarthShape.this.newAutomaticOrientationAlgorithm;
+                        EarthShape.this.reconstructor.options.closedFormOrientation =
+                            !EarthShape.this.reconstructor.options.closedFormOrientation;
+                        EarthShape.this.updateUIState();
+                    }
+                });
+        this.levenbergMarquardtOrientationCBItem =
+            addCBMenuItem(menu, "Use Levenberg-Marquardt orientation for nearby stars", null,
+                this.reconstructor.options.levenbergMarquardtOrientation,
+                new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        EarthShape.this.reconstructor.options.levenbergMarquardtOrientation =
+                            !EarthShape.this.reconstructor.options.levenbergMarquardtOrientation;
+                        EarthShape.this.updateUIState();
+                    }
+                });
+        this.patternSearchOrientationCBItem =
+            addCBMenuItem(menu, "Use pattern search instead of hill climbing", null,
+                this.reconstructor.options.patternSearchOrientation,
+                new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        EarthShape.this.reconstructor.options.patternSearchOrientation =
+                            !EarthShape.this.reconstructor.options.patternSearchOrientation;
                         EarthShape.this.updateUIState();
                     }
                 });
         this.assumeInfiniteStarDistanceCBItem =
             addCBMenuItem(menu, "Assume stars are infinitely far away", null,
-                this.assumeInfiniteStarDistance,
+                this.reconstructor.options.assumeInfiniteStarDistance,
                 new ActionListener() {
                     public void actionPerformed(ActionEvent e) {
-                        EarthShape.this.assumeInfiniteStarDistance =
-                            !EarthShape.this.assumeInfiniteStarDistance;
+                        EarthShape.this.reconstructor.options.assumeInfiniteStarDistance =
+                            !EarthShape.this.reconstructor.options.assumeInfiniteStarDistance;
                         EarthShape.this.updateAndRedraw();
                     }
                 });
         this.onlyCompareElevationsCBItem =
             addCBMenuItem(menu, "Only compare star elevations", null,
-                this.onlyCompareElevations,
+                this.reconstructor.options.onlyCompareElevations,
                 new ActionListener() {
                     public void actionPerformed(ActionEvent e) {
-                        EarthShape.this.onlyCompareElevations =
-                            !EarthShape.this.onlyCompareElevations;
+                        EarthShape.this.reconstructor.options.onlyCompareElevations =
+                            !EarthShape.this.reconstructor.options.onlyCompareElevations;
                         EarthShape.this.updateAndRedraw();
                     }
                 });
+        this.parallelBuildCBItem =
+            addCBMenuItem(menu, "Build latitude strips in parallel", null,
+                this.reconstructor.options.parallelBuild,
+                new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        EarthShape.this.reconstructor.options.parallelBuild =
+                            !EarthShape.this.reconstructor.options.parallelBuild;
+                        EarthShape.this.updateUIState();
+                    }
+                });
+        this.bestFirstBuildCBItem =
+            addCBMenuItem(menu, "Build best-constrained squares first", null,
+                this.reconstructor.options.bestFirstBuild,
+                new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        EarthShape.this.reconstructor.options.bestFirstBuild =
+                            !EarthShape.this.reconstructor.options.bestFirstBuild;
+                        EarthShape.this.updateUIState();
+                    }
+                });
+        this.adaptiveRefinementCBItem =
+            addCBMenuItem(menu, "Refine built surface where the fit is poor or curvature is high", null,
+                this.reconstructor.options.adaptiveRefinement,
+                new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        EarthShape.this.reconstructor.options.adaptiveRefinement =
+                            !EarthShape.this.reconstructor.options.adaptiveRefinement;
+                        EarthShape.this.updateUIState();
+                    }
+                });
+        this.bundleAdjustCBItem =
+            addCBMenuItem(menu, "Refine built surface with global bundle adjustment", null,
+                this.reconstructor.options.bundleAdjust,
+                new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        EarthShape.this.reconstructor.options.bundleAdjust =
+                            !EarthShape.this.reconstructor.options.bundleAdjust;
+                        EarthShape.this.updateUIState();
+                    }
+                });
+        this.closeLoopsCBItem =
+            addCBMenuItem(menu, "Close loops where latitude strips meet", null,
+                this.reconstructor.options.closeLoops,
+                new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        EarthShape.this.reconstructor.options.closeLoops =
+                            !EarthShape.this.reconstructor.options.closeLoops;
+                        EarthShape.this.updateUIState();
+                    }
+                });
 
         return menu;
     }
@@ -907,22 +1032,154 @@ public class EarthShape extends MyJFrame {
         return cbItem;
     }
 
-    /** Choose the set of stars to use.  This only affects new
-      * squares. */
+    /** Choose the set of stars to use.  Squares on the map that depend
+      * on the stars that changed are placed again, as described at
+      * StarDependencies. */
     private void chooseEnabledStars()
     {
-        StarListDialog d = new StarListDialog(this, this.enabledStars);
+        StarListDialog d = new StarListDialog(this, this.reconstructor.getEnabledStars());
         if (d.exec()) {
-            this.enabledStars = d.stars;
+            List<String> changed =
+                StarDependencies.changedStars(this.reconstructor.getEnabledStars(), d.stars);
+            this.reconstructor.setEnabledStars(d.stars);
+            this.catchUpWithBuilds();
+            if (!changed.isEmpty() && this.surfaceSquares.size() > 0) {
+                this.rebuildForChangedStars(changed);
+            }
             this.updateAndRedraw();
         }
     }
 
+    /** Update the squares on the map for a change in the enabled
+      * state of 'changed', and announce each square replaced. */
+    private void rebuildForChangedStars(List<String> changed)
+    {
+        this.catchUpWithBuilds();
+        StarDependencies deps =
+            new StarDependencies(this.reconstructor, this.surfaceSquares.getSquares());
+        StarDependencies.Result res = deps.rebuild(this.reconstructor, changed);
+
+        // Only the replaced squares change; the rest are the same
+        // objects, at most with new observations.  Bases go first, so
+        // that replacing each square's base, which marks the square
+        // stale, is followed by replacing the square itself, which
+        // makes it current again.
+        for (SurfaceSquare s : res.replaced) {
+            SurfaceSquare ns = res.replacements.get(s);
+            if (ns != null) {
+                this.applySquareEvent(SquareEvent.replaced(s, ns));
+            }
+            else {
+                this.applySquareEvent(SquareEvent.removed(s));
+            }
+        }
+        this.surfaceSquares.resolve();
+
+        if (this.activeSquare != null && res.replacements.containsKey(this.activeSquare)) {
+            this.setActiveSquareNoRedraw(res.replacements.get(this.activeSquare));
+        }
+    }
+
     /** Clear out the virtual map and any dependent state. */
     private void clearSurfaceSquares()
     {
-        this.emCanvas.clearSurfaceSquares();
         this.activeSquare = null;
+        this.applySquareEvent(SquareEvent.cleared());
+    }
+
+    /** Add 's' to the map, and announce it. */
+    private void addSurfaceSquare(SurfaceSquare s)
+    {
+        this.applySquareEvent(SquareEvent.placed(s));
+    }
+
+    /** Remove 's' from the map, and announce it. */
+    private void removeSurfaceSquare(SurfaceSquare s)
+    {
+        this.applySquareEvent(SquareEvent.removed(s));
+    }
+
+    /** Make the change 'e' to 'surfaceSquares' now, after any changes
+      * builds made before it, announce it, and redraw soon.  Squares
+      * built on a replaced square follow it at the next
+      * 'surfaceSquares.resolve'. */
+    private void applySquareEvent(SquareEvent e)
+    {
+        this.applyBuildEvents();
+        this.surfaceSquares.apply(e);
+        this.squareEvents.publish(e);
+        this.redrawSoon();
+    }
+
+    /** Apply and pass on the events builds have announced that have
+      * arrived so far.  Called on the event dispatch thread. */
+    private void applyBuildEvents()
+    {
+        ArrayList<SquareEvent> events;
+        synchronized (this.pendingBuildEvents) {
+            if (this.pendingBuildEvents.isEmpty()) {
+                return;
+            }
+            events = new ArrayList<SquareEvent>(this.pendingBuildEvents);
+            this.pendingBuildEvents.clear();
+        }
+        for (SquareEvent e : events) {
+            this.surfaceSquares.apply(e);
+            this.squareEvents.publish(e);
+            if (e.kind == SquareEvent.Kind.CLEARED) {
+                log("cleared all surface squares");
+            }
+        }
+        this.surfaceSquares.resolve();
+        this.redrawSoon();
+    }
+
+    /** Wait for everything builds have announced so far to arrive,
+      * and apply it, so 'surfaceSquares' is current.  The listener of
+      * 'buildEvents' never waits for this thread, so this cannot wait
+      * on itself. */
+    private void catchUpWithBuilds()
+    {
+        try {
+            this.buildEvents.flush();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.applyBuildEvents();
+    }
+
+    /** Redraw the map once the current event is handled, however many
+      * times this is called before then. */
+    private void redrawSoon()
+    {
+        if (this.redrawPending) {
+            return;
+        }
+        this.redrawPending = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run()
+            {
+                EarthShape.this.redrawPending = false;
+                EarthShape.this.emCanvas.redrawCanvas();
+            }
+        });
+    }
+
+    /** Get the squares on the map.  Read and change them only on the
+      * event dispatch thread. */
+    public SurfaceGraph getSurfaceSquares()
+    {
+        return this.surfaceSquares;
+    }
+
+    /** Get the stream of changes to the squares on the map.  Listeners
+      * are called on their own threads, and must use
+      * 'SwingUtilities.invokeLater', not 'invokeAndWait', to reach the
+      * UI. */
+    public SquareEventBus getSquareEvents()
+    {
+        return this.squareEvents;
     }
 
     /** Build a portion of the Earth's surface.  Adds squares to
@@ -950,7 +1207,7 @@ public class EarthShape extends MyJFrame {
             startLongitude,
             null /*base*/, null /*midpoint*/,
             new Vector3f(0,0,0));
-        this.emCanvas.addSurfaceSquare(startSquare);
+        this.addSurfaceSquare(startSquare);
 
         // Outer loop 1: Walk North as far as we can.
         SurfaceSquare outer = startSquare;
@@ -1002,58 +1259,35 @@ public class EarthShape extends MyJFrame {
             }
         }
 
-        this.emCanvas.redrawCanvas();
-        log("finished building Earth; nsquares="+this.emCanvas.numSurfaceSquares());
+        this.applySquareEvent(SquareEvent.buildFinished(null));
+        log("finished building Earth");
     }
 
     /** Build the surface by walking randomly from a starting location,
-      * assuming a Earth is a sphere. */
+      * assuming a Earth is a sphere, using RandomWalkBuilder with the
+      * random walk settings.  The seed is then advanced, so building
+      * again gives a new walk, but the log says which seed to use to
+      * repeat one. */
     public void buildSphericalEarthWithRandomWalk()
     {
-        log("building spherical Earth by random walk");
+        log("building spherical Earth by random walk: walkers="+this.randomWalkWalkers+
+            " steps="+this.randomWalkSteps+" seed="+this.randomWalkSeed);
         this.clearSurfaceSquares();
 
-        // Size of squares to build, in km.
-        float sizeKm = 1000;
+        SurfaceReconstructor r = new SurfaceReconstructor(this.reconstructor);
+        r.setSquareEvents(this.buildEvents);
+        ReconstructedSurface surface = new RandomWalkBuilder(r,
+            this.randomWalkWalkers, this.randomWalkSteps, this.randomWalkSeed).build();
+        this.randomWalkSeed++;
+        this.catchUpWithBuilds();
 
-        // Start with an arbitrary square centered at the origin
-        // the 3D space, and at SF, CA in the real world.
-        float startLatitude = 38;     // 38N
-        float startLongitude = -122;  // 122W
-        SurfaceSquare startSquare = new SurfaceSquare(
-            new Vector3f(0,0,0),      // center
-            new Vector3f(0,0,-1),     // north
-            new Vector3f(0,1,0),      // up
-            sizeKm,
-            startLatitude,
-            startLongitude,
-            null /*base*/, null /*midpoint*/,
-            new Vector3f(0,0,0));
-        this.emCanvas.addSurfaceSquare(startSquare);
-
-        SurfaceSquare square = startSquare;
-        for (int i=0; i < 1000; i++) {
-            // Select a random change in latitude and longitude
-            // of about 10 degrees.
-            float deltaLatitude = (float)(Math.random() * 12 - 6);
-            float deltaLongitude = (float)(Math.random() * 12 - 6);
-
-            // Walk in that direction, keeping latitude and longitude
-            // within their usual ranges.  Also stay away from the poles
-            // since the rounding errors cause problems there.
-            square = this.addSphericallyAdjacentSquare(square,
-                FloatUtil.clampf(square.latitude + deltaLatitude, -80, 80),
-                FloatUtil.modulus2f(square.longitude + deltaLongitude, -180, 180));
-        }
-
-        this.emCanvas.redrawCanvas();
-        log("finished building Earth; nsquares="+this.emCanvas.numSurfaceSquares());
+        // The squares were announced as they were added to 'surface'.
+        log("finished building Earth; nsquares="+surface.numSurfaceSquares());
     }
 
     /** Given square 'old', add an adjacent square at the given
-      * latitude and longitude.  The relative orientation of the
-      * new square will determined using the latitude and longitude,
-      * assuming a spherical shape for the Earth.
+      * latitude and longitude, oriented as if the Earth were a sphere.
+      * If we did not move, this returns the old square.
       *
       * This is used by the routines that build the surface using
       * the sphere assumption, not those that use star observation
@@ -1063,56 +1297,50 @@ public class EarthShape extends MyJFrame {
         float newLatitude,
         float newLongitude)
     {
-        // Calculate local East for 'old'.
-        Vector3f oldEast = old.north.cross(old.up).normalize();
-
-        // Calculate celestial North for 'old', which is given by
-        // the latitude plus geographic North.
-        Vector3f celestialNorth =
-            old.north.rotateDeg(old.latitude, oldEast);
-
-        // Get lat/long deltas.
-        float deltaLatitude = newLatitude - old.latitude;
-        float deltaLongitude = FloatUtil.modulus2f(
-            newLongitude - old.longitude, -180, 180);
-
-        // If we didn't move, just return the old square.
-        if (deltaLongitude == 0 && deltaLatitude == 0) {
-            return old;
+        SurfaceSquare ret = this.reconstructor.createSphericallyAdjacentSquare(
+            old, newLatitude, newLongitude);
+        if (ret == null) {
+            return old;        // Did not move.
         }
-
-        // What we want now is to first rotate Northward
-        // around local East to account for change in latitude, then
-        // Eastward around celestial North for change in longitude.
-        Vector3f firstRotation = oldEast.times(-deltaLatitude);
-        Vector3f secondRotation = celestialNorth.times(deltaLongitude);
-
-        // But then we want to express the composition of those as a
-        // single rotation vector in order to call the general routine.
-        Vector3f combined = Vector3f.composeRotations(firstRotation, secondRotation);
-
-        // Now call into the general procedure for adding a square
-        // given the proper relative orientation rotation.
-        return addRotatedAdjacentSquare(old, newLatitude, newLongitude, combined);
+        this.addSurfaceSquare(ret);
+        return ret;
     }
 
     /** Build a surface using star data rather than any presumed
       * size and shape. */
     public void buildEarthSurfaceFromStarData()
     {
+        this.clearSurfaceSquares();
+
+        // The task works on its own copy of the reconstruction
+        // settings, so it is not affected by anything the UI does
+        // while it runs.  It announces the squares as it places them,
+        // including the final BUILD_FINISHED.
+        SurfaceReconstructor r = new SurfaceReconstructor(this.reconstructor);
+        r.setSquareEvents(this.buildEvents);
+        BuildSurfaceTask task = new BuildSurfaceTask(r);
+
         Cursor oldCursor = this.getCursor();
         this.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
         try {
-            ProgressDialog<Void, Void> pd =
-                new ProgressDialog<Void, Void>(this,
-                    "Building Surface with model: "+this.worldObservations.getDescription(),
-                    new BuildSurfaceTask(EarthShape.this));
+            ProgressDialog<ReconstructedSurface, Void> pd =
+                new ProgressDialog<ReconstructedSurface, Void>(this,
+                    "Building Surface with model: "+
+                        this.reconstructor.getWorldObservations().getDescription(),
+                    task);
             pd.exec();
         }
         finally {
             this.setCursor(oldCursor);
         }
-        this.emCanvas.redrawCanvas();
+
+        // The map already shows most of what was built, even if the
+        // build was canceled partway through, since the squares were
+        // announced as they were placed.  Make sure it has the rest.
+        this.catchUpWithBuilds();
+
+        // Reset the adjustment angle.
+        this.adjustOrientationDegrees = EarthShape.DEFAULT_ADJUST_ORIENTATION_DEGREES;
     }
 
     /** Task to manage construction of surface.
@@ -1120,213 +1348,25 @@ public class EarthShape extends MyJFrame {
       * I have to use a class rather than a simple closure so I have
       * something to pass to the build routines so they can set the
       * status and progress as the algorithm runs. */
-    private static class BuildSurfaceTask extends MySwingWorker<Void, Void>
+    private static class BuildSurfaceTask extends MySwingWorker<ReconstructedSurface, Void>
+        implements BuildProgress
     {
-        private EarthShape earthShape;
+        /** Engine that does the work. */
+        private SurfaceReconstructor reconstructor;
 
-        public BuildSurfaceTask(EarthShape earthShape_)
-        {
-            this.earthShape = earthShape_;
-        }
+        /** The result, which is set even if the task is canceled. */
+        public ReconstructedSurface surface;
 
-        protected Void doTask() throws Exception
+        public BuildSurfaceTask(SurfaceReconstructor reconstructor_)
         {
-            this.earthShape.buildEarthSurfaceFromStarDataInner(this);
-            return null;
+            this.reconstructor = reconstructor_;
         }
-    }
-
-    /** Core of 'buildEarthSurfaceFromStarData', so I can more easily
-      * wrap computation around it. */
-    public void buildEarthSurfaceFromStarDataInner(BuildSurfaceTask task)
-    {
-        log("building Earth using star data: "+this.worldObservations.getDescription());
-        this.clearSurfaceSquares();
-
-        // Size of squares to build, in km.
-        float sizeKm = 1000;
 
-        // Start at approximately my location in SF, CA.  This is one of
-        // the locations for which I have manual data, and when we build
-        // the first latitude strip, that will pick up the other manual
-        // data points.
-        float latitude = 38;
-        float longitude = -122;
-        SurfaceSquare square = null;
-        log("buildEarth: building first square at lat="+latitude+" long="+longitude);
-
-        // First square will be placed at the 3D origin with
-        // its North pointed along the -Z axis.
-        square = new SurfaceSquare(
-            new Vector3f(0,0,0),      // center
-            new Vector3f(0,0,-1),     // north
-            new Vector3f(0,1,0),      // up
-            sizeKm,
-            latitude,
-            longitude,
-            null /*base*/, null /*midpoint*/,
-            new Vector3f(0,0,0));
-        this.emCanvas.addSurfaceSquare(square);
-        this.addMatchingData(square);
-
-        // Go East and West.
-        task.setStatus("Initial latitude strip at "+square.latitude);
-        this.buildLatitudeStrip(square, +9);
-        this.buildLatitudeStrip(square, -9);
-
-        // Explore in all directions until all points on
-        // the surface have been explored (to within 9 degrees).
-        this.buildLongitudeStrip(square, +9, task);
-        this.buildLongitudeStrip(square, -9, task);
-
-        // Reset the adjustment angle.
-        this.adjustOrientationDegrees = EarthShape.DEFAULT_ADJUST_ORIENTATION_DEGREES;
-
-        log("buildEarth: finished using star data; nSquares="+this.emCanvas.numSurfaceSquares());
-    }
-
-    /** Build squares by going North or South from a starting square
-      * until we add 20 or we can't add any more.  At each spot, also
-      * build latitude strips in both directions. */
-    private void buildLongitudeStrip(SurfaceSquare startSquare, float deltaLatitude,
-        BuildSurfaceTask task)
-    {
-        float curLatitude = startSquare.latitude;
-        float curLongitude = startSquare.longitude;
-        SurfaceSquare curSquare = startSquare;
-
-        if (task.isCancelled()) {
-            // Bail now, rather than repeat the cancellation log message.
-            return;
-        }
-
-        while (!task.isCancelled()) {
-            float newLatitude = curLatitude + deltaLatitude;
-            if (!( -90 < newLatitude && newLatitude < 90 )) {
-                // Do not go past the poles.
-                break;
-            }
-            float newLongitude = curLongitude;
-
-            log("buildEarth: building lat="+newLatitude+" long="+newLongitude);
-
-            // Report progress.
-            task.setStatus("Latitude strip at "+newLatitude);
-            {
-                // +1 since we did one strip before the first call to
-                // buildLongitudeStrip.
-                float totalStrips = 180 / (float)Math.abs(deltaLatitude) + 1;
-                float completedStrips;
-                if (deltaLatitude > 0) {
-                    completedStrips = (newLatitude - startSquare.latitude) / deltaLatitude + 1;
-                }
-                else {
-                    completedStrips = (90 - newLatitude) / -deltaLatitude + 1;
-                }
-                float fraction = completedStrips / totalStrips;
-                log("progress fraction: "+fraction);
-                task.setProgressFraction(fraction);
-            }
-
-            curSquare = this.createAndAutomaticallyOrientSquare(curSquare,
-                newLatitude, newLongitude);
-            if (curSquare == null) {
-                log("buildEarth: could not place next square!");
-                break;
-            }
-
-            curLatitude = newLatitude;
-            curLongitude = newLongitude;
-
-            // Also build strips in each direction.
-            this.buildLatitudeStrip(curSquare, +9);
-            this.buildLatitudeStrip(curSquare, -9);
-        }
-
-        if (task.isCancelled()) {
-            log("surface construction canceled");
-        }
-    }
-
-    /** Build squares by going East or West from a starting square
-      * until we add 20 or we can't add any more. */
-    private void buildLatitudeStrip(SurfaceSquare startSquare, float deltaLongitude)
-    {
-        float curLatitude = startSquare.latitude;
-        float curLongitude = startSquare.longitude;
-        SurfaceSquare curSquare = startSquare;
-
-        for (int i=0; i < 20; i++) {
-            float newLatitude = curLatitude;
-            float newLongitude = FloatUtil.modulus2f(curLongitude + deltaLongitude, -180, 180);
-            log("buildEarth: building lat="+newLatitude+" long="+newLongitude);
-
-            curSquare = this.createAndAutomaticallyOrientSquare(curSquare,
-                newLatitude, newLongitude);
-            if (curSquare == null) {
-                log("buildEarth: could not place next square!");
-                break;
-            }
-
-            curLatitude = newLatitude;
-            curLongitude = newLongitude;
-        }
-    }
-
-    /** Create a square adjacent to 'old', positioned at the given latitude
-      * and longitude, with orientation changed by 'rotation'.  If there is
-      * no change, return null.  Even if not, do not add the square yet,
-      * just return it. */
-    private SurfaceSquare createRotatedAdjacentSquare(
-        SurfaceSquare old,
-        float newLatitude,
-        float newLongitude,
-        Vector3f rotation)
-    {
-        // Normalize latitude and longitude.
-        newLatitude = FloatUtil.clampf(newLatitude, -90, 90);
-        newLongitude = FloatUtil.modulus2f(newLongitude, -180, 180);
-
-        // If we didn't move, return null.
-        if (old.latitude == newLatitude && old.longitude == newLongitude) {
-            return null;
+        protected ReconstructedSurface doTask() throws Exception
+        {
+            this.surface = this.reconstructor.buildEarthSurfaceFromStarData(this);
+            return this.surface;
         }
-
-        // Compute the new orientation vectors by rotating
-        // the old ones by the given amount.
-        Vector3f newNorth = old.north.rotateAADeg(rotation);
-        Vector3f newUp = old.up.rotateAADeg(rotation);
-
-        // Get observed travel details going to the new location.
-        TravelObservation tobs = this.worldObservations.getTravelObservation(
-            old.latitude, old.longitude, newLatitude, newLongitude);
-
-        // For both old and new, calculate a unit vector for the
-        // travel direction.  Both headings are negated due to the
-        // right hand rule for rotation.  The new to old heading is
-        // then flipped 180 since I want both to indicate the local
-        // direction from old to new.
-        Vector3f oldTravel = old.north.rotateDeg(-tobs.startToEndHeading, old.up);
-        Vector3f newTravel = newNorth.rotateDeg(-tobs.endToStartHeading + 180, newUp);
-
-        // Calculate the new square's center by going half the distance
-        // according to the old orientation and then half the distance
-        // according to the new orientation, in world coordinates.
-        float halfDistWorld = tobs.distanceKm / 2.0f * EarthMapCanvas.SPACE_UNITS_PER_KM;
-        Vector3f midPoint = old.center.plus(oldTravel.times(halfDistWorld));
-        Vector3f newCenter = midPoint.plus(newTravel.times(halfDistWorld));
-
-        // Make the new square and add it to the list.
-        SurfaceSquare ret = new SurfaceSquare(
-            newCenter, newNorth, newUp,
-            old.sizeKm,
-            newLatitude,
-            newLongitude,
-            old /*base*/,
-            midPoint,
-            rotation);
-
-        return ret;
     }
 
     /** Add a square adjacent to 'old', positioned at the given latitude
@@ -1338,399 +1378,17 @@ public class EarthShape extends MyJFrame {
         float newLongitude,
         Vector3f rotation)
     {
-        SurfaceSquare ret = this.createRotatedAdjacentSquare(
+        SurfaceSquare ret = this.reconstructor.createRotatedAdjacentSquare(
             old, newLatitude, newLongitude, rotation);
         if (ret == null) {
             return old;        // Did not move.
         }
         else {
-            this.emCanvas.addSurfaceSquare(ret);
+            this.addSurfaceSquare(ret);
         }
         return ret;
     }
 
-    /** Get star observations for the given location, at the particular
-      * point in time that I am using for everything. */
-    private List<StarObservation> getStarObservationsFor(
-        float latitude, float longitude)
-    {
-        return this.worldObservations.getStarObservations(
-            StarObservation.unixTimeOfManualData, latitude, longitude);
-    }
-
-    /** Add to 'square.starObs' all entries of 'starObs' that have
-      * the same latitude and longitude, and also are at least
-      * 20 degrees above the horizon. */
-    private void addMatchingData(SurfaceSquare square)
-    {
-        for (StarObservation so :
-                 this.getStarObservationsFor(square.latitude, square.longitude)) {
-            if (this.qualifyingStarObservation(so)) {
-                square.addObservation(so);
-            }
-        }
-    }
-
-    /** Compare star data for 'startSquare' and for the given new
-      * latitude and longitude.  Return a rotation vector that will
-      * transform the orientation of 'startSquare' to match the
-      * best surface for a new square at the new location.  The
-      * vector's length is the amount of rotation in degrees.
-      *
-      * Returns null if there are not enough stars in common. */
-    private Vector3f calcRequiredRotation(
-        SurfaceSquare startSquare,
-        float newLatitude,
-        float newLongitude)
-    {
-        // Set of stars visible at the start and end squares and
-        // above 20 degrees above the horizon.
-        HashMap<String, Vector3f> startStars =
-            getVisibleStars(startSquare.latitude, startSquare.longitude);
-        HashMap<String, Vector3f> endStars =
-            getVisibleStars(newLatitude, newLongitude);
-
-        // Current best rotation and average difference.
-        Vector3f currentRotation = new Vector3f(0,0,0);
-
-        // Iteratively refine the current rotation by computing the
-        // average correction rotation and applying it until that
-        // correction drops below a certain threshold.
-        for (int iterationCount = 0; iterationCount < 1000; iterationCount++) {
-            // Accumulate the vector sum of all the rotation difference
-            // vectors as well as the max length.
-            Vector3f diffSum = new Vector3f(0,0,0);
-            float maxDiffLength = 0;
-            int diffCount = 0;
-
-            for (HashMap.Entry<String, Vector3f> e : startStars.entrySet()) {
-                String starName = e.getKey();
-                Vector3f startVector = e.getValue();
-
-                Vector3f endVector = endStars.get(starName);
-                if (endVector == null) {
-                    continue;
-                }
-
-                // Both vectors must first be rotated the way the start
-                // surface was rotated since its creation so that when
-                // we compute the final required rotation, it can be
-                // applied to the start surface in its existing orientation,
-                // not the nominal orientation that the star vectors have
-                // before I do this.
-                startVector = startVector.rotateAADeg(startSquare.rotationFromNominal);
-                endVector = endVector.rotateAADeg(startSquare.rotationFromNominal);
-
-                // Calculate a difference rotation vector from the
-                // rotated end vector to the start vector.  Rotating
-                // the end star in one direction is like rotating
-                // the start terrain in the opposite direction.
-                Vector3f rot = endVector.rotateAADeg(currentRotation)
-                                        .rotationToBecome(startVector);
-
-                // Accumulate it.
-                diffSum = diffSum.plus(rot);
-                maxDiffLength = (float)Math.max(maxDiffLength, rot.length());
-                diffCount++;
-            }
-
-            if (diffCount < 2) {
-                log("reqRot: not enough stars");
-                return null;
-            }
-
-            // Calculate the average correction rotation.
-            Vector3f avgDiff = diffSum.times(1.0f / diffCount);
-
-            // If the correction angle is small enough, stop.  For any set
-            // of observations, we should be able to drive the average
-            // difference arbitrarily close to zero (this is like finding
-            // the centroid, except in spherical rather than flat space).
-            // The real question is whether the *maximum* difference is
-            // large enough to indicate that the data is inconsistent.
-            if (avgDiff.length() < 0.001) {
-                log("reqRot finished: iters="+iterationCount+
-                    " avgDiffLen="+avgDiff.length()+
-                    " maxDiffLength="+maxDiffLength+
-                    " diffCount="+diffCount);
-                if (maxDiffLength > 0.2) {
-                    // For the data I am working with, I estimate it is
-                    // accurate to within 0.2 degrees.  Consequently,
-                    // there should not be a max difference that large.
-                    log("reqRot: WARNING: maxDiffLength greater than 0.2");
-                }
-                return currentRotation;
-            }
-
-            // Otherwise, apply it to the current rotation and
-            // iterate again.
-            currentRotation = currentRotation.plus(avgDiff);
-        }
-
-        log("reqRot: hit iteration limit!");
-        return currentRotation;
-    }
-
-    /** True if the given observation is available for use, meaning
-      * it is high enough in the sky, is enabled, and not obscured
-      * by light from the Sun. */
-    private boolean qualifyingStarObservation(StarObservation so)
-    {
-        if (this.sunIsTooHigh(so.latitude, so.longitude)) {
-            return false;
-        }
-
-        return so.elevation >= 20.0f &&
-               this.enabledStars.containsKey(so.name) &&
-               this.enabledStars.get(so.name) == true;
-    }
-
-    /** Return true if, at StarObservation.unixTimeOfManualData, the
-      * Sun is too high in the sky to see stars.  This depends on
-      * the configurable parameter 'maximumSunElevation'. */
-    private boolean sunIsTooHigh(float latitude, float longitude)
-    {
-        if (!this.useSunElevation) {
-            return false;
-        }
-
-        StarObservation sun = this.worldObservations.getSunObservation(
-            StarObservation.unixTimeOfManualData, latitude, longitude);
-        if (sun == null) {
-            return false;
-        }
-
-        return sun.elevation > this.maximumSunElevation;
-    }
-
-    /** For every visible star vislble at the specified coordinate
-      * that has an elevation of at least 20 degrees,
-      * add it to a map from star name to azEl vector. */
-    private HashMap<String, Vector3f> getVisibleStars(
-        float latitude,
-        float longitude)
-    {
-        HashMap<String, Vector3f> ret = new HashMap<String, Vector3f>();
-
-        for (StarObservation so :
-                 this.getStarObservationsFor(latitude, longitude)) {
-            if (this.qualifyingStarObservation(so)) {
-                ret.put(so.name,
-                    Vector3f.azimuthElevationToVector(so.azimuth, so.elevation));
-            }
-        }
-
-        return ret;
-    }
-
-    /** Get the unit ray, in world coordinates, from the center of 'square' to
-      * the star recorded in 'so', which was observed at this square. */
-    public static Vector3f rayToStar(SurfaceSquare square, StarObservation so)
-    {
-        // Ray to star in nominal, -Z facing, coordinates.
-        Vector3f nominalRay =
-            Vector3f.azimuthElevationToVector(so.azimuth, so.elevation);
-
-        // Ray to star in world coordinates, taking into account
-        // how the surface is rotated.
-        Vector3f worldRay = nominalRay.rotateAADeg(square.rotationFromNominal);
-
-        return worldRay;
-    }
-
-    /** Hold results of call to 'fitOfObservations'. */
-    private static class ObservationStats {
-        /** The total variance in star observation locations from the
-          * indicated square to the observations of its base square as the
-          * average square of the deviation angles.
-          *
-          * The reason for using a sum of squares approach is to penalize large
-          * deviations and to ensure there is a unique "least deviated" point
-          * (which need not exist when using a simple sum).  The reason for using
-          * the average is to make it easier to judge "good" or "bad" fits,
-          * regardless of the number of star observations in common.
-          *
-          * I use the term "variance" here because it is similar to the idea in
-          * statistics, except here we are measuring differences between pairs of
-          * observations, rather than between individual observations and the mean
-          * of the set.  I'll then reserve "deviation", if I use it, to refer to
-          * the square root of the variance, by analogy with "standard deviation".
-          * */
-        public double variance;
-
-        /** Maximum separation between observations, in degrees. */
-        public double maxSeparation;
-
-        /** Number of pairs of stars used in comparison. */
-        public int numSamples;
-    }
-
-    /** Calculate variance and maximum separation for 'square'.  Returns
-      * null if there is no base or there are no observations in common. */
-    private ObservationStats fitOfObservations(SurfaceSquare square)
-    {
-        if (square.baseSquare == null) {
-            return null;
-        }
-
-        double sumOfSquares = 0;
-        int numSamples = 0;
-        double maxSeparation = 0;
-
-        for (Map.Entry<String, StarObservation> entry : square.starObs.entrySet()) {
-            StarObservation so = entry.getValue();
-
-            // Ray to star in world coordinates.
-            Vector3f starRay = EarthShape.rayToStar(square, so);
-
-            // Calculate the deviation of this observation from that of
-            // the base square.
-            StarObservation baseObservation = square.baseSquare.findObservation(so.name);
-            if (baseObservation != null) {
-                // Get ray from base square to the base observation star
-                // in world coordinates.
-                Vector3f baseStarRay = EarthShape.rayToStar(square.baseSquare, baseObservation);
-
-                // Visual separation angle between these rays.
-                double sep;
-                if (this.assumeInfiniteStarDistance) {
-                    sep = this.getStarRayDifference(
-                        square.up, starRay, baseStarRay);
-                }
-                else {
-                    sep = EarthShape.getModifiedClosestApproach(
-                        square.center, starRay,
-                        square.baseSquare.center, baseStarRay).separationAngleDegrees;
-                }
-                if (sep > maxSeparation) {
-                    maxSeparation = sep;
-                }
-
-                // Accumulate its square.
-                sumOfSquares += sep * sep;
-                numSamples++;
-            }
-        }
-
-        if (numSamples == 0) {
-            return null;
-        }
-        else {
-            ObservationStats ret = new ObservationStats();
-            ret.variance = sumOfSquares / numSamples;
-            ret.maxSeparation = maxSeparation;
-            ret.numSamples = numSamples;
-            return ret;
-        }
-    }
-
-    /** Get closest approach, except with a modification to
-      * smooth out the search space. */
-    public static Vector3d.ClosestApproach getModifiedClosestApproach(
-        Vector3f p1f, Vector3f u1f,
-        Vector3f p2f, Vector3f u2f)
-    {
-        Vector3d p1 = new Vector3d(p1f);
-        Vector3d u1 = new Vector3d(u1f);
-        Vector3d p2 = new Vector3d(p2f);
-        Vector3d u2 = new Vector3d(u2f);
-
-        Vector3d.ClosestApproach ca = Vector3d.getClosestApproach(p1, u1, p2, u2);
-
-        if (ca.line1Closest != null) {
-            // Now, there is a problem if the closest approach is behind
-            // either observer.  Not only does that not make logical sense,
-            // but naively using the calculation will cause the search
-            // space to be very lumpy, which creates local minima that my
-            // hill-climbing algorithm gets trapped in.  So, we require
-            // that the points on each observation line be at least one
-            // unit away, which currently means 1000 km.  That smooths out
-            // the search space so the hill climber will find its way to
-            // the optimal solution more reliably.
-
-            // How far along u1 is the closest approach?
-            double m1 = ca.line1Closest.minus(p1).dot(u1);
-            if (m1 < 1.0) {
-                // That is unreasonably close.  Push the approach point
-                // out to one unit away along u1.
-                ca.line1Closest = p1.plus(u1);
-
-                // Find the closest point on (p2,u2) to that point.
-                ca.line2Closest = ca.line1Closest.closestPointOnLine(p2, u2);
-
-                // Recalculate the separation angle to that point.
-                ca.separationAngleDegrees = u1.separationAngleDegrees(ca.line2Closest.minus(p1));
-            }
-
-            // How far along u2?
-            double m2 = ca.line2Closest.minus(p2).dot(u2);
-            if (m2 < 1.0) {
-                // Too close; push it.
-                ca.line2Closest = p2.plus(u2);
-
-                // What is closest on (p1,u1) to that?
-                ca.line1Closest = ca.line2Closest.closestPointOnLine(p1, u1);
-
-                // Re-check if that is too close to p1.
-                if (ca.line1Closest.minus(p1).dot(u1) < 1.0) {
-                    // Push it without changing line2Closest.
-                    ca.line1Closest = p1.plus(u1);
-                }
-
-                // Recalculate the separation angle to that point.
-                ca.separationAngleDegrees = u1.separationAngleDegrees(ca.line2Closest.minus(p1));
-            }
-        }
-
-        return ca;
-    }
-
-    /** Get the difference between the two star rays, for a location
-      * with given unit 'up' vector, in degrees.  This depends on the
-      * option setting 'onlyCompareElevations'. */
-    public double getStarRayDifference(
-        Vector3f up,
-        Vector3f ray1,
-        Vector3f ray2)
-    {
-        if (this.onlyCompareElevations) {
-            return EarthShape.getElevationDifference(up, ray1, ray2);
-        }
-        else {
-            return ray1.separationAngleDegrees(ray2);
-        }
-    }
-
-    /** Given two star observation rays at a location with the given
-      * 'up' unit vector, return the difference in elevation between
-      * them, ignoring azimuth, in degrees. */
-    private static double getElevationDifference(
-        Vector3f up,
-        Vector3f ray1,
-        Vector3f ray2)
-    {
-        double e1 = getElevation(up, ray1);
-        double e2 = getElevation(up, ray2);
-        return Math.abs(e1-e2);
-    }
-
-    /** Return the elevation of 'ray' at a location with unit 'up'
-      * vector, in degrees. */
-    private static double getElevation(Vector3f up, Vector3f ray)
-    {
-        // Decompose into vertical and horizontal components.
-        Vector3f v = ray.projectOntoUnitVector(up);
-        Vector3f h = ray.minus(v);
-
-        // Get lengths, with vertical possibly negative if below
-        // horizon.
-        double vLen = ray.dot(up);
-        double hLen = h.length();
-
-        // Calculate corresponding angle.
-        return FloatUtil.atan2Deg(vLen, hLen);
-    }
-
     /** Begin constructing a new surface using star data.  This just
       * places down the initial square to represent a user-specified
       * latitude and longitude.  The square is placed into 3D space
@@ -1757,8 +1415,8 @@ public class EarthShape extends MyJFrame {
             longitude,
             null /*base*/, null /*midpoint*/,
             new Vector3f(0,0,0)));
-        this.addMatchingData(this.activeSquare);
-        this.emCanvas.addSurfaceSquare(this.activeSquare);
+        this.reconstructor.addMatchingData(this.activeSquare);
+        this.addSurfaceSquare(this.activeSquare);
         this.emCanvas.redrawCanvas();
     }
 
@@ -1819,7 +1477,7 @@ public class EarthShape extends MyJFrame {
         // Reset the rotation angle after adding a square.
         this.adjustOrientationDegrees = DEFAULT_ADJUST_ORIENTATION_DEGREES;
 
-        this.addMatchingData(this.activeSquare);
+        this.reconstructor.addMatchingData(this.activeSquare);
         this.emCanvas.redrawCanvas();
     }
 
@@ -1842,34 +1500,13 @@ public class EarthShape extends MyJFrame {
         }
 
         // Replace the active square.
-        this.setActiveSquare(
-            this.adjustDerivedSquareOrientation(axis, derived, this.adjustOrientationDegrees));
+        this.setActiveSquare(this.replaceSquare(derived,
+            this.reconstructor.adjustDerivedSquareOrientation(
+                axis, derived, this.adjustOrientationDegrees)));
 
         this.emCanvas.redrawCanvas();
     }
 
-    /** Adjust the orientation of 'derived' by 'adjustDegrees' around
-      * 'axis', where 'axis' is relative to the square's current
-      * orientation. */
-    private SurfaceSquare adjustDerivedSquareOrientation(Vector3f axis,
-        SurfaceSquare derived, float adjustDegrees)
-    {
-        SurfaceSquare base = derived.baseSquare;
-
-        // Rotate by 'adjustOrientationDegrees'.
-        Vector3f angleAxis = axis.times(adjustDegrees);
-
-        // Rotate the axis to align it with the square.
-        angleAxis = angleAxis.rotateAADeg(derived.rotationFromNominal);
-
-        // Now add that to the square's existing rotation relative
-        // to its base square.
-        angleAxis = Vector3f.composeRotations(derived.rotationFromBase, angleAxis);
-
-        // Now, replace it.
-        return this.replaceWithNewRotation(base, derived, angleAxis);
-    }
-
     /** Replace the square 'derived', with a new square that
       * is computed from 'base' by applying 'newRotation'.
       * Return the new square. */
@@ -1878,74 +1515,34 @@ public class EarthShape extends MyJFrame {
     {
         // Replace the derived square with a new one created by
         // rotating from the same base by this new amount.
-        this.emCanvas.removeSurfaceSquare(derived);
-        SurfaceSquare ret =
-            this.addRotatedAdjacentSquare(base,
-                derived.latitude, derived.longitude, newRotation);
-
-        // Copy some other data from the derived square that we
-        // are in the process of discarding.
-        ret.drawStarRays = derived.drawStarRays;
-        ret.starObs = derived.starObs;
-
-        return ret;
+        return this.replaceSquare(derived,
+            this.reconstructor.replaceWithNewRotation(base, derived, newRotation));
     }
 
-    /** Calculate what the variation of observations would be for
-      * 'derived' if its orientation were adjusted by
-      * 'angleAxis.degrees()' around 'angleAxis'.  Returns null if
-      * the calculation cannot be done because of missing information. */
-    private ObservationStats fitOfAdjustedSquare(
-        SurfaceSquare derived, Vector3f angleAxis)
+    /** Put 'newSquare' in the place of 'oldSquare' on the map, unless
+      * they are the same, or remove 'oldSquare' if 'newSquare' is its
+      * base (meaning the replacement would not have moved).  Squares
+      * built on 'oldSquare' follow the new one.  Return 'newSquare'. */
+    private SurfaceSquare replaceSquare(SurfaceSquare oldSquare, SurfaceSquare newSquare)
     {
-        // This part mirrors 'adjustActiveSquareOrientation'.
-        SurfaceSquare base = derived.baseSquare;
-        if (base == null) {
-            return null;
-        }
-        angleAxis = angleAxis.rotateAADeg(derived.rotationFromNominal);
-        angleAxis = Vector3f.composeRotations(derived.rotationFromBase, angleAxis);
-
-        // Now, create a new square with this new rotation.
-        SurfaceSquare newSquare =
-            this.createRotatedAdjacentSquare(base,
-                derived.latitude, derived.longitude, angleAxis);
-        if (newSquare == null) {
-            // If we do not move, use the original square's data.
-            return this.fitOfObservations(derived);
-        }
-
-        // Copy the observation data since that is needed to calculate
-        // the deviation.
-        newSquare.starObs = derived.starObs;
-
-        // Now calculate the new variance.
-        return this.fitOfObservations(newSquare);
-    }
-
-    /** Like 'fitOfAdjustedSquare' except only retrieves the
-      * variance.  This returns 40000 if the data is unavailable. */
-    private double varianceOfAdjustedSquare(
-        SurfaceSquare derived, Vector3f angleAxis)
-    {
-        ObservationStats os = this.fitOfAdjustedSquare(derived, angleAxis);
-        if (os == null) {
-            // The variance should never be greater than 180 squared,
-            // since that would be the worst possible fit for a star.
-            return 40000;
-        }
-        else {
-            return os.variance;
+        if (newSquare != oldSquare) {
+            if (newSquare != oldSquare.baseSquare) {
+                this.applySquareEvent(SquareEvent.replaced(oldSquare, newSquare));
+                this.surfaceSquares.resolve();
+            }
+            else {
+                this.removeSurfaceSquare(oldSquare);
+            }
         }
+        return newSquare;
     }
 
-
     /** Change 'adjustOrientationDegrees' by the given multiplier. */
     private void changeAdjustOrientationDegrees(float multiplier)
     {
         this.adjustOrientationDegrees *= multiplier;
-        if (this.adjustOrientationDegrees < MINIMUM_ADJUST_ORIENTATION_DEGREES) {
-            this.adjustOrientationDegrees = MINIMUM_ADJUST_ORIENTATION_DEGREES;
+        if (this.adjustOrientationDegrees < SurfaceReconstructor.MINIMUM_ADJUST_ORIENTATION_DEGREES) {
+            this.adjustOrientationDegrees = SurfaceReconstructor.MINIMUM_ADJUST_ORIENTATION_DEGREES;
         }
         this.updateUIState();
     }
@@ -1959,7 +1556,7 @@ public class EarthShape extends MyJFrame {
             this.errorBox("No active square.");
             return;
         }
-        ObservationStats ostats = this.fitOfObservations(s);
+        SurfaceReconstructor.ObservationStats ostats = this.reconstructor.fitOfObservations(s);
         if (ostats == null) {
             this.errorBox("Not enough observational data available.");
             return;
@@ -1970,10 +1567,10 @@ public class EarthShape extends MyJFrame {
         }
 
         // Get the recommended rotation.
-        VarianceAfterRotations var = this.getVarianceAfterRotations(s,
+        SurfaceReconstructor.VarianceAfterRotations var = this.reconstructor.getVarianceAfterRotations(s,
             this.adjustOrientationDegrees);
         if (var.bestRC == null) {
-            if (this.adjustOrientationDegrees <= MINIMUM_ADJUST_ORIENTATION_DEGREES) {
+            if (this.adjustOrientationDegrees <= SurfaceReconstructor.MINIMUM_ADJUST_ORIENTATION_DEGREES) {
                 this.errorBox("Cannot further improve orientation.");
                 return;
             }
@@ -1988,65 +1585,6 @@ public class EarthShape extends MyJFrame {
         this.updateAndRedraw();
     }
 
-    /** Apply the recommended rotation to 's' until convergence.  Return
-      * the improved square, or null if that is not possible due to
-      * insufficient constraints. */
-    private SurfaceSquare repeatedlyApplyRecommendedRotationCommand(SurfaceSquare s)
-    {
-        ObservationStats ostats = this.fitOfObservations(s);
-        if (ostats == null || ostats.numSamples < 2) {
-            return null;  // Underconstrained.
-        }
-        if (ostats.variance == 0) {
-            return s;     // Already optimal.
-        }
-
-        // Rotation amount.  This will be gradually reduced.
-        float adjustDegrees = 1.0f;
-
-        // Iteration cap for safety.
-        int iters = 0;
-
-        // Iterate until the adjust amount is too small.
-        while (adjustDegrees > MINIMUM_ADJUST_ORIENTATION_DEGREES) {
-            // Get the recommended rotation.
-            VarianceAfterRotations var = this.getVarianceAfterRotations(s, adjustDegrees);
-            if (var == null) {
-                return null;
-            }
-            if (var.underconstrained) {
-                log("repeatedlyApply: solution is underconstrained, adjustDegrees="+ adjustDegrees);
-                return s;
-            }
-            if (var.bestRC == null) {
-                adjustDegrees = adjustDegrees * 0.5f;
-
-                // Set the UI adjust degrees to what we came up with here so I
-                // can easily see where it ended up.
-                this.adjustOrientationDegrees = adjustDegrees;
-            }
-            else {
-                s = this.adjustDerivedSquareOrientation(var.bestRC.axis, s, adjustDegrees);
-            }
-
-            if (++iters > 1000) {
-                log("repeatedlyApply: exceeded iteration cap!");
-                break;
-            }
-        }
-
-        // Get the final variance.
-        String finalVariance = "null";
-        ostats = this.fitOfObservations(s);
-        if (ostats != null) {
-            finalVariance = ""+ostats.variance;
-        }
-
-        log("repeatedlyApply done: iters="+iters+" adj="+ adjustDegrees+
-            " var="+finalVariance);
-        return s;
-    }
-
     /** Delete the active square. */
     private void deleteActiveSquare()
     {
@@ -2055,7 +1593,7 @@ public class EarthShape extends MyJFrame {
             return;
         }
 
-        this.emCanvas.removeSurfaceSquare(this.activeSquare);
+        this.removeSurfaceSquare(this.activeSquare);
         this.setActiveSquare(null);
     }
 
@@ -2074,43 +1612,24 @@ public class EarthShape extends MyJFrame {
             return;
         }
 
-        SurfaceSquare newDerived = automaticallyOrientSquare(derived);
+        SurfaceSquare newDerived = this.reconstructor.automaticallyOrientSquare(derived);
         if (newDerived == null) {
             this.errorBox("Insufficient observations to determine proper orientation.");
         }
         else {
-            this.setActiveSquare(newDerived);
+            this.setActiveSquare(this.replaceSquare(derived, newDerived));
         }
 
         this.updateAndRedraw();
     }
 
-    /** Given a square 'derived' that is known to have a base square,
-      * adjust and/or replace it with one with a better orientation,
-      * and return the improved square.  Returns null if improvement
-      * is not possible due to insufficient observational data. */
-    private SurfaceSquare automaticallyOrientSquare(SurfaceSquare derived)
-    {
-        if (this.newAutomaticOrientationAlgorithm) {
-            return this.repeatedlyApplyRecommendedRotationCommand(derived);
-        }
-        else {
-            // Calculate the best rotation.
-            Vector3f rot = calcRequiredRotation(derived.baseSquare,
-                derived.latitude, derived.longitude);
-            if (rot == null) {
-                return null;
-            }
-
-            // Now, replace the active square.
-            return this.replaceWithNewRotation(derived.baseSquare, derived, rot);
-        }
-    }
-
-    /** Make the next square in 'emCanvas.surfaceSquares' active. */
+    /** Make the square after the active one in 'surfaceSquares'
+      * active, or before it if not 'forward'.  With no active square,
+      * make the first or last one active. */
     private void selectNextSquare(boolean forward)
     {
-        this.setActiveSquare(this.emCanvas.getNextSquare(this.activeSquare, forward));
+        this.catchUpWithBuilds();
+        this.setActiveSquare(this.surfaceSquares.next(this.activeSquare, forward));
     }
 
     /** Build a square offset from the active square, set its orientation,
@@ -2124,46 +1643,21 @@ public class EarthShape extends MyJFrame {
             this.errorBox("There is no active square.");
             return;
         }
-        SurfaceSquare newSquare = this.createAndAutomaticallyOrientSquare(
+        SurfaceSquare newSquare = this.reconstructor.createAndAutomaticallyOrientSquare(
             base, base.latitude + deltaLatitude, base.longitude + deltaLongitude);
         if (newSquare == null) {
             ModalDialog.errorBox(this,
                 "Cannot place new square since observational data does not uniquely determine its orientation.");
         }
         else {
+            if (newSquare != base) {
+                this.addSurfaceSquare(newSquare);
+            }
             newSquare.drawStarRays = base.drawStarRays;
             this.setActiveSquare(newSquare);
         }
     }
 
-    /** Build a square adjacent to the base square, set its orientation,
-      * and return it.  Returns null and adds nothing if such a square
-      * cannot be uniquely oriented. */
-    private SurfaceSquare createAndAutomaticallyOrientSquare(SurfaceSquare base,
-        float newLatitude, float newLongitude)
-    {
-        // Make a new adjacent square, initially with the same orientation
-        // as the base square.
-        SurfaceSquare newSquare =
-            this.addRotatedAdjacentSquare(base,
-                newLatitude,
-                newLongitude,
-                new Vector3f(0,0,0));
-        if (base == newSquare) {
-            return base;      // Did not move, no new square created.
-        }
-        this.addMatchingData(newSquare);
-
-        // Now try to set its orientation to match observations.
-        SurfaceSquare adjustedSquare = this.automaticallyOrientSquare(newSquare);
-        if (adjustedSquare == null) {
-            // No unique solution; remove the new square too.
-            this.emCanvas.removeSurfaceSquare(newSquare);
-        }
-
-        return adjustedSquare;
-    }
-
     /** Show the user what the local rotation space looks like by.
       * considering the effect of rotating various amounts on each axis. */
     private void analyzeSolutionSpace()
@@ -2174,7 +1668,7 @@ public class EarthShape extends MyJFrame {
         }
         SurfaceSquare s = this.activeSquare;
 
-        ObservationStats ostats = this.fitOfObservations(s);
+        SurfaceReconstructor.ObservationStats ostats = this.reconstructor.fitOfObservations(s);
         if (ostats == null) {
             this.errorBox("No observation fitness stats for the active square.");
             return;
@@ -2259,6 +1753,13 @@ public class EarthShape extends MyJFrame {
         Vector3f yAxis = new Vector3f(1, 0, 0);     // Pitch
         Vector3f zAxis = new Vector3f(0, -1, 0);    // Yaw
 
+        // Every point in the plot is a trial rotation of the same
+        // square, so set up the observations once.
+        TrialRotationEvaluator ev = this.reconstructor.makeTrialRotationEvaluator(s);
+        if (ev != null && ev.getNumSamples() == 0) {
+            ev = null;
+        }
+
         float xFirst = -pointsPerSide * this.adjustOrientationDegrees;
         float xLast = pointsPerSide * this.adjustOrientationDegrees;
         float yFirst = -pointsPerSide * this.adjustOrientationDegrees;
@@ -2289,9 +1790,10 @@ public class EarthShape extends MyJFrame {
                     Vector3f rot = Vector3f.composeRotations(
                         Vector3f.composeRotations(rotX, rotY), rotZ);
 
-                    // Get variance after that adjustment.
+                    // Get variance after that adjustment.  Without data,
+                    // use the same value as 'varianceOfAdjustedSquare'.
                     wData[xIndex + pointsPerAxis * yIndex + pointsPerAxis * pointsPerAxis * zIndex] =
-                        (float)this.varianceOfAdjustedSquare(s, rot);
+                        (ev == null? 40000 : (float)ev.variance(rot.x(), rot.y(), rot.z()));
                 }
             }
         }
@@ -2353,15 +1855,112 @@ public class EarthShape extends MyJFrame {
         }
     }
 
+    /** Prompt the user for an integer value that may need all 64 bits.
+      * Returns null if the user cancels or enters an invalid value.  In
+      * the latter case, an error box has already been shown. */
+    private Long longInputDialog(String label, long curValue)
+    {
+        String choice = JOptionPane.showInputDialog(this, label, (Long)curValue);
+        if (choice != null) {
+            try {
+                return Long.parseLong(choice.trim());
+            }
+            catch (NumberFormatException e) {
+                this.errorBox("Invalid integer syntax: "+e.getMessage());
+                return null;
+            }
+        }
+        else {
+            return null;
+        }
+    }
+
     /** Let the user specify a new maximum Sun elevation. */
     private void setMaximumSunElevation()
     {
         Float newValue = this.floatInputDialog(
             "Specify maximum elevation of the Sun in degrees "+
                 "above the horizon (otherwise, stars are not visible)",
-            this.maximumSunElevation);
+            this.reconstructor.options.maximumSunElevation);
         if (newValue != null) {
-            this.maximumSunElevation = newValue;
+            this.reconstructor.options.maximumSunElevation = newValue;
+        }
+    }
+
+    /** Let the user specify the number and spacing of the observation
+      * epochs. */
+    private void setObservationEpochs()
+    {
+        Float numEpochs = this.floatInputDialog(
+            "Specify the number of times at which to gather star "+
+                "observations at each location",
+            (float)this.reconstructor.options.numEpochs);
+        if (numEpochs == null) {
+            return;
+        }
+        if (numEpochs < 1 || numEpochs != Math.round(numEpochs)) {
+            this.errorBox("The number of epochs must be a positive integer.");
+            return;
+        }
+
+        Float spacing = this.floatInputDialog(
+            "Specify the number of hours between epochs",
+            this.reconstructor.options.epochSpacingHours);
+        if (spacing == null) {
+            return;
+        }
+
+        this.reconstructor.options.numEpochs = Math.round(numEpochs);
+        this.reconstructor.options.epochSpacingHours = spacing;
+    }
+
+    /** Let the user specify the random walk settings. */
+    private void setRandomWalkParameters()
+    {
+        Float walkers = this.floatInputDialog(
+            "Specify the number of independent random walkers",
+            (float)this.randomWalkWalkers);
+        if (walkers == null) {
+            return;
+        }
+        if (walkers < 1 || walkers != Math.round(walkers)) {
+            this.errorBox("The number of walkers must be a positive integer.");
+            return;
+        }
+
+        Float steps = this.floatInputDialog(
+            "Specify the number of steps each walker takes",
+            (float)this.randomWalkSteps);
+        if (steps == null) {
+            return;
+        }
+        if (steps < 0 || steps != Math.round(steps)) {
+            this.errorBox("The number of steps must be a non-negative integer.");
+            return;
+        }
+
+        // A float could not hold every seed the log reports.
+        Long seed = this.longInputDialog(
+            "Specify the seed of the next random walk",
+            this.randomWalkSeed);
+        if (seed == null) {
+            return;
+        }
+
+        this.randomWalkWalkers = Math.round(walkers);
+        this.randomWalkSteps = Math.round(steps);
+        this.randomWalkSeed = seed;
+    }
+
+    /** Let the user specify a new minimum star elevation. */
+    private void setMinimumStarElevation()
+    {
+        Float newValue = this.floatInputDialog(
+            "Specify minimum elevation in degrees above the horizon "+
+                "of the star observations to use",
+            this.reconstructor.options.minimumStarElevation);
+        if (newValue != null) {
+            this.reconstructor.options.minimumStarElevation = newValue;
         }
     }
 
@@ -2543,7 +2142,7 @@ public class EarthShape extends MyJFrame {
     {
         StringBuilder sb = new StringBuilder();
         sb.append(this.emCanvas.getStatusString());
-        sb.append(", model="+this.worldObservations.getDescription());
+        sb.append(", model="+this.reconstructor.getWorldObservations().getDescription());
         this.statusLabel.setText(sb.toString());
     }
 
@@ -2565,18 +2164,34 @@ public class EarthShape extends MyJFrame {
         this.drawWorldStarsCBItem.setSelected(this.emCanvas.drawWorldStars);
         this.drawSkyboxCBItem.setSelected(this.emCanvas.drawSkybox);
 
-        this.useSunElevationCBItem.setSelected(this.useSunElevation);
+        this.useSunElevationCBItem.setSelected(this.reconstructor.options.useSunElevation);
         this.invertHorizontalCameraMovementCBItem.setSelected(
             this.emCanvas.invertHorizontalCameraMovement);
         this.invertVerticalCameraMovementCBItem.setSelected(
             this.emCanvas.invertVerticalCameraMovement);
 
         this.newAutomaticOrientationAlgorithmCBItem.setSelected(
-            this.newAutomaticOrientationAlgorithm);
+            this.reconstructor.options.newAutomaticOrientationAlgorithm);
+        this.closedFormOrientationCBItem.setSelected(
+            this.reconstructor.options.closedFormOrientation);
+        this.levenbergMarquardtOrientationCBItem.setSelected(
+            this.reconstructor.options.levenbergMarquardtOrientation);
+        this.patternSearchOrientationCBItem.setSelected(
+            this.reconstructor.options.patternSearchOrientation);
         this.assumeInfiniteStarDistanceCBItem.setSelected(
-            this.assumeInfiniteStarDistance);
+            this.reconstructor.options.assumeInfiniteStarDistance);
         this.onlyCompareElevationsCBItem.setSelected(
-            this.onlyCompareElevations);
+            this.reconstructor.options.onlyCompareElevations);
+        this.parallelBuildCBItem.setSelected(
+            this.reconstructor.options.parallelBuild);
+        this.bestFirstBuildCBItem.setSelected(
+            this.reconstructor.options.bestFirstBuild);
+        this.adaptiveRefinementCBItem.setSelected(
+            this.reconstructor.options.adaptiveRefinement);
+        this.bundleAdjustCBItem.setSelected(
+            this.reconstructor.options.bundleAdjust);
+        this.closeLoopsCBItem.setSelected(
+            this.reconstructor.options.closeLoops);
     }
 
     /** Update the contents of the info panel. */
@@ -2598,7 +2213,7 @@ public class EarthShape extends MyJFrame {
             sb.append("  pos: "+s.center+"\n");
             sb.append("  rot: "+s.rotationFromNominal+"\n");
 
-            ObservationStats ostats = this.fitOfObservations(s);
+            SurfaceReconstructor.ObservationStats ostats = this.reconstructor.fitOfObservations(s);
             if (ostats == null) {
                 sb.append("  No obs stats\n");
             }
@@ -2613,7 +2228,7 @@ public class EarthShape extends MyJFrame {
                 char recommendation = (ostats.variance == 0? ' ' : '-');
 
                 // What is the best rotation command, and what does it achieve?
-                VarianceAfterRotations var = this.getVarianceAfterRotations(s,
+                SurfaceReconstructor.VarianceAfterRotations var = this.reconstructor.getVarianceAfterRotations(s,
                     this.adjustOrientationDegrees);
 
                 // Print the effects of all the available rotations.
@@ -2634,6 +2249,10 @@ public class EarthShape extends MyJFrame {
                     recommendation = var.bestRC.key;
                 }
                 sb.append("  recommend: "+recommendation+"\n");
+                if (var.unconstrainedAxis != null) {
+                    sb.append("  unconstrained: "+
+                        SurfaceReconstructor.describeRotationAxis(var.unconstrainedAxis)+"\n");
+                }
             }
         }
 
@@ -2646,7 +2265,7 @@ public class EarthShape extends MyJFrame {
             sb.append("Base at: ("+this.activeSquare.baseSquare.latitude+
                       ","+this.activeSquare.baseSquare.longitude+")\n");
 
-            CurvatureCalculator cc = this.computeAverageCurvature(this.activeSquare);
+            CurvatureCalculator cc = this.reconstructor.computeAverageCurvature(this.activeSquare);
             double normalCurvatureDegPer1000km =
                 FloatUtil.radiansToDegrees(cc.normalCurvature*1000);
             sb.append("Normal curvature: "+(float)normalCurvatureDegPer1000km+" deg per 1000 km\n");
@@ -2678,107 +2297,6 @@ public class EarthShape extends MyJFrame {
         this.infoPanel.setText(sb.toString());
     }
 
-    /** Compute the average curvature on a path from the base square
-      * of 's' to 's'. */
-    private CurvatureCalculator computeAverageCurvature(SurfaceSquare s)
-    {
-        // Travel distance and heading.
-        TravelObservation tobs = this.worldObservations.getTravelObservation(
-            s.baseSquare.latitude, s.baseSquare.longitude,
-            s.latitude, s.longitude);
-
-        // Unit travel vector in base square coordinate system.
-        Vector3f startTravel = Vector3f.headingToVector((float)tobs.startToEndHeading);
-        startTravel = startTravel.rotateAADeg(s.baseSquare.rotationFromNominal);
-
-        // And at derived square.
-        Vector3f endTravel = Vector3f.headingToVector((float)tobs.endToStartHeading + 180);
-        endTravel = endTravel.rotateAADeg(s.rotationFromNominal);
-
-        // Calculate curvature and twist.
-        CurvatureCalculator c = new CurvatureCalculator();
-        c.distanceKm = tobs.distanceKm;
-        c.computeFromNormals(s.baseSquare.up, s.up, startTravel, endTravel);
-        return c;
-    }
-
-    /** Result of call to 'getVarianceAfterRotations'. */
-    private static class VarianceAfterRotations {
-        /** Variance produced by each rotation.  The value can be null,
-          * meaning the rotation produces a situation where we can't
-          * measure the variance (e.g., because not enough stars are
-          * above the horizon). */
-        public HashMap<RotationCommand, Double> rcToVariance = new HashMap<RotationCommand, Double>();
-
-        /** Which rotation command produces the greatest improvement
-          * in variance, if any. */
-        public RotationCommand bestRC = null;
-
-        /** If true, the solution space is underconstrained, meaning
-          * the best orientation is not unique. */
-        public boolean underconstrained = false;
-    }
-
-    /** Perform a trial rotation in each direction and record the
-      * resulting variance, plus a decision about which is best, if any.
-      * This returns null if we do not have enough data to measure
-      * the fitness of the square's orientation. */
-    private VarianceAfterRotations getVarianceAfterRotations(SurfaceSquare s,
-        float adjustDegrees)
-    {
-        // Get variance if no rotation is performed.  We only recommend
-        // a rotation if it improves on this.
-        ObservationStats ostats = this.fitOfObservations(s);
-        if (ostats == null) {
-            return null;
-        }
-
-        VarianceAfterRotations ret = new VarianceAfterRotations();
-
-        // Variance achieved by the best rotation command, if there is one.
-        double bestNewVariance = 0;
-
-        // Get the effects of all the available rotations.
-        for (RotationCommand rc : RotationCommand.values()) {
-            ObservationStats newStats = this.fitOfAdjustedSquare(s,
-                rc.axis.times(adjustDegrees));
-            if (newStats == null || newStats.numSamples < 2) {
-                ret.rcToVariance.put(rc, null);
-            }
-            else {
-                double newVariance = newStats.variance;
-                ret.rcToVariance.put(rc, newVariance);
-
-                if (ostats.variance == 0 && newVariance == 0) {
-                    // The current orientation is ideal, but here
-                    // is a rotation that keeps it ideal.  That
-                    // must mean that the solution space is under-
-                    // constrained.
-                    //
-                    // Note: This is an unnecessarily strong condition for
-                    // being underconstrained.  It requires that we
-                    // find a zero in the objective function, and
-                    // furthermore that the solution space be parallel
-                    // to one of the three local rotation axes.  I have
-                    // some ideas for more robust detection of underconstraint,
-                    // but haven't tried to implement them yet.  For now I
-                    // will rely on manual inspection of the rotation cube
-                    // analysis dialog.
-                    ret.underconstrained = true;
-                }
-
-                if (newVariance < ostats.variance &&
-                    (ret.bestRC == null || newVariance < bestNewVariance))
-                {
-                    ret.bestRC = rc;
-                    bestNewVariance = newVariance;
-                }
-            }
-        }
-
-        return ret;
-    }
-
     /** True if there is an active square and it is drawing star rays. */
     private boolean activeSquareDrawsStarRays()
     {
@@ -2792,13 +2310,8 @@ public class EarthShape extends MyJFrame {
     {
         this.clearSurfaceSquares();
 
-        this.worldObservations = obs;
-
-        // Enable all stars in the new model.
-        this.enabledStars.clear();
-        for (String starName : this.worldObservations.getAllStars()) {
-            this.enabledStars.put(starName, true);
-        }
+        // This also enables all stars in the new model.
+        this.reconstructor.setWorldObservations(obs);
 
         this.updateAndRedraw();
     }
@@ -2813,8 +2326,14 @@ public class EarthShape extends MyJFrame {
     /** Return true if the named star is enabled. */
     public boolean isStarEnabled(String starName)
     {
-        return this.enabledStars.containsKey(starName) &&
-               this.enabledStars.get(starName).equals(true);
+        return this.reconstructor.isStarEnabled(starName);
+    }
+
+    /** Get the object holding the observations, enabled stars, and
+      * reconstruction options. */
+    public SurfaceReconstructor getReconstructor()
+    {
+        return this.reconstructor;
     }
 
     /** Do some initial steps so I do not have to do them manually each
@@ -2824,11 +2343,12 @@ public class EarthShape extends MyJFrame {
     private void doCannedSetup()
     {
         // Disable all stars except for Betelgeuse and Dubhe.
-        this.enabledStars.clear();
-        for (String starName : this.worldObservations.getAllStars()) {
+        LinkedHashMap<String, Boolean> stars = new LinkedHashMap<String, Boolean>();
+        for (String starName : this.reconstructor.getWorldObservations().getAllStars()) {
             boolean en = (starName.equals("Betelgeuse") || starName.equals("Dubhe"));
-            this.enabledStars.put(starName, en);
+            stars.put(starName, en);
         }
+        this.reconstructor.setEnabledStars(stars);
 
         // Build first square in SF as usual.
         this.startNewSurfaceAt(38, -122);
@@ -2837,7 +2357,7 @@ public class EarthShape extends MyJFrame {
         this.buildNextSquareAt(38, -77);
 
         // The plan is to align with just two stars, so we need this.
-        this.assumeInfiniteStarDistance = true;
+        this.reconstructor.options.assumeInfiniteStarDistance = true;
 
         // Position the camera to see DC square.
         if (this.emCanvas.drawActiveSquareAtOrigin) {
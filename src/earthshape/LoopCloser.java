@@ -0,0 +1,598 @@
+// LoopCloser.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import util.FloatUtil;
+import util.Matrix3d;
+import util.Vector3f;
+
+import static util.swing.SwingUtil.log;
+
+/** Closes the loops of a surface: places where a chain of squares,
+  * each placed relative to the one before, comes back to a cell that
+  * another chain from the same square has already covered, as the
+  * East and West latitude strips of the full-surface build do on the
+  * far side of the Earth.
+  *
+  * Each chain accumulates one relative placement after another, so the
+  * two squares for the revisited cell disagree by whatever error built
+  * up along the two chains since they split.  This finds the revisits
+  * with an index of the squares by latitude and longitude, measures
+  * that disagreement, the drift, as the offset and rotation between the
+  * two squares, and removes it by moving each square of the loop by a
+  * share of the correction proportional to its distance from where the
+  * chains split.  The two squares for the cell then coincide, and the
+  * later one is dropped.  The chains can be any squares built on one
+  * another, including the North/South spine of the strip build, and
+  * squares built on a moved square that are not part of the loop move
+  * rigidly with it.
+  *
+  * Each loop costs one pass over it and the squares built after it, so
+  * this is cheap next to BundleAdjuster, which re-solves the whole
+  * surface.  It spreads the error evenly rather than by how well each
+  * square is constrained, so it is a first-order fix. */
+public class LoopCloser {
+    // ---- Constants ----
+    /** Loops whose ends differ by more than this rotation, in degrees,
+      * are left alone, since the chains have gone too far wrong for an
+      * even spread to make sense. */
+    public static final double MAX_ROTATION_DRIFT_DEGREES = 5;
+
+    // ---- Types ----
+    /** Two chains of squares that split at a common square and end in
+      * the same cell. */
+    public static class Loop {
+        /** The squares of each chain, starting next to the square they
+          * split at, which is not included, and ending in the shared
+          * cell.  'first' ends at the square that was there first. */
+        public final ArrayList<SurfaceSquare> first;
+        public final ArrayList<SurfaceSquare> second;
+
+        /** Offset from the last square of 'first' to that of 'second',
+          * in space units. */
+        public final Vector3f positionDrift;
+
+        /** Rotation vector, in degrees, taking the orientation of the
+          * last square of 'first' to that of 'second'. */
+        public final Vector3f rotationDrift;
+
+        public Loop(ArrayList<SurfaceSquare> first_, ArrayList<SurfaceSquare> second_)
+        {
+            this.first = first_;
+            this.second = second_;
+            SurfaceSquare f = first_.get(first_.size()-1);
+            SurfaceSquare s = second_.get(second_.size()-1);
+            this.positionDrift = s.center.minus(f.center);
+            this.rotationDrift = s.orientation().times(f.orientation().transpose())
+                .rotationVectorDegrees().toVector3f();
+        }
+
+        /** Number of steps around the loop. */
+        public int length()
+        {
+            return this.first.size() + this.second.size();
+        }
+
+        /** Length of the positional drift, in km. */
+        public double positionDriftKm()
+        {
+            return this.positionDrift.length() / SurfaceSquare.SPACE_UNITS_PER_KM;
+        }
+
+        /** Angle of the rotational drift, in degrees. */
+        public double rotationDriftDegrees()
+        {
+            return this.rotationDrift.length();
+        }
+
+        /** If 'a' and 'b' are built, through their bases, from a common
+          * square, and neither is built from the other, return the
+          * loop they form, with 'a' first.  Otherwise return null. */
+        public static Loop find(SurfaceSquare a, SurfaceSquare b)
+        {
+            Set<SurfaceSquare> ancestors =
+                Collections.newSetFromMap(new IdentityHashMap<SurfaceSquare, Boolean>());
+            for (SurfaceSquare s = a; s != null; s = s.baseSquare) {
+                ancestors.add(s);
+            }
+            ArrayList<SurfaceSquare> second = new ArrayList<SurfaceSquare>();
+            SurfaceSquare split = b;
+            while (split != null && !ancestors.contains(split)) {
+                second.add(split);
+                split = split.baseSquare;
+            }
+            if (split == null || split == a || second.isEmpty()) {
+                return null;
+            }
+            ArrayList<SurfaceSquare> first = new ArrayList<SurfaceSquare>();
+            for (SurfaceSquare s = a; s != split; s = s.baseSquare) {
+                first.add(s);
+            }
+            Collections.reverse(first);
+            Collections.reverse(second);
+            return new Loop(first, second);
+        }
+    }
+
+    // ---- Instance data ----
+    /** Size of the cells of the index, in degrees. */
+    private final float cellDegrees;
+
+    /** Two squares are in the same cell if their latitudes and their
+      * longitudes are each within this many degrees. */
+    private final float toleranceDegrees;
+
+    /** Number of cells around a latitude. */
+    private final int numLongitudeCells;
+
+    /** The squares of 'squares', by cell.  See 'cellKey'. */
+    private final HashMap<Long, ArrayList<SurfaceSquare>> cells =
+        new HashMap<Long, ArrayList<SurfaceSquare>>();
+
+    /** The squares passed to 'add', in order. */
+    private final ArrayList<SurfaceSquare> originals = new ArrayList<SurfaceSquare>();
+
+    /** The current version of each square passed to 'add' that was not
+      * dropped, in the same order. */
+    private final ArrayList<SurfaceSquare> squares = new ArrayList<SurfaceSquare>();
+
+    /** Index in 'squares' of each square in it. */
+    private final IdentityHashMap<SurfaceSquare, Integer> positions =
+        new IdentityHashMap<SurfaceSquare, Integer>();
+
+    /** Map from each square that was moved or dropped to the square
+      * that took its place. */
+    private final IdentityHashMap<SurfaceSquare, SurfaceSquare> newer =
+        new IdentityHashMap<SurfaceSquare, SurfaceSquare>();
+
+    /** Squares passed to 'add' that were dropped because they closed a
+      * loop. */
+    private final Set<SurfaceSquare> dropped =
+        Collections.newSetFromMap(new IdentityHashMap<SurfaceSquare, Boolean>());
+
+    /** Number of loops closed. */
+    public int numLoops = 0;
+
+    // ---- Methods ----
+    /** Prepare to close the loops of squares placed on a grid with
+      * spacing 'cellDegrees_', which meet when within
+      * 'toleranceDegrees_' of each other. */
+    public LoopCloser(float cellDegrees_, float toleranceDegrees_)
+    {
+        this.cellDegrees = Math.abs(cellDegrees_);
+        this.toleranceDegrees = toleranceDegrees_;
+        this.numLongitudeCells = Math.max(1, Math.round(360 / this.cellDegrees));
+    }
+
+    /** Add 'original', which must come after its base, if that was
+      * added.  If a square it is built on has moved, it moves along.
+      * Then, if another chain already reached its cell, close the
+      * loop. */
+    public void add(SurfaceSquare original)
+    {
+        this.originals.add(original);
+        SurfaceSquare s = this.follow(original);
+
+        SurfaceSquare other = this.findRevisit(s);
+        if (other != null) {
+            Loop loop = Loop.find(other, s);
+            if (loop != null) {
+                log("LoopCloser: loop at lat="+s.latitude+" long="+s.longitude+" of "+
+                    loop.length()+" squares: drift "+
+                    (float)loop.positionDriftKm()+" km, "+
+                    (float)loop.rotationDriftDegrees()+" deg");
+                if (loop.rotationDriftDegrees() <= MAX_ROTATION_DRIFT_DEGREES) {
+                    this.close(loop);
+                    this.dropped.add(original);
+                    return;
+                }
+                log("LoopCloser: drift too large; leaving the loop open");
+            }
+        }
+
+        this.positions.put(s, this.squares.size());
+        this.squares.add(s);
+        this.cellOf(s, true).add(s);
+    }
+
+    /** Get the current squares, in the order added, without those that
+      * were dropped. */
+    public List<SurfaceSquare> getSquares()
+    {
+        return this.squares;
+    }
+
+    /** Return the current version of 's', which was passed to 'add':
+      * itself, the square that took its place, or if it was dropped,
+      * the square for its cell it was merged with. */
+    public SurfaceSquare current(SurfaceSquare s)
+    {
+        while (this.newer.containsKey(s)) {
+            s = this.newer.get(s);
+        }
+        return s;
+    }
+
+    /** Return a map from each square passed to 'add' that changed to
+      * what replaces it, which is empty if it was dropped, suitable for
+      * 'ReconstructedSurface.subdivideSurfaceSquares'. */
+    public IdentityHashMap<SurfaceSquare, List<SurfaceSquare>> getReplacements()
+    {
+        IdentityHashMap<SurfaceSquare, List<SurfaceSquare>> ret =
+            new IdentityHashMap<SurfaceSquare, List<SurfaceSquare>>();
+        for (SurfaceSquare s : this.originals) {
+            if (this.dropped.contains(s)) {
+                ret.put(s, Collections.<SurfaceSquare>emptyList());
+            }
+            else {
+                SurfaceSquare c = this.current(s);
+                if (c != s) {
+                    ret.put(s, Collections.singletonList(c));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /** Key of the cell containing the given location. */
+    private long cellKey(int latIndex, int lonIndex)
+    {
+        int wrapped = ((lonIndex % this.numLongitudeCells) + this.numLongitudeCells) %
+            this.numLongitudeCells;
+        return ((long)latIndex << 32) | wrapped;
+    }
+
+    /** Return the list of squares in the cell of 's', or null if there
+      * is none and not 'create'. */
+    private ArrayList<SurfaceSquare> cellOf(SurfaceSquare s, boolean create)
+    {
+        long key = this.cellKey(Math.round(s.latitude / this.cellDegrees),
+                                Math.round(s.longitude / this.cellDegrees));
+        ArrayList<SurfaceSquare> ret = this.cells.get(key);
+        if (ret == null && create) {
+            ret = new ArrayList<SurfaceSquare>();
+            this.cells.put(key, ret);
+        }
+        return ret;
+    }
+
+    /** Return a square already added that is in the same cell as 's',
+      * or null.  The cells around that of 's' are checked as well, in
+      * case the tolerance crosses a cell boundary. */
+    private SurfaceSquare findRevisit(SurfaceSquare s)
+    {
+        int latIndex = Math.round(s.latitude / this.cellDegrees);
+        int lonIndex = Math.round(s.longitude / this.cellDegrees);
+        for (int dLat=-1; dLat <= 1; dLat++) {
+            for (int dLon=-1; dLon <= 1; dLon++) {
+                ArrayList<SurfaceSquare> cell =
+                    this.cells.get(this.cellKey(latIndex + dLat, lonIndex + dLon));
+                if (cell == null) {
+                    continue;
+                }
+                for (SurfaceSquare t : cell) {
+                    if (Math.abs(t.latitude - s.latitude) <= this.toleranceDegrees &&
+                        Math.abs(FloatUtil.modulus2f(t.longitude - s.longitude, -180, 180)) <=
+                            this.toleranceDegrees)
+                    {
+                        return t;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** If the base of 's' has moved, return 's' moved rigidly along
+      * with it, recording that.  Otherwise return 's'. */
+    private SurfaceSquare follow(SurfaceSquare s)
+    {
+        SurfaceSquare base = s.baseSquare;
+        if (base == null) {
+            return s;
+        }
+        SurfaceSquare newBase = this.current(base);
+        if (newBase == base) {
+            return s;
+        }
+
+        Vector3f turn = newBase.orientation().times(base.orientation().transpose())
+            .rotationVectorDegrees().toVector3f();
+        Vector3f north = s.north.rotateAADeg(turn);
+        Vector3f up = s.up.rotateAADeg(turn);
+        Vector3f midpoint = (s.baseMidpoint == null)? null :
+            newBase.center.plus(s.baseMidpoint.minus(base.center).rotateAADeg(turn));
+        SurfaceSquare ret = new SurfaceSquare(
+            newBase.center.plus(s.center.minus(base.center).rotateAADeg(turn)),
+            north, up,
+            s.sizeKm,
+            s.latitude,
+            s.longitude,
+            newBase,
+            midpoint,
+            rotationFromBase(north, up, newBase));
+        ret.starObs = s.starObs;
+        ret.drawStarRays = s.drawStarRays;
+        this.newer.put(s, ret);
+        return ret;
+    }
+
+    /** World-frame rotation from the orientation of 'base' to 'north'
+      * and 'up', as 'SurfaceSquare.rotationFromBase'. */
+    private static Vector3f rotationFromBase(Vector3f north, Vector3f up, SurfaceSquare base)
+    {
+        return SurfaceSquare.orientation(north, up)
+            .times(base.orientation().transpose())
+            .rotationVectorDegrees().toVector3f();
+    }
+
+    /** Distribute the drift of 'loop', whose 'second' chain ends at the
+      * square being added, over the loop, and drop that square in favor
+      * of the corrected end of 'first'.  Then move the squares built
+      * on the corrected ones along with them. */
+    private void close(Loop loop)
+    {
+        // The loop goes out along 'first' and back along 'second', so
+        // a square's share of the correction is its distance from where
+        // they split over the length of the whole loop.  The squares
+        // of 'first' move forward and those of 'second' back, so that
+        // the two ends meet.
+        float loopLength = loop.length();
+        IdentityHashMap<SurfaceSquare, SurfaceSquare> replacements =
+            new IdentityHashMap<SurfaceSquare, SurfaceSquare>();
+        int earliest = this.squares.size();
+        for (int i=0; i < loop.first.size(); i++) {
+            SurfaceSquare s = loop.first.get(i);
+            SurfaceSquare c = correct(s, (i+1) / loopLength, loop, replacements);
+            earliest = Math.min(earliest, this.replace(s, c));
+        }
+        for (int i=0; i < loop.second.size(); i++) {
+            SurfaceSquare s = loop.second.get(i);
+            SurfaceSquare c = correct(s, -(i+1) / loopLength, loop, replacements);
+            if (i < loop.second.size() - 1) {
+                earliest = Math.min(earliest, this.replace(s, c));
+            }
+        }
+
+        // The square being added is not in 'squares'; its cell is now
+        // covered by the corrected end of 'first'.
+        SurfaceSquare end = loop.second.get(loop.second.size()-1);
+        this.newer.put(end, replacements.get(loop.first.get(loop.first.size()-1)));
+        this.numLoops++;
+
+        // Squares built on the moved ones, in order, so bases go first.
+        for (int i=earliest; i < this.squares.size(); i++) {
+            SurfaceSquare s = this.squares.get(i);
+            SurfaceSquare moved = this.follow(s);
+            if (moved != s) {
+                this.replace(s, moved);
+            }
+        }
+    }
+
+    /** Put 'newSquare' in the place of 'oldSquare' in 'squares' and the
+      * cell index, record that, and return its index in 'squares'. */
+    private int replace(SurfaceSquare oldSquare, SurfaceSquare newSquare)
+    {
+        this.newer.put(oldSquare, newSquare);
+        int index = this.positions.remove(oldSquare);
+        this.squares.set(index, newSquare);
+        this.positions.put(newSquare, index);
+        ArrayList<SurfaceSquare> cell = this.cellOf(oldSquare, false);
+        cell.set(cell.indexOf(oldSquare), newSquare);
+        return index;
+    }
+
+    /** Make the corrected version of 's', which gets 'fraction' of the
+      * drift of 'loop', and record it in 'replacements'.  Its base must
+      * already have been replaced, if it is going to be. */
+    private static SurfaceSquare correct(SurfaceSquare s, float fraction, Loop loop,
+        IdentityHashMap<SurfaceSquare, SurfaceSquare> replacements)
+    {
+        Vector3f rotation = loop.rotationDrift.times(fraction);
+        Vector3f offset = loop.positionDrift.times(fraction);
+        Vector3f north = s.north.rotateAADeg(rotation);
+        Vector3f up = s.up.rotateAADeg(rotation);
+
+        SurfaceSquare base = s.baseSquare;
+        Vector3f rotationFromBase = s.rotationFromBase;
+        Vector3f midpoint = s.baseMidpoint;
+        if (base != null) {
+            Vector3f baseOffset = new Vector3f(0,0,0);
+            if (replacements.containsKey(base)) {
+                SurfaceSquare newBase = replacements.get(base);
+                baseOffset = newBase.center.minus(base.center);
+                base = newBase;
+            }
+
+            // The midpoint moves with the average of the two squares.
+            if (midpoint != null) {
+                midpoint = midpoint.plus(baseOffset.plus(offset).times(0.5f));
+            }
+            rotationFromBase = rotationFromBase(north, up, base);
+        }
+
+        SurfaceSquare ret = new SurfaceSquare(
+            s.center.plus(offset), north, up,
+            s.sizeKm,
+            s.latitude,
+            s.longitude,
+            base,
+            midpoint,
+            rotationFromBase);
+        ret.starObs = s.starObs;
+        ret.drawStarRays = s.drawStarRays;
+        replacements.put(s, ret);
+        return ret;
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Build a chain from 'start' on a sphere, taking 'steps' steps of
+      * 'dLat' and 'dLong' degrees, but with an error of 'errorDegrees'
+      * about the local up axis at each step. */
+    private static ArrayList<SurfaceSquare> driftingChain(SurfaceReconstructor r,
+        SurfaceSquare start, int steps, float dLat, float dLong, float errorDegrees)
+    {
+        ArrayList<SurfaceSquare> ret = new ArrayList<SurfaceSquare>();
+        SurfaceSquare cur = start;
+        for (int i=0; i < steps; i++) {
+            SurfaceSquare next = r.createSphericallyAdjacentSquare(cur,
+                cur.latitude + dLat, FloatUtil.modulus2f(cur.longitude + dLong, -180, 180));
+            Vector3f error = next.up.normalize().times(errorDegrees);
+            Vector3f rotation = Vector3f.composeRotations(next.rotationFromBase, error);
+            next = r.createRotatedAdjacentSquare(cur, next.latitude, next.longitude, rotation);
+            ret.add(next);
+            cur = next;
+        }
+        return ret;
+    }
+
+    /** Check that the squares closing 'loop' in 'c' now coincide, and
+      * that each corrected chain is intact and consistent. */
+    private static void checkClosed(LoopCloser c, Loop loop)
+    {
+        SurfaceSquare a = c.current(loop.first.get(loop.first.size()-1));
+        SurfaceSquare b = c.current(loop.second.get(loop.second.size()-1));
+        assert(a == b);
+
+        // Had the dropped square been corrected by its share, it would
+        // have landed on the kept one.
+        SurfaceSquare end = loop.second.get(loop.second.size()-1);
+        SurfaceSquare bCorrected = correct(end, -loop.second.size() / (float)loop.length(),
+            loop, new IdentityHashMap<SurfaceSquare, SurfaceSquare>());
+        double residual = a.orientation().times(bCorrected.orientation().transpose())
+            .rotationVectorDegrees().length();
+        assert(residual < 0.01) : residual;
+        assert(a.center.minus(bCorrected.center).length() < 1e-3);
+
+        for (SurfaceSquare s : c.getSquares()) {
+            if (s.baseSquare != null) {
+                assert(c.positions.get(s.baseSquare) < c.positions.get(s));
+                Vector3f n = s.baseSquare.north.rotateAADeg(s.rotationFromBase);
+                assert(n.minus(s.north).length() < 1e-4) : s;
+            }
+        }
+    }
+
+    /** Check that closing the loop of drifting East and West strips
+      * makes its ends meet while spreading the correction smoothly. */
+    private static void testStrips()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        SurfaceSquare start = RandomWalkBuilder.makeStartSquare();
+        ArrayList<SurfaceSquare> east = driftingChain(r, start, 18, 0, +10, 0.2f);
+        ArrayList<SurfaceSquare> west = driftingChain(r, start, 18, 0, -10, 0);
+
+        Loop loop = Loop.find(east.get(east.size()-1), west.get(west.size()-1));
+        assert(loop != null && loop.first.equals(east) && loop.second.equals(west));
+        System.out.println("drift: "+(float)loop.positionDriftKm()+" km, "+
+            (float)loop.rotationDriftDegrees()+" deg");
+        assert(loop.rotationDriftDegrees() > 1);
+        assert(loop.positionDriftKm() > 100);
+
+        LoopCloser c = new LoopCloser(10, 5);
+        c.add(start);
+        for (SurfaceSquare s : east) {
+            c.add(s);
+        }
+        for (SurfaceSquare s : west) {
+            c.add(s);
+        }
+        assert(c.numLoops == 1);
+        assert(c.getSquares().size() == 1 + east.size() + west.size() - 1);
+        assert(c.current(start) == start);
+        checkClosed(c, loop);
+
+        IdentityHashMap<SurfaceSquare, List<SurfaceSquare>> repl = c.getReplacements();
+        assert(repl.size() == east.size() + west.size());
+        assert(repl.get(west.get(west.size()-1)).isEmpty());
+
+        // Strips that do not meet are left alone.
+        c = new LoopCloser(10, 5);
+        c.add(start);
+        for (SurfaceSquare s : east.subList(0, 5)) {
+            c.add(s);
+        }
+        for (SurfaceSquare s : west) {
+            c.add(s);
+        }
+        assert(c.numLoops == 0 && c.getReplacements().isEmpty());
+    }
+
+    /** Check a loop that goes up a North/South spine before turning
+      * East, against one that turns East first, and that squares built
+      * on the spine, which are not in the loop, move with it. */
+    private static void testSpine()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        SurfaceSquare start = RandomWalkBuilder.makeStartSquare();
+
+        // North 3 then East 3, with drift along the spine.
+        ArrayList<SurfaceSquare> spine = driftingChain(r, start, 3, 9, 0, 0.3f);
+        ArrayList<SurfaceSquare> strip = driftingChain(r, spine.get(2), 3, 0, 9, 0);
+
+        // A square West of the second spine square, not in the loop.
+        SurfaceSquare side = r.createSphericallyAdjacentSquare(spine.get(1),
+            spine.get(1).latitude, spine.get(1).longitude - 9);
+
+        // East 3 then North 3, without drift, ending in the same cell.
+        ArrayList<SurfaceSquare> other = driftingChain(r, start, 3, 0, 9, 0);
+        other.addAll(driftingChain(r, other.get(2), 3, 9, 0, 0));
+
+        LoopCloser c = new LoopCloser(9, 4.5f);
+        c.add(start);
+        for (SurfaceSquare s : spine) {
+            c.add(s);
+        }
+        c.add(side);
+        for (SurfaceSquare s : strip) {
+            c.add(s);
+        }
+        for (SurfaceSquare s : other) {
+            c.add(s);
+        }
+        assert(c.numLoops == 1);
+        assert(c.getSquares().size() == 1 + 3 + 1 + 3 + 6 - 1);
+
+        Loop loop = Loop.find(strip.get(2), other.get(5));
+        assert(loop.first.size() == 6 && loop.second.size() == 6);
+        assert(loop.first.get(0) == spine.get(0));
+        checkClosed(c, loop);
+
+        // Every spine square moved, and the side square kept its place
+        // relative to its base.
+        for (SurfaceSquare s : spine) {
+            assert(c.current(s) != s);
+        }
+        SurfaceSquare movedSide = c.current(side);
+        SurfaceSquare movedBase = c.current(spine.get(1));
+        assert(movedSide != side && movedSide.baseSquare == movedBase);
+        Matrix3d relativeBefore = side.baseSquare.orientation().transpose()
+            .times(side.orientation());
+        Matrix3d relativeAfter = movedBase.orientation().transpose()
+            .times(movedSide.orientation());
+        double diff = relativeBefore.times(relativeAfter.transpose())
+            .rotationVectorDegrees().length();
+        assert(diff < 1e-3) : diff;
+        double distBefore = side.center.minus(spine.get(1).center).length();
+        double distAfter = movedSide.center.minus(movedBase.center).length();
+        assert(Math.abs(distBefore - distAfter) < 1e-3 * distBefore);
+    }
+
+    public static void main(String[] args)
+    {
+        testStrips();
+        testSpine();
+        System.out.println("LoopCloser tests passed");
+    }
+}
+
+// EOF
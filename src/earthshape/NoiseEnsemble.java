@@ -0,0 +1,413 @@
+// NoiseEnsemble.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import util.FloatUtil;
+import util.Vector3f;
+
+/** Estimates how much a reconstruction depends on measurement error
+  * by building it many times from observations with different random
+  * errors added, and collecting, for each square, the spread of its
+  * position, its normal, and the curvature between it and its base.
+  *
+  * The manually gathered star data is only accurate to about 0.2
+  * degrees, so a single build is one sample of what those observations
+  * could have produced.  Each member of the ensemble is a full build
+  * from NoisyObservations with its own seed.  The members are
+  * independent fork-join tasks, so the pool's work stealing keeps all
+  * of the cores busy even though some builds take longer than others.
+  *
+  * The result is the same however many threads run it: each member's
+  * seed comes only from the ensemble seed and the member's index, each
+  * build is serial and so deterministic, and the members' results are
+  * combined in index order once they are all done. */
+public class NoiseEnsemble {
+    // ---- Constants ----
+    /** Default standard deviation of the error added to each star
+      * azimuth and elevation, in degrees.  This is the accuracy of
+      * 'StarObservation.getManualObservations'. */
+    public static final double DEFAULT_NOISE_DEGREES = 0.2;
+
+    /** Fraction of the members that the reported intervals contain. */
+    public static final double CONFIDENCE = 0.95;
+
+    // ---- Types ----
+    /** Grid location of a square. */
+    private static class Location implements Comparable<Location> {
+        public final float latitude, longitude;
+
+        public Location(float latitude_, float longitude_)
+        {
+            this.latitude = latitude_;
+            this.longitude = longitude_;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Location)) {
+                return false;
+            }
+            Location l = (Location)obj;
+            return this.latitude == l.latitude && this.longitude == l.longitude;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Float.hashCode(this.latitude)*31 + Float.hashCode(this.longitude);
+        }
+
+        @Override
+        public int compareTo(Location l)
+        {
+            int c = Float.compare(this.latitude, l.latitude);
+            return c != 0? c : Float.compare(this.longitude, l.longitude);
+        }
+    }
+
+    /** What one member says about one square. */
+    private static class Sample {
+        public final Vector3f center;
+        public final Vector3f up;
+
+        /** Normal curvature from the base square, in degrees per 1000 km,
+          * or NaN for the starting square. */
+        public final double curvature;
+
+        public Sample(Vector3f center_, Vector3f up_, double curvature_)
+        {
+            this.center = center_;
+            this.up = up_;
+            this.curvature = curvature_;
+        }
+    }
+
+    /** Statistics of one square across the ensemble. */
+    public static class SquareStats {
+        public final float latitude, longitude;
+
+        /** Number of members that placed this square. */
+        public int numMembers;
+
+        /** Mean of the square's center, in space units. */
+        public Vector3f meanCenter;
+
+        /** Distance from 'meanCenter', in km, within which CONFIDENCE of
+          * the members placed the center. */
+        public double positionRadiusKm;
+
+        /** Unit mean of the square's normal ("up") vector. */
+        public Vector3f meanUp;
+
+        /** Angle from 'meanUp', in degrees, within which CONFIDENCE of the
+          * members put the normal. */
+        public double normalRadiusDegrees;
+
+        /** Mean normal curvature from the base square, and the interval
+          * containing CONFIDENCE of the members, in degrees per 1000 km.
+          * These are NaN for the starting square. */
+        public double curvatureMean = Double.NaN;
+        public double curvatureLow = Double.NaN;
+        public double curvatureHigh = Double.NaN;
+
+        public SquareStats(float latitude_, float longitude_)
+        {
+            this.latitude = latitude_;
+            this.longitude = longitude_;
+        }
+
+        /** True if every field of 'obj' is exactly the same.  NaNs are
+          * equal to each other, as the starting square's curvature
+          * fields always are. */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof SquareStats)) {
+                return false;
+            }
+            SquareStats s = (SquareStats)obj;
+            return Float.compare(this.latitude, s.latitude) == 0 &&
+                   Float.compare(this.longitude, s.longitude) == 0 &&
+                   this.numMembers == s.numMembers &&
+                   Vector3f.identical(this.meanCenter, s.meanCenter) &&
+                   Double.compare(this.positionRadiusKm, s.positionRadiusKm) == 0 &&
+                   Vector3f.identical(this.meanUp, s.meanUp) &&
+                   Double.compare(this.normalRadiusDegrees, s.normalRadiusDegrees) == 0 &&
+                   Double.compare(this.curvatureMean, s.curvatureMean) == 0 &&
+                   Double.compare(this.curvatureLow, s.curvatureLow) == 0 &&
+                   Double.compare(this.curvatureHigh, s.curvatureHigh) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int h = Float.hashCode(this.latitude);
+            h = h*31 + Float.hashCode(this.longitude);
+            h = h*31 + this.numMembers;
+            h = h*31 + Double.hashCode(this.positionRadiusKm);
+            h = h*31 + Double.hashCode(this.normalRadiusDegrees);
+            h = h*31 + Double.hashCode(this.curvatureMean);
+            return h;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%7.2f %8.2f %4d %10.2f %8.4f %10.4f %10.4f %10.4f",
+                this.latitude, this.longitude, this.numMembers,
+                this.positionRadiusKm, this.normalRadiusDegrees,
+                this.curvatureMean, this.curvatureLow, this.curvatureHigh);
+        }
+    }
+
+    // ---- Instance data ----
+    /** Observations, settings, and enabled stars to build with. */
+    private final SurfaceReconstructor reconstructor;
+
+    /** Number of builds. */
+    public final int numMembers;
+
+    /** Standard deviation of the added error, in degrees. */
+    public final double noiseDegrees;
+
+    /** Seed from which all of the members' seeds are derived. */
+    public final long seed;
+
+    // ---- Methods ----
+    /** Prepare an ensemble of 'numMembers_' builds using the settings
+      * of 'reconstructor_', which is not modified. */
+    public NoiseEnsemble(SurfaceReconstructor reconstructor_, int numMembers_,
+        double noiseDegrees_, long seed_)
+    {
+        this.reconstructor = new SurfaceReconstructor(reconstructor_);
+        this.numMembers = numMembers_;
+        this.noiseDegrees = noiseDegrees_;
+        this.seed = seed_;
+    }
+
+    /** Seed for member 'index'. */
+    public long memberSeed(int index)
+    {
+        return NoisyObservations.streamSeed(this.seed, index);
+    }
+
+    /** Build member 'index' and return its samples. */
+    private HashMap<Location, Sample> runMember(int index)
+    {
+        // A serial search is sure to be deterministic.
+        SolverOptions opts = this.reconstructor.options.forConcurrentBuild();
+        opts.parallelPatternSearch = false;
+
+        SurfaceReconstructor r = new SurfaceReconstructor(
+            new NoisyObservations(this.reconstructor.getWorldObservations(),
+                this.noiseDegrees, this.memberSeed(index)),
+            this.reconstructor.getEnabledStars(),
+            opts);
+        ReconstructedSurface surface = r.buildEarthSurfaceFromStarData(BuildProgress.NONE);
+
+        HashMap<Location, Sample> ret = new HashMap<Location, Sample>();
+        for (SurfaceSquare s : surface.getSurfaceSquares()) {
+            double curvature = Double.NaN;
+            if (s.baseSquare != null) {
+                curvature = FloatUtil.radiansToDegrees(
+                    r.computeAverageCurvature(s).normalCurvature * 1000);
+            }
+            ret.put(new Location(s.latitude, s.longitude),
+                new Sample(s.center, s.up, curvature));
+        }
+        return ret;
+    }
+
+    /** Run the ensemble on the common pool. */
+    public List<SquareStats> run()
+    {
+        return this.run(ForkJoinPool.commonPool());
+    }
+
+    /** Run the ensemble on 'pool' and return the statistics of each
+      * square that any member placed, ordered by latitude and then
+      * longitude. */
+    public List<SquareStats> run(ForkJoinPool pool)
+    {
+        // Each member sets only its own element, and 'invoke' returns
+        // after all of them have finished.
+        final List<HashMap<Location, Sample>> results =
+            new ArrayList<HashMap<Location, Sample>>(
+                Collections.<HashMap<Location, Sample>>nCopies(this.numMembers, null));
+        ParallelTasks.invokeEach(pool, this.numMembers, new ParallelTasks.Task() {
+            @Override
+            public void run(int index)
+            {
+                results.set(index, NoiseEnsemble.this.runMember(index));
+            }
+        });
+
+        // Gather each square's samples, in member order.
+        HashMap<Location, ArrayList<Sample>> byLocation =
+            new HashMap<Location, ArrayList<Sample>>();
+        for (HashMap<Location, Sample> result : results) {
+            for (Map.Entry<Location, Sample> e : result.entrySet()) {
+                ArrayList<Sample> samples = byLocation.get(e.getKey());
+                if (samples == null) {
+                    samples = new ArrayList<Sample>();
+                    byLocation.put(e.getKey(), samples);
+                }
+                samples.add(e.getValue());
+            }
+        }
+
+        ArrayList<Location> locations = new ArrayList<Location>(byLocation.keySet());
+        Collections.sort(locations);
+        ArrayList<SquareStats> ret = new ArrayList<SquareStats>();
+        for (Location loc : locations) {
+            ret.add(summarize(loc, byLocation.get(loc)));
+        }
+        return ret;
+    }
+
+    /** Compute the statistics of the square at 'loc' from 'samples'. */
+    private static SquareStats summarize(Location loc, List<Sample> samples)
+    {
+        SquareStats ret = new SquareStats(loc.latitude, loc.longitude);
+        int n = samples.size();
+        ret.numMembers = n;
+
+        Vector3f sumCenter = new Vector3f(0, 0, 0);
+        Vector3f sumUp = new Vector3f(0, 0, 0);
+        for (Sample s : samples) {
+            sumCenter = sumCenter.plus(s.center);
+            sumUp = sumUp.plus(s.up);
+        }
+        ret.meanCenter = sumCenter.times(1.0f / n);
+        ret.meanUp = sumUp.normalize();
+
+        double[] distances = new double[n];
+        double[] angles = new double[n];
+        double[] curvatures = new double[n];
+        int numCurvatures = 0;
+        for (int i=0; i < n; i++) {
+            Sample s = samples.get(i);
+            distances[i] = s.center.minus(ret.meanCenter).length() /
+                SurfaceSquare.SPACE_UNITS_PER_KM;
+            angles[i] = s.up.separationAngleDegrees(ret.meanUp);
+            if (!Double.isNaN(s.curvature)) {
+                curvatures[numCurvatures++] = s.curvature;
+            }
+        }
+        ret.positionRadiusKm = percentile(distances, CONFIDENCE);
+        ret.normalRadiusDegrees = percentile(angles, CONFIDENCE);
+
+        if (numCurvatures > 0) {
+            curvatures = Arrays.copyOf(curvatures, numCurvatures);
+            double sum = 0;
+            for (double c : curvatures) {
+                sum += c;
+            }
+            ret.curvatureMean = sum / numCurvatures;
+            ret.curvatureLow = percentile(curvatures, (1 - CONFIDENCE) / 2);
+            ret.curvatureHigh = percentile(curvatures, (1 + CONFIDENCE) / 2);
+        }
+        return ret;
+    }
+
+    /** Return the value below which fraction 'p' of 'values' lie,
+      * interpolating between neighbors.  This sorts 'values'. */
+    public static double percentile(double[] values, double p)
+    {
+        Arrays.sort(values);
+        double pos = p * (values.length - 1);
+        int lo = (int)Math.floor(pos);
+        int hi = Math.min(lo + 1, values.length - 1);
+        return values[lo] + (values[hi] - values[lo]) * (pos - lo);
+    }
+
+    /** Print 'stats' as a table. */
+    public static void printTable(PrintStream out, List<SquareStats> stats)
+    {
+        out.println(String.format("%7s %8s %4s %10s %8s %10s %10s %10s",
+            "lat", "lon", "n", "posKm", "normDeg", "curv", "curvLo", "curvHi"));
+        for (SquareStats s : stats) {
+            out.println(s);
+        }
+        out.println("(posKm and normDeg contain "+(int)(CONFIDENCE*100)+
+            "% of the members; curvature is in deg per 1000 km)");
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check that the observations' noise is repeatable and about the
+      * requested size. */
+    private static void testNoisyObservations()
+    {
+        WorldObservations exact = new RealWorldObservations();
+        NoisyObservations noisy = new NoisyObservations(exact, 0.2, 1);
+        double t = StarObservation.unixTimeOfManualData;
+
+        List<StarObservation> a = noisy.getStarObservations(t, 38, -122);
+        List<StarObservation> b = noisy.getStarObservations(t, 38, -122);
+        List<StarObservation> e = exact.getStarObservations(t, 38, -122);
+        assert(a.size() == e.size());
+
+        double sumOfSquares = 0;
+        for (int i=0; i < a.size(); i++) {
+            assert(a.get(i).elevation == b.get(i).elevation);
+            assert(a.get(i).azimuth == b.get(i).azimuth);
+            double d = a.get(i).elevation - e.get(i).elevation;
+            sumOfSquares += d*d;
+        }
+        double rms = Math.sqrt(sumOfSquares / a.size());
+        assert(rms > 0.05 && rms < 0.6) : rms;
+
+        // A different seed gives different errors.
+        List<StarObservation> c =
+            new NoisyObservations(exact, 0.2, 2).getStarObservations(t, 38, -122);
+        assert(c.get(0).elevation != a.get(0).elevation);
+    }
+
+    /** Check that the result does not depend on the number of threads. */
+    private static void testReproducible()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        r.options.buildStepDegrees = 30;
+        NoiseEnsemble ens = new NoiseEnsemble(r, 4, DEFAULT_NOISE_DEGREES, 42);
+
+        List<SquareStats> serial = ens.run(new ForkJoinPool(1));
+        List<SquareStats> parallel = ens.run(new ForkJoinPool(4));
+        printTable(System.out, serial);
+        assert(!serial.isEmpty());
+        assert(serial.equals(parallel));
+
+        // The comparison sees fields the table does not print.
+        SquareStats changed = parallel.get(parallel.size()-1);
+        changed.meanUp = changed.meanUp.rotateDeg(1e-3, new Vector3f(1, 0, 0));
+        assert(!serial.equals(parallel));
+
+        // The noise should make some difference somewhere.
+        boolean spread = false;
+        for (SquareStats s : serial) {
+            if (s.positionRadiusKm > 0) {
+                spread = true;
+            }
+        }
+        assert(spread);
+    }
+
+    public static void main(String[] args)
+    {
+        testNoisyObservations();
+        testReproducible();
+        System.out.println("NoiseEnsemble tests passed");
+    }
+}
+
+// EOF
@@ -0,0 +1,167 @@
+// NoisyObservations.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import util.Vector3f;
+import util.Vector4f;
+
+/** Another set of observations with random measurement error added
+  * to the star azimuths and elevations, to simulate taking them again
+  * with an imperfect instrument.  Everything else, including the Sun
+  * and the travel observations, is passed through unchanged.
+  *
+  * The error of each observation is a fixed function of the seed, the
+  * star, the place, and the time, rather than coming from one shared
+  * random sequence.  So asking for the same observation twice gives
+  * the same answer, and the answers do not depend on the order in
+  * which a build happens to ask, or on which thread asks. */
+public class NoisyObservations extends WorldObservations {
+    // ---- Instance data ----
+    /** Observations to add noise to. */
+    private final WorldObservations base;
+
+    /** Standard deviation of the error added to the azimuth and to the
+      * elevation of each observation, in degrees. */
+    public final double noiseDegrees;
+
+    /** Seed that, with the observation, determines its error. */
+    public final long seed;
+
+    // ---- Methods ----
+    public NoisyObservations(WorldObservations base_, double noiseDegrees_, long seed_)
+    {
+        this.base = base_;
+        this.noiseDegrees = noiseDegrees_;
+        this.seed = seed_;
+    }
+
+    /** Scramble the bits of 'x', using the finalizer of the SplitMix64
+      * generator, so that nearby inputs give unrelated outputs. */
+    public static long mix(long x)
+    {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    /** Seed for stream 'index' of a family of random streams, such as
+      * the members of a NoiseEnsemble, derived from the family's
+      * 'seed'.  Spacing the inputs by the golden ratio before mixing
+      * keeps the streams of nearby seeds from overlapping. */
+    public static long streamSeed(long seed, int index)
+    {
+        return mix(seed + index * 0x9E3779B97F4A7C15L);
+    }
+
+    /** Return a random number generator for the error of the observation
+      * of 'name' at the given time and place. */
+    private Random errorSource(String name, double unixTime,
+        float latitude, float longitude)
+    {
+        long h = mix(this.seed);
+        h = mix(h + name.hashCode());
+        h = mix(h + Double.doubleToLongBits(unixTime));
+        h = mix(h + Float.floatToIntBits(latitude));
+        h = mix(h + Float.floatToIntBits(longitude));
+        return new Random(h);
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return this.base.getDescription()+
+            " with "+(float)this.noiseDegrees+" deg noise (seed "+this.seed+")";
+    }
+
+    @Override
+    public TravelObservation getTravelObservation(
+        float startLatitude, float startLongitude,
+        float endLatitude, float endLongitude)
+    {
+        return this.base.getTravelObservation(startLatitude, startLongitude,
+            endLatitude, endLongitude);
+    }
+
+    @Override
+    public List<String> getAllStars()
+    {
+        return this.base.getAllStars();
+    }
+
+    @Override
+    public List<StarObservation> getStarObservations(
+        double unixTime,
+        float latitude,
+        float longitude)
+    {
+        List<StarObservation> exact =
+            this.base.getStarObservations(unixTime, latitude, longitude);
+        ArrayList<StarObservation> ret = new ArrayList<StarObservation>(exact.size());
+        for (StarObservation so : exact) {
+            Random r = this.errorSource(so.name, unixTime, latitude, longitude);
+            double azimuth = so.azimuth + r.nextGaussian() * this.noiseDegrees;
+            double elevation = so.elevation + r.nextGaussian() * this.noiseDegrees;
+
+            azimuth = azimuth % 360;
+            if (azimuth < 0) {
+                azimuth += 360;
+            }
+            elevation = Math.max(-90, Math.min(90, elevation));
+
+            ret.add(new StarObservation(so.latitude, so.longitude, so.name,
+                azimuth, elevation));
+        }
+        return ret;
+    }
+
+    @Override
+    public StarObservation getSunObservation(
+        double unixTime,
+        float latitude,
+        float longitude)
+    {
+        return this.base.getSunObservation(unixTime, latitude, longitude);
+    }
+
+    @Override
+    public boolean sunIsAbove(
+        double unixTime,
+        float latitude,
+        float longitude,
+        float elevationDegrees)
+    {
+        return this.base.sunIsAbove(unixTime, latitude, longitude, elevationDegrees);
+    }
+
+    @Override
+    public boolean hasModelPoints()
+    {
+        return this.base.hasModelPoints();
+    }
+
+    @Override
+    public Vector3f getModelPt(float latitude, float longitude)
+    {
+        return this.base.getModelPt(latitude, longitude);
+    }
+
+    @Override
+    public Map<String, Vector4f> getModelStarMap()
+    {
+        return this.base.getModelStarMap();
+    }
+
+    @Override
+    public SurfaceSquare getModelSquare(float latitude, float longitude)
+    {
+        return this.base.getModelSquare(latitude, longitude);
+    }
+}
+
+// EOF
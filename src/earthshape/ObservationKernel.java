@@ -0,0 +1,276 @@
+// ObservationKernel.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.Random;
+
+import util.FloatUtil;
+
+/** Computes the azimuth and elevation of every star of a catalog, at
+  * one time and place, in a single pass.
+  *
+  * StarCatalog.makeObservation does this for one star, and so, for
+  * every star, computes sidereal time, takes the sine, cosine, and
+  * tangent of the declination, and allocates an observation.  Here the
+  * stars are instead kept as columns of equatorial unit vectors,
+  * computed once.  For each time and place, the sidereal time and the
+  * latitude give one rotation into the local horizon frame, and each
+  * star then costs a matrix-vector product, a square root, and two
+  * 'atan2' calls, with the results going into arrays the caller
+  * provides.  (The elevation is taken with 'atan2' of the vertical and
+  * horizontal components rather than 'asin' of the vertical one, which
+  * in Java is several times slower over most of its range.)  That makes
+  * it practical to compute the observations at a very large number of
+  * sites.
+  *
+  * The results agree with 'makeObservation' to within float rounding
+  * (about 1e-3 degrees of elevation, and 1e-2 of azimuth away from the
+  * zenith), but are not bit-for-bit the same, so RealWorldObservations
+  * keeps using 'makeObservation', and this is for callers that observe
+  * a catalog at many sites and can accept that rounding.  Instances are
+  * immutable, so any number of threads can use one at once, each with
+  * its own output arrays.
+  *
+  * Both methods rotate each star into the local horizon frame, whose
+  * first axis points South, second East, and third to the zenith,
+  * which is how makeObservation's formulas measure azimuth.  For
+  * theta the local sidereal time and phi the latitude, the rows of
+  * that rotation are:
+  *
+  *   (sin phi cos theta,  sin phi sin theta,  -cos phi)
+  *   (sin theta,          -cos theta,          0)
+  *   (cos phi cos theta,  cos phi sin theta,   sin phi) */
+public class ObservationKernel {
+    // ---- Instance data ----
+    /** Unit vectors of the stars, in equatorial coordinates: X toward
+      * right ascension 0, Z toward the North celestial pole. */
+    private final double[] x, y, z;
+
+    // ---- Methods ----
+    /** Prepare to observe the stars of 'catalog', in that order. */
+    public ObservationKernel(StarCatalog[] catalog)
+    {
+        this(catalog.length);
+        for (int i=0; i < catalog.length; i++) {
+            this.setStar(i, catalog[i].rightAscensionDegrees, catalog[i].declinationDegrees);
+        }
+    }
+
+    /** Prepare to observe the stars of 'file', in its order, without
+      * making a StarCatalog for each one. */
+    public ObservationKernel(StarCatalogFile file)
+    {
+        this(file.size());
+        for (int i=0; i < file.size(); i++) {
+            this.setStar(i, file.getRightAscension(i), file.getDeclination(i));
+        }
+    }
+
+    private ObservationKernel(int n)
+    {
+        this.x = new double[n];
+        this.y = new double[n];
+        this.z = new double[n];
+    }
+
+    /** Set the unit vector of star 'i'. */
+    private void setStar(int i, float rightAscensionDegrees, float declinationDegrees)
+    {
+        double ra = Math.toRadians(rightAscensionDegrees);
+        double dec = Math.toRadians(declinationDegrees);
+        this.x[i] = Math.cos(dec) * Math.cos(ra);
+        this.y[i] = Math.cos(dec) * Math.sin(ra);
+        this.z[i] = Math.sin(dec);
+    }
+
+    /** Number of stars. */
+    public int size()
+    {
+        return this.x.length;
+    }
+
+    /** Local sidereal time, the right ascension on the meridian, in
+      * radians. */
+    private static double localSiderealRadians(double unixTime, float longitudeDegrees)
+    {
+        return Math.toRadians(
+            StarCatalog.unixTimeToGMST(unixTime) * 15.0f + longitudeDegrees);
+    }
+
+    /** Set 'azimuth[i]' and 'elevation[i]' to the position of star 'i'
+      * at the given time and place, in degrees, as 'makeObservation'
+      * would.  The arrays must have at least 'size' elements. */
+    public void observe(double unixTime, float latitudeDegrees, float longitudeDegrees,
+        float[] azimuth, float[] elevation)
+    {
+        double theta = localSiderealRadians(unixTime, longitudeDegrees);
+        double phi = Math.toRadians(latitudeDegrees);
+        double sinTheta = Math.sin(theta), cosTheta = Math.cos(theta);
+        double sinPhi = Math.sin(phi), cosPhi = Math.cos(phi);
+        double m0 = sinPhi * cosTheta, m1 = sinPhi * sinTheta, m2 = -cosPhi;
+        double m3 = sinTheta, m4 = -cosTheta;
+        double m6 = cosPhi * cosTheta, m7 = cosPhi * sinTheta, m8 = sinPhi;
+        double[] xs = this.x, ys = this.y, zs = this.z;
+        int n = xs.length;
+        for (int i=0; i < n; i++) {
+            double sx = xs[i], sy = ys[i], sz = zs[i];
+            double south = m0*sx + m1*sy + m2*sz;
+            double east = m3*sx + m4*sy;
+            double up = m6*sx + m7*sy + m8*sz;
+
+            // 'atan2' measures from South, and North is wanted.
+            azimuth[i] = (float)Math.toDegrees(Math.atan2(east, south) + Math.PI);
+            elevation[i] = (float)Math.toDegrees(
+                Math.atan2(up, Math.sqrt(south*south + east*east)));
+        }
+    }
+
+    /** Like 'observe', but only for the stars at least
+      * 'minimumElevation' degrees high.  Their indices go into
+      * 'indices', in ascending order, and their positions into the
+      * same elements of 'azimuth' and 'elevation'.  Returns how many
+      * there are.  Stars below the elevation are rejected before
+      * computing their azimuth. */
+    public int observeAbove(double unixTime, float latitudeDegrees, float longitudeDegrees,
+        float minimumElevation, int[] indices, float[] azimuth, float[] elevation)
+    {
+        double theta = localSiderealRadians(unixTime, longitudeDegrees);
+        double phi = Math.toRadians(latitudeDegrees);
+        double sinTheta = Math.sin(theta), cosTheta = Math.cos(theta);
+        double sinPhi = Math.sin(phi), cosPhi = Math.cos(phi);
+        double m0 = sinPhi * cosTheta, m1 = sinPhi * sinTheta, m2 = -cosPhi;
+        double m3 = sinTheta, m4 = -cosTheta;
+        double m6 = cosPhi * cosTheta, m7 = cosPhi * sinTheta, m8 = sinPhi;
+
+        // Compare sines, with a little slack for rounding, and then
+        // the elevation itself, so the test is exactly 'el >= min'.
+        double minUp = Math.sin(Math.toRadians(minimumElevation)) - 1e-6;
+
+        double[] xs = this.x, ys = this.y, zs = this.z;
+        int n = xs.length;
+        int count = 0;
+        for (int i=0; i < n; i++) {
+            double sx = xs[i], sy = ys[i], sz = zs[i];
+            double up = m6*sx + m7*sy + m8*sz;
+            if (up < minUp) {
+                continue;
+            }
+            double south = m0*sx + m1*sy + m2*sz;
+            double east = m3*sx + m4*sy;
+            float el = (float)Math.toDegrees(
+                Math.atan2(up, Math.sqrt(south*south + east*east)));
+            if (el < minimumElevation) {
+                continue;
+            }
+            indices[count] = i;
+            azimuth[count] = (float)Math.toDegrees(Math.atan2(east, south) + Math.PI);
+            elevation[count] = el;
+            count++;
+        }
+        return count;
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Make a catalog of the built-in stars and 'n' random ones. */
+    private static StarCatalog[] makeTestCatalog(int n, Random random)
+    {
+        StarCatalog[] builtIn = StarCatalog.makeCatalog();
+        StarCatalog[] ret = new StarCatalog[builtIn.length + n];
+        for (int i=0; i < ret.length; i++) {
+            ret[i] = (i < builtIn.length)? builtIn[i] :
+                new StarCatalog("S"+i,
+                    (float)(random.nextDouble() * 360),
+                    (float)Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1)));
+        }
+        return ret;
+    }
+
+    /** Check that the kernel agrees with 'makeObservation'. */
+    private static void testAgreement()
+    {
+        Random random = new Random(1);
+        StarCatalog[] catalog = makeTestCatalog(2000, random);
+        ObservationKernel kernel = new ObservationKernel(catalog);
+        assert(kernel.size() == catalog.length);
+
+        float[] az = new float[catalog.length];
+        float[] el = new float[catalog.length];
+        int[] indices = new int[catalog.length];
+        float[] azAbove = new float[catalog.length];
+        float[] elAbove = new float[catalog.length];
+        for (int q=0; q < 200; q++) {
+            double t = StarObservation.unixTimeOfManualData + random.nextDouble() * 86400 * 365;
+            float lat = (float)(random.nextDouble() * 180 - 90);
+            float lon = (float)(random.nextDouble() * 360 - 180);
+            kernel.observe(t, lat, lon, az, el);
+            int numAbove = kernel.observeAbove(t, lat, lon, 20, indices, azAbove, elAbove);
+
+            int k = 0;
+            for (int i=0; i < catalog.length; i++) {
+                StarObservation so = catalog[i].makeObservation(t, lat, lon);
+                assert(Math.abs(so.elevation - el[i]) < 1e-3) :
+                    "q="+q+" i="+i+" "+so.elevation+" "+el[i];
+
+                // Azimuth is ill-conditioned near the zenith.
+                if (so.elevation < 89) {
+                    double dAz = FloatUtil.modulus2(so.azimuth - az[i], -180, 180);
+                    assert(Math.abs(dAz) < 1e-2) : "q="+q+" i="+i+" "+so.azimuth+" "+az[i];
+                }
+
+                if (el[i] >= 20) {
+                    assert(k < numAbove && indices[k] == i) : "q="+q+" i="+i;
+                    assert(azAbove[k] == az[i] && elAbove[k] == el[i]);
+                    k++;
+                }
+            }
+            assert(k == numAbove);
+        }
+    }
+
+    /** Compare the time to observe the built-in stars at a million
+      * sites with the time 'makeObservation' takes for fewer.  This
+      * only measures, so it runs only when asked for. */
+    private static void testSpeed()
+    {
+        StarCatalog[] catalog = StarCatalog.makeCatalog();
+        ObservationKernel kernel = new ObservationKernel(catalog);
+        float[] az = new float[catalog.length];
+        float[] el = new float[catalog.length];
+        double t = StarObservation.unixTimeOfManualData;
+
+        int numSites = 1000000;
+        double sum = 0;
+        long start = System.nanoTime();
+        for (int s=0; s < numSites; s++) {
+            kernel.observe(t, (s % 1800) * 0.1f - 90, (s / 1800) * 0.648f - 180, az, el);
+            sum += el[0];
+        }
+        long kernelNanos = System.nanoTime() - start;
+
+        int numSlowSites = numSites / 10;
+        start = System.nanoTime();
+        for (int s=0; s < numSlowSites; s++) {
+            for (StarCatalog sc : catalog) {
+                sum += sc.makeObservation(t, (s % 1800) * 0.1f - 90,
+                                          (s / 1800) * 0.648f - 180).elevation;
+            }
+        }
+        long slowNanos = (System.nanoTime() - start) * (numSites / numSlowSites);
+
+        System.out.println(catalog.length+" stars at "+numSites+" sites: "+
+            kernelNanos/1000000+" ms, estimated "+slowNanos/1000000+
+            " ms with makeObservation (checksum "+(float)sum+")");
+    }
+
+    public static void main(String[] args)
+    {
+        testAgreement();
+        if (args.length > 0 && args[0].equals("-speed")) {
+            testSpeed();
+        }
+        System.out.println("ObservationKernel tests passed");
+    }
+}
+
+// EOF
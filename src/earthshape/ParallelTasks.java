@@ -0,0 +1,52 @@
+// ParallelTasks.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Runs a fixed number of independent tasks on a fork-join pool, as
+  * the walkers of RandomWalkBuilder, the runs of ParameterSweep and
+  * StarAblation, the members of NoiseEnsemble, and the shares of
+  * PatternSearch do. */
+public class ParallelTasks {
+    // ---- Types ----
+    /** One of the tasks, identified by its index. */
+    public static interface Task {
+        public void run(int index);
+    }
+
+    // ---- Methods ----
+    /** Run 'task' for each index in [0,count) as its own fork-join task
+      * on 'pool', and return once all of them have finished.  Each one
+      * must only write to locations that belong to its index. */
+    public static void invokeEach(ForkJoinPool pool, final int count, final Task task)
+    {
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute()
+            {
+                ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                for (int i=0; i < count; i++) {
+                    final int index = i;
+                    tasks.add(new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute()
+                        {
+                            task.run(index);
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+    }
+}
+
+// EOF
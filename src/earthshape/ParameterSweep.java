@@ -0,0 +1,324 @@
+// ParameterSweep.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/** Builds the surface for every combination of a grid of solver
+  * settings, concurrently, and summarizes each build.
+  *
+  * The Options menu changes one setting at a time, so comparing how
+  * the settings interact means many builds by hand.  Here each setting
+  * to vary is an axis with a list of values, named as in 'AXES', and
+  * every combination is built as a fork-join task on the pool.
+  *
+  * The runs share the observations and the enabled-star map, which
+  * are read-only during a build, and one VisibleStarCache.  The cache
+  * key includes the settings that affect which stars qualify, so runs
+  * that differ only in how squares are oriented reuse each other's
+  * entries, and the others simply do not collide. */
+public class ParameterSweep {
+    // ---- Constants ----
+    /** Names of the settings that can be swept. */
+    public static final String[] AXES = {
+        "maxSunEl",     // SolverOptions.maximumSunElevation
+        "minStarEl",    // SolverOptions.minimumStarElevation
+        "infDist",      // SolverOptions.assumeInfiniteStarDistance
+        "onlyEl",       // SolverOptions.onlyCompareElevations
+        "newAlgo",      // SolverOptions.newAutomaticOrientationAlgorithm
+        "epochs",       // SolverOptions.numEpochs
+        "loops",        // SolverOptions.closeLoops
+    };
+
+    // ---- Types ----
+    /** One setting and the values to try for it. */
+    private static class Axis {
+        public final String name;
+        public final String[] values;
+
+        public Axis(String name_, String[] values_)
+        {
+            this.name = name_;
+            this.values = values_;
+        }
+    }
+
+    /** Settings and outcome of one build. */
+    public static class Run {
+        /** The varied settings, as "name=value" pairs. */
+        public final String settings;
+
+        /** Full options used for the build. */
+        public final SolverOptions options;
+
+        /** Number of squares placed. */
+        public int numSquares;
+
+        /** 'numSquares' as a fraction of the cells of the build grid. */
+        public double coverage;
+
+        /** Average 'ObservationStats.variance' of the squares that have
+          * a base square, or NaN if there are none. */
+        public double meanVariance;
+
+        /** Elapsed time of the build.  The runs share the processors,
+          * so this is only comparable among runs of one sweep. */
+        public long wallMillis;
+
+        public Run(String settings_, SolverOptions options_)
+        {
+            this.settings = settings_;
+            this.options = options_;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%-50s %7d %8.1f%% %12.4g %8d",
+                this.settings, this.numSquares, this.coverage * 100,
+                this.meanVariance, this.wallMillis);
+        }
+    }
+
+    // ---- Instance data ----
+    /** Reconstructor whose settings are the starting point of every run,
+      * and whose observations and enabled stars the runs share. */
+    private final SurfaceReconstructor template;
+
+    /** Settings to vary.  The first one varies slowest. */
+    private final ArrayList<Axis> axes = new ArrayList<Axis>();
+
+    /** Cache shared by the runs of the most recent 'run'. */
+    private VisibleStarCache lastCache = null;
+
+    // ---- Methods ----
+    /** Prepare a sweep starting from the settings of 'reconstructor',
+      * which is not modified. */
+    public ParameterSweep(SurfaceReconstructor reconstructor)
+    {
+        this.template = new SurfaceReconstructor(reconstructor);
+    }
+
+    /** Vary setting 'name', one of 'AXES', over 'values'. */
+    public void addAxis(String name, String... values)
+    {
+        // Check the values now rather than in the middle of the sweep.
+        SolverOptions scratch = new SolverOptions();
+        for (String v : values) {
+            applySetting(scratch, name, v);
+        }
+        this.axes.add(new Axis(name, values));
+    }
+
+    /** Add an axis from a command line argument "name=v1,v2,...". */
+    public void addAxis(String spec)
+    {
+        int eq = spec.indexOf('=');
+        if (eq < 0) {
+            throw new RuntimeException("ParameterSweep: expected name=v1,v2,...: "+spec);
+        }
+        this.addAxis(spec.substring(0, eq), spec.substring(eq+1).split(","));
+    }
+
+    /** Set the option called 'name' in 'opts' to 'value'. */
+    public static void applySetting(SolverOptions opts, String name, String value)
+    {
+        if (name.equals("maxSunEl")) {
+            opts.maximumSunElevation = Float.parseFloat(value);
+        }
+        else if (name.equals("minStarEl")) {
+            opts.minimumStarElevation = Float.parseFloat(value);
+        }
+        else if (name.equals("infDist")) {
+            opts.assumeInfiniteStarDistance = parseBoolean(value);
+        }
+        else if (name.equals("onlyEl")) {
+            opts.onlyCompareElevations = parseBoolean(value);
+        }
+        else if (name.equals("newAlgo")) {
+            opts.newAutomaticOrientationAlgorithm = parseBoolean(value);
+        }
+        else if (name.equals("epochs")) {
+            opts.numEpochs = Integer.parseInt(value);
+        }
+        else if (name.equals("loops")) {
+            opts.closeLoops = parseBoolean(value);
+        }
+        else {
+            throw new RuntimeException("ParameterSweep: unknown setting \""+name+
+                "\"; expected one of maxSunEl, minStarEl, infDist, onlyEl, newAlgo, epochs, loops");
+        }
+    }
+
+    /** Like 'Boolean.parseBoolean', but rejecting anything else. */
+    private static boolean parseBoolean(String value)
+    {
+        if (value.equals("true")) {
+            return true;
+        }
+        if (value.equals("false")) {
+            return false;
+        }
+        throw new RuntimeException("ParameterSweep: expected true or false: "+value);
+    }
+
+    /** Make the runs for every combination of the axes, in order. */
+    public List<Run> makeRuns()
+    {
+        ArrayList<Run> ret = new ArrayList<Run>();
+        int[] index = new int[this.axes.size()];
+        while (true) {
+            SolverOptions opts = new SolverOptions(this.template.options);
+            StringBuilder sb = new StringBuilder();
+            for (int a=0; a < index.length; a++) {
+                Axis axis = this.axes.get(a);
+                String value = axis.values[index[a]];
+                applySetting(opts, axis.name, value);
+                if (sb.length() > 0) {
+                    sb.append(" ");
+                }
+                sb.append(axis.name+"="+value);
+            }
+            ret.add(new Run(sb.toString(), opts.forConcurrentBuild()));
+
+            // Advance the last axis fastest.
+            int a = index.length - 1;
+            while (a >= 0 && ++index[a] == this.axes.get(a).values.length) {
+                index[a] = 0;
+                a--;
+            }
+            if (a < 0) {
+                return ret;
+            }
+        }
+    }
+
+    /** Run the sweep on the common pool. */
+    public List<Run> run()
+    {
+        return this.run(ForkJoinPool.commonPool());
+    }
+
+    /** Run every combination as a task on 'pool' and return the runs
+      * in the order of 'makeRuns'. */
+    public List<Run> run(ForkJoinPool pool)
+    {
+        final List<Run> runs = this.makeRuns();
+
+        // Give the runs a cache big enough for all of them, so they
+        // do not evict each other's entries.
+        final VisibleStarCache cache =
+            new VisibleStarCache(VisibleStarCache.DEFAULT_CAPACITY * runs.size());
+        this.lastCache = cache;
+
+        ParallelTasks.invokeEach(pool, runs.size(), new ParallelTasks.Task() {
+            @Override
+            public void run(int index)
+            {
+                ParameterSweep.this.build(runs.get(index), cache);
+            }
+        });
+        return runs;
+    }
+
+    /** Get the cache used by the most recent 'run', or null. */
+    public VisibleStarCache getLastCache()
+    {
+        return this.lastCache;
+    }
+
+    /** Build the surface for 'run', using 'cache', and fill in its
+      * outcome. */
+    private void build(Run run, VisibleStarCache cache)
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(this.template);
+        r.options = run.options;
+        r.setVisibleStarCache(cache);
+
+        long start = System.currentTimeMillis();
+        ReconstructedSurface surface = r.buildEarthSurfaceFromStarData(BuildProgress.NONE);
+        run.wallMillis = System.currentTimeMillis() - start;
+
+        run.numSquares = surface.numSurfaceSquares();
+        run.coverage = (double)run.numSquares /
+            SurfaceReconstructor.gridCells(run.options.buildStepDegrees);
+
+        double sum = 0;
+        int n = 0;
+        for (SurfaceSquare s : surface.getSurfaceSquares()) {
+            if (s.baseSquare == null) {
+                continue;
+            }
+            SurfaceReconstructor.ObservationStats stats = r.fitOfObservations(s);
+            if (stats != null) {
+                sum += stats.variance;
+                n++;
+            }
+        }
+        run.meanVariance = (n > 0)? sum / n : Double.NaN;
+    }
+
+    /** Print 'runs' as a table. */
+    public static void printTable(PrintStream out, List<Run> runs)
+    {
+        out.println(String.format("%-50s %7s %9s %12s %8s",
+            "settings", "squares", "coverage", "meanVar", "ms"));
+        for (Run run : runs) {
+            out.println(run);
+        }
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check that concurrent runs get the same results as building each
+      * combination by itself, and that they share the cache. */
+    private static void testSweep()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        r.options.buildStepDegrees = 30;
+
+        ParameterSweep sweep = new ParameterSweep(r);
+        sweep.addAxis("minStarEl=10,20");
+        sweep.addAxis("infDist", "false", "true");
+        List<Run> runs = sweep.run(new ForkJoinPool(4));
+        printTable(System.out, runs);
+        System.out.println(sweep.getLastCache());
+
+        assert(runs.size() == 4);
+        assert(runs.get(1).settings.equals("minStarEl=10 infDist=true"));
+
+        // The template's own cache is not used.
+        assert(r.getVisibleStarCache().size() == 0);
+
+        for (Run run : runs) {
+            SurfaceReconstructor alone = new SurfaceReconstructor(r);
+            alone.options = new SolverOptions(run.options);
+            ReconstructedSurface s = alone.buildEarthSurfaceFromStarData(BuildProgress.NONE);
+            assert(s.numSurfaceSquares() == run.numSquares) : run;
+            assert(run.coverage > 0 && run.coverage <= 1.1) : run;
+        }
+
+        // Pairs of runs differ only in 'infDist', which does not affect
+        // which stars qualify.
+        assert(sweep.getLastCache().getHits() > 0);
+
+        try {
+            sweep.addAxis("bogus=1");
+            assert(false);
+        }
+        catch (RuntimeException e) {
+            // Expected.
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        testSweep();
+        System.out.println("ParameterSweep tests passed");
+    }
+}
+
+// EOF
@@ -0,0 +1,383 @@
+// PatternSearch.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import util.Vector3d;
+import util.Vector3f;
+
+/** Scores a stencil of trial rotations of one derived square, for the
+  * pattern search in 'SurfaceReconstructor.patternSearchOrientSquare'.
+  *
+  * The original hill climber only tries the six RotationCommand axes.
+  * A richer stencil also tries the diagonals between them, so the
+  * search can follow a valley that runs diagonally to the axes
+  * without zig-zagging.  The stencils are the directions from the
+  * center of a 3x3x3 cube to its neighbors:
+  *
+  *   6: the face centers, same as the RotationCommands.
+  *   14: also the corners.
+  *   26: also the edge midpoints.
+  *
+  * All directions are unit length, so every trial in a round moves the
+  * same angle.
+  *
+  * Each trial is scored with TrialRotationEvaluator, bounded by the best
+  * variance found so far in the round, so most trials stop after a few
+  * stars.  The directions can be split among the common fork-join pool.
+  * Evaluators have scratch state, so each share of the directions gets
+  * its own.  The result does not depend on how the directions are
+  * split: a trial is only cut off once it cannot beat one that came
+  * before it, and ties go to the earlier direction. */
+public class PatternSearch {
+    // ---- Instance data ----
+    /** Unit rotation axes to try; 3 entries per direction. */
+    private final double[] directions;
+
+    /** Number of directions in 'directions'. */
+    private final int numDirections;
+
+    /** One evaluator per share of the directions. */
+    private final TrialRotationEvaluator[] evaluators;
+
+    /** Index of the first direction of each share, plus a final entry
+      * equal to 'numDirections'. */
+    private final int[] shareStart;
+
+    /** Scratch: best direction and variance found by each share. */
+    private final int[] shareBest;
+    private final double[] shareBestVariance;
+
+    /** Scratch: for each share, true if it found a zero-variance trial. */
+    private final boolean[] shareFoundZero;
+
+    /** For each direction, true if it is not to be tried.  See
+      * 'excludeUnconstrainedDirections'. */
+    private final boolean[] excluded;
+
+    // ---- Methods ----
+    /** Prepare to search orientations of 'derived' using a stencil of
+      * 'numDirections_', which must be 6, 14, or 26.  If 'parallel',
+      * split the directions among the common pool.  'derived' must
+      * have a base square. */
+    public PatternSearch(SurfaceReconstructor r, SurfaceSquare derived,
+        int numDirections_, boolean parallel)
+    {
+        this(r, derived, numDirections_,
+            parallel? ForkJoinPool.getCommonPoolParallelism() : 1);
+    }
+
+    /** Like the public constructor, but split the directions into
+      * 'numShares' shares, or as many as there are directions if that
+      * is fewer, whatever the size of the common pool. */
+    private PatternSearch(SurfaceReconstructor r, SurfaceSquare derived,
+        int numDirections_, int numShares)
+    {
+        this.directions = makeStencil(numDirections_);
+        this.numDirections = numDirections_;
+
+        numShares = Math.max(1, Math.min(numDirections_, numShares));
+        this.evaluators = new TrialRotationEvaluator[numShares];
+        this.shareStart = new int[numShares+1];
+        for (int i=0; i < numShares; i++) {
+            this.evaluators[i] = r.makeTrialRotationEvaluator(derived);
+            this.shareStart[i] = i * numDirections_ / numShares;
+        }
+        this.shareStart[numShares] = numDirections_;
+        this.shareBest = new int[numShares];
+        this.shareBestVariance = new double[numShares];
+        this.shareFoundZero = new boolean[numShares];
+        this.excluded = new boolean[numDirections_];
+    }
+
+    /** Return the unit directions of the stencil with 'n' directions,
+      * 3 entries per direction.  Face directions come first, then
+      * corners, then edges. */
+    public static double[] makeStencil(int n)
+    {
+        if (n != 6 && n != 14 && n != 26) {
+            throw new RuntimeException("PatternSearch: stencil must have "+
+                "6, 14, or 26 directions, not "+n);
+        }
+
+        // Number of nonzero components, in the order to take them.
+        int[] kinds = { 1, 3, 2 };
+
+        ArrayList<Double> ret = new ArrayList<Double>();
+        for (int kind : kinds) {
+            for (int x=-1; x <= 1; x++) {
+                for (int y=-1; y <= 1; y++) {
+                    for (int z=-1; z <= 1; z++) {
+                        int nonzero = Math.abs(x) + Math.abs(y) + Math.abs(z);
+                        if (nonzero != kind || ret.size() >= n*3) {
+                            continue;
+                        }
+                        double len = Math.sqrt(nonzero);
+                        ret.add(x / len);
+                        ret.add(y / len);
+                        ret.add(z / len);
+                    }
+                }
+            }
+        }
+
+        double[] dirs = new double[ret.size()];
+        for (int i=0; i < dirs.length; i++) {
+            dirs[i] = ret.get(i);
+        }
+        return dirs;
+    }
+
+    /** Number of stars the evaluators compare. */
+    public int getNumSamples()
+    {
+        return this.evaluators[0].getNumSamples();
+    }
+
+    /** Number of directions in the stencil. */
+    public int getNumDirections()
+    {
+        return this.numDirections;
+    }
+
+    /** Get the X, Y, or Z component of direction 'd'. */
+    public double direction(int d, int axis)
+    {
+        return this.directions[d*3 + axis];
+    }
+
+    /** An evaluator for the current orientation, for analyses other
+      * than the search.  It is not to be used during 'findBestDirection'. */
+    public TrialRotationEvaluator getEvaluator()
+    {
+        return this.evaluators[0];
+    }
+
+    /** Stop trying the directions that 'curvature' shows are mostly
+      * about unconstrained axes, since they cannot improve the fit by
+      * much. */
+    public void excludeUnconstrainedDirections(TrialRotationEvaluator.Curvature curvature)
+    {
+        for (int d=0; d < this.numDirections; d++) {
+            this.excluded[d] = curvature.isMostlyUnconstrained(new Vector3d(
+                this.directions[d*3], this.directions[d*3 + 1], this.directions[d*3 + 2]));
+        }
+    }
+
+    /** True if direction 'd' is excluded from the search. */
+    public boolean isExcluded(int d)
+    {
+        return this.excluded[d];
+    }
+
+    /** Make the current orientation that of 'square'. */
+    public void setOrientation(SurfaceSquare square)
+    {
+        for (TrialRotationEvaluator ev : this.evaluators) {
+            ev.setOrientation(square);
+        }
+    }
+
+    /** Variance of the current orientation. */
+    public double currentVariance()
+    {
+        return this.evaluators[0].variance(0, 0, 0);
+    }
+
+    /** Result of 'findBestDirection'. */
+    public static class Result {
+        /** Index of the direction whose trial has the lowest variance,
+          * if it is lower than the current variance, otherwise -1. */
+        public int bestDirection = -1;
+
+        /** Variance of the trial at 'bestDirection'. */
+        public double bestVariance;
+
+        /** True if the current variance is zero and so is some trial,
+          * meaning the best orientation is not unique. */
+        public boolean underconstrained = false;
+    }
+
+    /** Try rotating the current orientation by 'stepDegrees' in each
+      * direction of the stencil, and report which is best. */
+    public Result findBestDirection(final double stepDegrees)
+    {
+        final double current = this.currentVariance();
+        final int numShares = this.evaluators.length;
+
+        if (numShares == 1) {
+            this.searchShare(0, stepDegrees, current);
+        }
+        else {
+            ParallelTasks.invokeEach(ForkJoinPool.commonPool(), numShares,
+                new ParallelTasks.Task() {
+                    @Override
+                    public void run(int share)
+                    {
+                        PatternSearch.this.searchShare(share, stepDegrees, current);
+                    }
+                });
+        }
+
+        // Combine the shares, in direction order.
+        Result ret = new Result();
+        for (int i=0; i < numShares; i++) {
+            if (current == 0 && this.shareFoundZero[i]) {
+                ret.underconstrained = true;
+            }
+            if (this.shareBest[i] >= 0 &&
+                (ret.bestDirection < 0 || this.shareBestVariance[i] < ret.bestVariance))
+            {
+                ret.bestDirection = this.shareBest[i];
+                ret.bestVariance = this.shareBestVariance[i];
+            }
+        }
+        return ret;
+    }
+
+    /** Score the directions of 'share', recording the best that is
+      * below 'current' in 'shareBest' and 'shareBestVariance'. */
+    private void searchShare(int share, double stepDegrees, double current)
+    {
+        TrialRotationEvaluator ev = this.evaluators[share];
+        int best = -1;
+        double bound = current;
+        boolean foundZero = false;
+
+        for (int d = this.shareStart[share]; d < this.shareStart[share+1]; d++) {
+            if (this.excluded[d]) {
+                continue;
+            }
+            double v = ev.variance(
+                this.directions[d*3]     * stepDegrees,
+                this.directions[d*3 + 1] * stepDegrees,
+                this.directions[d*3 + 2] * stepDegrees,
+                bound);
+            if (v == 0) {
+                foundZero = true;
+            }
+            if (v < bound) {
+                best = d;
+                bound = v;
+            }
+        }
+
+        this.shareBest[share] = best;
+        this.shareBestVariance[share] = bound;
+        this.shareFoundZero[share] = foundZero;
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check the stencils' sizes, lengths, and order. */
+    private static void testStencils()
+    {
+        int[] sizes = { 6, 14, 26 };
+        for (int n : sizes) {
+            double[] dirs = makeStencil(n);
+            assert(dirs.length == n*3);
+            for (int d=0; d < n; d++) {
+                double x = dirs[d*3], y = dirs[d*3 + 1], z = dirs[d*3 + 2];
+                assert(Math.abs(x*x + y*y + z*z - 1) < 1e-12) : n+" "+d;
+
+                // Faces, then corners, then edges.
+                int nonzero = (x != 0? 1 : 0) + (y != 0? 1 : 0) + (z != 0? 1 : 0);
+                assert(nonzero == (d < 6? 1 : d < 14? 3 : 2)) : n+" "+d;
+                for (int e=0; e < d; e++) {
+                    assert(dirs[e*3] != x || dirs[e*3 + 1] != y || dirs[e*3 + 2] != z);
+                }
+            }
+        }
+
+        try {
+            makeStencil(8);
+            assert(false);
+        }
+        catch (RuntimeException e) {
+            // Expected.
+        }
+    }
+
+    /** Check that 'findBestDirection' finds the same direction and
+      * variance however the directions are split, and the same as
+      * scoring every direction in full, so that cutting off trials
+      * against the best so far loses nothing. */
+    private static void testFindBestDirection()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        SurfaceSquare base = new SurfaceSquare(
+            new Vector3f(0,0,0), new Vector3f(0,0,-1), new Vector3f(0,1,0),
+            SurfaceReconstructor.DEFAULT_SQUARE_SIZE_KM, 38, -122,
+            null, null, new Vector3f(0,0,0));
+        r.addMatchingData(base);
+        SurfaceSquare derived = r.createRotatedAdjacentSquare(base,
+            base.latitude + 9, base.longitude, new Vector3f(3, -2, 5));
+        r.addMatchingData(derived);
+        TrialRotationEvaluator full = r.makeTrialRotationEvaluator(derived);
+
+        int numCutOff = 0;
+        int[] sizes = { 6, 14, 26 };
+        for (int n : sizes) {
+            PatternSearch serial = new PatternSearch(r, derived, n, 1);
+            PatternSearch split = new PatternSearch(r, derived, n, 4);
+            assert(serial.evaluators.length == 1 && split.evaluators.length == 4);
+            double[] dirs = makeStencil(n);
+
+            double[] steps = { 8, 2, 0.5, 0.01 };
+            for (double step : steps) {
+                Result a = serial.findBestDirection(step);
+                Result b = split.findBestDirection(step);
+                assert(a.bestDirection == b.bestDirection) : n+" "+step;
+                assert(a.bestVariance == b.bestVariance) : n+" "+step;
+                assert(a.underconstrained == b.underconstrained);
+
+                // The first direction with the lowest variance below the
+                // current one, scoring each trial in full.
+                double current = full.variance(0, 0, 0);
+                int best = -1;
+                double bestVariance = current;
+                for (int d=0; d < n; d++) {
+                    double v = full.variance(
+                        dirs[d*3] * step, dirs[d*3 + 1] * step, dirs[d*3 + 2] * step);
+                    if (v < bestVariance) {
+                        best = d;
+                        bestVariance = v;
+                    }
+
+                    // A cut-off trial reports more than the cutoff, and
+                    // one that is not cut off reports its variance.
+                    double bounded = full.variance(
+                        dirs[d*3] * step, dirs[d*3 + 1] * step, dirs[d*3 + 2] * step,
+                        current);
+                    if (v <= current) {
+                        assert(bounded == v) : n+" "+step+" "+d;
+                    }
+                    else {
+                        assert(bounded > current) : n+" "+step+" "+d;
+                        if (bounded < v) {
+                            numCutOff++;
+                        }
+                    }
+                }
+                assert(a.bestDirection == best) : n+" "+step+" "+a.bestDirection+" "+best;
+                assert(best < 0 || a.bestVariance == bestVariance);
+            }
+        }
+
+        // Large steps from a poor orientation are mostly worse, so some
+        // trials must have been cut off, or the test shows nothing.
+        assert(numCutOff > 0);
+        System.out.println("PatternSearch: "+numCutOff+" trials cut off");
+    }
+
+    public static void main(String[] args)
+    {
+        testStencils();
+        testFindBestDirection();
+        System.out.println("PatternSearch tests passed");
+    }
+}
+
+// EOF
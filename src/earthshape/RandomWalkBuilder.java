@@ -0,0 +1,204 @@
+// RandomWalkBuilder.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import util.FloatUtil;
+import util.Vector3f;
+
+import static util.swing.SwingUtil.log;
+
+/** Builds a partial Earth by random walks, assuming the Earth is a
+  * sphere, as a reproducible stress test of square placement.
+  *
+  * Every walker starts from the same square and takes 'numSteps'
+  * random steps of up to MAX_STEP_DEGREES in latitude and longitude,
+  * placing a square at each stop.  Each walker draws its steps from
+  * its own generator, seeded only from the builder's seed and the
+  * walker's index, and only reads squares it made itself or the shared
+  * starting square.  So the walkers run as independent fork-join
+  * tasks, and merging their squares in walker order gives the same
+  * surface, bit for bit, however many threads ran them. */
+public class RandomWalkBuilder {
+    // ---- Constants ----
+    /** Largest change in latitude, and in longitude, of one step. */
+    public static final float MAX_STEP_DEGREES = 6;
+
+    /** Walkers stay within this many degrees of the equator, since the
+      * rounding errors cause problems near the poles. */
+    public static final float LATITUDE_LIMIT = 80;
+
+    /** Size of the squares, in km. */
+    public static final float SQUARE_SIZE_KM = 1000;
+
+    // ---- Instance data ----
+    /** Supplies the travel observations between squares. */
+    private final SurfaceReconstructor reconstructor;
+
+    /** Number of independent walkers. */
+    public final int numWalkers;
+
+    /** Number of steps each walker takes. */
+    public final int numSteps;
+
+    /** Seed from which all of the walkers' seeds are derived. */
+    public final long seed;
+
+    // ---- Methods ----
+    /** Prepare 'numWalkers_' walks of 'numSteps_' steps using the
+      * observations of 'reconstructor_', which is not modified. */
+    public RandomWalkBuilder(SurfaceReconstructor reconstructor_,
+        int numWalkers_, int numSteps_, long seed_)
+    {
+        this.reconstructor = new SurfaceReconstructor(reconstructor_);
+        this.numWalkers = numWalkers_;
+        this.numSteps = numSteps_;
+        this.seed = seed_;
+    }
+
+    /** Seed for walker 'index'. */
+    public long walkerSeed(int index)
+    {
+        return NoisyObservations.streamSeed(this.seed, index);
+    }
+
+    /** Make the square all of the walkers start from. */
+    public static SurfaceSquare makeStartSquare()
+    {
+        return new SurfaceSquare(
+            new Vector3f(0,0,0),      // center
+            new Vector3f(0,0,-1),     // north
+            new Vector3f(0,1,0),      // up
+            SQUARE_SIZE_KM,
+            SurfaceReconstructor.BUILD_START_LATITUDE,
+            SurfaceReconstructor.BUILD_START_LONGITUDE,
+            null /*base*/, null /*midpoint*/,
+            new Vector3f(0,0,0));
+    }
+
+    /** Take the walk of walker 'index' from 'start', and return the
+      * squares it placed, in order.  A step that happens not to move
+      * places nothing. */
+    private ArrayList<SurfaceSquare> walk(int index, SurfaceSquare start)
+    {
+        Random random = new Random(this.walkerSeed(index));
+        ArrayList<SurfaceSquare> ret = new ArrayList<SurfaceSquare>(this.numSteps);
+        SurfaceSquare square = start;
+        for (int i=0; i < this.numSteps; i++) {
+            float deltaLatitude =
+                (float)((random.nextDouble() * 2 - 1) * MAX_STEP_DEGREES);
+            float deltaLongitude =
+                (float)((random.nextDouble() * 2 - 1) * MAX_STEP_DEGREES);
+
+            SurfaceSquare next = this.reconstructor.createSphericallyAdjacentSquare(
+                square,
+                FloatUtil.clampf(square.latitude + deltaLatitude,
+                    -LATITUDE_LIMIT, LATITUDE_LIMIT),
+                FloatUtil.modulus2f(square.longitude + deltaLongitude, -180, 180));
+            if (next != null) {
+                ret.add(next);
+                square = next;
+            }
+        }
+        return ret;
+    }
+
+    /** Run the walks on the common pool. */
+    public ReconstructedSurface build()
+    {
+        return this.build(ForkJoinPool.commonPool());
+    }
+
+    /** Run every walker as a task on 'pool' and return the surface
+      * with the starting square followed by each walker's squares, in
+      * walker order.  If the reconstructor announces its squares, the
+      * merged squares are announced, then BUILD_FINISHED. */
+    public ReconstructedSurface build(ForkJoinPool pool)
+    {
+        long startMillis = System.currentTimeMillis();
+        final SurfaceSquare start = makeStartSquare();
+
+        // Each walker sets only its own element, and 'invoke' returns
+        // after all of them have finished.
+        final List<ArrayList<SurfaceSquare>> results =
+            new ArrayList<ArrayList<SurfaceSquare>>(
+                Collections.<ArrayList<SurfaceSquare>>nCopies(this.numWalkers, null));
+        ParallelTasks.invokeEach(pool, this.numWalkers, new ParallelTasks.Task() {
+            @Override
+            public void run(int index)
+            {
+                results.set(index, RandomWalkBuilder.this.walk(index, start));
+            }
+        });
+
+        ReconstructedSurface surface = new ReconstructedSurface();
+        surface.description = "sphere, "+this.numWalkers+" random walks of "+
+            this.numSteps+" steps (seed "+this.seed+")";
+        surface.events = this.reconstructor.getSquareEvents();
+        surface.addSurfaceSquare(start);
+        for (ArrayList<SurfaceSquare> result : results) {
+            for (SurfaceSquare s : result) {
+                surface.addSurfaceSquare(s);
+            }
+        }
+        surface.elapsedMillis = System.currentTimeMillis() - startMillis;
+        if (surface.events != null) {
+            surface.events.publish(SquareEvent.buildFinished(surface));
+        }
+
+        log("RandomWalkBuilder: "+surface);
+        return surface;
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check that the walks do not depend on the number of threads, and
+      * that they stay on the sphere. */
+    private static void testReproducible()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        RandomWalkBuilder b = new RandomWalkBuilder(r, 8, 2000, 42);
+        List<SurfaceSquare> serial = b.build(new ForkJoinPool(1)).getSurfaceSquares();
+        List<SurfaceSquare> parallel = b.build(new ForkJoinPool(4)).getSurfaceSquares();
+
+        assert(serial.size() > 8 * 1900);
+        assert(serial.size() == parallel.size());
+        for (int i=0; i < serial.size(); i++) {
+            SurfaceSquare s = serial.get(i);
+            SurfaceSquare p = parallel.get(i);
+            assert(s.latitude == p.latitude && s.longitude == p.longitude);
+            assert(Vector3f.identical(s.center, p.center)) : i;
+            assert(Vector3f.identical(s.up, p.up)) : i;
+        }
+
+        // A different seed gives different walks.
+        List<SurfaceSquare> other =
+            new RandomWalkBuilder(r, 8, 2000, 43).build().getSurfaceSquares();
+        assert(other.get(1).latitude != serial.get(1).latitude);
+
+        // Every square's normal should point away from the center of
+        // the sphere, at the distance of the Earth's radius.  Rounding
+        // errors accumulate along each walk, so this is approximate.
+        SurfaceSquare start = serial.get(0);
+        float radius = RealWorldObservations.EARTH_RADIUS_KM * SurfaceSquare.SPACE_UNITS_PER_KM;
+        Vector3f earthCenter = start.center.minus(start.up.times(radius));
+        for (SurfaceSquare s : serial) {
+            Vector3f fromCenter = s.center.minus(earthCenter);
+            assert(Math.abs(fromCenter.length() - radius) < radius * 0.01) : s;
+            assert(fromCenter.normalize().dot(s.up) > 0.999) : s;
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        testReproducible();
+        System.out.println("RandomWalkBuilder tests passed");
+    }
+}
+
+// EOF
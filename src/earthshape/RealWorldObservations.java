@@ -6,6 +6,7 @@ package earthshape;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,6 +25,18 @@ public class RealWorldObservations extends WorldObservations {
       * directly, at least for points on land. */
     public static final float EARTH_RADIUS_KM = 6371.0f;
 
+    /** How far, in seconds, from StarObservation.unixTimeOfManualData
+      * 'sunPosition' can be used.  The Sun moves about one degree per
+      * day against the stars, which is little enough for deciding
+      * whether it is too bright to see them. */
+    public static final double SUN_POSITION_VALID_SECONDS = 24 * 3600;
+
+    /** Maximum number of times for which 'sunBoundaries' keeps a
+      * boundary.  A build uses one per observation epoch, so this is
+      * plenty, while a caller sweeping over many times cannot make it
+      * grow without limit. */
+    public static final int SUN_BOUNDARY_CAPACITY = 64;
+
     // ---- Instance data ----
     /** Some star observations I gathered manually from an
       * online planetarium. */
@@ -33,12 +46,36 @@ public class RealWorldObservations extends WorldObservations {
       * same planetarium.  These are used the synthesize
       * observations from times and places that I did not
       * manually measure.  I have confirmed that the
-      * synthetic observations agree with the manual ones. */
-    private StarCatalog[] starCatalog = StarCatalog.makeCatalog();
+      * synthetic observations agree with the manual ones.
+      * Optionally, more stars from a StarCatalogFile. */
+    private final StarCatalog[] starCatalog;
+
+    /** Index of 'starCatalog' by position, for finding the stars above
+      * a given elevation without synthesizing the rest. */
+    private final SkyIndex skyIndex;
 
     /** Position of the sun on StarObservation.unixTimeOfManualData. */
     private StarCatalog sunPosition = StarCatalog.sunPosition();
 
+    /** Day/night boundary for the most recent 'sunIsAbove' query at
+      * each time, for the SUN_BOUNDARY_CAPACITY most recently used
+      * times.  Nearly all queries use one of a few times and the same
+      * threshold, so one per time is enough.  All access is
+      * synchronized on the map.  The boundaries are immutable, so
+      * threads can share them, and if they race to replace one,
+      * either result is fine. */
+    private final LinkedHashMap<Double, StarCatalog.ElevationBoundary> sunBoundaries =
+        new LinkedHashMap<Double, StarCatalog.ElevationBoundary>(16, 0.75f, true /*accessOrder*/) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<Double, StarCatalog.ElevationBoundary> eldest)
+            {
+                return this.size() > SUN_BOUNDARY_CAPACITY;
+            }
+        };
+
     /** Star physical directions, as inferred from the observations
       * at 38N, 122W.  This is used to plot their theoretical positions
       * in the 3D map, but *not* used in the surface reconstruction
@@ -48,6 +85,16 @@ public class RealWorldObservations extends WorldObservations {
     // ---- Methods ----
     public RealWorldObservations()
     {
+        this(StarCatalog.makeCatalog());
+    }
+
+    /** Use the stars of 'starCatalog_' instead of the built-in ones,
+      * typically those from 'StarCatalogFile.makeCatalog', which
+      * include the built-in ones. */
+    public RealWorldObservations(StarCatalog[] starCatalog_)
+    {
+        this.starCatalog = starCatalog_;
+        this.skyIndex = new SkyIndex(starCatalog_);
         this.starGenerator = CloseStarObservations.buildStarGenerator(
             this.getStarObservations(StarObservation.unixTimeOfManualData,
                 CloseStarObservations.REFERENCE_LATITUDE,
@@ -61,6 +108,9 @@ public class RealWorldObservations extends WorldObservations {
     @Override
     public String getDescription()
     {
+        if (this.starCatalog.length > StarCatalog.makeCatalog().length) {
+            return "real world star data, "+this.starCatalog.length+" stars";
+        }
         return "real world star data";
     }
 
@@ -124,17 +174,8 @@ public class RealWorldObservations extends WorldObservations {
         float longitude)
     {
         ArrayList<StarObservation> ret = new ArrayList<StarObservation>();
-
-        // For which stars do I have manual data?
-        HashSet<String> manualStars = new HashSet<String>();
-        if (unixTime == StarObservation.unixTimeOfManualData) {
-            for (StarObservation so : this.manualObservations) {
-                if (latitude == so.latitude && longitude == so.longitude) {
-                    manualStars.add(so.name);
-                    ret.add(so);
-                }
-            }
-        }
+        HashSet<String> manualStars = this.addManualObservations(ret,
+            unixTime, latitude, longitude, Float.NEGATIVE_INFINITY);
 
         // Synthesize observations for others.
         for (StarCatalog sc : this.starCatalog) {
@@ -147,21 +188,106 @@ public class RealWorldObservations extends WorldObservations {
         return ret;
     }
 
+    @Override
+    public List<StarObservation> getStarObservationsAbove(
+        double unixTime,
+        float latitude,
+        float longitude,
+        float minimumElevation)
+    {
+        ArrayList<StarObservation> ret = new ArrayList<StarObservation>();
+        HashSet<String> manualStars = this.addManualObservations(ret,
+            unixTime, latitude, longitude, minimumElevation);
+
+        // Synthesize observations only for the stars the index says
+        // might be high enough.  It returns them in catalog order, so
+        // the result is in the same order as 'getStarObservations'.
+        for (int i : this.skyIndex.queryAbove(unixTime, latitude, longitude, minimumElevation)) {
+            StarCatalog sc = this.starCatalog[i];
+            if (!manualStars.contains(sc.name)) {
+                StarObservation so = sc.makeObservation(unixTime, latitude, longitude);
+                if (so.elevation >= minimumElevation) {
+                    ret.add(so);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /** Add to 'ret' the manual observations at the given time and
+      * place that are at least 'minimumElevation' high, and return the
+      * names of all of the stars with manual data there. */
+    private HashSet<String> addManualObservations(
+        List<StarObservation> ret,
+        double unixTime,
+        float latitude,
+        float longitude,
+        float minimumElevation)
+    {
+        HashSet<String> manualStars = new HashSet<String>();
+        if (unixTime == StarObservation.unixTimeOfManualData) {
+            for (StarObservation so : this.manualObservations) {
+                if (latitude == so.latitude && longitude == so.longitude) {
+                    manualStars.add(so.name);
+                    if (so.elevation >= minimumElevation) {
+                        ret.add(so);
+                    }
+                }
+            }
+        }
+        return manualStars;
+    }
+
+    /** True if 'sunPosition' is usable at 'unixTime'. */
+    private boolean sunPositionIsKnown(double unixTime)
+    {
+        return Math.abs(unixTime - StarObservation.unixTimeOfManualData) <=
+            SUN_POSITION_VALID_SECONDS;
+    }
+
     @Override
     public StarObservation getSunObservation(
         double unixTime,
         float latitude,
         float longitude)
     {
-        if (unixTime == StarObservation.unixTimeOfManualData) {
+        if (this.sunPositionIsKnown(unixTime)) {
             return this.sunPosition.makeObservation(unixTime, latitude, longitude);
         }
         else {
-            // I do not have data on the Sun for other times.
+            // I do not have data on the Sun for times farther
+            // from the manual data.
             return null;
         }
     }
 
+    @Override
+    public boolean sunIsAbove(
+        double unixTime,
+        float latitude,
+        float longitude,
+        float elevationDegrees)
+    {
+        if (!this.sunPositionIsKnown(unixTime)) {
+            return false;      // As above, no data.
+        }
+
+        StarCatalog.ElevationBoundary b;
+        synchronized (this.sunBoundaries) {
+            b = this.sunBoundaries.get(unixTime);
+        }
+        if (b == null || b.thresholdDegrees != elevationDegrees) {
+            // Compute it without holding the lock.
+            b = new StarCatalog.ElevationBoundary(this.sunPosition,
+                unixTime, elevationDegrees);
+            synchronized (this.sunBoundaries) {
+                this.sunBoundaries.put(unixTime, b);
+            }
+        }
+        return b.isAbove(latitude, longitude);
+    }
+
     @Override
     public boolean hasModelPoints()
     {
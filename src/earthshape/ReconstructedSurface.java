@@ -0,0 +1,104 @@
+// ReconstructedSurface.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** The output of a SurfaceReconstructor build: the set of squares
+  * that were placed, plus a little information about the run.  This
+  * plays the role that 'EarthShape.surfaceSquares' plays in the
+  * GUI, but has no dependency on the display. */
+public class ReconstructedSurface {
+    // ---- Instance data ----
+    /** Squares placed so far, in the order they were added.  There is
+      * no reconstructor to re-derive squares with, but none are
+      * replaced here, only removed. */
+    private final SurfaceGraph squares = new SurfaceGraph(null);
+
+    /** Description of the observations used to build this surface. */
+    public String description = "";
+
+    /** True if the build was canceled before it finished. */
+    public boolean cancelled = false;
+
+    /** Wall-clock time the build took, in milliseconds. */
+    public long elapsedMillis = 0;
+
+    /** If not null, where additions and removals are announced. */
+    public SquareEventBus events = null;
+
+    // ---- Methods ----
+    /** Add a square to the surface. */
+    public void addSurfaceSquare(SurfaceSquare s)
+    {
+        this.squares.add(s);
+        if (this.events != null) {
+            this.events.publish(SquareEvent.placed(s));
+        }
+    }
+
+    /** Remove a single surface square, clearing any base references
+      * to it from the remaining squares. */
+    public void removeSurfaceSquare(SurfaceSquare s)
+    {
+        this.squares.remove(s);
+        if (this.events != null) {
+            this.events.publish(SquareEvent.removed(s));
+        }
+    }
+
+    /** Replace each square that is a key of 'subdivisions' with the
+      * squares it maps to, which take its place in the order.  Squares
+      * built on a replaced square must already have been attached to
+      * squares that remain. */
+    public void subdivideSurfaceSquares(
+        Map<SurfaceSquare, ? extends List<SurfaceSquare>> subdivisions)
+    {
+        ArrayList<SurfaceSquare> old = new ArrayList<SurfaceSquare>(this.squares.getSquares());
+        this.squares.clear();
+        for (SurfaceSquare s : old) {
+            List<SurfaceSquare> parts = subdivisions.get(s);
+            if (parts == null) {
+                this.squares.add(s);
+                continue;
+            }
+            if (this.events != null) {
+                this.events.publish(SquareEvent.removed(s));
+            }
+            for (SurfaceSquare p : parts) {
+                this.squares.add(p);
+                if (this.events != null) {
+                    this.events.publish(SquareEvent.placed(p));
+                }
+            }
+        }
+    }
+
+    /** Return current number of surface squares. */
+    public int numSurfaceSquares()
+    {
+        return this.squares.size();
+    }
+
+    /** Get the squares.  The caller must not modify the list. */
+    public List<SurfaceSquare> getSurfaceSquares()
+    {
+        return this.squares.getSquares();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ReconstructedSurface("+
+            "desc=\""+this.description+"\""+
+            ", nSquares="+this.squares.size()+
+            ", cancelled="+this.cancelled+
+            ", ms="+this.elapsedMillis+
+            ")";
+    }
+}
+
+// EOF
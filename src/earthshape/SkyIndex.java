@@ -0,0 +1,347 @@
+// SkyIndex.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import util.FloatUtil;
+
+/** Index of the stars of a catalog by their position on the celestial
+  * sphere, for finding the ones within some angle of a point.
+  *
+  * The stars above a given elevation, at a given time and place, are
+  * those within 90 degrees minus that elevation of the zenith, which
+  * is the point of the celestial sphere whose declination is the
+  * latitude and whose right ascension is the local sidereal time.  So
+  * rather than compute the elevation of every star in the catalog,
+  * and throw most of them away, the caller can ask this for the stars
+  * in that cap, and compute only theirs.
+  *
+  * The sphere is divided into bands of declination BAND_DEGREES wide,
+  * and each band into bins of right ascension, fewer toward the poles
+  * so the buckets have about the same area.  A query visits the
+  * buckets that overlap the cap's range of declination and right
+  * ascension, and checks the stars in them against the cap itself. */
+public class SkyIndex {
+    // ---- Constants ----
+    /** Height of each band of declination, in degrees. */
+    public static final float BAND_DEGREES = 5;
+
+    /** Stars this much farther than the query radius, in degrees, are
+      * also returned, since callers compare their own float
+      * computations against the radius. */
+    public static final double MARGIN_DEGREES = 0.01;
+
+    // ---- Instance data ----
+    /** Unit vectors of the stars, in equatorial coordinates. */
+    private final double[] x, y, z;
+
+    /** Number of declination bands. */
+    private final int numBands;
+
+    /** Number of right ascension bins in each band. */
+    private final int[] numBins;
+
+    /** Index in 'bucketStart' of the first bucket of each band. */
+    private final int[] firstBucket;
+
+    /** For each bucket, the index in 'entries' of its first star, plus
+      * one more for the end. */
+    private final int[] bucketStart;
+
+    /** Star indices, grouped by bucket, ascending within each one. */
+    private final int[] entries;
+
+    // ---- Methods ----
+    /** Index 'catalog'.  The stars are identified by their index in it. */
+    public SkyIndex(StarCatalog[] catalog)
+    {
+        int n = catalog.length;
+        this.x = new double[n];
+        this.y = new double[n];
+        this.z = new double[n];
+
+        this.numBands = (int)Math.ceil(180 / BAND_DEGREES);
+        this.numBins = new int[this.numBands];
+        this.firstBucket = new int[this.numBands + 1];
+        int bins0 = (int)Math.ceil(360 / BAND_DEGREES);
+        for (int b=0; b < this.numBands; b++) {
+            // Width in right ascension proportional to the cosine of
+            // the declination at the band's edge nearest the equator.
+            double low = -90 + b * BAND_DEGREES;
+            double high = Math.min(90, low + BAND_DEGREES);
+            double nearest = (low <= 0 && 0 <= high)? 0 : Math.min(Math.abs(low), Math.abs(high));
+            this.numBins[b] = Math.max(1,
+                (int)Math.ceil(bins0 * Math.cos(Math.toRadians(nearest))));
+            this.firstBucket[b+1] = this.firstBucket[b] + this.numBins[b];
+        }
+
+        // Count, then fill, the buckets.
+        int numBuckets = this.firstBucket[this.numBands];
+        int[] bucketOf = new int[n];
+        this.bucketStart = new int[numBuckets + 1];
+        for (int i=0; i < n; i++) {
+            double ra = Math.toRadians(catalog[i].rightAscensionDegrees);
+            double dec = Math.toRadians(catalog[i].declinationDegrees);
+            this.x[i] = Math.cos(dec) * Math.cos(ra);
+            this.y[i] = Math.cos(dec) * Math.sin(ra);
+            this.z[i] = Math.sin(dec);
+            bucketOf[i] = this.bucket(catalog[i].rightAscensionDegrees,
+                                      catalog[i].declinationDegrees);
+            this.bucketStart[bucketOf[i] + 1]++;
+        }
+        for (int k=0; k < numBuckets; k++) {
+            this.bucketStart[k+1] += this.bucketStart[k];
+        }
+        this.entries = new int[n];
+        int[] fill = Arrays.copyOf(this.bucketStart, numBuckets);
+        for (int i=0; i < n; i++) {
+            this.entries[fill[bucketOf[i]]++] = i;
+        }
+    }
+
+    /** Number of stars indexed. */
+    public int size()
+    {
+        return this.entries.length;
+    }
+
+    /** Band containing 'dec' degrees. */
+    private int band(double dec)
+    {
+        int b = (int)Math.floor((dec + 90) / BAND_DEGREES);
+        return Math.max(0, Math.min(this.numBands-1, b));
+    }
+
+    /** Bin of band 'b' containing 'ra' degrees, which need not be
+      * normalized. */
+    private int bin(int b, double ra)
+    {
+        double r = FloatUtil.modulus2(ra, 0, 360);
+        return Math.min(this.numBins[b]-1, (int)Math.floor(r / 360 * this.numBins[b]));
+    }
+
+    /** Bucket containing the given position. */
+    private int bucket(double ra, double dec)
+    {
+        int b = this.band(dec);
+        return this.firstBucket[b] + this.bin(b, ra);
+    }
+
+    /** Return the indices, in ascending order, of the stars within
+      * 'radiusDegrees' of the point at 'raDegrees' and 'decDegrees',
+      * and perhaps a few more within MARGIN_DEGREES beyond that. */
+    public int[] query(double raDegrees, double decDegrees, double radiusDegrees)
+    {
+        double radius = radiusDegrees + MARGIN_DEGREES;
+        if (radius >= 180) {
+            int[] all = new int[this.size()];
+            for (int i=0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        double ra0 = Math.toRadians(raDegrees);
+        double dec0 = Math.toRadians(decDegrees);
+        double cx = Math.cos(dec0) * Math.cos(ra0);
+        double cy = Math.cos(dec0) * Math.sin(ra0);
+        double cz = Math.sin(dec0);
+        double minDot = Math.cos(Math.toRadians(radius));
+
+        // Half the cap's extent in right ascension, or 180 if it
+        // contains a pole.
+        double halfWidth = 180;
+        if (Math.abs(decDegrees) + radius < 90) {
+            halfWidth = Math.toDegrees(Math.asin(
+                Math.sin(Math.toRadians(radius)) / Math.cos(dec0)));
+        }
+
+        int[] ret = new int[16];
+        int count = 0;
+        int lowBand = this.band(decDegrees - radius);
+        int highBand = this.band(decDegrees + radius);
+        for (int b=lowBand; b <= highBand; b++) {
+            int bins = this.numBins[b];
+            int firstBin = 0;
+            int numBinsVisited = bins;
+            if (halfWidth * 2 < 360 - 360.0 / bins) {
+                firstBin = this.bin(b, raDegrees - halfWidth);
+                int lastBin = this.bin(b, raDegrees + halfWidth);
+                numBinsVisited = Math.min(bins,
+                    (lastBin - firstBin + bins) % bins + 1);
+            }
+            for (int k=0; k < numBinsVisited; k++) {
+                int bucket = this.firstBucket[b] + (firstBin + k) % bins;
+                for (int e=this.bucketStart[bucket]; e < this.bucketStart[bucket+1]; e++) {
+                    int i = this.entries[e];
+                    if (this.x[i]*cx + this.y[i]*cy + this.z[i]*cz >= minDot) {
+                        if (count == ret.length) {
+                            ret = Arrays.copyOf(ret, count * 2);
+                        }
+                        ret[count++] = i;
+                    }
+                }
+            }
+        }
+
+        ret = Arrays.copyOf(ret, count);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    /** Return the indices of the stars that may be at least
+      * 'elevationDegrees' above the horizon at the given time and
+      * place, as described at the top of the class.  The caller must
+      * still check each star's elevation. */
+    public int[] queryAbove(double unixTime, float latitude, float longitude,
+        float elevationDegrees)
+    {
+        double localSiderealDegrees = StarCatalog.unixTimeToGMST(unixTime) * 15.0 + longitude;
+        return this.query(localSiderealDegrees, latitude, 90 - elevationDegrees);
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check queries against testing every star, including caps that
+      * contain a pole or wrap around right ascension 0. */
+    private static void testQuery()
+    {
+        Random random = new Random(1);
+        StarCatalog[] catalog = new StarCatalog[20000];
+        for (int i=0; i < catalog.length; i++) {
+            catalog[i] = new StarCatalog("S"+i,
+                (float)(random.nextDouble() * 360),
+                (float)Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1)));
+        }
+        SkyIndex index = new SkyIndex(catalog);
+        assert(index.size() == catalog.length);
+
+        long visited = 0;
+        for (int q=0; q < 500; q++) {
+            double ra = (q % 7 == 0)? 359.9 : random.nextDouble() * 360;
+            double dec = (q % 11 == 0)? 88 : random.nextDouble() * 180 - 90;
+            double radius = random.nextDouble() * 90;
+
+            int[] found = index.query(ra, dec, radius);
+            visited += found.length;
+            for (int k=1; k < found.length; k++) {
+                assert(found[k-1] < found[k]);
+            }
+
+            int numFound = 0;
+            for (int i=0; i < catalog.length; i++) {
+                double sep = FloatUtil.sphericalSeparationAngle(ra, dec,
+                    catalog[i].rightAscensionDegrees, catalog[i].declinationDegrees);
+                boolean isFound = Arrays.binarySearch(found, i) >= 0;
+                if (sep < radius) {
+                    assert(isFound) : "q="+q+" i="+i+" sep="+sep;
+                }
+                if (isFound) {
+                    assert(sep < radius + MARGIN_DEGREES * 2) : "q="+q+" i="+i;
+                    numFound++;
+                }
+            }
+            assert(numFound == found.length);
+        }
+        System.out.println("average stars per query: "+visited / 500);
+    }
+
+    /** Check that 'queryAbove' finds every star that 'makeObservation'
+      * puts above the elevation. */
+    private static void testQueryAbove()
+    {
+        Random random = new Random(2);
+        StarCatalog[] catalog = new StarCatalog[5000];
+        for (int i=0; i < catalog.length; i++) {
+            catalog[i] = new StarCatalog("S"+i,
+                (float)(random.nextDouble() * 360),
+                (float)Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1)));
+        }
+        SkyIndex index = new SkyIndex(catalog);
+
+        for (int q=0; q < 50; q++) {
+            double t = StarObservation.unixTimeOfManualData + random.nextDouble() * 86400 * 30;
+            float lat = (float)(random.nextDouble() * 180 - 90);
+            float lon = (float)(random.nextDouble() * 360 - 180);
+            float elevation = 20;
+            int[] found = index.queryAbove(t, lat, lon, elevation);
+            for (int i=0; i < catalog.length; i++) {
+                if (catalog[i].makeObservation(t, lat, lon).elevation >= elevation) {
+                    assert(Arrays.binarySearch(found, i) >= 0) : "q="+q+" i="+i;
+                }
+            }
+        }
+    }
+
+    /** Check that RealWorldObservations gets the same observations
+      * through the index as by filtering all of them, including where
+      * it has manual data, and compare the time each takes. */
+    private static void testObservations()
+    {
+        Random random = new Random(3);
+        StarCatalog[] builtIn = StarCatalog.makeCatalog();
+        StarCatalog[] catalog = new StarCatalog[builtIn.length + 50000];
+        for (int i=0; i < catalog.length; i++) {
+            catalog[i] = (i < builtIn.length)? builtIn[i] :
+                new StarCatalog("S"+i,
+                    (float)(random.nextDouble() * 360),
+                    (float)Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1)));
+        }
+        RealWorldObservations rwo = new RealWorldObservations(catalog);
+
+        int numQueries = 100;
+        double[] times = new double[numQueries];
+        float[] lats = new float[numQueries];
+        float[] lons = new float[numQueries];
+        for (int q=0; q < numQueries; q++) {
+            times[q] = StarObservation.unixTimeOfManualData + (q % 4) * 3600;
+            lats[q] = (float)(random.nextDouble() * 180 - 90);
+            lons[q] = (float)(random.nextDouble() * 360 - 180);
+        }
+        times[0] = StarObservation.unixTimeOfManualData;
+        lats[0] = CloseStarObservations.REFERENCE_LATITUDE;
+        lons[0] = CloseStarObservations.REFERENCE_LONGITUDE;
+
+        long indexedNanos = 0;
+        long unindexedNanos = 0;
+        for (int q=0; q < numQueries; q++) {
+            long t0 = System.nanoTime();
+            List<StarObservation> a =
+                rwo.getStarObservationsAbove(times[q], lats[q], lons[q], 20);
+            long t1 = System.nanoTime();
+            List<StarObservation> b = new ArrayList<StarObservation>();
+            for (StarObservation so : rwo.getStarObservations(times[q], lats[q], lons[q])) {
+                if (so.elevation >= 20) {
+                    b.add(so);
+                }
+            }
+            long t2 = System.nanoTime();
+            indexedNanos += t1 - t0;
+            unindexedNanos += t2 - t1;
+
+            assert(a.size() == b.size()) : q;
+            for (int i=0; i < a.size(); i++) {
+                assert(a.get(i).name.equals(b.get(i).name)) : q;
+                assert(a.get(i).azimuth == b.get(i).azimuth) : q;
+                assert(a.get(i).elevation == b.get(i).elevation) : q;
+            }
+        }
+
+        System.out.println(numQueries+" queries of "+catalog.length+" stars: "+
+            indexedNanos/1000000+" ms indexed, "+unindexedNanos/1000000+" ms unindexed");
+    }
+
+    public static void main(String[] args)
+    {
+        testQuery();
+        testQueryAbove();
+        testObservations();
+        System.out.println("SkyIndex tests passed");
+    }
+}
+
+// EOF
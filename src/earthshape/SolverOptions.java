@@ -0,0 +1,239 @@
+// SolverOptions.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+/** Settings that affect how SurfaceReconstructor turns observations
+  * into a surface.  These are the user-adjustable options from the
+  * EarthShape "Options" menu, collected in one place so they can be
+  * passed to, and copied by, code that does not have a UI. */
+public class SolverOptions {
+    // ---- Instance data ----
+    /** Size of the squares the star-data builder places, in
+      * kilometers. */
+    public float squareSizeKm = SurfaceReconstructor.DEFAULT_SQUARE_SIZE_KM;
+
+    /** Latitude and longitude spacing, in degrees, of the squares
+      * the star-data builder places.  Each strip extends 180 degrees
+      * in each direction from where it starts. */
+    public float buildStepDegrees = 9;
+
+    /** When true, after the full-surface build places its grid of
+      * squares, subdivide the ones that fit poorly or where the
+      * surface bends sharply, as determined by the thresholds below.
+      * Each subdivision replaces the square with four squares of half
+      * the size at half the spacing, oriented relative to it, and
+      * those can be subdivided in turn. */
+    public boolean adaptiveRefinement = false;
+
+    /** A square is subdivided if its 'ObservationStats.variance',
+      * relative to its base, exceeds this many square degrees. */
+    public double refinementVarianceThreshold = 5e-5;
+
+    /** A square is subdivided if the magnitude of the normal curvature
+      * of the surface between it and its base, as computed by
+      * 'computeAverageCurvature', exceeds this many radians per km.
+      * For comparison, a sphere the size of the Earth has 1.57e-4. */
+    public double refinementCurvatureThreshold = 2e-4;
+
+    /** Maximum number of times a square of the original grid can be
+      * subdivided. */
+    public int maxRefinementLevels = 2;
+
+    /** When true, star observations are only compared by their
+      * direction.  When false, we also consider the location of the
+      * observer, which allows us to handle nearby objects. */
+    public boolean assumeInfiniteStarDistance = false;
+
+    /** When true, star observations are only compared by their
+      * direction, and furthermore, only the elevation, ignoring
+      * azimuth.  This is potentially interesting because, in
+      * practice, it is difficult to accurately measure azimuth
+      * with just a hand-held sextant. */
+    public boolean onlyCompareElevations = false;
+
+    /** Star observations lower than this many degrees above the
+      * horizon are not used, since refraction and haze make them
+      * unreliable. */
+    public float minimumStarElevation = 20;
+
+    /** Number of times at which to gather star observations at each
+      * location, 'epochSpacingHours' apart, starting with the time of
+      * the manual data.  As the Earth turns, the stars move across the
+      * sky, so each epoch adds another set of directions to compare
+      * between squares, and a location where the Sun is up at one
+      * epoch can still contribute at another.  The synthetic models
+      * have no rotating Earth, so their later epochs repeat the sky
+      * of the first. */
+    public int numEpochs = 1;
+
+    /** Hours between successive observation epochs. */
+    public float epochSpacingHours = 2;
+
+    /** If the Sun's elevation is higher than this value, then
+      * we cannot see any stars. */
+    public float maximumSunElevation = -5;
+
+    /** When true, take the Sun's elevation into account. */
+    public boolean useSunElevation = true;
+
+    /** When true, use the "new" orientation algorithm that
+      * repeatedly applies the recommended command.  Otherwise,
+      * use the older one based on average deviation.  The old
+      * algorithm is faster, but slightly less accurate, and
+      * does not mimic the process a user would use to manually
+      * adjust a square's orientation. */
+    public boolean newAutomaticOrientationAlgorithm = true;
+
+    /** When true, and stars are assumed to be infinitely far away
+      * (and azimuth is not ignored), orient squares by directly
+      * solving for the rotation that best aligns the star rays of
+      * each square with those of its base, using an SVD.  The
+      * iterative algorithms above are then only used when that
+      * fails. */
+    public boolean closedFormOrientation = false;
+
+    /** When true, and stars are at finite distances, orient squares
+      * with a Levenberg-Marquardt least squares solver over the
+      * rotation vector instead of the iterative algorithms above,
+      * which are then only used if it fails. */
+    public boolean levenbergMarquardtOrientation = false;
+
+    /** When true, wherever the "new" algorithm's hill climber would be
+      * used, use a pattern search instead: each round tries a stencil
+      * of 'patternSearchDirections' rotations rather than only the six
+      * axes, doubles the step when two moves in a row go the same
+      * way, and abandons each trial as soon as it cannot beat the
+      * best so far.  See PatternSearch. */
+    public boolean patternSearchOrientation = false;
+
+    /** Number of directions in the pattern search stencil: 6, 14,
+      * or 26. */
+    public int patternSearchDirections = 14;
+
+    /** When true, the pattern search scores its stencil in parallel.
+      * Each trial is cheap, so this only pays off when squares have
+      * many stars in common with their base. */
+    public boolean parallelPatternSearch = false;
+
+    /** When true, the full-surface build places the East and West
+      * strips of each row as fork-join tasks on the common pool while
+      * the North/South spine continues.  The squares produced are the
+      * same as for the serial build, since each strip only depends on
+      * the spine square it starts from. */
+    public boolean parallelBuild = false;
+
+    /** When true, the full-surface build places squares best-first
+      * rather than in strips: of all the empty grid cells next to a
+      * placed square, it next fills the one that shares the most
+      * qualifying stars with its placed neighbor.  A cell that cannot
+      * be oriented from one neighbor can still be reached from
+      * another, rather than ending a strip.  This build is serial,
+      * so 'parallelBuild' does not apply to it. */
+    public boolean bestFirstBuild = false;
+
+    /** When true, after the full-surface build places all of the
+      * squares, refine all of their orientations and positions
+      * together with BundleAdjuster, using the constraints between
+      * every pair of neighboring squares rather than only between
+      * each square and its base.  The refinement also runs in
+      * parallel if 'parallelBuild' is set. */
+    public boolean bundleAdjust = false;
+
+    /** When true, once the squares are placed, chains of squares that
+      * come back to a cell another chain from the same square already
+      * covered, such as the East and West latitude strips meeting on
+      * the far side of the Earth, are treated as loops, and the drift
+      * between their two squares for that cell is spread along the
+      * loop by LoopCloser. */
+    public boolean closeLoops = false;
+
+    /** If not null, the full-surface build records each square it
+      * places in this file, and when started again with the same
+      * settings, reuses what the file has rather than placing those
+      * squares again.  See BuildCheckpoint. */
+    public String checkpointFile = null;
+
+    /** How often, in seconds, the checkpoint file is flushed to disk.
+      * A crash loses the squares placed since then. */
+    public int checkpointIntervalSeconds = 30;
+
+    // ---- Methods ----
+    public SolverOptions()
+    {}
+
+    public SolverOptions(SolverOptions obj)
+    {
+        this.squareSizeKm = obj.squareSizeKm;
+        this.buildStepDegrees = obj.buildStepDegrees;
+        this.adaptiveRefinement = obj.adaptiveRefinement;
+        this.refinementVarianceThreshold = obj.refinementVarianceThreshold;
+        this.refinementCurvatureThreshold = obj.refinementCurvatureThreshold;
+        this.maxRefinementLevels = obj.maxRefinementLevels;
+        this.assumeInfiniteStarDistance = obj.assumeInfiniteStarDistance;
+        this.onlyCompareElevations = obj.onlyCompareElevations;
+        this.minimumStarElevation = obj.minimumStarElevation;
+        this.numEpochs = obj.numEpochs;
+        this.epochSpacingHours = obj.epochSpacingHours;
+        this.maximumSunElevation = obj.maximumSunElevation;
+        this.useSunElevation = obj.useSunElevation;
+        this.newAutomaticOrientationAlgorithm = obj.newAutomaticOrientationAlgorithm;
+        this.closedFormOrientation = obj.closedFormOrientation;
+        this.levenbergMarquardtOrientation = obj.levenbergMarquardtOrientation;
+        this.patternSearchOrientation = obj.patternSearchOrientation;
+        this.patternSearchDirections = obj.patternSearchDirections;
+        this.parallelPatternSearch = obj.parallelPatternSearch;
+        this.parallelBuild = obj.parallelBuild;
+        this.bestFirstBuild = obj.bestFirstBuild;
+        this.bundleAdjust = obj.bundleAdjust;
+        this.closeLoops = obj.closeLoops;
+        this.checkpointFile = obj.checkpointFile;
+        this.checkpointIntervalSeconds = obj.checkpointIntervalSeconds;
+    }
+
+    /** Return a copy of these options for one of several builds that
+      * run at the same time.  The builds themselves are what run in
+      * parallel, so each is serial, and they do not share a checkpoint
+      * file. */
+    public SolverOptions forConcurrentBuild()
+    {
+        SolverOptions ret = new SolverOptions(this);
+        ret.parallelBuild = false;
+        ret.checkpointFile = null;
+        return ret;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SolverOptions("+
+            "sizeKm="+this.squareSizeKm+
+            ", step="+this.buildStepDegrees+
+            ", adaptive="+this.adaptiveRefinement+
+            ", refineVar="+this.refinementVarianceThreshold+
+            ", refineCurv="+this.refinementCurvatureThreshold+
+            ", refineLevels="+this.maxRefinementLevels+
+            ", infDist="+this.assumeInfiniteStarDistance+
+            ", onlyEl="+this.onlyCompareElevations+
+            ", minStarEl="+this.minimumStarElevation+
+            ", epochs="+this.numEpochs+
+            ", epochHours="+this.epochSpacingHours+
+            ", maxSunEl="+this.maximumSunElevation+
+            ", useSun="+this.useSunElevation+
+            ", newAlgo="+this.newAutomaticOrientationAlgorithm+
+            ", closedForm="+this.closedFormOrientation+
+            ", lm="+this.levenbergMarquardtOrientation+
+            ", pattern="+this.patternSearchOrientation+
+            ", patternDirs="+this.patternSearchDirections+
+            ", patternPar="+this.parallelPatternSearch+
+            ", parallel="+this.parallelBuild+
+            ", bestFirst="+this.bestFirstBuild+
+            ", bundle="+this.bundleAdjust+
+            ", loops="+this.closeLoops+
+            ", checkpoint="+this.checkpointFile+
+            ", checkpointSec="+this.checkpointIntervalSeconds+
+            ")";
+    }
+}
+
+// EOF
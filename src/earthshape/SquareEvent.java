@@ -0,0 +1,93 @@
+// SquareEvent.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+/** A change to a set of surface squares, as delivered by
+  * SquareEventBus.  Events are immutable. */
+public class SquareEvent {
+    // ---- Types ----
+    public static enum Kind {
+        /** 'square' was added. */
+        PLACED,
+
+        /** 'oldSquare' was removed and 'square' put in its place, for
+          * example because its orientation was adjusted. */
+        REPLACED,
+
+        /** 'square' was removed. */
+        REMOVED,
+
+        /** All squares were removed. */
+        CLEARED,
+
+        /** A build finished, or was canceled.  'surface' is what it
+          * produced, if it was a SurfaceReconstructor build. */
+        BUILD_FINISHED,
+    }
+
+    // ---- Instance data ----
+    public final Kind kind;
+
+    /** Square placed, replacing another, or removed, depending on
+      * 'kind'.  Otherwise null. */
+    public final SurfaceSquare square;
+
+    /** For REPLACED, the square that was replaced.  Otherwise null. */
+    public final SurfaceSquare oldSquare;
+
+    /** For BUILD_FINISHED, the result of the build, or null. */
+    public final ReconstructedSurface surface;
+
+    // ---- Methods ----
+    private SquareEvent(Kind kind_, SurfaceSquare square_,
+        SurfaceSquare oldSquare_, ReconstructedSurface surface_)
+    {
+        this.kind = kind_;
+        this.square = square_;
+        this.oldSquare = oldSquare_;
+        this.surface = surface_;
+    }
+
+    public static SquareEvent placed(SurfaceSquare s)
+    {
+        return new SquareEvent(Kind.PLACED, s, null, null);
+    }
+
+    public static SquareEvent replaced(SurfaceSquare oldSquare, SurfaceSquare newSquare)
+    {
+        return new SquareEvent(Kind.REPLACED, newSquare, oldSquare, null);
+    }
+
+    public static SquareEvent removed(SurfaceSquare s)
+    {
+        return new SquareEvent(Kind.REMOVED, s, null, null);
+    }
+
+    public static SquareEvent cleared()
+    {
+        return new SquareEvent(Kind.CLEARED, null, null, null);
+    }
+
+    public static SquareEvent buildFinished(ReconstructedSurface surface)
+    {
+        return new SquareEvent(Kind.BUILD_FINISHED, null, null, surface);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SquareEvent("+this.kind);
+        if (this.square != null) {
+            sb.append(", square=("+this.square.latitude+","+this.square.longitude+")");
+        }
+        if (this.surface != null) {
+            sb.append(", surface="+this.surface);
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
+
+// EOF
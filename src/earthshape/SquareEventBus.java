@@ -0,0 +1,403 @@
+// SquareEventBus.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.Vector3f;
+
+import static util.swing.SwingUtil.log;
+
+/** Publish/subscribe stream of SquareEvents, so that things which
+  * follow the surface, such as the squares EarthShape shows while a
+  * build runs, exporters, statistics, or persistence, can process
+  * each change as it happens rather than rescanning all of the
+  * squares.
+  *
+  * Each subscriber gets its own bounded queue and a thread that
+  * delivers the queued events to it in batches of up to 'maxBatch',
+  * in the order they were published.  When a subscriber's queue is
+  * full, 'publish' waits for it to make room, so a slow subscriber
+  * slows the builder down rather than letting events pile up without
+  * limit.  A consequence is that a listener must never wait for the
+  * thread that publishes; in particular, a listener that needs the
+  * Swing event thread must use 'invokeLater', not 'invokeAndWait'. */
+public class SquareEventBus {
+    // ---- Constants ----
+    /** Default number of events a subscriber can fall behind by. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** Default maximum number of events delivered in one call. */
+    public static final int DEFAULT_MAX_BATCH = 256;
+
+    /** Queued to make a subscription's thread exit. */
+    private static final SquareEvent STOP = SquareEvent.cleared();
+
+    /** How often, in milliseconds, a publisher waiting for room in a
+      * queue checks whether the subscription was closed meanwhile. */
+    private static final long CLOSED_POLL_MILLIS = 50;
+
+    // ---- Types ----
+    /** Receiver of events. */
+    public static interface Listener {
+        /** Handle 'batch', which has at least one event.  This is
+          * called on the subscription's own thread. */
+        public void handleSquareEvents(List<SquareEvent> batch);
+    }
+
+    /** One subscriber's queue and delivery thread. */
+    public class Subscription implements Runnable {
+        /** Who gets the events. */
+        private final Listener listener;
+
+        /** Events not yet delivered. */
+        private final ArrayBlockingQueue<SquareEvent> queue;
+
+        /** Largest batch to deliver. */
+        private final int maxBatch;
+
+        /** Thread that delivers the events. */
+        private final Thread thread;
+
+        /** Number of events queued and delivered so far.  Both are
+          * protected by 'this'. */
+        private long numQueued = 0;
+        private long numDelivered = 0;
+
+        /** Number of batches delivered, for statistics. */
+        private long numBatches = 0;
+
+        /** Set by 'unsubscribe'.  After this, nothing more is queued,
+          * since the thread may have stopped taking events, and a
+          * publisher waiting for room gives up. */
+        private volatile boolean closed = false;
+
+        /** Set, under 'this', when the thread has exited, so 'flush'
+          * does not wait for events it will never deliver. */
+        private boolean finished = false;
+
+        private Subscription(Listener listener_, int capacity, int maxBatch_)
+        {
+            this.listener = listener_;
+            this.queue = new ArrayBlockingQueue<SquareEvent>(capacity);
+            this.maxBatch = maxBatch_;
+            this.thread = new Thread(this,
+                "SquareEventBus-"+SquareEventBus.nextThreadNumber.incrementAndGet());
+            this.thread.setDaemon(true);
+        }
+
+        /** Queue 'e', waiting for room if necessary, unless the
+          * subscription is or becomes closed, in which case 'e' is
+          * dropped.  Return false if interrupted while waiting, in which
+          * case 'e' is also dropped. */
+        private boolean enqueue(SquareEvent e)
+        {
+            try {
+                while (!this.closed) {
+                    if (this.queue.offer(e, CLOSED_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        synchronized (this) {
+                            this.numQueued++;
+                        }
+                        return true;
+                    }
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                this.deliver();
+            }
+            finally {
+                synchronized (this) {
+                    this.finished = true;
+                    this.notifyAll();
+                }
+            }
+        }
+
+        /** Deliver events until STOP or interruption. */
+        private void deliver()
+        {
+            ArrayList<SquareEvent> batch = new ArrayList<SquareEvent>();
+            while (true) {
+                batch.clear();
+                try {
+                    batch.add(this.queue.take());
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                this.queue.drainTo(batch, this.maxBatch - 1);
+
+                boolean stop = false;
+                int n = batch.size();
+                for (int i=0; i < batch.size(); i++) {
+                    if (batch.get(i) == STOP) {
+                        // Nothing is published after STOP.
+                        batch.subList(i, batch.size()).clear();
+                        stop = true;
+                        break;
+                    }
+                }
+
+                if (!batch.isEmpty()) {
+                    try {
+                        this.listener.handleSquareEvents(batch);
+                    }
+                    catch (RuntimeException e) {
+                        log("SquareEventBus: listener failed: "+e);
+                    }
+                }
+
+                synchronized (this) {
+                    this.numDelivered += n;
+                    this.numBatches++;
+                    this.notifyAll();
+                }
+                if (stop) {
+                    return;
+                }
+            }
+        }
+
+        /** Wait until every event queued so far has been delivered, or
+          * the thread has exited. */
+        public synchronized void flush()
+            throws InterruptedException
+        {
+            long target = this.numQueued;
+            while (this.numDelivered < target && !this.finished) {
+                this.wait();
+            }
+        }
+
+        public synchronized long getNumDelivered()
+        {
+            return this.numDelivered;
+        }
+
+        public synchronized long getNumBatches()
+        {
+            return this.numBatches;
+        }
+    }
+
+    // ---- Class data ----
+    /** For naming the delivery threads. */
+    private static final AtomicInteger nextThreadNumber = new AtomicInteger();
+
+    // ---- Instance data ----
+    /** Current subscriptions. */
+    private final CopyOnWriteArrayList<Subscription> subscriptions =
+        new CopyOnWriteArrayList<Subscription>();
+
+    // ---- Methods ----
+    /** Start delivering events to 'listener' with the default queue
+      * capacity and batch size. */
+    public Subscription subscribe(Listener listener)
+    {
+        return this.subscribe(listener, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH);
+    }
+
+    /** Start delivering events to 'listener', which can fall behind by
+      * up to 'capacity' events before 'publish' waits for it, and gets
+      * up to 'maxBatch' events at a time. */
+    public Subscription subscribe(Listener listener, int capacity, int maxBatch)
+    {
+        Subscription s = new Subscription(listener, capacity, Math.max(1, maxBatch));
+        this.subscriptions.add(s);
+        s.thread.start();
+        return s;
+    }
+
+    /** Stop delivering to 's' once it has received everything
+      * published so far, and wait for that.  A 'publish' already under
+      * way may or may not deliver its event to 's'. */
+    public void unsubscribe(Subscription s)
+        throws InterruptedException
+    {
+        if (this.subscriptions.remove(s)) {
+            s.closed = true;
+            s.queue.put(STOP);
+            s.thread.join();
+        }
+    }
+
+    /** True if anyone is listening, so callers can skip making events. */
+    public boolean hasSubscribers()
+    {
+        return !this.subscriptions.isEmpty();
+    }
+
+    /** Queue 'e' for every subscriber, waiting for room as needed.  If
+      * the calling thread is interrupted while waiting, the event is
+      * not delivered to the remaining subscribers. */
+    public void publish(SquareEvent e)
+    {
+        for (Subscription s : this.subscriptions) {
+            if (!s.enqueue(e)) {
+                log("SquareEventBus: interrupted; dropped "+e);
+                return;
+            }
+        }
+    }
+
+    /** Wait until every subscriber has received everything published
+      * so far. */
+    public void flush()
+        throws InterruptedException
+    {
+        for (Subscription s : this.subscriptions) {
+            s.flush();
+        }
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check that a slow subscriber gets every event, in order, in
+      * bounded batches, while holding back the publisher. */
+    private static void testBackPressure()
+        throws InterruptedException
+    {
+        SquareEventBus bus = new SquareEventBus();
+        final ArrayList<SquareEvent> received = new ArrayList<SquareEvent>();
+        final int[] largestBatch = new int[1];
+        Subscription sub = bus.subscribe(new Listener() {
+            public void handleSquareEvents(List<SquareEvent> batch)
+            {
+                largestBatch[0] = Math.max(largestBatch[0], batch.size());
+                received.addAll(batch);
+                try {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException e) {}
+            }
+        }, 4 /*capacity*/, 3 /*maxBatch*/);
+
+        ArrayList<SquareEvent> sent = new ArrayList<SquareEvent>();
+        for (int i=0; i < 100; i++) {
+            SurfaceSquare s = new SurfaceSquare(
+                new Vector3f(0,0,0), new Vector3f(0,0,-1), new Vector3f(0,1,0),
+                1, i, 0, null, null, new Vector3f(0,0,0));
+            SquareEvent e = SquareEvent.placed(s);
+            sent.add(e);
+            bus.publish(e);
+
+            // The subscriber can never be more than its queue, plus
+            // the batch it is working on, behind.
+            assert(i+1 - sub.getNumDelivered() <= 4 + 3);
+        }
+        bus.flush();
+        assert(sub.getNumDelivered() == 100);
+        assert(largestBatch[0] <= 3);
+
+        bus.unsubscribe(sub);
+        assert(!bus.hasSubscribers());
+        assert(received.equals(sent));
+        System.out.println("delivered 100 events in "+sub.getNumBatches()+" batches");
+    }
+
+    /** Check that publishers held up by one subscriber, which then
+      * reach another that was unsubscribed meanwhile, do not wait
+      * forever for room in its queue once its thread has stopped. */
+    private static void testUnsubscribeWhilePublishing()
+        throws InterruptedException
+    {
+        final SquareEventBus bus = new SquareEventBus();
+        final CountDownLatch release = new CountDownLatch(1);
+        Subscription slow = bus.subscribe(new Listener() {
+            public void handleSquareEvents(List<SquareEvent> batch)
+            {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {}
+            }
+        }, 1 /*capacity*/, 1 /*maxBatch*/);
+        Subscription fast = bus.subscribe(new Listener() {
+            public void handleSquareEvents(List<SquareEvent> batch)
+            {}
+        }, 1 /*capacity*/, 1 /*maxBatch*/);
+
+        // The first event is taken by the blocked listener and the
+        // second fills its queue, so the other publishers wait there,
+        // with 'fast' still to come.
+        Thread[] publishers = new Thread[6];
+        for (int i=0; i < publishers.length; i++) {
+            publishers[i] = new Thread() {
+                public void run()
+                {
+                    bus.publish(SquareEvent.buildFinished(null));
+                }
+            };
+            publishers[i].setDaemon(true);
+            publishers[i].start();
+        }
+        Thread.sleep(100);
+        bus.unsubscribe(fast);
+        release.countDown();
+
+        for (Thread p : publishers) {
+            p.join(5000);
+            assert(!p.isAlive());
+        }
+        fast.flush();
+        bus.unsubscribe(slow);
+        assert(!bus.hasSubscribers());
+    }
+
+    /** Check that a build reports each square as it is placed. */
+    private static void testBuild()
+        throws InterruptedException
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        r.options.buildStepDegrees = 30;
+        SquareEventBus bus = new SquareEventBus();
+        r.setSquareEvents(bus);
+
+        final ArrayList<SquareEvent> received = new ArrayList<SquareEvent>();
+        Subscription sub = bus.subscribe(new Listener() {
+            public void handleSquareEvents(List<SquareEvent> batch)
+            {
+                received.addAll(batch);
+            }
+        });
+
+        ReconstructedSurface surface = r.buildEarthSurfaceFromStarData(BuildProgress.NONE);
+        bus.unsubscribe(sub);
+
+        SquareEvent last = received.get(received.size()-1);
+        assert(last.kind == SquareEvent.Kind.BUILD_FINISHED);
+        assert(last.surface == surface);
+        assert(received.size() == surface.numSurfaceSquares() + 1);
+        for (int i=0; i < surface.numSurfaceSquares(); i++) {
+            assert(received.get(i).kind == SquareEvent.Kind.PLACED);
+            assert(received.get(i).square == surface.getSurfaceSquares().get(i));
+        }
+    }
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        testBackPressure();
+        testUnsubscribeWhilePublishing();
+        testBuild();
+        System.out.println("SquareEventBus tests passed");
+    }
+}
+
+// EOF
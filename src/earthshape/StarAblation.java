@@ -0,0 +1,268 @@
+// StarAblation.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import util.FloatUtil;
+
+/** Finds which stars a reconstruction depends on by building it again
+  * with each star, and optionally each pair of stars, left out, and
+  * comparing each build with the one that uses all of them.
+  *
+  * Doing this through the star list dialog means one build by hand per
+  * star.  Here the builds are independent fork-join tasks, like the
+  * runs of ParameterSweep.  They differ in their enabled-star maps, so
+  * they cannot share VisibleStarCache entries, but they all visit the
+  * same locations, so they share one CachedObservations, and each star
+  * and Sun observation is computed only once for the whole job. */
+public class StarAblation {
+    // ---- Types ----
+    /** Stars left out of one build and its outcome. */
+    public static class Run {
+        /** Stars disabled for this build.  Empty for the baseline. */
+        public final List<String> excluded;
+
+        /** Number of squares placed. */
+        public int numSquares;
+
+        /** 'numSquares' as a fraction of the cells of the build grid. */
+        public double coverage;
+
+        /** Average 'ObservationStats.variance' of the squares that have
+          * a base square, or NaN if there are none. */
+        public double meanVariance;
+
+        /** Average normal curvature between each square and its base,
+          * in degrees per 1000 km, or NaN if there are no such squares. */
+        public double meanCurvature;
+
+        /** Elapsed time of the build. */
+        public long wallMillis;
+
+        public Run(List<String> excluded_)
+        {
+            this.excluded = excluded_;
+        }
+
+        /** Name of the run for the table. */
+        public String getName()
+        {
+            if (this.excluded.isEmpty()) {
+                return "(all stars)";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String s : this.excluded) {
+                if (sb.length() > 0) {
+                    sb.append(" + ");
+                }
+                sb.append("-"+s);
+            }
+            return sb.toString();
+        }
+
+        /** Describe this run relative to 'baseline'. */
+        public String toString(Run baseline)
+        {
+            return String.format("%-40s %7d %+7d %8.1f%% %12.4g %+12.4g %10.4f %+10.4f %8d",
+                this.getName(),
+                this.numSquares, this.numSquares - baseline.numSquares,
+                this.coverage * 100,
+                this.meanVariance, this.meanVariance - baseline.meanVariance,
+                this.meanCurvature, this.meanCurvature - baseline.meanCurvature,
+                this.wallMillis);
+        }
+    }
+
+    // ---- Instance data ----
+    /** Reconstructor whose settings and enabled stars every build
+      * starts from. */
+    private final SurfaceReconstructor template;
+
+    /** Observations shared by all of the builds. */
+    private final CachedObservations observations;
+
+    /** If true, also leave out every pair of enabled stars. */
+    public boolean includePairs = false;
+
+    // ---- Methods ----
+    /** Prepare an ablation of the stars enabled in 'reconstructor',
+      * which is not modified. */
+    public StarAblation(SurfaceReconstructor reconstructor)
+    {
+        this.template = new SurfaceReconstructor(reconstructor);
+        this.observations = new CachedObservations(reconstructor.getWorldObservations());
+    }
+
+    /** Get the observations the builds share, mainly so their
+      * statistics can be reported. */
+    public CachedObservations getObservations()
+    {
+        return this.observations;
+    }
+
+    /** Make the runs: the baseline first, then each enabled star left
+      * out, in star order, then each pair if 'includePairs'. */
+    public List<Run> makeRuns()
+    {
+        ArrayList<String> stars = new ArrayList<String>();
+        for (Map.Entry<String, Boolean> e : this.template.getEnabledStars().entrySet()) {
+            if (e.getValue()) {
+                stars.add(e.getKey());
+            }
+        }
+
+        ArrayList<Run> ret = new ArrayList<Run>();
+        ret.add(new Run(new ArrayList<String>()));
+        for (String s : stars) {
+            ArrayList<String> excluded = new ArrayList<String>();
+            excluded.add(s);
+            ret.add(new Run(excluded));
+        }
+        if (this.includePairs) {
+            for (int i=0; i < stars.size(); i++) {
+                for (int j=i+1; j < stars.size(); j++) {
+                    ArrayList<String> excluded = new ArrayList<String>();
+                    excluded.add(stars.get(i));
+                    excluded.add(stars.get(j));
+                    ret.add(new Run(excluded));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /** Run the ablation on the common pool. */
+    public List<Run> run()
+    {
+        return this.run(ForkJoinPool.commonPool());
+    }
+
+    /** Do every build as a task on 'pool' and return the runs in the
+      * order of 'makeRuns'. */
+    public List<Run> run(ForkJoinPool pool)
+    {
+        final List<Run> runs = this.makeRuns();
+        ParallelTasks.invokeEach(pool, runs.size(), new ParallelTasks.Task() {
+            @Override
+            public void run(int index)
+            {
+                StarAblation.this.build(runs.get(index));
+            }
+        });
+        return runs;
+    }
+
+    /** Build the surface without the stars of 'run', and fill in its
+      * outcome. */
+    private void build(Run run)
+    {
+        LinkedHashMap<String, Boolean> stars =
+            new LinkedHashMap<String, Boolean>(this.template.getEnabledStars());
+        for (String s : run.excluded) {
+            stars.put(s, false);
+        }
+
+        SolverOptions opts = this.template.options.forConcurrentBuild();
+        SurfaceReconstructor r = new SurfaceReconstructor(this.observations, stars, opts);
+
+        long start = System.currentTimeMillis();
+        ReconstructedSurface surface = r.buildEarthSurfaceFromStarData(BuildProgress.NONE);
+        run.wallMillis = System.currentTimeMillis() - start;
+
+        run.numSquares = surface.numSurfaceSquares();
+        run.coverage = (double)run.numSquares /
+            SurfaceReconstructor.gridCells(opts.buildStepDegrees);
+
+        double sumVariance = 0;
+        int numVariance = 0;
+        double sumCurvature = 0;
+        int numCurvature = 0;
+        for (SurfaceSquare s : surface.getSurfaceSquares()) {
+            if (s.baseSquare == null) {
+                continue;
+            }
+            SurfaceReconstructor.ObservationStats stats = r.fitOfObservations(s);
+            if (stats != null) {
+                sumVariance += stats.variance;
+                numVariance++;
+            }
+            double curvature = FloatUtil.radiansToDegrees(
+                r.computeAverageCurvature(s).normalCurvature * 1000);
+            if (!Double.isNaN(curvature)) {
+                sumCurvature += curvature;
+                numCurvature++;
+            }
+        }
+        run.meanVariance = (numVariance > 0)? sumVariance / numVariance : Double.NaN;
+        run.meanCurvature = (numCurvature > 0)? sumCurvature / numCurvature : Double.NaN;
+    }
+
+    /** Print 'runs', as returned by 'run', as a table in which the
+      * changes are relative to the first run. */
+    public static void printTable(PrintStream out, List<Run> runs)
+    {
+        out.println(String.format("%-40s %7s %7s %9s %12s %12s %10s %10s %8s",
+            "excluded", "squares", "delta", "coverage",
+            "meanVar", "delta", "curvature", "delta", "ms"));
+        for (Run run : runs) {
+            out.println(run.toString(runs.get(0)));
+        }
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check that the parallel builds match building each one by
+      * itself, and that they share the observations. */
+    private static void testAblation()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        r.options.buildStepDegrees = 30;
+
+        // Ablate only a few stars, to keep the test short.
+        LinkedHashMap<String, Boolean> stars = new LinkedHashMap<String, Boolean>();
+        List<String> all = r.getWorldObservations().getAllStars();
+        for (int i=0; i < all.size(); i++) {
+            stars.put(all.get(i), i < 8);
+        }
+        r.setEnabledStars(stars);
+
+        StarAblation ab = new StarAblation(r);
+        ab.includePairs = true;
+        List<Run> runs = ab.run(new ForkJoinPool(4));
+        printTable(System.out, runs);
+        System.out.println(ab.getObservations());
+
+        assert(runs.size() == 1 + 8 + 8*7/2);
+        assert(runs.get(0).excluded.isEmpty());
+        assert(runs.get(1).excluded.get(0).equals(all.get(0)));
+        assert(runs.get(9).excluded.size() == 2);
+
+        // Every build visits the same start square, at least.
+        assert(ab.getObservations().getHits() > 0);
+
+        for (Run run : runs.subList(0, 9)) {
+            LinkedHashMap<String, Boolean> s = new LinkedHashMap<String, Boolean>(stars);
+            for (String ex : run.excluded) {
+                s.put(ex, false);
+            }
+            SurfaceReconstructor alone =
+                new SurfaceReconstructor(r.getWorldObservations(), s, r.options);
+            ReconstructedSurface surface = alone.buildEarthSurfaceFromStarData(BuildProgress.NONE);
+            assert(surface.numSurfaceSquares() == run.numSquares) : run.getName();
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        testAblation();
+        System.out.println("StarAblation tests passed");
+    }
+}
+
+// EOF
@@ -18,6 +18,20 @@ public class StarCatalog {
     private static Pattern raPattern = Pattern.compile("(\\d+)h(\\d+)m(\\d+)s");
     private static Pattern decPattern = Pattern.compile("([-+0-9]+)(\\d+)'(\\d+)\"");
 
+    /** The hardcoded catalog, parsed once.  The source of this data is
+      * in-the-sky.org.  Entries are never modified, so they can be
+      * shared. */
+    private static final StarCatalog[] builtInCatalog = {
+        parse("Capella", "05h16m41s", "+4559'56\""),
+        parse("Betelgeuse", "05h55m10s", "+0724'25\""),
+        parse("Rigel", "05h14m32s", "-0812'05\""),
+        parse("Aldebaran", "04h35m55s", "+1630'35\""),
+        parse("Sirius", "06h45m09s", "-1642'47\""),
+        parse("Procyon", "07h39m18s", "+0513'39\""),
+        parse("Polaris", "02h31m47s", "+8915'50\""),
+        parse("Dubhe", "11h03m43s", "+6145'03\"")
+    };
+
     // ---- Instance data ----
     // Name of the star.
     String name;
@@ -87,20 +101,11 @@ public class StarCatalog {
         return new StarCatalog(name, rightAscensionDegrees, declinationDegrees);
     }
 
-    /** Return a hardcoded array of star catalog entries.  The source
-      * of this data is in-the-sky.org. */
+    /** Return a hardcoded array of star catalog entries.  For a
+      * larger catalog, see StarCatalogFile. */
     public static StarCatalog[] makeCatalog()
     {
-        return new StarCatalog[] {
-            parse("Capella", "05h16m41s", "+4559'56\""),
-            parse("Betelgeuse", "05h55m10s", "+0724'25\""),
-            parse("Rigel", "05h14m32s", "-0812'05\""),
-            parse("Aldebaran", "04h35m55s", "+1630'35\""),
-            parse("Sirius", "06h45m09s", "-1642'47\""),
-            parse("Procyon", "07h39m18s", "+0513'39\""),
-            parse("Polaris", "02h31m47s", "+8915'50\""),
-            parse("Dubhe", "11h03m43s", "+6145'03\"")
-        };
+        return builtInCatalog.clone();
     }
 
     /** Return the Sun's position in the sky at
@@ -164,7 +169,7 @@ public class StarCatalog {
 
     /** Convert a given unix time to Greenwich Mean Sidereal Time,
       * in hours, modulo 24 hours */
-    public float unixTimeToGMST(double unixTime)
+    public static float unixTimeToGMST(double unixTime)
     {
         // Wikipedia gives the following equation at
         // https://en.wikipedia.org/wiki/Sidereal_time:
@@ -183,6 +188,63 @@ public class StarCatalog {
         return (float)(gmstRaw - Math.floor(gmstRaw / 24.0) * 24.0);
     }
 
+    /** Precomputed test of whether this object is above a given
+      * elevation, at a given time, as seen from any location.
+      *
+      * The locations where the object is exactly at 'thresholdDegrees'
+      * form a circle on the globe, so rather than build an observation
+      * and compare its elevation, we can compare the sine of the
+      * elevation against the sine of the threshold.  Everything that
+      * depends only on the object and the time is computed once, here,
+      * which leaves three trig calls per location, no inverse trig,
+      * and no allocation. */
+    public static class ElevationBoundary {
+        /** Time for which this was computed. */
+        public final double unixTime;
+
+        /** Elevation being tested against, in degrees. */
+        public final float thresholdDegrees;
+
+        /** GMST minus right ascension, in degrees.  Adding the longitude
+          * yields the hour angle. */
+        private final float hourAngleOffsetDegrees;
+
+        /** Sine and cosine of the declination. */
+        private final double sinDecl, cosDecl;
+
+        /** Sine of 'thresholdDegrees'. */
+        private final double sinThreshold;
+
+        public ElevationBoundary(StarCatalog sc, double unixTime_,
+            float thresholdDegrees_)
+        {
+            this.unixTime = unixTime_;
+            this.thresholdDegrees = thresholdDegrees_;
+            this.hourAngleOffsetDegrees =
+                unixTimeToGMST(unixTime_) * 15.0f - sc.rightAscensionDegrees;
+            float declRadians = FloatUtil.degreesToRadiansf(sc.declinationDegrees);
+            this.sinDecl = Math.sin(declRadians);
+            this.cosDecl = Math.cos(declRadians);
+            this.sinThreshold = Math.sin(FloatUtil.degreesToRadiansf(thresholdDegrees_));
+        }
+
+        /** Return true if, at the given location, the elevation is
+          * greater than 'thresholdDegrees'.  This agrees with
+          * 'makeObservation' except within float rounding of the
+          * threshold. */
+        public boolean isAbove(float latitudeDegrees, float longitudeDegrees)
+        {
+            // Same as 'makeObservation', but stopping short of 'asin'.
+            float latitudeRadians = FloatUtil.degreesToRadiansf(latitudeDegrees);
+            float hourAngleRadians = FloatUtil.degreesToRadiansf(
+                this.hourAngleOffsetDegrees + longitudeDegrees);
+            double sinElevation =
+                Math.sin(latitudeRadians) * this.sinDecl +
+                Math.cos(latitudeRadians) * this.cosDecl * Math.cos(hourAngleRadians);
+            return sinElevation > this.sinThreshold;
+        }
+    }
+
     /** Calculate and print one observation, and compare it to what is
       * in the manually gathered observation data. */
     private static void printObs(StarObservation[] manualObs, StarCatalog sc,
@@ -215,8 +277,32 @@ public class StarCatalog {
         }
     }
 
+    /** Check that ElevationBoundary agrees with 'makeObservation'
+      * everywhere except very close to the boundary. */
+    private static void testElevationBoundary(double unixTime, float threshold)
+    {
+        StarCatalog sun = sunPosition();
+        ElevationBoundary eb = new ElevationBoundary(sun, unixTime, threshold);
+        for (float lat = -90; lat <= 90; lat += 1.5f) {
+            for (float lon = -180; lon <= 180; lon += 1.5f) {
+                float el = sun.makeObservation(unixTime, lat, lon).elevation;
+                if (Math.abs(el - threshold) < 0.01f) {
+                    continue;
+                }
+                if (eb.isAbove(lat, lon) != (el > threshold)) {
+                    throw new RuntimeException("testElevationBoundary failed:"+
+                        " lat="+lat+" lon="+lon+" el="+el+" threshold="+threshold);
+                }
+            }
+        }
+    }
+
     public static void main(String args[])
     {
+        testElevationBoundary(StarObservation.unixTimeOfManualData, -5);
+        testElevationBoundary(StarObservation.unixTimeOfManualData, 0);
+        testElevationBoundary(StarObservation.unixTimeOfManualData + 12345, 30);
+
         // Get the manual data.
         StarObservation[] manualObs = StarObservation.getManualObservations();
 
@@ -0,0 +1,665 @@
+// StarCatalogFile.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import util.FloatUtil;
+
+import static util.swing.SwingUtil.log;
+
+/** A large star catalog read from a local text file, such as the Yale
+  * Bright Star Catalog (about 9000 stars) or the Hipparcos main
+  * catalog (about 118000).
+  *
+  * Parsing the text is slow compared to everything else done at
+  * startup, so the first time a catalog is opened, it is read one line
+  * at a time into a binary cache file next to it, and thereafter the
+  * cache is memory-mapped instead.  The cache is laid out by column,
+  * with the right ascensions of all stars, then all declinations, and
+  * so on, so the stars can be filtered by magnitude, or read by
+  * position, without touching their names.  The cache records the
+  * length and modification time of the catalog it came from, and is
+  * rebuilt if either has changed, or if its format version or the
+  * checksum of its header does not match.  If the cache cannot be
+  * written, the parsed columns are used from memory instead.
+  *
+  * Two line formats are recognized, and lines in neither are skipped:
+  *
+  *   - Yale Bright Star Catalog, 5th edition ("bsc5.dat"): fixed
+  *     columns, J2000 coordinates.  The name is the Bayer or Flamsteed
+  *     designation, or "HR nnnn" if there is none.
+  *
+  *   - Hipparcos ("hip_main.dat"): fields separated by '|'.  The name
+  *     is "HIP nnnnnn". */
+public class StarCatalogFile {
+    // ---- Constants ----
+    /** First four bytes of a cache file: "ESSC". */
+    private static final int MAGIC = 0x45535343;
+
+    /** Cache file format version.  Version 2 added the checksum. */
+    private static final int VERSION = 2;
+
+    /** Length in bytes of the cache file header: magic, version,
+      * source length and modification time, number of stars, number of
+      * name bytes, and a CRC-32 of all of those. */
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    /** Offset in the header of the number of stars. */
+    private static final int NUM_STARS_OFFSET = 24;
+
+    /** Catalog stars within this many degrees of one of the built-in
+      * stars are taken to be the same star, and left out by
+      * 'makeCatalog', so the built-in name, which the manual
+      * observations use, is the only one. */
+    public static final float SAME_STAR_DEGREES = 0.1f;
+
+    /** Default for the faintest stars to use.  Every star enabled costs
+      * time at every square, and the roughly 500 stars of magnitude 4
+      * or brighter are already far more than the built-in ones. */
+    public static final float DEFAULT_MAX_MAGNITUDE = 4;
+
+    // ---- Instance data ----
+    /** The catalog text file. */
+    public final File source;
+
+    /** True if this was loaded from an existing cache, false if the
+      * catalog was parsed. */
+    public final boolean fromCache;
+
+    /** Number of stars. */
+    private final int numStars;
+
+    /** Views of the columns in the mapped cache file, or in memory. */
+    private final FloatBuffer rightAscensions;
+    private final FloatBuffer declinations;
+    private final FloatBuffer magnitudes;
+
+    /** Offset of each name in 'names', plus one more for the end. */
+    private final IntBuffer nameOffsets;
+
+    /** The names, in ISO-8859-1, one after another. */
+    private final ByteBuffer names;
+
+    // ---- Methods ----
+    /** Use the columns of 'image', which must be a valid cache,
+      * either mapped from the cache file or made by 'parse'. */
+    private StarCatalogFile(File source_, ByteBuffer image, boolean fromCache_)
+    {
+        this.source = source_;
+        this.fromCache = fromCache_;
+
+        ByteBuffer map = image.duplicate();
+        map.position(NUM_STARS_OFFSET);
+        this.numStars = map.getInt();
+        int nameBytes = map.getInt();
+
+        int n = this.numStars;
+        this.rightAscensions = column(map, HEADER_BYTES, n * 4).asFloatBuffer();
+        this.declinations = column(map, HEADER_BYTES + n*4, n * 4).asFloatBuffer();
+        this.magnitudes = column(map, HEADER_BYTES + n*8, n * 4).asFloatBuffer();
+        this.nameOffsets = column(map, HEADER_BYTES + n*12, (n+1) * 4).asIntBuffer();
+        this.names = column(map, HEADER_BYTES + n*16 + 4, nameBytes);
+    }
+
+    /** Map all of 'cache'. */
+    private static ByteBuffer mapFile(File cache)
+        throws IOException
+    {
+        // The mapping stays valid after the channel is closed.
+        RandomAccessFile raf = new RandomAccessFile(cache, "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /** Return the 'length' bytes of 'map' starting at 'offset'. */
+    private static ByteBuffer column(ByteBuffer map, int offset, int length)
+    {
+        ByteBuffer b = map.duplicate();
+        b.position(offset);
+        b.limit(offset + length);
+        return b.slice();
+    }
+
+    /** Open the catalog in 'source', using the cache file next to it,
+      * with ".cache" appended to the name, if it is up to date, and
+      * otherwise parsing 'source' and writing the cache, if it can. */
+    public static StarCatalogFile open(File source)
+        throws IOException
+    {
+        return open(source, new File(source.getPath() + ".cache"));
+    }
+
+    /** Same as above, with the cache in 'cache'. */
+    public static StarCatalogFile open(File source, File cache)
+        throws IOException
+    {
+        if (!source.isFile()) {
+            throw new IOException("StarCatalogFile: not a file: "+source);
+        }
+        if (cacheIsCurrent(source, cache)) {
+            StarCatalogFile ret =
+                new StarCatalogFile(source, mapFile(cache), true /*fromCache*/);
+            log("StarCatalogFile: mapped "+ret.size()+" stars from "+cache);
+            return ret;
+        }
+
+        long start = System.currentTimeMillis();
+        ByteBuffer image = parse(source);
+        try {
+            writeCache(image, cache);
+
+            // Let the parsed copy go, and use the file like the next
+            // open will.
+            image = mapFile(cache);
+        }
+        catch (IOException e) {
+            log("StarCatalogFile: cannot write "+cache+", keeping the catalog "+
+                "in memory: "+e);
+        }
+        StarCatalogFile ret = new StarCatalogFile(source, image, false /*fromCache*/);
+        log("StarCatalogFile: parsed "+ret.size()+" stars from "+source+" in "+
+            (System.currentTimeMillis() - start)+" ms");
+        return ret;
+    }
+
+    /** Return the checksum of the header fields at the start of
+      * 'header', not including the checksum itself. */
+    private static int headerChecksum(byte[] header)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, HEADER_BYTES - 4);
+        return (int)crc.getValue();
+    }
+
+    /** True if 'cache' is a complete cache of 'source' as it is now. */
+    private static boolean cacheIsCurrent(File source, File cache)
+        throws IOException
+    {
+        if (!cache.isFile() || cache.length() < HEADER_BYTES) {
+            return false;
+        }
+        byte[] header = new byte[HEADER_BYTES];
+        RandomAccessFile raf = new RandomAccessFile(cache, "r");
+        try {
+            raf.readFully(header);
+        }
+        finally {
+            raf.close();
+        }
+
+        ByteBuffer h = ByteBuffer.wrap(header);
+        if (h.getInt() != MAGIC || h.getInt() != VERSION ||
+            h.getLong() != source.length() ||
+            h.getLong() != source.lastModified())
+        {
+            return false;
+        }
+        long n = h.getInt();
+        long nameBytes = h.getInt();
+        if (h.getInt() != headerChecksum(header)) {
+            return false;
+        }
+        return cache.length() == HEADER_BYTES + n*16 + 4 + nameBytes;
+    }
+
+    /** Parse 'source' and return its columns laid out as in the cache
+      * file, header included. */
+    private static ByteBuffer parse(File source)
+        throws IOException
+    {
+        // Parsed columns.  These are the only copy of the catalog in
+        // memory while parsing.
+        FloatColumn ra = new FloatColumn();
+        FloatColumn dec = new FloatColumn();
+        FloatColumn mag = new FloatColumn();
+        ArrayList<String> starNames = new ArrayList<String>();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(source), StandardCharsets.ISO_8859_1));
+        try {
+            float[] coords = new float[3];
+            String line;
+            while ((line = in.readLine()) != null) {
+                String name = (line.indexOf('|') >= 0)?
+                    parseHipparcos(line, coords) : parseBrightStar(line, coords);
+                if (name != null) {
+                    ra.add(coords[0]);
+                    dec.add(coords[1]);
+                    mag.add(coords[2]);
+                    starNames.add(name);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        int n = starNames.size();
+        byte[][] nameBytes = new byte[n][];
+        int totalNameBytes = 0;
+        for (int i=0; i < n; i++) {
+            nameBytes[i] = starNames.get(i).getBytes(StandardCharsets.ISO_8859_1);
+            totalNameBytes += nameBytes[i].length;
+        }
+
+        ByteBuffer image = ByteBuffer.allocate(HEADER_BYTES + n*16 + 4 + totalNameBytes);
+        image.putInt(MAGIC);
+        image.putInt(VERSION);
+        image.putLong(source.length());
+        image.putLong(source.lastModified());
+        image.putInt(n);
+        image.putInt(totalNameBytes);
+        image.putInt(headerChecksum(image.array()));
+        ra.write(image);
+        dec.write(image);
+        mag.write(image);
+        int offset = 0;
+        for (byte[] b : nameBytes) {
+            image.putInt(offset);
+            offset += b.length;
+        }
+        image.putInt(offset);
+        for (byte[] b : nameBytes) {
+            image.put(b);
+        }
+        assert(!image.hasRemaining());
+        image.rewind();
+        return image;
+    }
+
+    /** Write 'image', from 'parse', to 'cache'.  It is written to a
+      * temporary file first, so an interrupted write never leaves a
+      * cache that looks complete. */
+    private static void writeCache(ByteBuffer image, File cache)
+        throws IOException
+    {
+        File temp = new File(cache.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(image.array(), 0, image.limit());
+        }
+        finally {
+            out.close();
+        }
+
+        if (cache.exists() && !cache.delete()) {
+            temp.delete();
+            throw new IOException("StarCatalogFile: cannot replace "+cache);
+        }
+        if (!temp.renameTo(cache)) {
+            temp.delete();
+            throw new IOException("StarCatalogFile: cannot rename "+temp+" to "+cache);
+        }
+    }
+
+    /** A growable array of float. */
+    private static class FloatColumn {
+        private float[] values = new float[1024];
+        private int size = 0;
+
+        public void add(float v)
+        {
+            if (this.size == this.values.length) {
+                float[] bigger = new float[this.size * 2];
+                System.arraycopy(this.values, 0, bigger, 0, this.size);
+                this.values = bigger;
+            }
+            this.values[this.size++] = v;
+        }
+
+        public void write(ByteBuffer out)
+        {
+            for (int i=0; i < this.size; i++) {
+                out.putFloat(this.values[i]);
+            }
+        }
+    }
+
+    /** Return the characters of 'line' in the 1-based, inclusive column
+      * range used by the catalog documentation, trimmed, or "" if the
+      * line is too short. */
+    private static String columns(String line, int first, int last)
+    {
+        if (line.length() < last) {
+            return "";
+        }
+        return line.substring(first-1, last).trim();
+    }
+
+    /** Parse one line of the Bright Star Catalog.  On success, store
+      * right ascension and declination in degrees, and visual
+      * magnitude, in 'coords', and return the name.  Return null if
+      * the line is not a star with a position. */
+    public static String parseBrightStar(String line, float[] coords)
+    {
+        String raHours = columns(line, 76, 77);
+        String decDegrees = columns(line, 85, 86);
+        String vmag = columns(line, 103, 107);
+        if (raHours.isEmpty() || decDegrees.isEmpty() || vmag.isEmpty()) {
+            return null;      // Short line, or one of the removed entries.
+        }
+
+        try {
+            coords[0] = (float)((Integer.parseInt(raHours) +
+                                 Integer.parseInt(columns(line, 78, 79)) / 60.0 +
+                                 Double.parseDouble(columns(line, 80, 83)) / 3600.0) * 15.0);
+            double dec = Integer.parseInt(decDegrees) +
+                         Integer.parseInt(columns(line, 87, 88)) / 60.0 +
+                         Integer.parseInt(columns(line, 89, 90)) / 3600.0;
+            coords[1] = (float)(line.charAt(83) == '-'? -dec : dec);
+            coords[2] = Float.parseFloat(vmag);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+
+        // The name field is like "13Alp Aur", Flamsteed number, Bayer
+        // letter, constellation, with spaces as padding inside.
+        String name = collapseSpaces(columns(line, 5, 14));
+        if (name.isEmpty()) {
+            name = "HR "+columns(line, 1, 4);
+        }
+        return name;
+    }
+
+    /** Return 's' with each run of spaces replaced by one space. */
+    private static String collapseSpaces(String s)
+    {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i=0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != ' ' || sb.length() == 0 || sb.charAt(sb.length()-1) != ' ') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Same as 'parseBrightStar', for one line of the Hipparcos
+      * catalog. */
+    public static String parseHipparcos(String line, float[] coords)
+    {
+        String[] fields = line.split("\\|", 11);
+        if (fields.length < 10) {
+            return null;
+        }
+        String hip = fields[1].trim();
+        String raDegrees = fields[8].trim();
+        String decDegrees = fields[9].trim();
+        String vmag = fields[5].trim();
+        if (hip.isEmpty() || raDegrees.isEmpty() || decDegrees.isEmpty() || vmag.isEmpty()) {
+            return null;      // Some entries have no position.
+        }
+
+        try {
+            coords[0] = Float.parseFloat(raDegrees);
+            coords[1] = Float.parseFloat(decDegrees);
+            coords[2] = Float.parseFloat(vmag);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        return "HIP "+hip;
+    }
+
+    /** Number of stars in the catalog. */
+    public int size()
+    {
+        return this.numStars;
+    }
+
+    /** Right ascension of star 'i', in degrees. */
+    public float getRightAscension(int i)
+    {
+        return this.rightAscensions.get(i);
+    }
+
+    /** Declination of star 'i', in degrees. */
+    public float getDeclination(int i)
+    {
+        return this.declinations.get(i);
+    }
+
+    /** Visual magnitude of star 'i'. */
+    public float getMagnitude(int i)
+    {
+        return this.magnitudes.get(i);
+    }
+
+    /** Name of star 'i'. */
+    public String getName(int i)
+    {
+        int start = this.nameOffsets.get(i);
+        byte[] b = new byte[this.nameOffsets.get(i+1) - start];
+        ByteBuffer names = this.names.duplicate();
+        names.position(start);
+        names.get(b);
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+
+    /** Make a catalog entry for star 'i'. */
+    public StarCatalog get(int i)
+    {
+        return new StarCatalog(this.getName(i),
+            this.getRightAscension(i), this.getDeclination(i));
+    }
+
+    /** Return the built-in stars of 'StarCatalog.makeCatalog' followed
+      * by the stars of this catalog that are at least as bright as
+      * 'maxMagnitude', in file order, leaving out those that are the
+      * same as a built-in star. */
+    public StarCatalog[] makeCatalog(float maxMagnitude)
+    {
+        StarCatalog[] builtIn = StarCatalog.makeCatalog();
+        ArrayList<StarCatalog> ret = new ArrayList<StarCatalog>();
+        for (StarCatalog sc : builtIn) {
+            ret.add(sc);
+        }
+
+        for (int i=0; i < this.numStars; i++) {
+            if (!(this.getMagnitude(i) <= maxMagnitude)) {
+                continue;
+            }
+            float ra = this.getRightAscension(i);
+            float dec = this.getDeclination(i);
+            boolean same = false;
+            for (StarCatalog sc : builtIn) {
+                if (FloatUtil.sphericalSeparationAngle(ra, dec,
+                        sc.rightAscensionDegrees, sc.declinationDegrees) < SAME_STAR_DEGREES)
+                {
+                    same = true;
+                    break;
+                }
+            }
+            if (!same) {
+                ret.add(this.get(i));
+            }
+        }
+        return ret.toArray(new StarCatalog[ret.size()]);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "StarCatalogFile("+this.source+", stars="+this.numStars+
+            (this.fromCache? ", cached" : ", parsed")+")";
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Return a Bright Star Catalog line with the given fields in their
+      * columns, and everything else blank. */
+    private static String brightStarLine(int hr, String name,
+        int raH, int raM, float raS, char decSign, int decD, int decM, int decS,
+        float vmag)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 197; i++) {
+            sb.append(' ');
+        }
+        put(sb, 1, String.format("%4d", hr));
+        put(sb, 5, String.format("%-10s", name));
+        put(sb, 76, String.format("%02d%02d%04.1f%c%02d%02d%02d",
+            raH, raM, raS, decSign, decD, decM, decS));
+        put(sb, 103, String.format("%5.2f", vmag));
+        return sb.toString();
+    }
+
+    /** Overwrite 'sb' with 's' starting at 1-based column 'column'. */
+    private static void put(StringBuilder sb, int column, String s)
+    {
+        sb.replace(column-1, column-1+s.length(), s);
+    }
+
+    /** Check both formats, the cache, and its invalidation. */
+    private static void testParseAndCache()
+        throws IOException
+    {
+        File dir = Files.createTempDirectory("starcatalog").toFile();
+        File bsc = new File(dir, "bsc5.dat");
+        File cache = new File(bsc.getPath() + ".cache");
+
+        // Capella, as in the built-in catalog, and an unnamed star.
+        PrintWriter pw = new PrintWriter(bsc, "ISO-8859-1");
+        pw.println(brightStarLine(1708, "13Alp  Aur", 5, 16, 41.4f, '+', 45, 59, 53, 0.08f));
+        pw.println(brightStarLine(2, "", 0, 5, 3.8f, '-', 0, 30, 11, 6.29f));
+        pw.println("  92                                                        ");
+        pw.close();
+
+        StarCatalogFile f = open(bsc);
+        assert(!f.fromCache);
+        assert(f.size() == 2) : f;
+        assert(f.getName(0).equals("13Alp Aur"));
+        assert(f.getName(1).equals("HR 2"));
+        assert(Math.abs(f.getRightAscension(0) - (5 + 16/60.0 + 41.4/3600) * 15) < 1e-4);
+        assert(Math.abs(f.getDeclination(0) - (45 + 59/60.0 + 53/3600.0)) < 1e-4);
+        assert(Math.abs(f.getDeclination(1) + (30/60.0 + 11/3600.0)) < 1e-4);
+        assert(f.getMagnitude(1) == 6.29f);
+
+        // The second open uses the cache.
+        StarCatalogFile g = open(bsc);
+        assert(g.fromCache);
+        assert(g.size() == 2 && g.getName(1).equals("HR 2"));
+
+        // Capella is the built-in star, so only the other is added.
+        StarCatalog[] merged = g.makeCatalog(10);
+        assert(merged.length == StarCatalog.makeCatalog().length + 1);
+        assert(merged[merged.length-1].name.equals("HR 2"));
+        assert(g.makeCatalog(5).length == StarCatalog.makeCatalog().length);
+
+        // Changing the catalog invalidates the cache.
+        pw = new PrintWriter(new FileOutputStream(bsc, true /*append*/));
+        pw.println("H|         7| |00 00 22.03|-52 00 50.6| 9.64| |H|000.09181069|-52.01404497|");
+        pw.close();
+        StarCatalogFile h = open(bsc);
+        assert(!h.fromCache);
+        assert(h.size() == 3);
+        assert(h.getName(2).equals("HIP 7"));
+        assert(Math.abs(h.getDeclination(2) + 52.01404497) < 1e-4);
+
+        // A truncated cache is rebuilt.
+        RandomAccessFile raf = new RandomAccessFile(cache, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        assert(!open(bsc).fromCache);
+        assert(open(bsc).fromCache);
+
+        // So is one whose header does not match its checksum.
+        raf = new RandomAccessFile(cache, "rw");
+        raf.seek(HEADER_BYTES - 4);
+        int checksum = raf.readInt();
+        raf.seek(HEADER_BYTES - 4);
+        raf.writeInt(checksum ^ 1);
+        raf.close();
+        assert(!open(bsc).fromCache);
+
+        // A cache that cannot be written is not needed.
+        File unwritable = new File(new File(dir, "missing"), "bsc5.dat.cache");
+        StarCatalogFile m = open(bsc, unwritable);
+        assert(!m.fromCache && !unwritable.exists());
+        assert(m.size() == 3 && m.getName(2).equals("HIP 7"));
+        assert(m.getDeclination(1) == h.getDeclination(1));
+
+        bsc.delete();
+        cache.delete();
+        dir.delete();
+    }
+
+    /** Check that the cache of a large catalog holds the same stars as
+      * parsing it, and report the time each takes. */
+    private static void testLarge()
+        throws IOException
+    {
+        File dir = Files.createTempDirectory("starcatalog").toFile();
+        File hip = new File(dir, "hip_main.dat");
+        int n = 120000;
+        Random random = new Random(1);
+        PrintWriter pw = new PrintWriter(hip, "ISO-8859-1");
+        for (int i=1; i <= n; i++) {
+            pw.println(String.format("H|%10d| |00 00 00.00|+00 00 00.0|%5.2f| |H|%012.8f|%+012.8f|",
+                i, random.nextFloat() * 12, random.nextDouble() * 360,
+                random.nextDouble() * 180 - 90));
+        }
+        pw.close();
+
+        long start = System.nanoTime();
+        StarCatalogFile parsed = open(hip);
+        long parseNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        StarCatalogFile mapped = open(hip);
+        long mapNanos = System.nanoTime() - start;
+        System.out.println(n+" stars: parsed in "+parseNanos/1000000+" ms, "+
+            "mapped in "+mapNanos/1000000+" ms");
+
+        assert(!parsed.fromCache && mapped.fromCache);
+        assert(new File(hip.getPath() + ".cache").exists());
+        assert(parsed.size() == n && mapped.size() == n);
+        for (int i=0; i < n; i++) {
+            assert(mapped.getRightAscension(i) == parsed.getRightAscension(i)) : i;
+            assert(mapped.getDeclination(i) == parsed.getDeclination(i)) : i;
+            assert(mapped.getMagnitude(i) == parsed.getMagnitude(i)) : i;
+            assert(mapped.getName(i).equals(parsed.getName(i))) : i;
+            assert(mapped.getName(i).equals("HIP "+(i+1))) : i;
+        }
+
+        // Naked-eye stars make a catalog of usable size.
+        StarCatalog[] bright = mapped.makeCatalog(6);
+        System.out.println("stars of magnitude 6 or brighter: "+bright.length);
+        assert(bright.length > n / 3 && bright.length < n * 2 / 3);
+
+        new File(hip.getPath() + ".cache").delete();
+        hip.delete();
+        dir.delete();
+    }
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        testParseAndCache();
+        testLarge();
+        System.out.println("StarCatalogFile tests passed");
+    }
+}
+
+// EOF
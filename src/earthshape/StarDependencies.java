@@ -0,0 +1,487 @@
+// StarDependencies.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.Matrix3d;
+
+import static util.swing.SwingUtil.log;
+
+/** Which squares of a surface depend on which stars, and on which
+  * other squares, so that when stars are enabled or disabled, only
+  * the squares that change need to be placed again.
+  *
+  * A square is oriented against its base square using the stars that
+  * qualify at both, so its fit can involve a star only if the star is
+  * observable at both locations.  Those squares are oriented again,
+  * from their possibly new bases.  When the stars are at infinity,
+  * their descendants, in the tree of base squares, are not: the fit
+  * then determines only the orientation relative to the base, which
+  * does not depend on where the base is, so each keeps that and is
+  * carried along with its base.  With stars at a finite distance, the
+  * fit depends on the base's position too, so the descendants are
+  * oriented again as well.  Everything else is reused, the same
+  * objects in the same places, except that squares that observe a
+  * changed star get their recorded observations updated in place.  A
+  * square whose new fit is within 'toleranceDegrees' of its old one
+  * is kept too, with only its observations updated, so that its
+  * descendants do not move.  So a star that few fits involve replaces
+  * few squares.
+  *
+  * So with a tolerance of zero, the result is the same as a full
+  * rebuild, except, with stars at infinity, for the rounding of
+  * carrying squares rather than fitting them.  Cells that could not be
+  * placed before are not tried again, so enabling a star can not grow
+  * the surface; a full build does that. */
+public class StarDependencies {
+    // ---- Types ----
+    /** Outcome of 'rebuild'. */
+    public static class Result {
+        /** The new squares, in the order of the old ones, without the
+          * ones that could no longer be placed. */
+        public final ArrayList<SurfaceSquare> squares = new ArrayList<SurfaceSquare>();
+
+        /** Map from each old square that was replaced to its
+          * replacement, or to null if it was dropped.  Squares not in
+          * the map are in 'squares' themselves, with their observations
+          * updated if 'numUpdated' counts them. */
+        public final IdentityHashMap<SurfaceSquare, SurfaceSquare> replacements =
+            new IdentityHashMap<SurfaceSquare, SurfaceSquare>();
+
+        /** The keys of 'replacements', with each base before the
+          * squares built on it, which is the order to apply them in. */
+        public final ArrayList<SurfaceSquare> replaced = new ArrayList<SurfaceSquare>();
+
+        /** Number of squares oriented again from star data. */
+        public int numReoriented = 0;
+
+        /** Number of squares moved along with their base. */
+        public int numCarried = 0;
+
+        /** Number of squares kept that only had their observations
+          * updated. */
+        public int numUpdated = 0;
+
+        /** Number of squares dropped. */
+        public int numDropped = 0;
+
+        @Override
+        public String toString()
+        {
+            return "StarDependencies.Result("+
+                "squares="+this.squares.size()+
+                ", reoriented="+this.numReoriented+
+                ", carried="+this.numCarried+
+                ", updated="+this.numUpdated+
+                ", dropped="+this.numDropped+
+                ")";
+        }
+    }
+
+    // ---- Constants ----
+    /** Default for 'toleranceDegrees'.  Well above the change that
+      * dropping one of several consistent stars makes to a fit, and
+      * well below what a square that depended on it moves. */
+    public static final double DEFAULT_TOLERANCE_DEGREES = 0.05;
+
+    // ---- Instance data ----
+    /** A square whose fit involves a changed star, but whose new fit,
+      * from the same base, turns it less than this many degrees, is
+      * kept, so the squares built on it do not move.  With zero, only
+      * fits that do not change at all are kept. */
+    public double toleranceDegrees = DEFAULT_TOLERANCE_DEGREES;
+
+    /** The squares, in the order given. */
+    private final List<SurfaceSquare> squares;
+
+    /** Map from each square to the squares that have it as their base,
+      * in the order of 'squares'. */
+    private final IdentityHashMap<SurfaceSquare, ArrayList<SurfaceSquare>> children =
+        new IdentityHashMap<SurfaceSquare, ArrayList<SurfaceSquare>>();
+
+    /** Map from star name to the squares where it is observable. */
+    private final HashMap<String, Set<SurfaceSquare>> observers =
+        new HashMap<String, Set<SurfaceSquare>>();
+
+    /** Map from star name to the squares whose fit to their base could
+      * involve the star, because it is observable at both. */
+    private final HashMap<String, Set<SurfaceSquare>> fitters =
+        new HashMap<String, Set<SurfaceSquare>>();
+
+    // ---- Methods ----
+    /** Find the dependencies among 'squares_', using the observations
+      * and settings of 'reconstructor'.  The enabled stars do not
+      * matter.  The list is not modified. */
+    public StarDependencies(SurfaceReconstructor reconstructor, List<SurfaceSquare> squares_)
+    {
+        this.squares = squares_;
+
+        IdentityHashMap<SurfaceSquare, Set<String>> observable =
+            new IdentityHashMap<SurfaceSquare, Set<String>>();
+        for (SurfaceSquare s : this.squares) {
+            Set<String> stars = reconstructor.getObservableStars(s.latitude, s.longitude);
+            observable.put(s, stars);
+            for (String star : stars) {
+                addTo(this.observers, star, s);
+            }
+            this.children.put(s, new ArrayList<SurfaceSquare>());
+        }
+
+        for (SurfaceSquare s : this.squares) {
+            ArrayList<SurfaceSquare> siblings = this.children.get(s.baseSquare);
+            if (siblings == null) {
+                continue;         // No base, or not one of 'squares'.
+            }
+            siblings.add(s);
+
+            Set<String> atBase = observable.get(s.baseSquare);
+            for (String star : observable.get(s)) {
+                if (atBase.contains(star)) {
+                    addTo(this.fitters, star, s);
+                }
+            }
+        }
+    }
+
+    /** Add 's' to the set for 'star' in 'map'. */
+    private static void addTo(HashMap<String, Set<SurfaceSquare>> map,
+        String star, SurfaceSquare s)
+    {
+        Set<SurfaceSquare> set = map.get(star);
+        if (set == null) {
+            set = Collections.newSetFromMap(new IdentityHashMap<SurfaceSquare, Boolean>());
+            map.put(star, set);
+        }
+        set.add(s);
+    }
+
+    /** Return the squares whose fit could involve any of 'stars'. */
+    public Set<SurfaceSquare> getFitsInvolving(Collection<String> stars)
+    {
+        return union(this.fitters, stars);
+    }
+
+    /** Return the squares where any of 'stars' is observable. */
+    public Set<SurfaceSquare> getObserversOf(Collection<String> stars)
+    {
+        return union(this.observers, stars);
+    }
+
+    /** Return the union of the sets in 'map' for 'stars'. */
+    private static Set<SurfaceSquare> union(HashMap<String, Set<SurfaceSquare>> map,
+        Collection<String> stars)
+    {
+        Set<SurfaceSquare> ret =
+            Collections.newSetFromMap(new IdentityHashMap<SurfaceSquare, Boolean>());
+        for (String star : stars) {
+            Set<SurfaceSquare> set = map.get(star);
+            if (set != null) {
+                ret.addAll(set);
+            }
+        }
+        return ret;
+    }
+
+    /** Return the stars whose enabled state differs between 'before'
+      * and 'after'.  A star missing from a map counts as disabled. */
+    public static ArrayList<String> changedStars(
+        Map<String, Boolean> before, Map<String, Boolean> after)
+    {
+        LinkedHashSet<String> names = new LinkedHashSet<String>();
+        names.addAll(before.keySet());
+        names.addAll(after.keySet());
+
+        ArrayList<String> ret = new ArrayList<String>();
+        for (String name : names) {
+            if (Boolean.TRUE.equals(before.get(name)) != Boolean.TRUE.equals(after.get(name))) {
+                ret.add(name);
+            }
+        }
+        return ret;
+    }
+
+    /** Update the squares for a change in the enabled state of
+      * 'changed', as described at the top of the class.
+      * 'reconstructor' must already have the new enabled stars.  The
+      * squares kept are only modified by replacing their 'starObs'
+      * maps; the others are not modified. */
+    public Result rebuild(SurfaceReconstructor reconstructor, Collection<String> changed)
+    {
+        Set<SurfaceSquare> reorient = this.getFitsInvolving(changed);
+        Set<SurfaceSquare> update = this.getObserversOf(changed);
+        Result ret = new Result();
+
+        // Visit bases before the squares built on them.
+        ArrayDeque<SurfaceSquare> queue = new ArrayDeque<SurfaceSquare>();
+        for (SurfaceSquare s : this.squares) {
+            if (!this.children.containsKey(s.baseSquare)) {
+                queue.add(s);
+            }
+        }
+        while (!queue.isEmpty()) {
+            SurfaceSquare s = queue.poll();
+            SurfaceSquare base = s.baseSquare;
+            SurfaceSquare newBase = base;
+            if (base != null && ret.replacements.containsKey(base)) {
+                newBase = ret.replacements.get(base);
+            }
+
+            SurfaceSquare ns;
+            if (base != null && newBase == null) {
+                ns = null;                      // Base was dropped.
+            }
+            else if (reorient.contains(s)) {
+                ns = reconstructor.createAndAutomaticallyOrientSquare(
+                    newBase, s.latitude, s.longitude);
+                if (newBase == base && ns != null && ns != base &&
+                    angleBetween(ns, s) <= this.toleranceDegrees)
+                {
+                    // The change barely matters to this fit; keep the
+                    // square, with the new fit's observations.
+                    s.starObs = ns.starObs;
+                    ns = s;
+                    ret.numUpdated++;
+                }
+                else {
+                    ret.numReoriented++;
+                }
+            }
+            else if (newBase != base &&
+                     !reconstructor.options.assumeInfiniteStarDistance)
+            {
+                // Where the base is matters to the fit.
+                ns = reconstructor.createAndAutomaticallyOrientSquare(
+                    newBase, s.latitude, s.longitude);
+                ret.numReoriented++;
+            }
+            else if (newBase != base) {
+                ns = reconstructor.createRebasedSquare(s, newBase);
+                if (update.contains(s)) {
+                    reconstructor.addMatchingData(ns);
+                }
+                else {
+                    ns.starObs = s.starObs;
+                }
+                ret.numCarried++;
+            }
+            else if (update.contains(s)) {
+                // Its geometry does not change, so the squares built on
+                // it stay where they are.  A new map, rather than
+                // clearing the old one, so anyone holding the old one
+                // sees a consistent set.
+                s.starObs = new HashMap<String, StarObservation>();
+                reconstructor.addMatchingData(s);
+                ns = s;
+                ret.numUpdated++;
+            }
+            else {
+                ns = s;
+            }
+
+            if (ns == null) {
+                ret.numDropped++;
+            }
+            else {
+                ns.drawStarRays = s.drawStarRays;
+            }
+            if (ns != s) {
+                ret.replacements.put(s, ns);
+                ret.replaced.add(s);
+            }
+            queue.addAll(this.children.get(s));
+        }
+
+        for (SurfaceSquare s : this.squares) {
+            SurfaceSquare ns = ret.replacements.containsKey(s)? ret.replacements.get(s) : s;
+            if (ns != null) {
+                ret.squares.add(ns);
+            }
+        }
+
+        log("StarDependencies: "+changed+": "+ret);
+        return ret;
+    }
+
+    /** Angle in degrees between the orientations of 'a' and 'b'.  For
+      * rotations differing by angle t, the squared Frobenius norm of
+      * their difference is 8 sin^2(t/2).  That is used rather than the
+      * trace of the relative rotation, whose cosine cannot resolve the
+      * small angles this is compared against, given orientations
+      * built from float vectors. */
+    private static double angleBetween(SurfaceSquare a, SurfaceSquare b)
+    {
+        Matrix3d d = a.orientation().plus(b.orientation().times(-1));
+        double sumSquares =
+            d.a11()*d.a11() + d.a12()*d.a12() + d.a13()*d.a13() +
+            d.a21()*d.a21() + d.a22()*d.a22() + d.a23()*d.a23() +
+            d.a31()*d.a31() + d.a32()*d.a32() + d.a33()*d.a33();
+        return Math.toDegrees(2 * Math.asin(Math.min(1, Math.sqrt(sumSquares / 8))));
+    }
+
+    // --------------------------- Test code ------------------------------
+
+    /** Check that disabling and enabling a star changes only what
+      * depends on it, and agrees with building from scratch, with the
+      * stars at infinity or not. */
+    private static void testRebuild(boolean infinite)
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        r.options.assumeInfiniteStarDistance = infinite;
+        List<SurfaceSquare> original =
+            r.buildEarthSurfaceFromStarData(BuildProgress.NONE).getSurfaceSquares();
+
+        // Disable the star that the fewest fits, but some, depend on.
+        StarDependencies deps = new StarDependencies(r, original);
+        String star = null;
+        for (Map.Entry<String, Set<SurfaceSquare>> e : deps.fitters.entrySet()) {
+            if (star == null || e.getValue().size() < deps.fitters.get(star).size()) {
+                star = e.getKey();
+            }
+        }
+        ArrayList<String> changed = new ArrayList<String>();
+        changed.add(star);
+
+        LinkedHashMap<String, Boolean> before =
+            new LinkedHashMap<String, Boolean>(r.getEnabledStars());
+        LinkedHashMap<String, Boolean> after =
+            new LinkedHashMap<String, Boolean>(before);
+        after.put(star, false);
+        assert(changedStars(before, after).equals(changed));
+        r.setEnabledStars(after);
+
+        // First re-fit every fit that involves the star, so the result
+        // can be compared with building from scratch.
+        deps.toleranceDegrees = 0;
+        Result res = deps.rebuild(r, changed);
+        System.out.println("incremental: "+res);
+        assert(res.numReoriented > 0);
+        assert(res.numReoriented < original.size());
+        assert(infinite || res.numCarried == 0);
+        checkReplacements(original, res, star);
+
+        // Squares carried along, which only happens with stars at
+        // infinity, keep their orientation relative to their bases.
+        Set<SurfaceSquare> reoriented = deps.getFitsInvolving(changed);
+        for (SurfaceSquare s : original) {
+            SurfaceSquare ns = res.replacements.get(s);
+            if (infinite && ns != null && !reoriented.contains(s) &&
+                ns.baseSquare != s.baseSquare)
+            {
+                Matrix3d was = s.baseSquare.orientation().transpose().times(s.orientation());
+                Matrix3d is = ns.baseSquare.orientation().transpose().times(ns.orientation());
+                assert(was.times(is.transpose()).rotationVectorDegrees().length() < 1e-3);
+            }
+        }
+
+        // Compare with building from scratch.  Squares that were not
+        // carried, and have no carried ancestor, should be the same,
+        // which, with finite distances, is all of them.  The rest are
+        // not compared: far from the start, the fits are poorly
+        // constrained, and re-fitting them moves them more than
+        // removing one star does.
+        List<SurfaceSquare> full =
+            r.buildEarthSurfaceFromStarData(BuildProgress.NONE).getSurfaceSquares();
+        assert(full.size() == res.squares.size());
+        Set<SurfaceSquare> exact =
+            Collections.newSetFromMap(new IdentityHashMap<SurfaceSquare, Boolean>());
+        int numCompared = 0;
+        for (int i=0; i < full.size(); i++) {
+            SurfaceSquare s = original.get(i);
+            SurfaceSquare ns = res.squares.get(i);
+            SurfaceSquare f = full.get(i);
+            assert(f.latitude == ns.latitude && f.longitude == ns.longitude) : i;
+            boolean carried = infinite && !reoriented.contains(s) &&
+                ns.baseSquare != s.baseSquare;
+            if (!carried && (s.baseSquare == null || exact.contains(s.baseSquare))) {
+                exact.add(s);
+                assert(angleBetween(f, ns) < 1e-3) : i;
+                assert(f.center.minus(ns.center).length() < 1e-3) : i;
+                numCompared++;
+            }
+        }
+        System.out.println("same as full build: "+numCompared+" squares");
+        assert(numCompared > res.numReoriented || numCompared == full.size());
+        assert(infinite || numCompared == full.size());
+
+        // Enabling it again restores the original.
+        r.setEnabledStars(before);
+        StarDependencies backDeps = new StarDependencies(r, res.squares);
+        backDeps.toleranceDegrees = 0;
+        Result back = backDeps.rebuild(r, changed);
+        assert(back.squares.size() == original.size());
+        for (int i=0; i < original.size(); i++) {
+            SurfaceSquare o = original.get(i);
+            SurfaceSquare b = back.squares.get(i);
+            assert(angleBetween(o, b) < 1e-3) : i;
+            assert(o.center.minus(b.center).length() < 1e-3) : i;
+            assert(o.starObs.keySet().equals(b.starObs.keySet())) : i;
+        }
+
+        // With the default tolerance, fits that barely change are kept,
+        // and so are the squares built on them.
+        StarDependencies tolerant = new StarDependencies(r, original);
+        r.setEnabledStars(after);
+        Result kept = tolerant.rebuild(r, changed);
+        System.out.println("with tolerance: "+kept);
+        assert(kept.replacements.size() < res.replacements.size());
+        assert(kept.numUpdated > res.numUpdated);
+        checkReplacements(original, kept, star);
+        r.setEnabledStars(before);
+    }
+
+    /** Check that 'res', the result of disabling 'star' in 'original',
+      * only replaced squares that were re-fit or were built on a
+      * replaced square, and that no square records the star. */
+    private static void checkReplacements(List<SurfaceSquare> original, Result res,
+        String star)
+    {
+        int numReplacedBase = 0;
+        for (SurfaceSquare s : original) {
+            SurfaceSquare ns = res.replacements.containsKey(s)? res.replacements.get(s) : s;
+            boolean baseReplaced =
+                s.baseSquare != null && res.replacements.containsKey(s.baseSquare);
+            if (baseReplaced) {
+                numReplacedBase++;
+            }
+            if (ns == null) {
+                continue;
+            }
+            assert(!ns.starObs.containsKey(star));
+            if (ns != s) {
+                assert(baseReplaced || ns.baseSquare == s.baseSquare);
+            }
+        }
+        assert(res.replacements.size() ==
+            res.numReoriented + res.numCarried + res.numDropped);
+        assert(res.replaced.size() == res.replacements.size());
+        Set<SurfaceSquare> seen =
+            Collections.newSetFromMap(new IdentityHashMap<SurfaceSquare, Boolean>());
+        for (SurfaceSquare s : res.replaced) {
+            assert(res.replacements.containsKey(s));
+            assert(!res.replacements.containsKey(s.baseSquare) || seen.contains(s.baseSquare));
+            seen.add(s);
+        }
+        assert(numReplacedBase <= res.numCarried + res.numDropped + res.numReoriented);
+    }
+
+    public static void main(String[] args)
+    {
+        testRebuild(true /*infinite*/);
+        testRebuild(false /*infinite*/);
+        System.out.println("StarDependencies tests passed");
+    }
+}
+
+// EOF
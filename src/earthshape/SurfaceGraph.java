@@ -0,0 +1,714 @@
+// SurfaceGraph.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import util.Matrix3d;
+import util.Vector3f;
+
+/** The squares of a surface, along with which squares are built on
+  * which, so that editing one square can update the ones built from it.
+  *
+  * Each square is placed relative to its base square, so when a square
+  * is replaced, for example because its orientation was adjusted by
+  * hand, the squares built from it are left where the old one put them.
+  * This marks them stale instead, and 'resolve', which the writer calls
+  * once it has made a batch of edits, re-derives each one from its new
+  * base, keeping its orientation relative to that base.  Their own
+  * descendants are then re-derived in turn.  Several edits before a
+  * 'resolve', as when a rotation is animated, cost one re-derivation.
+  * Reading the squares never changes them.
+  *
+  * The index of positions and children is only built on the first
+  * edit, so adding squares during a build costs no more than adding to
+  * a list.  After that, an edit only touches the square and its
+  * immediate children.  A removed square leaves a hole in the list,
+  * which stays until the graph is cleared; the view 'getSquares'
+  * returns skips over it. */
+public class SurfaceGraph {
+    // ---- Instance data ----
+    /** Supplies the travel observations used to re-derive squares.  If
+      * null, squares built on a replaced square are only re-attached
+      * to its replacement, without moving. */
+    private final SurfaceReconstructor reconstructor;
+
+    /** Squares in the order added.  A replacement takes the place of
+      * the square it replaces.  Removed squares are null. */
+    private final ArrayList<SurfaceSquare> squares = new ArrayList<SurfaceSquare>();
+
+    /** Number of nulls in 'squares'. */
+    private int numHoles = 0;
+
+    /** The present squares, as returned by 'getSquares'. */
+    private final PresentSquares presentSquares = new PresentSquares();
+
+    /** Index in 'squares' of the square last returned by
+      * 'presentSquares.get', or -1, and its index among the present
+      * squares.  Walking from here makes visiting the squares in order
+      * by index cost the same as iterating. */
+    private int cursorSlot = -1;
+    private int cursorIndex = -1;
+
+    /** Index in 'squares' of each square, or null if the index has not
+      * been built yet. */
+    private IdentityHashMap<SurfaceSquare, Integer> positions = null;
+
+    /** Squares whose base is each square that has any.  Null when
+      * 'positions' is. */
+    private IdentityHashMap<SurfaceSquare, Set<SurfaceSquare>> children = null;
+
+    /** Map from each stale square to the square it is now built on. */
+    private final IdentityHashMap<SurfaceSquare, SurfaceSquare> staleBases =
+        new IdentityHashMap<SurfaceSquare, SurfaceSquare>();
+
+    /** Stale squares in the order they became stale, which puts bases
+      * before the squares built on them.  May also contain squares that
+      * are no longer stale. */
+    private final ArrayDeque<SurfaceSquare> staleQueue = new ArrayDeque<SurfaceSquare>();
+
+    /** If not null, where the replacement of each re-derived square is
+      * announced. */
+    public SquareEventBus events = null;
+
+    /** True if this graph is also a subscriber of 'events', so the
+      * announcements of its re-derivations come back to 'apply'. */
+    public boolean followsEvents = false;
+
+    /** Map from each square re-derived while 'followsEvents' was set to
+      * the square that replaced it, until 'apply' sees the announcement
+      * of that come back.  See 'apply'. */
+    private final IdentityHashMap<SurfaceSquare, SurfaceSquare> rederived =
+        new IdentityHashMap<SurfaceSquare, SurfaceSquare>();
+
+    /** Number of squares re-derived so far. */
+    public int numRederived = 0;
+
+    // ---- Types ----
+    /** Read-only view of the present squares of 'squares', in order. */
+    private class PresentSquares extends AbstractList<SurfaceSquare> {
+        @Override
+        public int size()
+        {
+            return SurfaceGraph.this.size();
+        }
+
+        @Override
+        public SurfaceSquare get(int i)
+        {
+            if (i < 0 || i >= this.size()) {
+                throw new IndexOutOfBoundsException("SurfaceGraph: index "+i+
+                    " of "+this.size());
+            }
+            SurfaceGraph g = SurfaceGraph.this;
+            if (g.numHoles == 0) {
+                return g.squares.get(i);
+            }
+            while (g.cursorIndex < i) {
+                g.cursorSlot++;
+                if (g.squares.get(g.cursorSlot) != null) {
+                    g.cursorIndex++;
+                }
+            }
+            while (g.cursorIndex > i) {
+                g.cursorSlot--;
+                if (g.squares.get(g.cursorSlot) != null) {
+                    g.cursorIndex--;
+                }
+            }
+            return g.squares.get(g.cursorSlot);
+        }
+
+        @Override
+        public Iterator<SurfaceSquare> iterator()
+        {
+            return new Iterator<SurfaceSquare>() {
+                /** Index in 'squares' of the next present square. */
+                private int slot = SurfaceGraph.this.nextSlot(-1, true);
+
+                public boolean hasNext()
+                {
+                    return this.slot < SurfaceGraph.this.squares.size();
+                }
+
+                public SurfaceSquare next()
+                {
+                    if (!this.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    SurfaceSquare ret = SurfaceGraph.this.squares.get(this.slot);
+                    this.slot = SurfaceGraph.this.nextSlot(this.slot, true);
+                    return ret;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    // ---- Methods ----
+    public SurfaceGraph(SurfaceReconstructor reconstructor_)
+    {
+        this.reconstructor = reconstructor_;
+    }
+
+    /** Add 's' at the end. */
+    public void add(SurfaceSquare s)
+    {
+        this.squares.add(s);
+        if (this.positions != null) {
+            this.positions.put(s, this.squares.size()-1);
+            this.addChild(s);
+        }
+    }
+
+    /** Remove 's', and clear the base references to it of the squares
+      * built on it, which stay where they are.  Return false if 's' is
+      * not present. */
+    public boolean remove(SurfaceSquare s)
+    {
+        this.buildIndex();
+        Integer index = this.positions.remove(s);
+        if (index == null) {
+            return false;
+        }
+        this.squares.set(index, null);
+        this.numHoles++;
+        this.cursorSlot = this.cursorIndex = -1;
+        this.removeChild(s);
+        this.staleBases.remove(s);
+
+        Set<SurfaceSquare> orphans = this.children.remove(s);
+        if (orphans != null) {
+            for (SurfaceSquare c : orphans) {
+                c.baseSquare = null;
+                c.baseMidpoint = null;
+                this.staleBases.remove(c);
+            }
+        }
+        return true;
+    }
+
+    /** Put 'newSquare' in the place of 'oldSquare', and mark the
+      * squares built on 'oldSquare' stale, to be re-derived from
+      * 'newSquare' by 'resolve'.  If 'oldSquare' is not present,
+      * 'newSquare' is added at the end. */
+    public void replace(SurfaceSquare oldSquare, SurfaceSquare newSquare)
+    {
+        this.buildIndex();
+        Integer index = this.positions.remove(oldSquare);
+        if (index == null) {
+            this.add(newSquare);
+            return;
+        }
+        this.squares.set(index, newSquare);
+        this.positions.put(newSquare, index);
+        this.removeChild(oldSquare);
+        this.addChild(newSquare);
+
+        // The new square is placed relative to its own base, which is
+        // current, whether or not the old one was.
+        this.staleBases.remove(oldSquare);
+
+        Set<SurfaceSquare> built = this.children.remove(oldSquare);
+        if (built != null) {
+            this.children.put(newSquare, built);
+            for (SurfaceSquare c : built) {
+                if (this.reconstructor == null) {
+                    c.baseSquare = newSquare;
+                }
+                else {
+                    if (!this.staleBases.containsKey(c)) {
+                        this.staleQueue.add(c);
+                    }
+                    this.staleBases.put(c, newSquare);
+                }
+            }
+        }
+    }
+
+    /** Remove all squares. */
+    public void clear()
+    {
+        this.squares.clear();
+        this.numHoles = 0;
+        this.cursorSlot = this.cursorIndex = -1;
+        this.positions = null;
+        this.children = null;
+        this.staleBases.clear();
+        this.staleQueue.clear();
+        this.rederived.clear();
+    }
+
+    /** Make the change 'e' describes.  This is for a graph that follows
+      * a SquareEventBus, or that passes on what it applies to one.  If
+      * 'followsEvents', it is also where it announces the squares it
+      * re-derives, which therefore come back here.
+      *
+      * Several replacements published together, bases first, can be
+      * split by a 'resolve', which re-derives the squares whose turn
+      * has not come yet.  So a replacement or removal of a square that was
+      * re-derived applies to the square it became, and the
+      * announcement of the re-derivation itself, when it comes back,
+      * is ignored.  Other changes to squares that are not present are
+      * ignored as well. */
+    public void apply(SquareEvent e)
+    {
+        switch (e.kind) {
+            case PLACED:
+                this.add(e.square);
+                break;
+
+            case REPLACED: {
+                if (this.rederived.get(e.oldSquare) == e.square) {
+                    this.rederived.remove(e.oldSquare);
+                    break;
+                }
+                SurfaceSquare current = this.currentSquare(e.oldSquare);
+                if (current != null) {
+                    this.replace(current, e.square);
+                }
+                break;
+            }
+
+            case REMOVED: {
+                SurfaceSquare current = this.currentSquare(e.square);
+                if (current != null) {
+                    this.remove(current);
+                }
+                break;
+            }
+
+            case CLEARED:
+                this.clear();
+                break;
+
+            case BUILD_FINISHED:
+                break;
+        }
+    }
+
+    /** Return 's' if present, else the present square it was re-derived
+      * into, if any, else null. */
+    private SurfaceSquare currentSquare(SurfaceSquare s)
+    {
+        this.buildIndex();
+        while (s != null && !this.positions.containsKey(s)) {
+            s = this.rederived.get(s);
+        }
+        return s;
+    }
+
+    /** Return the number of squares. */
+    public int size()
+    {
+        return this.squares.size() - this.numHoles;
+    }
+
+    /** Return true if 's' is present. */
+    public boolean contains(SurfaceSquare s)
+    {
+        this.buildIndex();
+        return this.positions.containsKey(s);
+    }
+
+    /** Return true if 's' is waiting to be re-derived. */
+    public boolean isStale(SurfaceSquare s)
+    {
+        return this.staleBases.containsKey(s);
+    }
+
+    /** Get a read-only view of the squares, in order.  Stale squares
+      * are where their old bases put them until 'resolve'.  Iterating
+      * over it, or visiting it in order by index, costs time in
+      * proportion to the squares ever added since 'clear'. */
+    public List<SurfaceSquare> getSquares()
+    {
+        return this.presentSquares;
+    }
+
+    /** Return the square after 's' in 'getSquares', or before it if not
+      * 'forward'; or if 's' is null, the first or last square.  Return
+      * null if there is no such square or 's' is not present. */
+    public SurfaceSquare next(SurfaceSquare s, boolean forward)
+    {
+        int slot;
+        if (s == null) {
+            slot = forward? -1 : this.squares.size();
+        }
+        else {
+            this.buildIndex();
+            Integer index = this.positions.get(s);
+            if (index == null) {
+                return null;
+            }
+            slot = index;
+        }
+        slot = this.nextSlot(slot, forward);
+        return (0 <= slot && slot < this.squares.size())? this.squares.get(slot) : null;
+    }
+
+    /** Return the index in 'squares' of the first present square after
+      * 'slot', or before it if not 'forward'.  Returns the size of
+      * 'squares', or -1, if there is none. */
+    private int nextSlot(int slot, boolean forward)
+    {
+        int step = forward? 1 : -1;
+        for (slot += step; 0 <= slot && slot < this.squares.size(); slot += step) {
+            if (this.squares.get(slot) != null) {
+                break;
+            }
+        }
+        return slot;
+    }
+
+    /** Build 'positions' and 'children' if they are not built yet. */
+    private void buildIndex()
+    {
+        if (this.positions != null) {
+            return;
+        }
+        this.positions = new IdentityHashMap<SurfaceSquare, Integer>();
+        this.children = new IdentityHashMap<SurfaceSquare, Set<SurfaceSquare>>();
+        for (int i=0; i < this.squares.size(); i++) {
+            SurfaceSquare s = this.squares.get(i);
+            if (s != null) {
+                this.positions.put(s, i);
+                this.addChild(s);
+            }
+        }
+    }
+
+    /** Record 's' as built on its base. */
+    private void addChild(SurfaceSquare s)
+    {
+        if (s.baseSquare == null) {
+            return;
+        }
+        Set<SurfaceSquare> set = this.children.get(s.baseSquare);
+        if (set == null) {
+            set = Collections.newSetFromMap(new IdentityHashMap<SurfaceSquare, Boolean>());
+            this.children.put(s.baseSquare, set);
+        }
+        set.add(s);
+    }
+
+    /** Undo 'addChild'. */
+    private void removeChild(SurfaceSquare s)
+    {
+        // A stale square is listed under its new base.
+        SurfaceSquare base = this.staleBases.get(s);
+        if (base == null) {
+            base = s.baseSquare;
+        }
+        Set<SurfaceSquare> set = (base == null)? null : this.children.get(base);
+        if (set != null) {
+            set.remove(s);
+            if (set.isEmpty()) {
+                this.children.remove(base);
+            }
+        }
+    }
+
+    /** Re-derive the stale squares, bases first, and announce each
+      * replacement on 'events', if set.  This only visits the squares
+      * made stale since the last call. */
+    public void resolve()
+    {
+        while (!this.staleQueue.isEmpty()) {
+            SurfaceSquare s = this.staleQueue.poll();
+            SurfaceSquare newBase = this.staleBases.get(s);
+            if (newBase == null) {
+                continue;         // Removed or replaced since.
+            }
+
+            SurfaceSquare ns = this.reconstructor.createRebasedSquare(s, newBase);
+            if (ns == null) {
+                // The base moved onto this square's location, which
+                // manual edits do not do; just re-attach it.
+                this.staleBases.remove(s);
+                s.baseSquare = newBase;
+                continue;
+            }
+            ns.starObs = s.starObs;
+            ns.drawStarRays = s.drawStarRays;
+            this.numRederived++;
+
+            // This queues the squares built on 's'.
+            this.replace(s, ns);
+            if (this.events != null) {
+                if (this.followsEvents) {
+                    this.rederived.put(s, ns);
+                }
+                this.events.publish(SquareEvent.replaced(s, ns));
+            }
+        }
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Build a strip of 'n' squares East from 'start', on a sphere, and
+      * add them to 'g'. */
+    private static ArrayList<SurfaceSquare> addStrip(SurfaceGraph g,
+        SurfaceReconstructor r, SurfaceSquare start, int n)
+    {
+        ArrayList<SurfaceSquare> ret = new ArrayList<SurfaceSquare>();
+        SurfaceSquare cur = start;
+        for (int i=0; i < n; i++) {
+            cur = r.createSphericallyAdjacentSquare(cur, cur.latitude, cur.longitude + 9);
+            g.add(cur);
+            ret.add(cur);
+        }
+        return ret;
+    }
+
+    /** Orientation of 's' relative to its base, in the base's frame. */
+    private static Matrix3d relativeOrientation(SurfaceSquare s)
+    {
+        return s.baseSquare.orientation().transpose().times(s.orientation());
+    }
+
+    /** Check that editing a square re-derives exactly its descendants,
+      * when resolved, and that removing one orphans its children. */
+    private static void testEdits()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        SurfaceGraph g = new SurfaceGraph(r);
+        SurfaceSquare start = RandomWalkBuilder.makeStartSquare();
+        g.add(start);
+        ArrayList<SurfaceSquare> strip = addStrip(g, r, start, 10);
+
+        // A branch North from the third square.
+        SurfaceSquare branch = r.createSphericallyAdjacentSquare(
+            strip.get(2), strip.get(2).latitude + 9, strip.get(2).longitude);
+        g.add(branch);
+        assert(g.size() == 12);
+
+        // Tilt the fifth square.
+        SurfaceSquare old = strip.get(4);
+        SurfaceSquare tilted = r.replaceWithNewRotation(old.baseSquare, old,
+            Vector3f.composeRotations(old.rotationFromBase, new Vector3f(0, 0, 5)));
+        g.replace(old, tilted);
+
+        // Only the next square is stale until resolved, and reading
+        // the squares does not change that.
+        assert(g.isStale(strip.get(5)));
+        assert(!g.isStale(strip.get(6)));
+        assert(!g.isStale(branch));
+        assert(g.getSquares().get(6) == strip.get(5));
+        assert(g.isStale(strip.get(5)));
+
+        g.resolve();
+        List<SurfaceSquare> after = g.getSquares();
+        assert(after.size() == 12);
+        assert(after.get(5) == tilted);
+        for (int i=0; i < 5; i++) {
+            assert(after.get(i) == (i == 0? start : strip.get(i-1)));
+        }
+        assert(after.get(11) == branch);
+        for (int i=6; i <= 10; i++) {
+            SurfaceSquare was = strip.get(i-1);
+            SurfaceSquare is = after.get(i);
+            assert(is != was) : i;
+            assert(is.baseSquare == after.get(i-1)) : i;
+            assert(!g.isStale(is));
+            assert(is.starObs == was.starObs);
+
+            // Same orientation relative to the base, but moved.
+            double diff = relativeOrientation(was).times(relativeOrientation(is).transpose())
+                .rotationVectorDegrees().length();
+            assert(diff < 1e-3) : i;
+            assert(is.center.minus(was.center).length() > 1e-3) : i;
+        }
+        assert(g.next(after.get(8), true) == after.get(9));
+        assert(g.next(after.get(8), false) == after.get(7));
+
+        // Removing a square orphans the squares built on it, which stay
+        // put, and leaves it out of the list.
+        SurfaceSquare second = after.get(2);
+        SurfaceSquare third = after.get(3);
+        Vector3f thirdCenter = third.center;
+        assert(branch.baseSquare == third);
+        assert(g.remove(second));
+        assert(!g.remove(second));
+        assert(g.size() == 11);
+        assert(third.baseSquare == null);
+        after = g.getSquares();
+        assert(after.size() == 11);
+        assert(after.get(10) == branch);
+        assert(after.get(2) == third);
+        assert(after.get(1) != second);
+        assert(third.center == thirdCenter);
+        assert(!g.contains(second));
+        assert(g.next(second, true) == null);
+        assert(g.next(after.get(1), true) == third);
+        assert(g.next(third, false) == after.get(1));
+        assert(g.next(null, true) == start);
+        assert(g.next(null, false) == branch);
+        assert(g.next(branch, true) == null);
+        int count = 0;
+        for (SurfaceSquare s : after) {
+            assert(s == after.get(count));
+            count++;
+        }
+        assert(count == 11);
+
+        // Editing the orphan moves what is built on it, not before it.
+        SurfaceSquare first = after.get(1);
+        SurfaceSquare fourth = after.get(3);
+        g.replace(third, new SurfaceSquare(third.center, third.north.rotateDeg(3, third.up),
+            third.up, third.sizeKm, third.latitude, third.longitude, null, null,
+            new Vector3f(0, 3, 0)));
+        g.resolve();
+        after = g.getSquares();
+        assert(after.get(1) == first);
+        assert(after.get(3) != fourth && after.get(3).baseSquare == after.get(2));
+        assert(after.get(10) != branch && after.get(10).baseSquare == after.get(2));
+
+        g.clear();
+        assert(g.size() == 0 && g.getSquares().isEmpty());
+    }
+
+    /** Check that a graph following a bus, as a consumer of the
+      * frame's events might, ends up with the squares of a chain of
+      * replacements published together, even when it is resolved, and
+      * so re-derives some of them, partway through applying them. */
+    private static void testApply()
+        throws InterruptedException
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        SquareEventBus bus = new SquareEventBus();
+        final ArrayList<SquareEvent> published = new ArrayList<SquareEvent>();
+        SquareEventBus.Subscription sub = bus.subscribe(new SquareEventBus.Listener() {
+            public void handleSquareEvents(List<SquareEvent> batch)
+            {
+                synchronized (published) {
+                    published.addAll(batch);
+                }
+            }
+        });
+
+        SurfaceGraph g = new SurfaceGraph(r);
+        g.events = bus;
+        g.followsEvents = true;
+        SurfaceSquare start = RandomWalkBuilder.makeStartSquare();
+        g.apply(SquareEvent.placed(start));
+        ArrayList<SurfaceSquare> strip = addStrip(new SurfaceGraph(null), r, start, 10);
+        for (SurfaceSquare s : strip) {
+            g.apply(SquareEvent.placed(s));
+        }
+
+        // Tilt every square relative to its base, as a rebuild might,
+        // giving each replacement the previous one as its base.
+        ArrayList<SquareEvent> replacements = new ArrayList<SquareEvent>();
+        SurfaceSquare newBase = start;
+        for (SurfaceSquare s : strip) {
+            SurfaceSquare ns = r.createRotatedAdjacentSquare(newBase, s.latitude, s.longitude,
+                Vector3f.composeRotations(s.rotationFromBase, new Vector3f(0, 0, 1)));
+            replacements.add(SquareEvent.replaced(s, ns));
+            newBase = ns;
+        }
+
+        // Apply the first few, resolve, which re-derives the rest and
+        // announces that, then apply the rest, then the announcements.
+        for (int i=0; i < 3; i++) {
+            g.apply(replacements.get(i));
+        }
+        g.resolve();
+        for (int i=3; i < replacements.size(); i++) {
+            g.apply(replacements.get(i));
+        }
+        bus.flush();
+        bus.unsubscribe(sub);
+        assert(published.size() == replacements.size() - 3);
+        for (SquareEvent e : published) {
+            g.apply(e);
+        }
+
+        List<SurfaceSquare> after = g.getSquares();
+        assert(after.size() == strip.size() + 1);
+        for (int i=0; i < replacements.size(); i++) {
+            assert(after.get(i+1) == replacements.get(i).square) : i;
+        }
+        assert(g.rederived.isEmpty());
+
+        // Removing a re-derived square removes what it became.
+        SurfaceSquare tilted = r.replaceWithNewRotation(start, after.get(1),
+            Vector3f.composeRotations(after.get(1).rotationFromBase, new Vector3f(0, 0, 1)));
+        SurfaceSquare second = after.get(2);
+        g.apply(SquareEvent.replaced(after.get(1), tilted));
+        g.resolve();
+        assert(!g.contains(second));
+        g.apply(SquareEvent.removed(second));
+        assert(g.size() == strip.size());
+        g.apply(SquareEvent.cleared());
+        assert(g.size() == 0 && g.rederived.isEmpty());
+    }
+
+    /** Check that an edit re-derives only the squares built on the
+      * edited one, however many others there are, and that removals and
+      * reads re-derive nothing. */
+    private static void testEditCost()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        int[] sizes = { 2000, 100000 };
+        for (int k=0; k < 2; k++) {
+            SurfaceGraph g = new SurfaceGraph(r);
+            SurfaceSquare start = RandomWalkBuilder.makeStartSquare();
+            g.add(start);
+
+            // Squares all built on 'start', so an edit has no children,
+            // except for a strip of three built on the first one.
+            ArrayList<SurfaceSquare> built = new ArrayList<SurfaceSquare>();
+            for (int i=0; i < sizes[k]; i++) {
+                SurfaceSquare s = r.createSphericallyAdjacentSquare(start,
+                    start.latitude + 1 + i % 40, start.longitude + 1 + i / 40 % 100);
+                g.add(s);
+                built.add(s);
+            }
+            SurfaceSquare first = built.get(0);
+            addStrip(g, r, first, 3);
+            g.remove(built.get(built.size() - 1));      // Builds the index.
+
+            for (int i=2; i <= 1000; i++) {
+                g.remove(built.get(built.size() - i));
+            }
+            assert(g.size() == sizes[k] + 4 - 1000);
+            assert(g.getSquares().size() == g.size());
+            g.resolve();
+            assert(g.numRederived == 0);
+
+            // Tilting the first square re-derives just the strip, once.
+            g.replace(first, r.replaceWithNewRotation(start, first,
+                Vector3f.composeRotations(first.rotationFromBase, new Vector3f(0, 0, 5))));
+            g.getSquares();
+            assert(g.numRederived == 0);
+            g.resolve();
+            assert(g.numRederived == 3) : g.numRederived;
+            g.resolve();
+            assert(g.numRederived == 3) : g.numRederived;
+        }
+    }
+
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        testEdits();
+        testApply();
+        testEditCost();
+        System.out.println("SurfaceGraph tests passed");
+    }
+}
+
+// EOF
@@ -0,0 +1,2896 @@
+// SurfaceReconstructor.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.RecursiveTask;
+
+import util.FloatUtil;
+import util.Matrix3d;
+import util.Vector3d;
+import util.Vector3f;
+
+import static util.swing.SwingUtil.log;
+
+/** Engine that infers the shape of a surface from star observations.
+  *
+  * This contains the square placement and orientation algorithms that
+  * used to live in EarthShape.  It does not depend on the display or
+  * on JOGL, so it can be run headless, for example to run many
+  * reconstructions in a batch or to profile the solver.  EarthShape
+  * keeps one of these to hold the observations, enabled stars, and
+  * options, and uses it both for the full build and for the
+  * interactive single-square operations. */
+public class SurfaceReconstructor {
+    // --------- Constants ----------
+    /** Default size of the squares the star-data builder places, in
+      * kilometers.  See 'SolverOptions.squareSizeKm'. */
+    public static final float DEFAULT_SQUARE_SIZE_KM = 1000;
+
+    /** Location of the first square of the full-surface build,
+      * approximately my location in SF, CA.  This is one of the
+      * locations for which I have manual data, and when we build
+      * the first latitude strip, that will pick up the other manual
+      * data points. */
+    public static final float BUILD_START_LATITUDE = 38;
+    public static final float BUILD_START_LONGITUDE = -122;
+
+    /** Do not let the orientation adjustment angle go below this
+      * value.  Below this value is pointless because the precision
+      * of the variance is not high enough to discriminate among the
+      * choices. */
+    public static final float MINIMUM_ADJUST_ORIENTATION_DEGREES = 1e-7f;
+
+    /** All rotation commands, cached since 'values()' makes a new
+      * array every time. */
+    private static final RotationCommand[] ROTATION_COMMANDS = RotationCommand.values();
+
+    // ---------- Instance variables ----------
+    /** The observations that will drive surface reconstruction. */
+    private WorldObservations worldObservations;
+
+    /** Set of stars that are enabled. */
+    private LinkedHashMap<String, Boolean> enabledStars = new LinkedHashMap<String, Boolean>();
+
+    /** Options that control the algorithms. */
+    public SolverOptions options;
+
+    /** Qualifying star observations at recently used locations.  The
+      * entries are keyed on the options and maps they depend on, so
+      * changing those never yields stale results. */
+    private VisibleStarCache visibleStarCache = new VisibleStarCache();
+
+    /** During a full-surface build with 'options.checkpointFile' set,
+      * the record of squares placed so far.  Otherwise null. */
+    private BuildCheckpoint checkpoint = null;
+
+    /** If not null, full-surface builds announce each square here as
+      * it is placed, and announce when they finish. */
+    private SquareEventBus squareEvents = null;
+
+    // ---------- Methods ----------
+    /** Make a reconstructor with all stars enabled and default
+      * options. */
+    public SurfaceReconstructor(WorldObservations worldObservations_)
+    {
+        this.options = new SolverOptions();
+        this.setWorldObservations(worldObservations_);
+    }
+
+    /** Make a reconstructor with the given settings.  The star map
+      * and options are copied. */
+    public SurfaceReconstructor(
+        WorldObservations worldObservations_,
+        Map<String, Boolean> enabledStars_,
+        SolverOptions options_)
+    {
+        this.worldObservations = worldObservations_;
+        this.enabledStars.putAll(enabledStars_);
+        this.options = new SolverOptions(options_);
+    }
+
+    /** Make a copy of 'obj' that can be used independently, for
+      * example in a worker thread while the UI continues to change
+      * its own settings.
+      *
+      * The enabled-star map is shared rather than copied, since it is
+      * only ever replaced, never modified.  That lets the copy share
+      * the star cache too, so a build in the copy warms the cache for
+      * later interactive operations and builds in 'obj'. */
+    public SurfaceReconstructor(SurfaceReconstructor obj)
+    {
+        this.worldObservations = obj.worldObservations;
+        this.enabledStars = obj.enabledStars;
+        this.options = new SolverOptions(obj.options);
+        this.visibleStarCache = obj.visibleStarCache;
+        this.squareEvents = obj.squareEvents;
+    }
+
+    /** Get the observations in use. */
+    public WorldObservations getWorldObservations()
+    {
+        return this.worldObservations;
+    }
+
+    /** Replace the observations, and enable all of the stars
+      * in the new set. */
+    public void setWorldObservations(WorldObservations obs)
+    {
+        this.worldObservations = obs;
+
+        // Make a new map rather than clearing the old one, since the
+        // old one may be in use as a cache key.
+        this.enabledStars = new LinkedHashMap<String, Boolean>();
+        for (String starName : this.worldObservations.getAllStars()) {
+            this.enabledStars.put(starName, true);
+        }
+
+        this.visibleStarCache.clear();
+    }
+
+    /** Get the map from star name to whether it is enabled.  The
+      * caller must not modify it; use 'setEnabledStars' instead. */
+    public LinkedHashMap<String, Boolean> getEnabledStars()
+    {
+        return this.enabledStars;
+    }
+
+    /** Replace the set of enabled stars.  This only affects
+      * squares built afterward; StarDependencies updates existing
+      * ones.  The caller must not modify 'stars' afterward. */
+    public void setEnabledStars(LinkedHashMap<String, Boolean> stars)
+    {
+        this.enabledStars = stars;
+        this.visibleStarCache.clear();
+    }
+
+    /** Get the cache of qualifying star observations, mainly so its
+      * statistics can be reported. */
+    public VisibleStarCache getVisibleStarCache()
+    {
+        return this.visibleStarCache;
+    }
+
+    /** Use 'cache' from now on, for example to share one larger than
+      * the default among several reconstructors. */
+    public void setVisibleStarCache(VisibleStarCache cache)
+    {
+        this.visibleStarCache = cache;
+    }
+
+    /** Get where builds announce their squares, or null. */
+    public SquareEventBus getSquareEvents()
+    {
+        return this.squareEvents;
+    }
+
+    /** Announce the squares of later builds on 'bus', or stop
+      * announcing them if it is null. */
+    public void setSquareEvents(SquareEventBus bus)
+    {
+        this.squareEvents = bus;
+    }
+
+    /** Return true if the named star is enabled. */
+    public boolean isStarEnabled(String starName)
+    {
+        return this.enabledStars.containsKey(starName) &&
+               this.enabledStars.get(starName).equals(true);
+    }
+
+    // ---------------------- Building from star data -----------------------
+    /** Build a surface using star data rather than any presumed
+      * size and shape.  'task' receives progress reports and is
+      * polled for cancellation. */
+    public ReconstructedSurface buildEarthSurfaceFromStarData(BuildProgress task)
+    {
+        long startMillis = System.currentTimeMillis();
+        log("building Earth using star data: "+this.worldObservations.getDescription());
+
+        ReconstructedSurface surface = new ReconstructedSurface();
+        surface.description = this.worldObservations.getDescription();
+        surface.events = this.squareEvents;
+
+        this.openCheckpoint();
+        try {
+            this.buildSquaresFromStarData(surface, task);
+        }
+        finally {
+            this.closeCheckpoint();
+        }
+
+        if (this.options.bundleAdjust && !task.isCancelled()) {
+            ReconstructedSurface adjusted = this.bundleAdjust(surface, task);
+            if (this.squareEvents != null) {
+                // The adjusted squares are in the same order as the
+                // originals.
+                List<SurfaceSquare> before = surface.getSurfaceSquares();
+                List<SurfaceSquare> after = adjusted.getSurfaceSquares();
+                for (int i=0; i < after.size(); i++) {
+                    this.squareEvents.publish(
+                        SquareEvent.replaced(before.get(i), after.get(i)));
+                }
+            }
+            surface = adjusted;
+            surface.events = this.squareEvents;
+        }
+
+        surface.cancelled = task.isCancelled();
+        surface.elapsedMillis = System.currentTimeMillis() - startMillis;
+        if (this.squareEvents != null) {
+            this.squareEvents.publish(SquareEvent.buildFinished(surface));
+        }
+        log("buildEarth: finished using star data; nSquares="+surface.numSurfaceSquares()+
+            " "+this.visibleStarCache);
+        return surface;
+    }
+
+    /** Place the grid of squares for 'buildEarthSurfaceFromStarData',
+      * and refine it if enabled, adding the squares to 'surface'. */
+    private void buildSquaresFromStarData(ReconstructedSurface surface,
+        BuildProgress task)
+    {
+        float latitude = BUILD_START_LATITUDE;
+        float longitude = BUILD_START_LONGITUDE;
+        log("buildEarth: building first square at lat="+latitude+" long="+longitude);
+
+        // First square will be placed at the 3D origin with
+        // its North pointed along the -Z axis.
+        SurfaceSquare square = new SurfaceSquare(
+            new Vector3f(0,0,0),      // center
+            new Vector3f(0,0,-1),     // north
+            new Vector3f(0,1,0),      // up
+            this.options.squareSizeKm,
+            latitude,
+            longitude,
+            null /*base*/, null /*midpoint*/,
+            new Vector3f(0,0,0));
+        surface.addSurfaceSquare(square);
+        this.addMatchingData(square);
+
+        if (this.options.bestFirstBuild) {
+            this.buildBestFirst(surface, square, task);
+        }
+        else {
+            this.buildStrips(surface, square, task);
+        }
+
+        if (this.options.closeLoops && !task.isCancelled()) {
+            this.closeLoops(surface);
+        }
+
+        if (this.options.adaptiveRefinement && !task.isCancelled()) {
+            this.refineSurface(surface, task);
+        }
+    }
+
+    /** Number of cells in the grid the full-surface build tries to
+      * fill: latitudes 'step' apart from BUILD_START_LATITUDE, short of
+      * the poles, times longitudes 'step' apart all the way around.
+      * The latitudes are computed from their index, as the best-first
+      * build does. */
+    public static int gridCells(float step)
+    {
+        step = Math.abs(step);
+        int numLatitudes = 0;
+        for (int i=0; BUILD_START_LATITUDE + i*step < 90; i++) {
+            numLatitudes++;
+        }
+        for (int i=-1; BUILD_START_LATITUDE + i*step > -90; i--) {
+            numLatitudes++;
+        }
+        return numLatitudes * Math.round(360 / step);
+    }
+
+    /** Build the grid of squares around 'square', which is already in
+      * 'surface', as a sequence of East/West strips starting at each
+      * square of a North/South strip. */
+    private void buildStrips(ReconstructedSurface surface,
+        SurfaceSquare square, BuildProgress task)
+    {
+        // When building in parallel, latitude strips are forked onto
+        // the common pool and collected here, in the order they were
+        // started.  Otherwise this is null and strips are built
+        // immediately.
+        ArrayList<LatitudeStripTask> pendingStrips =
+            this.options.parallelBuild? new ArrayList<LatitudeStripTask>() : null;
+
+        // Go East and West.
+        task.setStatus("Initial latitude strip at "+square.latitude);
+        this.buildLatitudeStrips(surface, square, pendingStrips);
+
+        // Explore in all directions until all points on
+        // the surface have been explored (to within one step).
+        float step = this.options.buildStepDegrees;
+        this.buildLongitudeStrip(surface, square, +step, task, pendingStrips);
+        this.buildLongitudeStrip(surface, square, -step, task, pendingStrips);
+
+        if (pendingStrips != null) {
+            // Wait for the strips to finish.  Even if the build was
+            // canceled, we have to wait, but each strip is short.  They
+            // come in East/West pairs from 'buildLatitudeStrips'.
+            task.setStatus("Waiting for "+pendingStrips.size()+" latitude strips");
+            for (int i=0; i < pendingStrips.size(); i += 2) {
+                this.addLatitudeStrips(surface,
+                    pendingStrips.get(i).join(), pendingStrips.get(i+1).join());
+            }
+        }
+    }
+
+    /** If a checkpoint file is configured, open it as 'checkpoint'.
+      * Problems with the file are logged, and the build then just
+      * proceeds without it. */
+    private void openCheckpoint()
+    {
+        if (this.options.checkpointFile == null) {
+            return;
+        }
+
+        try {
+            this.checkpoint = new BuildCheckpoint(
+                new File(this.options.checkpointFile),
+                this.checkpointSignature(),
+                this.options.checkpointIntervalSeconds * 1000L);
+        }
+        catch (IOException e) {
+            log("buildEarth: cannot use checkpoint file: "+e);
+            this.checkpoint = null;
+        }
+    }
+
+    /** Close 'checkpoint', if it is open. */
+    private void closeCheckpoint()
+    {
+        if (this.checkpoint == null) {
+            return;
+        }
+
+        log("buildEarth: "+this.checkpoint);
+        try {
+            this.checkpoint.close();
+        }
+        catch (IOException e) {
+            log("buildEarth: error closing checkpoint file: "+e);
+        }
+        this.checkpoint = null;
+    }
+
+    /** Describe everything that the squares placed by the build depend
+      * on, so a checkpoint made with different settings is not used. */
+    private String checkpointSignature()
+    {
+        // Settings that do not affect the placements themselves.
+        SolverOptions opts = new SolverOptions(this.options);
+        opts.parallelBuild = false;
+        opts.bundleAdjust = false;
+        opts.checkpointFile = null;
+        opts.checkpointIntervalSeconds = 0;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(this.worldObservations.getDescription());
+        sb.append("; ");
+        sb.append(opts);
+        sb.append("; enabled:");
+        for (String starName : this.enabledStars.keySet()) {
+            if (this.isStarEnabled(starName)) {
+                sb.append(" ");
+                sb.append(starName);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Place a square at the given location based on 'base' as part of
+      * a full-surface build.  This is 'createAndAutomaticallyOrientSquare',
+      * except that the outcome is taken from, or else saved in, the
+      * checkpoint, if there is one. */
+    private SurfaceSquare placeSquare(SurfaceSquare base,
+        float newLatitude, float newLongitude)
+    {
+        if (this.checkpoint == null) {
+            return this.createAndAutomaticallyOrientSquare(base,
+                newLatitude, newLongitude);
+        }
+
+        BuildCheckpoint.Record r = this.checkpoint.lookup(base, newLatitude, newLongitude);
+        if (r != null) {
+            if (r.failed) {
+                return null;
+            }
+            SurfaceSquare ret = r.makeSquare(base, newLatitude, newLongitude);
+            this.addMatchingData(ret);
+            return ret;
+        }
+
+        SurfaceSquare ret = this.createAndAutomaticallyOrientSquare(base,
+            newLatitude, newLongitude);
+        if (ret != base) {
+            try {
+                this.checkpoint.record(base, newLatitude, newLongitude, ret);
+            }
+            catch (IOException e) {
+                // Keep building; only the ability to resume is lost.
+                log("buildEarth: error writing checkpoint file: "+e);
+            }
+        }
+        return ret;
+    }
+
+    /** Refine all of the squares of 'surface' together, as described at
+      * BundleAdjuster, and return a new surface with the adjusted
+      * squares.  'surface' itself is not modified. */
+    public ReconstructedSurface bundleAdjust(ReconstructedSurface surface,
+        BuildProgress task)
+    {
+        BundleAdjuster adjuster = new BundleAdjuster(this, surface.getSurfaceSquares());
+        ReconstructedSurface ret = adjuster.adjust(task);
+        ret.description = surface.description;
+        ret.elapsedMillis = surface.elapsedMillis;
+        return ret;
+    }
+
+    /** Build squares by going North or South from a starting square
+      * until we reach a pole or we can't add any more.  At each spot, also
+      * build latitude strips in both directions, either immediately
+      * or, if 'pendingStrips' is not null, by forking tasks that are
+      * appended to it. */
+    private void buildLongitudeStrip(ReconstructedSurface surface,
+        SurfaceSquare startSquare, float deltaLatitude, BuildProgress task,
+        List<LatitudeStripTask> pendingStrips)
+    {
+        float curLatitude = startSquare.latitude;
+        float curLongitude = startSquare.longitude;
+        SurfaceSquare curSquare = startSquare;
+
+        if (task.isCancelled()) {
+            // Bail now, rather than repeat the cancellation log message.
+            return;
+        }
+
+        while (!task.isCancelled()) {
+            float newLatitude = curLatitude + deltaLatitude;
+            if (!( -90 < newLatitude && newLatitude < 90 )) {
+                // Do not go past the poles.
+                break;
+            }
+            float newLongitude = curLongitude;
+
+            log("buildEarth: building lat="+newLatitude+" long="+newLongitude);
+
+            // Report progress.
+            task.setStatus("Latitude strip at "+newLatitude);
+            {
+                // +1 since we did one strip before the first call to
+                // buildLongitudeStrip.
+                float totalStrips = 180 / (float)Math.abs(deltaLatitude) + 1;
+                float completedStrips;
+                if (deltaLatitude > 0) {
+                    completedStrips = (newLatitude - startSquare.latitude) / deltaLatitude + 1;
+                }
+                else {
+                    completedStrips = (90 - newLatitude) / -deltaLatitude + 1;
+                }
+                float fraction = completedStrips / totalStrips;
+                log("progress fraction: "+fraction);
+                task.setProgressFraction(fraction);
+            }
+
+            SurfaceSquare newSquare = this.placeSquare(curSquare,
+                newLatitude, newLongitude);
+            if (newSquare == null) {
+                log("buildEarth: could not place next square!");
+                break;
+            }
+            if (newSquare != curSquare) {
+                surface.addSurfaceSquare(newSquare);
+                curSquare = newSquare;
+            }
+
+            curLatitude = newLatitude;
+            curLongitude = newLongitude;
+
+            // Also build strips in each direction.
+            this.buildLatitudeStrips(surface, curSquare, pendingStrips);
+        }
+
+        if (task.isCancelled()) {
+            log("surface construction canceled");
+        }
+    }
+
+    /** Build the East and West latitude strips starting at 'square'.
+      * If 'pendingStrips' is null, build them now and add them to
+      * 'surface'.  Otherwise, fork them and add the tasks to
+      * 'pendingStrips' for the caller to join. */
+    private void buildLatitudeStrips(ReconstructedSurface surface,
+        SurfaceSquare square, List<LatitudeStripTask> pendingStrips)
+    {
+        float step = this.options.buildStepDegrees;
+        if (pendingStrips == null) {
+            this.addLatitudeStrips(surface,
+                this.buildLatitudeStrip(square, +step),
+                this.buildLatitudeStrip(square, -step));
+        }
+        else {
+            LatitudeStripTask east = new LatitudeStripTask(square, +step);
+            LatitudeStripTask west = new LatitudeStripTask(square, -step);
+            east.fork();
+            west.fork();
+            pendingStrips.add(east);
+            pendingStrips.add(west);
+        }
+    }
+
+    /** Add the East and West strips built from one square to 'surface'. */
+    private void addLatitudeStrips(ReconstructedSurface surface,
+        List<SurfaceSquare> east, List<SurfaceSquare> west)
+    {
+        for (SurfaceSquare s : east) {
+            surface.addSurfaceSquare(s);
+        }
+        for (SurfaceSquare s : west) {
+            surface.addSurfaceSquare(s);
+        }
+    }
+
+    /** Close the loops of 'surface', as described at LoopCloser,
+      * replacing the squares that move, and removing those that are
+      * merged with another square for the same cell. */
+    private void closeLoops(ReconstructedSurface surface)
+    {
+        float step = this.options.buildStepDegrees;
+        LoopCloser closer = new LoopCloser(step, Math.abs(step) / 2);
+        for (SurfaceSquare s : surface.getSurfaceSquares()) {
+            closer.add(s);
+        }
+        log("buildEarth: closed "+closer.numLoops+" loops");
+        if (closer.numLoops > 0) {
+            surface.subdivideSurfaceSquares(closer.getReplacements());
+        }
+    }
+
+    /** Task to build one latitude strip on a fork-join pool.  The
+      * strip only reads 'startSquare' and the (unchanging) settings
+      * of the reconstructor, so strips can run concurrently with each
+      * other and with the spine that creates them. */
+    private class LatitudeStripTask extends RecursiveTask<ArrayList<SurfaceSquare>> {
+        /** Generated serial ID (ForkJoinTask is Serializable). */
+        private static final long serialVersionUID = -2446407183426254791L;
+
+        /** Square the strip starts from; it is not part of the result. */
+        private SurfaceSquare startSquare;
+
+        /** Longitude step between squares. */
+        private float deltaLongitude;
+
+        public LatitudeStripTask(SurfaceSquare startSquare_, float deltaLongitude_)
+        {
+            this.startSquare = startSquare_;
+            this.deltaLongitude = deltaLongitude_;
+        }
+
+        @Override
+        protected ArrayList<SurfaceSquare> compute()
+        {
+            return SurfaceReconstructor.this.buildLatitudeStrip(
+                this.startSquare, this.deltaLongitude);
+        }
+    }
+
+    /** Build squares by going East or West from a starting square
+      * until we have gone 180 degrees or we can't add any more.  Return
+      * the new squares, in order, without adding them to any surface. */
+    private ArrayList<SurfaceSquare> buildLatitudeStrip(
+        SurfaceSquare startSquare, float deltaLongitude)
+    {
+        ArrayList<SurfaceSquare> ret = new ArrayList<SurfaceSquare>();
+        float curLatitude = startSquare.latitude;
+        float curLongitude = startSquare.longitude;
+        SurfaceSquare curSquare = startSquare;
+
+        int numSquares = Math.round(180 / Math.abs(deltaLongitude));
+        for (int i=0; i < numSquares; i++) {
+            float newLatitude = curLatitude;
+            float newLongitude = FloatUtil.modulus2f(curLongitude + deltaLongitude, -180, 180);
+            log("buildEarth: building lat="+newLatitude+" long="+newLongitude);
+
+            SurfaceSquare newSquare = this.placeSquare(curSquare,
+                newLatitude, newLongitude);
+            if (newSquare == null) {
+                log("buildEarth: could not place next square!");
+                break;
+            }
+            if (newSquare != curSquare) {
+                ret.add(newSquare);
+                curSquare = newSquare;
+            }
+
+            curLatitude = newLatitude;
+            curLongitude = newLongitude;
+        }
+
+        return ret;
+    }
+
+    // -------------------------- Best-first build --------------------------
+    /** A square that the best-first build could place next: the grid
+      * cell at ('latIndex', 'lonIndex'), built on 'base'. */
+    private static class BestFirstCandidate {
+        /** Placed square the new one would be built on. */
+        public SurfaceSquare base;
+
+        /** Grid cell, as step counts from the first square. */
+        public int latIndex, lonIndex;
+
+        /** Location of that cell. */
+        public float latitude, longitude;
+
+        /** Number of qualifying stars visible from both 'base' and the
+          * cell, which is what the orientation is solved from. */
+        public int commonStars;
+
+        /** Order in which candidates were made, to break ties in favor
+          * of the older one, which keeps the build deterministic. */
+        public long sequence;
+    }
+
+    /** Order candidates with the most common stars first. */
+    private static final Comparator<BestFirstCandidate> BEST_FIRST_ORDER =
+        new Comparator<BestFirstCandidate>() {
+            public int compare(BestFirstCandidate a, BestFirstCandidate b)
+            {
+                if (a.commonStars != b.commonStars) {
+                    return (a.commonStars > b.commonStars)? -1 : +1;
+                }
+                return Long.compare(a.sequence, b.sequence);
+            }
+        };
+
+    /** Fewest common stars for which the best-first build will try to
+      * place a square.  None of the orientation algorithms can solve
+      * for a rotation from fewer than two. */
+    private static final int MINIMUM_COMMON_STARS = 2;
+
+    /** Build the grid of squares around 'start', which is already in
+      * 'surface', best-first, as described at
+      * 'SolverOptions.bestFirstBuild'. */
+    private void buildBestFirst(ReconstructedSurface surface,
+        SurfaceSquare start, BuildProgress task)
+    {
+        BestFirstBuilder b = new BestFirstBuilder(start);
+        int numFailed = 0;
+        int numSkipped = 0;
+        while (!b.queue.isEmpty() && !task.isCancelled()) {
+            BestFirstCandidate c = b.queue.poll();
+            long key = b.cellKey(c.latIndex, c.lonIndex);
+            if (b.placed.contains(key)) {
+                // Filled from a better-constrained neighbor already.
+                numSkipped++;
+                continue;
+            }
+
+            log("buildEarth: building lat="+c.latitude+" long="+c.longitude+
+                " commonStars="+c.commonStars);
+            SurfaceSquare newSquare = this.placeSquare(c.base, c.latitude, c.longitude);
+            if (newSquare == null) {
+                // Perhaps another neighbor will do better.
+                log("buildEarth: could not place square from this base");
+                numFailed++;
+                continue;
+            }
+
+            surface.addSurfaceSquare(newSquare);
+            b.placed.add(key);
+            b.addCandidates(newSquare, c.latIndex, c.lonIndex);
+
+            task.setStatus("Placed "+b.placed.size()+" squares, "+
+                b.queue.size()+" candidates");
+            task.setProgressFraction(Math.min(1, b.placed.size() / (float)b.totalCells));
+        }
+
+        if (task.isCancelled()) {
+            log("surface construction canceled");
+        }
+        log("buildBestFirst: placed="+b.placed.size()+
+            " failed="+numFailed+
+            " skipped="+numSkipped);
+    }
+
+    /** State of 'buildBestFirst'.  Grid cells are identified by the
+      * number of steps North and East of the first square. */
+    private class BestFirstBuilder {
+        /** Location of the first square, cell (0,0). */
+        public float startLatitude, startLongitude;
+
+        /** Grid spacing in degrees. */
+        public float step;
+
+        /** Number of cells around a circle of latitude. */
+        public int numLongitudes;
+
+        /** Number of cells strictly between the poles, to estimate
+          * progress. */
+        public int totalCells;
+
+        /** Keys, from 'cellKey', of the cells that have a square. */
+        public HashSet<Long> placed = new HashSet<Long>();
+
+        /** Placements to try, best first. */
+        public PriorityQueue<BestFirstCandidate> queue =
+            new PriorityQueue<BestFirstCandidate>(64, BEST_FIRST_ORDER);
+
+        /** Next 'BestFirstCandidate.sequence'. */
+        private long nextSequence = 0;
+
+        public BestFirstBuilder(SurfaceSquare start)
+        {
+            this.startLatitude = start.latitude;
+            this.startLongitude = start.longitude;
+            this.step = Math.abs(SurfaceReconstructor.this.options.buildStepDegrees);
+            this.numLongitudes = Math.round(360 / this.step);
+            this.totalCells = gridCells(this.step);
+
+            this.placed.add(this.cellKey(0, 0));
+            this.addCandidates(start, 0, 0);
+        }
+
+        /** Latitude of cells at 'latIndex'.  Locations are computed
+          * from the indices, rather than by stepping from a neighbor,
+          * so every path to a cell agrees on where it is. */
+        public float latitude(int latIndex)
+        {
+            return this.startLatitude + latIndex * this.step;
+        }
+
+        /** Longitude of cells at 'lonIndex'. */
+        public float longitude(int lonIndex)
+        {
+            return FloatUtil.modulus2f(this.startLongitude + lonIndex * this.step,
+                -180, 180);
+        }
+
+        /** Key for 'placed'.  'lonIndex' must be in [0,numLongitudes). */
+        public long cellKey(int latIndex, int lonIndex)
+        {
+            return (long)latIndex * this.numLongitudes + lonIndex;
+        }
+
+        /** Add to 'queue' a candidate for each of the empty cells next
+          * to 'base', which is in cell ('latIndex', 'lonIndex'), that
+          * shares enough stars with it. */
+        public void addCandidates(SurfaceSquare base, int latIndex, int lonIndex)
+        {
+            Map<String, Vector3f> baseStars =
+                SurfaceReconstructor.this.getVisibleStars(base.latitude, base.longitude);
+
+            int[][] moves = { {+1,0}, {-1,0}, {0,+1}, {0,-1} };
+            for (int[] move : moves) {
+                int newLatIndex = latIndex + move[0];
+                int newLonIndex = (lonIndex + move[1] + this.numLongitudes) % this.numLongitudes;
+                if (this.placed.contains(this.cellKey(newLatIndex, newLonIndex))) {
+                    continue;
+                }
+
+                float newLatitude = this.latitude(newLatIndex);
+                if (!( -90 < newLatitude && newLatitude < 90 )) {
+                    continue;      // Do not go past the poles.
+                }
+                float newLongitude = this.longitude(newLonIndex);
+
+                int common = 0;
+                for (String starName : SurfaceReconstructor.this.getVisibleStars(
+                         newLatitude, newLongitude).keySet()) {
+                    if (baseStars.containsKey(starName)) {
+                        common++;
+                    }
+                }
+                if (common < MINIMUM_COMMON_STARS) {
+                    continue;
+                }
+
+                BestFirstCandidate c = new BestFirstCandidate();
+                c.base = base;
+                c.latIndex = newLatIndex;
+                c.lonIndex = newLonIndex;
+                c.latitude = newLatitude;
+                c.longitude = newLongitude;
+                c.commonStars = common;
+                c.sequence = this.nextSequence++;
+                this.queue.add(c);
+            }
+        }
+    }
+
+    // ------------------------- Adaptive refinement ------------------------
+    /** Subdivide the squares of 'surface' that need it, as described
+      * at 'SolverOptions.adaptiveRefinement', replacing each one in
+      * 'surface' with the squares that subdivide it.  Squares are
+      * refined independently of each other, so with 'parallelBuild',
+      * each one is refined as a fork-join task. */
+    private void refineSurface(ReconstructedSurface surface, BuildProgress task)
+    {
+        ArrayList<SurfaceSquare> coarse =
+            new ArrayList<SurfaceSquare>(surface.getSurfaceSquares());
+        ArrayList<RefineSquareTask> pending =
+            this.options.parallelBuild? new ArrayList<RefineSquareTask>() : null;
+        float step = this.options.buildStepDegrees;
+
+        // Map from each refined square to the squares that replace it.
+        IdentityHashMap<SurfaceSquare, ArrayList<SurfaceSquare>> subdivisions =
+            new IdentityHashMap<SurfaceSquare, ArrayList<SurfaceSquare>>();
+        for (int i=0; i < coarse.size() && !task.isCancelled(); i++) {
+            task.setStatus("Refining square "+(i+1)+" of "+coarse.size());
+            task.setProgressFraction(i / (float)coarse.size());
+
+            SurfaceSquare s = coarse.get(i);
+            if (pending == null) {
+                ArrayList<SurfaceSquare> parts = this.refineSquare(s, step, 1);
+                if (!parts.isEmpty()) {
+                    subdivisions.put(s, parts);
+                }
+            }
+            else {
+                RefineSquareTask t = new RefineSquareTask(s, step);
+                t.fork();
+                pending.add(t);
+            }
+        }
+
+        if (pending != null) {
+            task.setStatus("Waiting for "+pending.size()+" refinement tasks");
+            for (RefineSquareTask t : pending) {
+                ArrayList<SurfaceSquare> parts = t.join();
+                if (!parts.isEmpty()) {
+                    subdivisions.put(t.square, parts);
+                }
+            }
+        }
+
+        // The new squares are built on the square they subdivide, or on
+        // intermediate squares, none of which remain.  Attach them, and
+        // the squares that were built on a refined square, to the
+        // nearest square that does remain, without moving anything.
+        int numParts = 0;
+        for (Map.Entry<SurfaceSquare, ArrayList<SurfaceSquare>> e : subdivisions.entrySet()) {
+            SurfaceSquare base = e.getKey().baseSquare;
+            List<SurfaceSquare> baseParts = subdivisions.get(base);
+            for (SurfaceSquare part : e.getValue()) {
+                reattachSquare(part, (baseParts == null)? base : nearestSquare(baseParts, part));
+            }
+            numParts += e.getValue().size();
+        }
+        for (SurfaceSquare s : coarse) {
+            List<SurfaceSquare> baseParts = subdivisions.get(s.baseSquare);
+            if (baseParts != null && !subdivisions.containsKey(s)) {
+                reattachSquare(s, nearestSquare(baseParts, s));
+            }
+        }
+        surface.subdivideSurfaceSquares(subdivisions);
+
+        log("refineSurface: replaced "+subdivisions.size()+" of "+coarse.size()+
+            " squares with "+numParts);
+    }
+
+    /** Task to refine one square on a fork-join pool.  Like
+      * LatitudeStripTask, it only reads the square it starts from. */
+    private class RefineSquareTask extends RecursiveTask<ArrayList<SurfaceSquare>> {
+        /** Generated serial ID (ForkJoinTask is Serializable). */
+        private static final long serialVersionUID = 8315524737870466403L;
+
+        /** Square to refine; it is not part of the result. */
+        private SurfaceSquare square;
+
+        /** Spacing of the grid 'square' belongs to. */
+        private float stepDegrees;
+
+        public RefineSquareTask(SurfaceSquare square_, float stepDegrees_)
+        {
+            this.square = square_;
+            this.stepDegrees = stepDegrees_;
+        }
+
+        @Override
+        protected ArrayList<SurfaceSquare> compute()
+        {
+            return SurfaceReconstructor.this.refineSquare(
+                this.square, this.stepDegrees, 1);
+        }
+    }
+
+    /** If square 's', on a grid with spacing 'stepDegrees', needs to be
+      * refined, return the squares that together cover its area in its
+      * place: its four quarters, each replaced in turn by its own
+      * quarters if it needs refining.  Otherwise return an empty list.
+      * A square is only refined if all four quarters can be placed, so
+      * that they cover it exactly.  'level' is the level of subdivision
+      * the quarters would be at. */
+    private ArrayList<SurfaceSquare> refineSquare(SurfaceSquare s,
+        float stepDegrees, int level)
+    {
+        ArrayList<SurfaceSquare> ret = new ArrayList<SurfaceSquare>();
+        if (level > this.options.maxRefinementLevels || !this.needsRefinement(s)) {
+            return ret;
+        }
+
+        // The centers of the quarters of the area nearest to 's'.
+        float offset = stepDegrees / 4;
+        ArrayList<SurfaceSquare> quarters = new ArrayList<SurfaceSquare>();
+        for (int dLat=-1; dLat <= 1; dLat += 2) {
+            for (int dLon=-1; dLon <= 1; dLon += 2) {
+                float newLatitude = s.latitude + dLat * offset;
+                if (!( -90 < newLatitude && newLatitude < 90 )) {
+                    return ret;
+                }
+                float newLongitude =
+                    FloatUtil.modulus2f(s.longitude + dLon * offset, -180, 180);
+
+                SurfaceSquare child = this.placeSquare(s,
+                    newLatitude, newLongitude);
+                if (child == null || child == s) {
+                    return ret;
+                }
+                child.sizeKm = s.sizeKm / 2;
+                quarters.add(child);
+            }
+        }
+
+        for (SurfaceSquare child : quarters) {
+            ArrayList<SurfaceSquare> parts = this.refineSquare(child, stepDegrees / 2, level+1);
+            if (parts.isEmpty()) {
+                ret.add(child);
+            }
+            else {
+                ret.addAll(parts);
+            }
+        }
+        return ret;
+    }
+
+    /** Return the square of 'squares' nearest to 's' by latitude and
+      * longitude. */
+    private static SurfaceSquare nearestSquare(List<SurfaceSquare> squares, SurfaceSquare s)
+    {
+        SurfaceSquare ret = null;
+        double best = Double.POSITIVE_INFINITY;
+        for (SurfaceSquare c : squares) {
+            double d = FloatUtil.sphericalSeparationAngle(
+                c.longitude, c.latitude, s.longitude, s.latitude);
+            if (d < best) {
+                best = d;
+                ret = c;
+            }
+        }
+        return ret;
+    }
+
+    /** Make 's' built on 'newBase', without moving it, by recomputing
+      * its rotation from, and midpoint with, its base. */
+    private static void reattachSquare(SurfaceSquare s, SurfaceSquare newBase)
+    {
+        s.rotationFromBase = SurfaceSquare.orientation(s.north, s.up)
+            .times(newBase.orientation().transpose())
+            .rotationVectorDegrees().toVector3f();
+        s.baseSquare = newBase;
+        s.baseMidpoint = s.center.plus(newBase.center).times(0.5f);
+    }
+
+    /** True if 's' fits its base poorly, or the surface between them
+      * is sharply curved, according to the thresholds in the options. */
+    private boolean needsRefinement(SurfaceSquare s)
+    {
+        if (s.baseSquare == null) {
+            return false;     // Nothing to measure against.
+        }
+
+        ObservationStats os = this.fitOfObservations(s);
+        if (os != null && os.variance > this.options.refinementVarianceThreshold) {
+            return true;
+        }
+
+        CurvatureCalculator c = this.computeAverageCurvature(s);
+        return Math.abs(c.normalCurvature) > this.options.refinementCurvatureThreshold;
+    }
+
+    // ------------------------- Square construction ------------------------
+    /** Create a square adjacent to 'old', positioned at the given latitude
+      * and longitude, with orientation changed by 'rotation'.  If there is
+      * no change, return null.  Even if not, do not add the square to any
+      * surface, just return it. */
+    public SurfaceSquare createRotatedAdjacentSquare(
+        SurfaceSquare old,
+        float newLatitude,
+        float newLongitude,
+        Vector3f rotation)
+    {
+        // Normalize latitude and longitude.
+        newLatitude = FloatUtil.clampf(newLatitude, -90, 90);
+        newLongitude = FloatUtil.modulus2f(newLongitude, -180, 180);
+
+        // If we didn't move, return null.
+        if (old.latitude == newLatitude && old.longitude == newLongitude) {
+            return null;
+        }
+
+        // Compute the new orientation vectors by rotating
+        // the old ones by the given amount.
+        Vector3f newNorth = old.north.rotateAADeg(rotation);
+        Vector3f newUp = old.up.rotateAADeg(rotation);
+
+        // Get observed travel details going to the new location.
+        TravelObservation tobs = this.worldObservations.getTravelObservation(
+            old.latitude, old.longitude, newLatitude, newLongitude);
+
+        // For both old and new, calculate a unit vector for the
+        // travel direction.  Both headings are negated due to the
+        // right hand rule for rotation.  The new to old heading is
+        // then flipped 180 since I want both to indicate the local
+        // direction from old to new.
+        Vector3f oldTravel = old.north.rotateDeg(-tobs.startToEndHeading, old.up);
+        Vector3f newTravel = newNorth.rotateDeg(-tobs.endToStartHeading + 180, newUp);
+
+        // Calculate the new square's center by going half the distance
+        // according to the old orientation and then half the distance
+        // according to the new orientation, in world coordinates.
+        float halfDistWorld = tobs.distanceKm / 2.0f * SurfaceSquare.SPACE_UNITS_PER_KM;
+        Vector3f midPoint = old.center.plus(oldTravel.times(halfDistWorld));
+        Vector3f newCenter = midPoint.plus(newTravel.times(halfDistWorld));
+
+        // Make the new square.
+        SurfaceSquare ret = new SurfaceSquare(
+            newCenter, newNorth, newUp,
+            old.sizeKm,
+            newLatitude,
+            newLongitude,
+            old /*base*/,
+            midPoint,
+            rotation);
+
+        return ret;
+    }
+
+    /** Make a copy of 's' built on 'newBase', a replacement for its
+      * base, with the same orientation relative to its base, and
+      * return it, without adding it to any surface.  Its star
+      * observations are not copied.  Returns null if 'newBase' is at
+      * the location of 's'. */
+    public SurfaceSquare createRebasedSquare(SurfaceSquare s, SurfaceSquare newBase)
+    {
+        // 'rotationFromBase' is in world coordinates, so it turns along
+        // with the base: if the base turned by R, the same relative
+        // orientation is the rotation by R times the old vector.
+        Matrix3d turn = newBase.orientation().times(
+            s.baseSquare.orientation().transpose());
+        Vector3f rotation = turn.times(new Vector3d(s.rotationFromBase)).toVector3f();
+        return this.createRotatedAdjacentSquare(newBase, s.latitude, s.longitude, rotation);
+    }
+
+    /** Create a square adjacent to 'old', positioned at the given
+      * latitude and longitude, and return it, without adding it to any
+      * surface.  The relative orientation of the new square is
+      * determined using the latitude and longitude, assuming a
+      * spherical shape for the Earth.  Returns null if we did not move.
+      *
+      * This is used by the routines that build the surface using
+      * the sphere assumption, not those that use star observation
+      * data.  It only reads 'old', so walkers on several threads can
+      * call it at once. */
+    public SurfaceSquare createSphericallyAdjacentSquare(
+        SurfaceSquare old,
+        float newLatitude,
+        float newLongitude)
+    {
+        // Calculate local East for 'old'.
+        Vector3f oldEast = old.north.cross(old.up).normalize();
+
+        // Calculate celestial North for 'old', which is given by
+        // the latitude plus geographic North.
+        Vector3f celestialNorth =
+            old.north.rotateDeg(old.latitude, oldEast);
+
+        // Get lat/long deltas.
+        float deltaLatitude = newLatitude - old.latitude;
+        float deltaLongitude = FloatUtil.modulus2f(
+            newLongitude - old.longitude, -180, 180);
+
+        // If we didn't move, there is no new square.
+        if (deltaLongitude == 0 && deltaLatitude == 0) {
+            return null;
+        }
+
+        // What we want now is to first rotate Northward
+        // around local East to account for change in latitude, then
+        // Eastward around celestial North for change in longitude.
+        Vector3f firstRotation = oldEast.times(-deltaLatitude);
+        Vector3f secondRotation = celestialNorth.times(deltaLongitude);
+
+        // But then we want to express the composition of those as a
+        // single rotation vector in order to call the general routine.
+        Vector3f combined = Vector3f.composeRotations(firstRotation, secondRotation);
+
+        // Now call into the general procedure for creating a square
+        // given the proper relative orientation rotation.
+        return this.createRotatedAdjacentSquare(old, newLatitude, newLongitude, combined);
+    }
+
+    /** Make a square that replaces 'derived', computed from 'base'
+      * by applying 'newRotation', and carrying over the observations
+      * and display flags of 'derived'.  If the replacement would not
+      * move from 'base', return 'base'.  This does not add or remove
+      * anything from any surface. */
+    public SurfaceSquare replaceWithNewRotation(
+        SurfaceSquare base, SurfaceSquare derived, Vector3f newRotation)
+    {
+        SurfaceSquare ret = this.createRotatedAdjacentSquare(base,
+            derived.latitude, derived.longitude, newRotation);
+        if (ret == null) {
+            return base;       // Did not move.
+        }
+
+        // Copy some other data from the derived square that we
+        // are in the process of discarding.
+        ret.drawStarRays = derived.drawStarRays;
+        ret.starObs = derived.starObs;
+
+        return ret;
+    }
+
+    /** Adjust the orientation of 'derived' by 'adjustDegrees' around
+      * 'axis', where 'axis' is relative to the square's current
+      * orientation.  Returns the replacement square. */
+    public SurfaceSquare adjustDerivedSquareOrientation(Vector3f axis,
+        SurfaceSquare derived, float adjustDegrees)
+    {
+        SurfaceSquare base = derived.baseSquare;
+
+        // Rotate by 'adjustDegrees'.
+        Vector3f angleAxis = axis.times(adjustDegrees);
+
+        // Rotate the axis to align it with the square.
+        angleAxis = angleAxis.rotateAADeg(derived.rotationFromNominal);
+
+        // Now add that to the square's existing rotation relative
+        // to its base square.
+        angleAxis = Vector3f.composeRotations(derived.rotationFromBase, angleAxis);
+
+        // Now, replace it.
+        return this.replaceWithNewRotation(base, derived, angleAxis);
+    }
+
+    /** Build a square adjacent to the base square, set its orientation,
+      * and return it, without adding it to any surface.  Returns
+      * 'base' if the new location is the same as the base, and null
+      * if such a square cannot be uniquely oriented. */
+    public SurfaceSquare createAndAutomaticallyOrientSquare(SurfaceSquare base,
+        float newLatitude, float newLongitude)
+    {
+        // Make a new adjacent square, initially with the same orientation
+        // as the base square.
+        SurfaceSquare newSquare =
+            this.createRotatedAdjacentSquare(base,
+                newLatitude,
+                newLongitude,
+                new Vector3f(0,0,0));
+        if (newSquare == null) {
+            return base;      // Did not move, no new square created.
+        }
+        this.addMatchingData(newSquare);
+
+        // Now try to set its orientation to match observations.
+        return this.automaticallyOrientSquare(newSquare);
+    }
+
+    /** Given a square 'derived' that is known to have a base square,
+      * compute a replacement for it with a better orientation, and
+      * return the improved square.  Returns null if improvement is
+      * not possible due to insufficient observational data. */
+    public SurfaceSquare automaticallyOrientSquare(SurfaceSquare derived)
+    {
+        if (this.options.closedFormOrientation &&
+            this.options.assumeInfiniteStarDistance &&
+            !this.options.onlyCompareElevations)
+        {
+            SurfaceSquare ret = this.closedFormOrientSquare(derived);
+            if (ret != null) {
+                return ret;
+            }
+
+            // Otherwise, fall back on the iterative algorithms, which
+            // will generally also fail, but they can report it.
+        }
+
+        if (this.options.levenbergMarquardtOrientation &&
+            !this.options.assumeInfiniteStarDistance)
+        {
+            SurfaceSquare ret = this.levenbergMarquardtOrientSquare(derived);
+            if (ret != null) {
+                return ret;
+            }
+        }
+
+        if (this.options.newAutomaticOrientationAlgorithm) {
+            return this.hillClimbOrientSquare(derived,
+                MINIMUM_ADJUST_ORIENTATION_DEGREES);
+        }
+        else {
+            // Calculate the best rotation.
+            Vector3f rot = calcRequiredRotation(derived.baseSquare,
+                derived.latitude, derived.longitude);
+            if (rot == null) {
+                return null;
+            }
+
+            // Now, replace the square.
+            return this.replaceWithNewRotation(derived.baseSquare, derived, rot);
+        }
+    }
+
+    // ---------------------------- Observations ----------------------------
+    /** Get star observations for the given location and time, of
+      * stars high enough to qualify.  The others are never used, and
+      * with a large catalog, they are most of the stars. */
+    private List<StarObservation> getStarObservationsFor(
+        double unixTime, float latitude, float longitude)
+    {
+        return this.worldObservations.getStarObservationsAbove(
+            unixTime, latitude, longitude, this.options.minimumStarElevation);
+    }
+
+    /** Time of observation epoch 'epoch', as described at
+      * 'SolverOptions.numEpochs'.  Epoch 0 is the time of the
+      * manual data. */
+    public static double epochTime(int epoch, float epochSpacingHours)
+    {
+        return StarObservation.unixTimeOfManualData +
+            epoch * (double)epochSpacingHours * 3600.0;
+    }
+
+    /** Name under which an observation of 'starName' in epoch 'epoch'
+      * is recorded in a square.  Observations at different epochs are
+      * of the star in different places in the sky, so as far as the
+      * fitting is concerned, they are different stars.  Epoch 0 uses
+      * the star's own name. */
+    public static String epochStarName(String starName, int epoch,
+        float epochSpacingHours)
+    {
+        if (epoch == 0) {
+            return starName;
+        }
+        return starName+" @+"+(epoch * epochSpacingHours)+"h";
+    }
+
+    /** Add to 'square.starObs' all entries of 'starObs' that have
+      * the same latitude and longitude, and also are at least
+      * 'minimumStarElevation' above the horizon. */
+    public void addMatchingData(SurfaceSquare square)
+    {
+        for (StarObservation so :
+                 this.getQualifyingObservations(square.latitude, square.longitude)
+                     .observations) {
+            square.addObservation(so);
+        }
+    }
+
+    /** Compare star data for 'startSquare' and for the given new
+      * latitude and longitude.  Return a rotation vector that will
+      * transform the orientation of 'startSquare' to match the
+      * best surface for a new square at the new location.  The
+      * vector's length is the amount of rotation in degrees.
+      *
+      * Returns null if there are not enough stars in common. */
+    private Vector3f calcRequiredRotation(
+        SurfaceSquare startSquare,
+        float newLatitude,
+        float newLongitude)
+    {
+        // Set of stars visible at the start and end squares and
+        // above 'minimumStarElevation' above the horizon.
+        Map<String, Vector3f> startStars =
+            getVisibleStars(startSquare.latitude, startSquare.longitude);
+        Map<String, Vector3f> endStars =
+            getVisibleStars(newLatitude, newLongitude);
+
+        // Current best rotation and average difference.
+        Vector3f currentRotation = new Vector3f(0,0,0);
+
+        // Iteratively refine the current rotation by computing the
+        // average correction rotation and applying it until that
+        // correction drops below a certain threshold.
+        for (int iterationCount = 0; iterationCount < 1000; iterationCount++) {
+            // Accumulate the vector sum of all the rotation difference
+            // vectors as well as the max length.
+            Vector3f diffSum = new Vector3f(0,0,0);
+            float maxDiffLength = 0;
+            int diffCount = 0;
+
+            for (Map.Entry<String, Vector3f> e : startStars.entrySet()) {
+                String starName = e.getKey();
+                Vector3f startVector = e.getValue();
+
+                Vector3f endVector = endStars.get(starName);
+                if (endVector == null) {
+                    continue;
+                }
+
+                // Both vectors must first be rotated the way the start
+                // surface was rotated since its creation so that when
+                // we compute the final required rotation, it can be
+                // applied to the start surface in its existing orientation,
+                // not the nominal orientation that the star vectors have
+                // before I do this.
+                startVector = startVector.rotateAADeg(startSquare.rotationFromNominal);
+                endVector = endVector.rotateAADeg(startSquare.rotationFromNominal);
+
+                // Calculate a difference rotation vector from the
+                // rotated end vector to the start vector.  Rotating
+                // the end star in one direction is like rotating
+                // the start terrain in the opposite direction.
+                Vector3f rot = endVector.rotateAADeg(currentRotation)
+                                        .rotationToBecome(startVector);
+
+                // Accumulate it.
+                diffSum = diffSum.plus(rot);
+                maxDiffLength = (float)Math.max(maxDiffLength, rot.length());
+                diffCount++;
+            }
+
+            if (diffCount < 2) {
+                log("reqRot: not enough stars");
+                return null;
+            }
+
+            // Calculate the average correction rotation.
+            Vector3f avgDiff = diffSum.times(1.0f / diffCount);
+
+            // If the correction angle is small enough, stop.  For any set
+            // of observations, we should be able to drive the average
+            // difference arbitrarily close to zero (this is like finding
+            // the centroid, except in spherical rather than flat space).
+            // The real question is whether the *maximum* difference is
+            // large enough to indicate that the data is inconsistent.
+            if (avgDiff.length() < 0.001) {
+                log("reqRot finished: iters="+iterationCount+
+                    " avgDiffLen="+avgDiff.length()+
+                    " maxDiffLength="+maxDiffLength+
+                    " diffCount="+diffCount);
+                if (maxDiffLength > 0.2) {
+                    // For the data I am working with, I estimate it is
+                    // accurate to within 0.2 degrees.  Consequently,
+                    // there should not be a max difference that large.
+                    log("reqRot: WARNING: maxDiffLength greater than 0.2");
+                }
+                return currentRotation;
+            }
+
+            // Otherwise, apply it to the current rotation and
+            // iterate again.
+            currentRotation = currentRotation.plus(avgDiff);
+        }
+
+        log("reqRot: hit iteration limit!");
+        return currentRotation;
+    }
+
+    /** True if the given observation is available for use, meaning
+      * it is high enough in the sky and is enabled.  Whether it is
+      * obscured by light from the Sun depends only on the place and time,
+      * so the caller must check 'sunIsTooHigh' separately. */
+    private boolean qualifyingStarObservation(StarObservation so)
+    {
+        return so.elevation >= this.options.minimumStarElevation &&
+               this.enabledStars.containsKey(so.name) &&
+               this.enabledStars.get(so.name) == true;
+    }
+
+    /** Return true if, at 'unixTime', the Sun is too high in the sky
+      * to see stars.  This depends on the configurable parameter
+      * 'maximumSunElevation'. */
+    private boolean sunIsTooHigh(double unixTime, float latitude, float longitude)
+    {
+        if (!this.options.useSunElevation) {
+            return false;
+        }
+
+        return this.worldObservations.sunIsAbove(
+            unixTime, latitude, longitude,
+            this.options.maximumSunElevation);
+    }
+
+    /** For every visible star vislble at the specified coordinate
+      * that has an elevation of at least 'minimumStarElevation',
+      * add it to a map from star name to azEl vector.  The map is
+      * shared through the cache and must not be modified. */
+    private Map<String, Vector3f> getVisibleStars(
+        float latitude,
+        float longitude)
+    {
+        return this.getQualifyingObservations(latitude, longitude).visibleStars;
+    }
+
+    /** Get the observations at the specified coordinate that pass
+      * 'qualifyingStarObservation', from the cache if possible.  They
+      * are gathered from each epoch at which the Sun is low enough,
+      * and named by 'epochStarName'.  A square has one orientation for
+      * all of them, so the orientation solvers fit a single rotation
+      * to all of the epochs at once, and more epochs only make each
+      * of their evaluations longer, not more numerous. */
+    private VisibleStarCache.Entry getQualifyingObservations(
+        float latitude,
+        float longitude)
+    {
+        // Read the settings once so the key matches what we compute
+        // even if another thread replaces them meanwhile.
+        double unixTime = StarObservation.unixTimeOfManualData;
+        WorldObservations wo = this.worldObservations;
+        LinkedHashMap<String, Boolean> es = this.enabledStars;
+        int numEpochs = Math.max(1, this.options.numEpochs);
+        float spacing = this.options.epochSpacingHours;
+
+        VisibleStarCache.Entry entry = this.visibleStarCache.get(
+            unixTime, latitude, longitude, this.options, wo, es);
+        if (entry == null) {
+            ArrayList<StarObservation> qualifying = new ArrayList<StarObservation>();
+            for (int epoch=0; epoch < numEpochs; epoch++) {
+                double t = epochTime(epoch, spacing);
+                if (this.sunIsTooHigh(t, latitude, longitude)) {
+                    continue;
+                }
+                for (StarObservation so :
+                         this.getStarObservationsFor(t, latitude, longitude)) {
+                    if (this.qualifyingStarObservation(so)) {
+                        if (epoch != 0) {
+                            so = new StarObservation(so.latitude, so.longitude,
+                                epochStarName(so.name, epoch, spacing),
+                                so.azimuth, so.elevation);
+                        }
+                        qualifying.add(so);
+                    }
+                }
+            }
+            entry = new VisibleStarCache.Entry(qualifying);
+            this.visibleStarCache.put(
+                unixTime, latitude, longitude, this.options, wo, es, entry);
+        }
+        return entry;
+    }
+
+    /** Get the names of the stars that would qualify at the specified
+      * coordinate, at some epoch, if they were enabled.  These are the
+      * stars that a square there could be oriented by, whichever stars
+      * are enabled, so unlike the qualifying observations, this does
+      * not change when the enabled stars do. */
+    public Set<String> getObservableStars(float latitude, float longitude)
+    {
+        HashSet<String> ret = new HashSet<String>();
+        int numEpochs = Math.max(1, this.options.numEpochs);
+        float spacing = this.options.epochSpacingHours;
+        for (int epoch=0; epoch < numEpochs; epoch++) {
+            double t = epochTime(epoch, spacing);
+            if (this.sunIsTooHigh(t, latitude, longitude)) {
+                continue;
+            }
+            for (StarObservation so : this.getStarObservationsFor(t, latitude, longitude)) {
+                if (so.elevation >= this.options.minimumStarElevation) {
+                    ret.add(so.name);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /** Get the unit ray, in world coordinates, from the center of 'square' to
+      * the star recorded in 'so', which was observed at this square. */
+    public static Vector3f rayToStar(SurfaceSquare square, StarObservation so)
+    {
+        // Ray to star in nominal, -Z facing, coordinates.
+        Vector3f nominalRay =
+            Vector3f.azimuthElevationToVector(so.azimuth, so.elevation);
+
+        // Ray to star in world coordinates, taking into account
+        // how the surface is rotated.
+        Vector3f worldRay = nominalRay.rotateAADeg(square.rotationFromNominal);
+
+        return worldRay;
+    }
+
+    // ------------------------------ Fitness -------------------------------
+    /** Hold results of call to 'fitOfObservations'. */
+    public static class ObservationStats {
+        /** The total variance in star observation locations from the
+          * indicated square to the observations of its base square as the
+          * average square of the deviation angles.
+          *
+          * The reason for using a sum of squares approach is to penalize large
+          * deviations and to ensure there is a unique "least deviated" point
+          * (which need not exist when using a simple sum).  The reason for using
+          * the average is to make it easier to judge "good" or "bad" fits,
+          * regardless of the number of star observations in common.
+          *
+          * I use the term "variance" here because it is similar to the idea in
+          * statistics, except here we are measuring differences between pairs of
+          * observations, rather than between individual observations and the mean
+          * of the set.  I'll then reserve "deviation", if I use it, to refer to
+          * the square root of the variance, by analogy with "standard deviation".
+          * */
+        public double variance;
+
+        /** Maximum separation between observations, in degrees. */
+        public double maxSeparation;
+
+        /** Number of pairs of stars used in comparison. */
+        public int numSamples;
+    }
+
+    /** Calculate variance and maximum separation for 'square'.  Returns
+      * null if there is no base or there are no observations in common. */
+    public ObservationStats fitOfObservations(SurfaceSquare square)
+    {
+        if (square.baseSquare == null) {
+            return null;
+        }
+
+        double sumOfSquares = 0;
+        int numSamples = 0;
+        double maxSeparation = 0;
+
+        for (Map.Entry<String, StarObservation> entry : square.starObs.entrySet()) {
+            StarObservation so = entry.getValue();
+
+            // Ray to star in world coordinates.
+            Vector3f starRay = SurfaceReconstructor.rayToStar(square, so);
+
+            // Calculate the deviation of this observation from that of
+            // the base square.
+            StarObservation baseObservation = square.baseSquare.findObservation(so.name);
+            if (baseObservation != null) {
+                // Get ray from base square to the base observation star
+                // in world coordinates.
+                Vector3f baseStarRay = SurfaceReconstructor.rayToStar(square.baseSquare, baseObservation);
+
+                // Visual separation angle between these rays.
+                double sep;
+                if (this.options.assumeInfiniteStarDistance) {
+                    sep = this.getStarRayDifference(
+                        square.up, starRay, baseStarRay);
+                }
+                else {
+                    sep = SurfaceReconstructor.getModifiedClosestApproach(
+                        square.center, starRay,
+                        square.baseSquare.center, baseStarRay).separationAngleDegrees;
+                }
+                if (sep > maxSeparation) {
+                    maxSeparation = sep;
+                }
+
+                // Accumulate its square.
+                sumOfSquares += sep * sep;
+                numSamples++;
+            }
+        }
+
+        if (numSamples == 0) {
+            return null;
+        }
+        else {
+            ObservationStats ret = new ObservationStats();
+            ret.variance = sumOfSquares / numSamples;
+            ret.maxSeparation = maxSeparation;
+            ret.numSamples = numSamples;
+            return ret;
+        }
+    }
+
+    /** Get closest approach, except with a modification to
+      * smooth out the search space. */
+    public static Vector3d.ClosestApproach getModifiedClosestApproach(
+        Vector3f p1f, Vector3f u1f,
+        Vector3f p2f, Vector3f u2f)
+    {
+        Vector3d p1 = new Vector3d(p1f);
+        Vector3d u1 = new Vector3d(u1f);
+        Vector3d p2 = new Vector3d(p2f);
+        Vector3d u2 = new Vector3d(u2f);
+
+        Vector3d.ClosestApproach ca = Vector3d.getClosestApproach(p1, u1, p2, u2);
+
+        if (ca.line1Closest != null) {
+            // Now, there is a problem if the closest approach is behind
+            // either observer.  Not only does that not make logical sense,
+            // but naively using the calculation will cause the search
+            // space to be very lumpy, which creates local minima that my
+            // hill-climbing algorithm gets trapped in.  So, we require
+            // that the points on each observation line be at least one
+            // unit away, which currently means 1000 km.  That smooths out
+            // the search space so the hill climber will find its way to
+            // the optimal solution more reliably.
+
+            // How far along u1 is the closest approach?
+            double m1 = ca.line1Closest.minus(p1).dot(u1);
+            if (m1 < 1.0) {
+                // That is unreasonably close.  Push the approach point
+                // out to one unit away along u1.
+                ca.line1Closest = p1.plus(u1);
+
+                // Find the closest point on (p2,u2) to that point.
+                ca.line2Closest = ca.line1Closest.closestPointOnLine(p2, u2);
+
+                // Recalculate the separation angle to that point.
+                ca.separationAngleDegrees = u1.separationAngleDegrees(ca.line2Closest.minus(p1));
+            }
+
+            // How far along u2?
+            double m2 = ca.line2Closest.minus(p2).dot(u2);
+            if (m2 < 1.0) {
+                // Too close; push it.
+                ca.line2Closest = p2.plus(u2);
+
+                // What is closest on (p1,u1) to that?
+                ca.line1Closest = ca.line2Closest.closestPointOnLine(p1, u1);
+
+                // Re-check if that is too close to p1.
+                if (ca.line1Closest.minus(p1).dot(u1) < 1.0) {
+                    // Push it without changing line2Closest.
+                    ca.line1Closest = p1.plus(u1);
+                }
+
+                // Recalculate the separation angle to that point.
+                ca.separationAngleDegrees = u1.separationAngleDegrees(ca.line2Closest.minus(p1));
+            }
+        }
+
+        return ca;
+    }
+
+    /** Get the difference between the two star rays, for a location
+      * with given unit 'up' vector, in degrees.  This depends on the
+      * option setting 'onlyCompareElevations'. */
+    public double getStarRayDifference(
+        Vector3f up,
+        Vector3f ray1,
+        Vector3f ray2)
+    {
+        if (this.options.onlyCompareElevations) {
+            return SurfaceReconstructor.getElevationDifference(up, ray1, ray2);
+        }
+        else {
+            return ray1.separationAngleDegrees(ray2);
+        }
+    }
+
+    /** Given two star observation rays at a location with the given
+      * 'up' unit vector, return the difference in elevation between
+      * them, ignoring azimuth, in degrees. */
+    private static double getElevationDifference(
+        Vector3f up,
+        Vector3f ray1,
+        Vector3f ray2)
+    {
+        double e1 = getElevation(up, ray1);
+        double e2 = getElevation(up, ray2);
+        return Math.abs(e1-e2);
+    }
+
+    /** Return the elevation of 'ray' at a location with unit 'up'
+      * vector, in degrees. */
+    private static double getElevation(Vector3f up, Vector3f ray)
+    {
+        // Decompose into vertical and horizontal components.
+        Vector3f v = ray.projectOntoUnitVector(up);
+        Vector3f h = ray.minus(v);
+
+        // Get lengths, with vertical possibly negative if below
+        // horizon.
+        double vLen = ray.dot(up);
+        double hLen = h.length();
+
+        // Calculate corresponding angle.
+        return FloatUtil.atan2Deg(vLen, hLen);
+    }
+
+    /** Calculate what the variation of observations would be for
+      * 'derived' if its orientation were adjusted by
+      * 'angleAxis.degrees()' around 'angleAxis'.  Returns null if
+      * the calculation cannot be done because of missing information. */
+    public ObservationStats fitOfAdjustedSquare(
+        SurfaceSquare derived, Vector3f angleAxis)
+    {
+        SurfaceSquare newSquare = this.adjustedSquare(derived, angleAxis);
+        if (newSquare == null) {
+            return null;
+        }
+
+        // Now calculate the new variance.
+        return this.fitOfObservations(newSquare);
+    }
+
+    /** Return a temporary square that is like 'derived' except with
+      * its orientation adjusted by 'angleAxis', which is relative to
+      * the square's current orientation.  It shares the observations
+      * of 'derived'.  Returns 'derived' itself if the square would
+      * not move, and null if there is no base square. */
+    private SurfaceSquare adjustedSquare(SurfaceSquare derived, Vector3f angleAxis)
+    {
+        // This part mirrors 'adjustDerivedSquareOrientation'.
+        SurfaceSquare base = derived.baseSquare;
+        if (base == null) {
+            return null;
+        }
+        angleAxis = angleAxis.rotateAADeg(derived.rotationFromNominal);
+        angleAxis = Vector3f.composeRotations(derived.rotationFromBase, angleAxis);
+
+        // Now, create a new square with this new rotation.
+        SurfaceSquare newSquare =
+            this.createRotatedAdjacentSquare(base,
+                derived.latitude, derived.longitude, angleAxis);
+        if (newSquare == null) {
+            // If we do not move, use the original square's data.
+            return derived;
+        }
+
+        // Copy the observation data since that is needed to calculate
+        // the deviation.
+        newSquare.starObs = derived.starObs;
+        return newSquare;
+    }
+
+    /** Like 'fitOfAdjustedSquare' except only retrieves the
+      * variance.  This returns 40000 if the data is unavailable. */
+    public double varianceOfAdjustedSquare(
+        SurfaceSquare derived, Vector3f angleAxis)
+    {
+        ObservationStats os = this.fitOfAdjustedSquare(derived, angleAxis);
+        if (os == null) {
+            // The variance should never be greater than 180 squared,
+            // since that would be the worst possible fit for a star.
+            return 40000;
+        }
+        else {
+            return os.variance;
+        }
+    }
+
+    // ----------------------------- Orientation ----------------------------
+    /** Improve the orientation of 's' by local search until the step
+      * drops below 'minimumAdjustDegrees', using the pattern search or
+      * the original hill climber according to the options.  Return the
+      * improved square, or null if that is not possible due to
+      * insufficient constraints. */
+    private SurfaceSquare hillClimbOrientSquare(SurfaceSquare s,
+        float minimumAdjustDegrees)
+    {
+        if (this.options.patternSearchOrientation) {
+            return this.patternSearchOrientSquare(s, minimumAdjustDegrees);
+        }
+        else {
+            return this.repeatedlyApplyRecommendedRotationCommand(s,
+                minimumAdjustDegrees);
+        }
+    }
+
+    /** Find which axes of the orientation being searched by 'ev' the
+      * observations leave unconstrained, and log them, prefixed with
+      * 'who'.  Moving about those axes cannot meaningfully improve the
+      * fit, so the hill climbers do not try, rather than spend their
+      * iterations wandering along a flat valley.  Return null if no
+      * axis is constrained, so there is nothing to search. */
+    private TrialRotationEvaluator.Curvature checkCurvature(String who,
+        TrialRotationEvaluator ev)
+    {
+        TrialRotationEvaluator.Curvature c = ev.curvature();
+        if (c.numUnconstrained == 3) {
+            log(who+": orientation is unconstrained about every axis");
+            return null;
+        }
+        for (int i=0; i < c.numUnconstrained; i++) {
+            log(who+": orientation is unconstrained about "+
+                describeRotationAxis(c.axes[i]));
+        }
+        return c;
+    }
+
+    /** Describe local rotation 'axis', a unit vector, by whichever of
+      * roll, pitch, and yaw it is closest to, followed by the axis. */
+    public static String describeRotationAxis(Vector3d axis)
+    {
+        double x = Math.abs(axis.x());
+        double y = Math.abs(axis.y());
+        double z = Math.abs(axis.z());
+        String name = (x >= y && x >= z)? "pitch" :
+                      (y >= z)?           "yaw" :
+                                          "roll";
+        return name+" "+axis.toVector3f();
+    }
+
+    /** Apply the recommended rotation to 's' until the adjustment
+      * angle drops below 'minimumAdjustDegrees'.  Return the improved
+      * square, or null if that is not possible due to insufficient
+      * constraints.
+      *
+      * This is the same search as repeatedly calling
+      * 'getVarianceAfterRotations' and 'adjustDerivedSquareOrientation',
+      * but it scores the trial rotations with one TrialRotationEvaluator,
+      * so only accepted moves build a new square.
+      *
+      * The moves must still be made on real squares: the objective has
+      * cliffs where a star ray becomes parallel to the base's ray, the
+      * optimum is often right at one, and the single-precision square
+      * can land on the other side of it from the trial.  So 'variance'
+      * tracks 'fitOfObservations' of the current square, and a move is
+      * only kept if the square it produces is actually better. */
+    private SurfaceSquare repeatedlyApplyRecommendedRotationCommand(SurfaceSquare s,
+        float minimumAdjustDegrees)
+    {
+        TrialRotationEvaluator ev = this.makeTrialRotationEvaluator(s);
+        if (ev == null || ev.getNumSamples() < 2) {
+            return null;  // Underconstrained.
+        }
+        double variance = this.fitOfObservations(s).variance;
+        if (variance == 0) {
+            return s;     // Already optimal.
+        }
+        TrialRotationEvaluator.Curvature curvature =
+            this.checkCurvature("repeatedlyApply", ev);
+        if (curvature == null) {
+            return null;
+        }
+
+        // Rotation amount.  This will be gradually reduced.
+        float adjustDegrees = 1.0f;
+
+        // Iteration cap for safety.
+        int iters = 0;
+
+        // Iterate until the adjust amount is too small.
+        while (adjustDegrees > minimumAdjustDegrees) {
+            // Find the rotation command that most improves the variance.
+            RotationCommand bestRC = null;
+            double bestNewVariance = 0;
+            boolean underconstrained = false;
+            double trialVariance = ev.variance(0, 0, 0);
+            for (RotationCommand rc : ROTATION_COMMANDS) {
+                if (curvature.isMostlyUnconstrained(new Vector3d(rc.axis))) {
+                    continue;
+                }
+                double newVariance = ev.variance(
+                    rc.axis.x() * adjustDegrees,
+                    rc.axis.y() * adjustDegrees,
+                    rc.axis.z() * adjustDegrees);
+                if (trialVariance == 0 && newVariance == 0) {
+                    // See 'getVarianceAfterRotations'.
+                    underconstrained = true;
+                }
+                if (newVariance < trialVariance &&
+                    (bestRC == null || newVariance < bestNewVariance))
+                {
+                    bestRC = rc;
+                    bestNewVariance = newVariance;
+                }
+            }
+
+            if (underconstrained) {
+                log("repeatedlyApply: solution is underconstrained, adjustDegrees="+ adjustDegrees);
+                break;
+            }
+            if (bestRC != null) {
+                SurfaceSquare newSquare =
+                    this.adjustDerivedSquareOrientation(bestRC.axis, s, adjustDegrees);
+                double newVariance = this.fitOfObservations(newSquare).variance;
+                if (newVariance >= variance) {
+                    // The evaluator was fooled by rounding.  Score the
+                    // commands on real squares instead, as they are
+                    // scored in 'getVarianceAfterRotations'.
+                    bestRC = null;
+                    for (RotationCommand rc : ROTATION_COMMANDS) {
+                        if (curvature.isMostlyUnconstrained(new Vector3d(rc.axis))) {
+                            continue;
+                        }
+                        SurfaceSquare candidate =
+                            this.adjustDerivedSquareOrientation(rc.axis, s, adjustDegrees);
+                        double candidateVariance =
+                            this.fitOfObservations(candidate).variance;
+                        if (candidateVariance < variance &&
+                            (bestRC == null || candidateVariance < newVariance))
+                        {
+                            bestRC = rc;
+                            newSquare = candidate;
+                            newVariance = candidateVariance;
+                        }
+                    }
+                }
+                if (bestRC != null) {
+                    s = newSquare;
+                    variance = newVariance;
+                    ev.setOrientation(s);
+                }
+            }
+            if (bestRC == null) {
+                adjustDegrees = adjustDegrees * 0.5f;
+            }
+
+            if (++iters > 1000) {
+                log("repeatedlyApply: exceeded iteration cap!");
+                break;
+            }
+        }
+
+        log("repeatedlyApply done: iters="+iters+" adj="+ adjustDegrees+
+            " var="+variance);
+        return s;
+    }
+
+    /** Largest step the pattern search will grow to, in degrees. */
+    private static final double PATTERN_SEARCH_MAX_STEP_DEGREES = 8;
+
+    /** Like 'repeatedlyApplyRecommendedRotationCommand', but searching
+      * with PatternSearch as described at
+      * 'SolverOptions.patternSearchOrientation'.  As there, moves are
+      * checked on real squares before they are kept. */
+    private SurfaceSquare patternSearchOrientSquare(SurfaceSquare s,
+        float minimumAdjustDegrees)
+    {
+        if (s.baseSquare == null) {
+            return null;
+        }
+        PatternSearch ps = new PatternSearch(this, s,
+            this.options.patternSearchDirections,
+            this.options.parallelPatternSearch);
+        if (ps.getNumSamples() < 2) {
+            return null;  // Underconstrained.
+        }
+        double variance = this.fitOfObservations(s).variance;
+        if (variance == 0) {
+            return s;     // Already optimal.
+        }
+        TrialRotationEvaluator.Curvature curvature =
+            this.checkCurvature("patternSearch", ps.getEvaluator());
+        if (curvature == null) {
+            return null;
+        }
+        ps.excludeUnconstrainedDirections(curvature);
+
+        double adjustDegrees = 1.0;
+        int lastDirection = -1;
+        int iters = 0;
+        while (adjustDegrees > minimumAdjustDegrees) {
+            PatternSearch.Result res = ps.findBestDirection(adjustDegrees);
+            if (res.underconstrained) {
+                log("patternSearch: solution is underconstrained, adjustDegrees="+ adjustDegrees);
+                break;
+            }
+
+            SurfaceSquare newSquare = null;
+            int direction = res.bestDirection;
+            if (direction >= 0) {
+                newSquare = this.patternSearchMove(ps, s, direction, adjustDegrees);
+                double newVariance = this.fitOfObservations(newSquare).variance;
+                if (newVariance >= variance) {
+                    // The evaluator was fooled by rounding, so score the
+                    // stencil on real squares instead.
+                    newSquare = null;
+                    direction = -1;
+                    for (int d=0; d < ps.getNumDirections(); d++) {
+                        if (ps.isExcluded(d)) {
+                            continue;
+                        }
+                        SurfaceSquare candidate =
+                            this.patternSearchMove(ps, s, d, adjustDegrees);
+                        double candidateVariance =
+                            this.fitOfObservations(candidate).variance;
+                        if (candidateVariance < variance) {
+                            newSquare = candidate;
+                            direction = d;
+                            variance = candidateVariance;
+                        }
+                    }
+                }
+                else {
+                    variance = newVariance;
+                }
+            }
+
+            if (newSquare != null) {
+                s = newSquare;
+                ps.setOrientation(s);
+
+                // Moving the same way twice suggests the optimum is
+                // farther off, so take bigger steps toward it.  That is
+                // the way actually moved, which the real squares may
+                // have chosen over the evaluator's.
+                if (direction == lastDirection) {
+                    adjustDegrees = Math.min(adjustDegrees * 2, PATTERN_SEARCH_MAX_STEP_DEGREES);
+                }
+                lastDirection = direction;
+            }
+            else {
+                adjustDegrees = adjustDegrees * 0.5;
+            }
+
+            if (++iters > 1000) {
+                log("patternSearch: exceeded iteration cap!");
+                break;
+            }
+        }
+
+        log("patternSearch done: iters="+iters+" adj="+ adjustDegrees+
+            " var="+variance);
+        return s;
+    }
+
+    /** Return the square 's' rotated by 'adjustDegrees' in direction
+      * 'd' of the stencil of 'ps'. */
+    private SurfaceSquare patternSearchMove(PatternSearch ps, SurfaceSquare s,
+        int d, double adjustDegrees)
+    {
+        Vector3f axis = new Vector3f(
+            (float)ps.direction(d, 0),
+            (float)ps.direction(d, 1),
+            (float)ps.direction(d, 2));
+        return this.adjustDerivedSquareOrientation(axis, s, (float)adjustDegrees);
+    }
+
+    /** Compute the orientation of 'derived' relative to its base in
+      * one step, assuming the stars are infinitely far away.  In that
+      * case, the problem is to find the rotation of the square that
+      * best aligns its star rays with the base square's rays to the
+      * same stars, which is Wahba's problem, solved in closed form by
+      * 'Matrix3d.bestFitRotation'.  Return the reoriented square, or
+      * null if there are fewer than two stars in common or they do
+      * not determine the orientation.
+      *
+      * This minimizes the sum of squared chord distances between the
+      * unit rays rather than squared angles like 'fitOfObservations',
+      * but for the small separations that matter the two agree. */
+    private SurfaceSquare closedFormOrientSquare(SurfaceSquare derived)
+    {
+        SurfaceSquare base = derived.baseSquare;
+        if (base == null) {
+            return null;
+        }
+
+        // Pair each observation at 'derived', as a ray in the nominal
+        // (unrotated) square coordinates, with the base square's ray
+        // to the same star in world coordinates.
+        ArrayList<Vector3d> nominalRays = new ArrayList<Vector3d>();
+        ArrayList<Vector3d> baseRays = new ArrayList<Vector3d>();
+        for (StarObservation so : derived.starObs.values()) {
+            StarObservation baseObservation = base.findObservation(so.name);
+            if (baseObservation != null) {
+                nominalRays.add(new Vector3d(
+                    Vector3f.azimuthElevationToVector(so.azimuth, so.elevation)));
+                baseRays.add(new Vector3d(rayToStar(base, baseObservation)));
+            }
+        }
+        if (nominalRays.size() < 2) {
+            return null;
+        }
+
+        // Best rotation of 'derived' from nominal.
+        Matrix3d derivedFromNominal = Matrix3d.bestFitRotation(
+            nominalRays.toArray(new Vector3d[0]),
+            baseRays.toArray(new Vector3d[0]));
+        if (derivedFromNominal == null) {
+            log("closedFormOrient: stars in common do not determine orientation");
+            return null;
+        }
+
+        // The rotation from base is what remains after undoing the
+        // base's own rotation from nominal.
+        Vector3d baseRotation = new Vector3d(base.rotationFromNominal);
+        Matrix3d baseFromNominal = Matrix3d.rotateRad(
+            FloatUtil.degreesToRadians(baseRotation.length()), baseRotation);
+        Vector3d rotationFromBase =
+            derivedFromNominal.times(baseFromNominal.transpose()).rotationVectorDegrees();
+
+        SurfaceSquare ret = this.replaceWithNewRotation(base, derived,
+            rotationFromBase.toVector3f());
+
+        ObservationStats ostats = this.fitOfObservations(ret);
+        log("closedFormOrient done: n="+nominalRays.size()+
+            " var="+(ostats == null? "null" : ""+ostats.variance));
+        return ret;
+    }
+
+    /** Make an evaluator for trial orientations of 'derived', or
+      * return null if it has no base square. */
+    public TrialRotationEvaluator makeTrialRotationEvaluator(SurfaceSquare derived)
+    {
+        SurfaceSquare base = derived.baseSquare;
+        if (base == null) {
+            return null;
+        }
+        TravelObservation tobs = this.worldObservations.getTravelObservation(
+            base.latitude, base.longitude, derived.latitude, derived.longitude);
+        return new TrialRotationEvaluator(derived, tobs, this.options);
+    }
+
+    /** Maximum number of Levenberg-Marquardt iterations. */
+    private static final int LM_MAX_ITERATIONS = 100;
+
+    /** Stop when a Levenberg-Marquardt step is shorter than this,
+      * in degrees. */
+    private static final double LM_MINIMUM_STEP_DEGREES = 1e-6;
+
+    /** Orient 'derived' by minimizing the sum of squared separation
+      * angles, as measured by 'fitOfObservations', over the three
+      * components of the adjustment rotation vector, using the
+      * Levenberg-Marquardt method.  Return the improved square, or
+      * null if there are fewer than two stars in common.
+      *
+      * The objective is lumpy far from the optimum because of the
+      * clamping in 'getModifiedClosestApproach', and a purely local
+      * method can get stuck there, so this starts from the closed-form
+      * infinite-distance solution, which is usually close.
+      *
+      * Each star contributes a 3-vector residual (see
+      * 'TrialRotationEvaluator.residuals') whose length is its
+      * separation angle, so the objective is the same one the hill
+      * climber minimizes, but near the optimum the residuals are
+      * smooth and the iteration converges quadratically instead of by
+      * repeatedly halving the step.  The Jacobian is computed
+      * analytically by 'TrialRotationEvaluator.residualsAndJacobian'.
+      * The hill climber is only used if this fails to converge. */
+    private SurfaceSquare levenbergMarquardtOrientSquare(SurfaceSquare derived)
+    {
+        if (derived.baseSquare == null) {
+            return null;
+        }
+
+        // Start from the orientation that would be best if the stars
+        // were infinitely far away, which is usually near the optimum,
+        // unless the stars are so close that the square's current
+        // orientation is better.
+        SurfaceSquare seed = this.closedFormOrientSquare(derived);
+        if (seed != null &&
+            this.fitOfObservations(seed).variance <
+                this.fitOfObservations(derived).variance)
+        {
+            derived = seed;
+        }
+
+        TrialRotationEvaluator ev = this.makeTrialRotationEvaluator(derived);
+        int n = ev.getNumSamples() * 3;
+        if (n < 2*3) {
+            return null;      // Underconstrained.
+        }
+
+        // Residuals and Jacobian at the evaluator's current orientation,
+        // which each accepted step moves.
+        double[] r = new double[n];
+        double[][] J = new double[3][n];
+        double cost = 0;
+
+        // Scratch array.
+        double[] newR = new double[n];
+
+        // Damping factor.
+        double lambda = 1e-3;
+
+        int iters = 0;
+        for (; iters < LM_MAX_ITERATIONS; iters++) {
+            cost = ev.residualsAndJacobian(r, J);
+            if (cost == 0) {
+                break;
+            }
+
+            // Normal equations: A = J^T J, g = J^T r.
+            double[][] A = new double[3][3];
+            double[] g = new double[3];
+            for (int a=0; a < 3; a++) {
+                for (int b=0; b < 3; b++) {
+                    double sum = 0;
+                    for (int i=0; i < n; i++) {
+                        sum += J[a][i] * J[b][i];
+                    }
+                    A[a][b] = sum;
+                }
+                double sum = 0;
+                for (int i=0; i < n; i++) {
+                    sum += J[a][i] * r[i];
+                }
+                g[a] = sum;
+            }
+
+            // Find a damping that yields an improvement.
+            Vector3d step = null;
+            while (lambda < 1e12) {
+                Matrix3d damped = new Matrix3d(
+                    A[0][0] * (1+lambda), A[0][1], A[0][2],
+                    A[1][0], A[1][1] * (1+lambda), A[1][2],
+                    A[2][0], A[2][1], A[2][2] * (1+lambda));
+                Matrix3d inv = damped.inverse();
+                if (inv != null) {
+                    Vector3d candidate = inv.times(new Vector3d(g[0], g[1], g[2])).times(-1);
+                    double newCost = ev.residuals(candidate.x(),
+                        candidate.y(), candidate.z(), newR);
+                    if (newCost < cost) {
+                        step = candidate;
+                        ev.adjust(candidate.x(), candidate.y(), candidate.z());
+                        cost = newCost;
+                        lambda = Math.max(lambda / 10, 1e-12);
+                        break;
+                    }
+                }
+                lambda *= 10;
+            }
+
+            if (step == null || step.length() < LM_MINIMUM_STEP_DEGREES) {
+                break;
+            }
+        }
+
+        if (iters >= LM_MAX_ITERATIONS) {
+            // This happens when the search wanders into a region where
+            // the modified closest approach clamps the residuals, so
+            // they are not smooth.  Finish with the hill climber, which
+            // copes with that, starting from where it left off.
+            log("levenbergMarquardt: did not converge, var="+(cost / ev.getNumSamples()));
+            return this.hillClimbOrientSquare(derived,
+                MINIMUM_ADJUST_ORIENTATION_DEGREES);
+        }
+
+        SurfaceSquare ret = this.replaceWithNewRotation(derived.baseSquare, derived,
+            ev.getRotationFromBase());
+
+        // Make sure the single-precision square did not land on the
+        // wrong side of a cliff (see 'repeatedlyApplyRecommendedRotationCommand').
+        double variance = cost / ev.getNumSamples();
+        double actualVariance = this.fitOfObservations(ret).variance;
+        if (actualVariance > variance * 1.01 + 1e-9) {
+            log("levenbergMarquardt: result rounded badly, var="+actualVariance);
+            return this.hillClimbOrientSquare(derived,
+                MINIMUM_ADJUST_ORIENTATION_DEGREES);
+        }
+
+        log("levenbergMarquardt done: iters="+iters+" var="+variance);
+        return ret;
+    }
+
+    /** Result of call to 'getVarianceAfterRotations'. */
+    public static class VarianceAfterRotations {
+        /** Variance produced by each rotation.  The value can be null,
+          * meaning the rotation produces a situation where we can't
+          * measure the variance (e.g., because not enough stars are
+          * above the horizon). */
+        public HashMap<RotationCommand, Double> rcToVariance = new HashMap<RotationCommand, Double>();
+
+        /** Which rotation command produces the greatest improvement
+          * in variance, if any. */
+        public RotationCommand bestRC = null;
+
+        /** If true, the solution space is underconstrained, meaning
+          * the best orientation is not unique. */
+        public boolean underconstrained = false;
+
+        /** If the curvature of the fit shows that some rotation does
+          * not affect it, the axis of that rotation, in local
+          * coordinates.  See 'TrialRotationEvaluator.curvature'. */
+        public Vector3d unconstrainedAxis = null;
+    }
+
+    /** Perform a trial rotation in each direction and record the
+      * resulting variance, plus a decision about which is best, if any.
+      * This returns null if we do not have enough data to measure
+      * the fitness of the square's orientation. */
+    public VarianceAfterRotations getVarianceAfterRotations(SurfaceSquare s,
+        float adjustDegrees)
+    {
+        TrialRotationEvaluator ev = this.makeTrialRotationEvaluator(s);
+        if (ev == null || ev.getNumSamples() == 0) {
+            return null;
+        }
+
+        // Get variance if no rotation is performed.  We only recommend
+        // a rotation if it improves on this.
+        double variance = ev.variance(0, 0, 0);
+
+        VarianceAfterRotations ret = new VarianceAfterRotations();
+
+        // Variance achieved by the best rotation command, if there is one.
+        double bestNewVariance = 0;
+
+        // Get the effects of all the available rotations.
+        for (RotationCommand rc : ROTATION_COMMANDS) {
+            if (ev.getNumSamples() < 2) {
+                ret.rcToVariance.put(rc, null);
+            }
+            else {
+                double newVariance = ev.variance(
+                    rc.axis.x() * adjustDegrees,
+                    rc.axis.y() * adjustDegrees,
+                    rc.axis.z() * adjustDegrees);
+                ret.rcToVariance.put(rc, newVariance);
+
+                if (variance == 0 && newVariance == 0) {
+                    // The current orientation is ideal, but here
+                    // is a rotation that keeps it ideal.  That
+                    // must mean that the solution space is under-
+                    // constrained.  The curvature check below finds
+                    // this more generally, but it is a useful check
+                    // when the variance has landed on exactly zero.
+                    ret.underconstrained = true;
+                }
+
+                if (newVariance < variance &&
+                    (ret.bestRC == null || newVariance < bestNewVariance))
+                {
+                    ret.bestRC = rc;
+                    bestNewVariance = newVariance;
+                }
+            }
+        }
+
+        // A rotation axis along which the fit is flat means the best
+        // orientation is not unique, whether or not the variance is
+        // zero, and whichever way the axis points.
+        if (ev.getNumSamples() >= 2) {
+            ret.unconstrainedAxis = ev.curvature().unconstrainedAxis();
+            if (ret.unconstrainedAxis != null) {
+                ret.underconstrained = true;
+            }
+        }
+
+        return ret;
+    }
+
+    // ------------------------------ Curvature -----------------------------
+    /** Compute the average curvature on a path from the base square
+      * of 's' to 's'. */
+    public CurvatureCalculator computeAverageCurvature(SurfaceSquare s)
+    {
+        // Travel distance and heading.
+        TravelObservation tobs = this.worldObservations.getTravelObservation(
+            s.baseSquare.latitude, s.baseSquare.longitude,
+            s.latitude, s.longitude);
+
+        // Unit travel vector in base square coordinate system.
+        Vector3f startTravel = Vector3f.headingToVector((float)tobs.startToEndHeading);
+        startTravel = startTravel.rotateAADeg(s.baseSquare.rotationFromNominal);
+
+        // And at derived square.
+        Vector3f endTravel = Vector3f.headingToVector((float)tobs.endToStartHeading + 180);
+        endTravel = endTravel.rotateAADeg(s.rotationFromNominal);
+
+        // Calculate curvature and twist.
+        CurvatureCalculator c = new CurvatureCalculator();
+        c.distanceKm = tobs.distanceKm;
+        c.computeFromNormals(s.baseSquare.up, s.up, startTravel, endTravel);
+        return c;
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Half the width, in degrees of latitude and of longitude, of the
+      * area covered by 's' in a build with 'opts'. */
+    private static float footprintHalfWidth(SurfaceSquare s, SolverOptions opts)
+    {
+        return opts.buildStepDegrees / 2 * s.sizeKm / opts.squareSizeKm;
+    }
+
+    /** True if the areas covered by 'a' and 'b' overlap by more than
+      * 'eps' degrees in both latitude and longitude. */
+    private static boolean footprintsOverlap(SurfaceSquare a, SurfaceSquare b,
+        SolverOptions opts, float eps)
+    {
+        float reach = footprintHalfWidth(a, opts) + footprintHalfWidth(b, opts) - eps;
+        return Math.abs(a.latitude - b.latitude) < reach &&
+            Math.abs(FloatUtil.modulus2(a.longitude - b.longitude, -180, 180)) < reach;
+    }
+
+    /** Check that adaptive refinement replaces each refined square with
+      * squares that cover exactly its area, and leaves every square
+      * built on a square that remains. */
+    private static void testRefinement()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        r.options.buildStepDegrees = 30;
+        r.options.refinementVarianceThreshold = 0;
+        r.options.refinementCurvatureThreshold = 0;
+        List<SurfaceSquare> coarse =
+            r.buildEarthSurfaceFromStarData(BuildProgress.NONE).getSurfaceSquares();
+
+        r.options.adaptiveRefinement = true;
+        List<SurfaceSquare> refined =
+            r.buildEarthSurfaceFromStarData(BuildProgress.NONE).getSurfaceSquares();
+        SolverOptions opts = r.options;
+        float eps = 1e-3f;
+
+        // Each square lies within exactly one square of the coarse grid.
+        double[] covered = new double[coarse.size()];
+        ArrayList<ArrayList<SurfaceSquare>> cells = new ArrayList<ArrayList<SurfaceSquare>>();
+        for (int i=0; i < coarse.size(); i++) {
+            cells.add(new ArrayList<SurfaceSquare>());
+        }
+        int numSmall = 0;
+        for (SurfaceSquare s : refined) {
+            if (s.sizeKm < opts.squareSizeKm) {
+                numSmall++;
+            }
+            int cell = -1;
+            for (int i=0; i < coarse.size(); i++) {
+                SurfaceSquare c = coarse.get(i);
+                float slack = footprintHalfWidth(c, opts) - footprintHalfWidth(s, opts) + eps;
+                if (Math.abs(s.latitude - c.latitude) <= slack &&
+                    Math.abs(FloatUtil.modulus2(s.longitude - c.longitude, -180, 180)) <= slack)
+                {
+                    assert(cell == -1) : s;
+                    cell = i;
+                }
+            }
+            assert(cell != -1) : s;
+            float w = footprintHalfWidth(s, opts) * 2;
+            covered[cell] += w * w;
+            cells.get(cell).add(s);
+        }
+        assert(numSmall > 0);
+
+        // Within each, the squares do not overlap and cover all of it.
+        for (int i=0; i < coarse.size(); i++) {
+            float w = footprintHalfWidth(coarse.get(i), opts) * 2;
+            assert(Math.abs(covered[i] - w * w) < 1e-2) : coarse.get(i);
+            ArrayList<SurfaceSquare> cell = cells.get(i);
+            for (int a=0; a < cell.size(); a++) {
+                for (int b=a+1; b < cell.size(); b++) {
+                    assert(!footprintsOverlap(cell.get(a), cell.get(b), opts, eps)) :
+                        cell.get(a)+" "+cell.get(b);
+                }
+            }
+        }
+
+        // Every base is on the surface, and the squares built on it
+        // have not moved relative to it.
+        Set<SurfaceSquare> present = Collections.newSetFromMap(
+            new IdentityHashMap<SurfaceSquare, Boolean>());
+        present.addAll(refined);
+        for (SurfaceSquare s : refined) {
+            if (s.baseSquare != null) {
+                assert(present.contains(s.baseSquare)) : s;
+                Vector3f rot = Vector3f.composeRotations(
+                    s.baseSquare.rotationFromNominal, s.rotationFromBase);
+                assert(rot.minus(s.rotationFromNominal).length() < 1e-2) : s;
+            }
+        }
+        System.out.println("refinement: "+coarse.size()+" squares became "+
+            refined.size()+", "+numSmall+" of them smaller");
+    }
+
+    /** Return what 'getQualifyingObservations' should give at the given
+      * location: the qualifying observations of each epoch in turn,
+      * skipping those when the Sun is too high, named for the epoch. */
+    private List<StarObservation> expectedQualifyingObservations(
+        float latitude, float longitude)
+    {
+        ArrayList<StarObservation> ret = new ArrayList<StarObservation>();
+        float spacing = this.options.epochSpacingHours;
+        for (int epoch=0; epoch < this.options.numEpochs; epoch++) {
+            double t = epochTime(epoch, spacing);
+            if (this.options.useSunElevation &&
+                this.worldObservations.sunIsAbove(t, latitude, longitude,
+                    this.options.maximumSunElevation))
+            {
+                continue;
+            }
+            for (StarObservation so : this.worldObservations.getStarObservationsAbove(
+                     t, latitude, longitude, this.options.minimumStarElevation))
+            {
+                if (this.qualifyingStarObservation(so)) {
+                    ret.add(new StarObservation(so.latitude, so.longitude,
+                        epochStarName(so.name, epoch, spacing),
+                        so.azimuth, so.elevation));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /** Check the epoch times and names, and that the qualifying
+      * observations include every epoch at which the Sun is low. */
+    private static void testEpochs()
+    {
+        double t0 = StarObservation.unixTimeOfManualData;
+        assert(epochTime(0, 2) == t0);
+        assert(epochTime(3, 2) == t0 + 6 * 3600);
+        assert(epochTime(1, 0.5f) == t0 + 1800);
+        assert(epochStarName("Sirius", 0, 2).equals("Sirius"));
+        assert(epochStarName("Sirius", 1, 2).equals("Sirius @+2.0h"));
+        assert(epochStarName("Sirius", 3, 1.5f).equals("Sirius @+4.5h"));
+
+        // Over a day, the Sun is up for some epochs and not others.
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        r.options.numEpochs = 6;
+        r.options.epochSpacingHours = 4;
+        float lat = CloseStarObservations.REFERENCE_LATITUDE;
+        float lon = CloseStarObservations.REFERENCE_LONGITUDE;
+        for (int pass=0; pass < 2; pass++) {
+            r.options.useSunElevation = (pass == 0);
+            List<StarObservation> expect = r.expectedQualifyingObservations(lat, lon);
+            List<StarObservation> got = r.getQualifyingObservations(lat, lon).observations;
+            assert(got.size() == expect.size()) : got.size()+" "+expect.size();
+            for (int i=0; i < got.size(); i++) {
+                StarObservation g = got.get(i);
+                StarObservation e = expect.get(i);
+                assert(g.name.equals(e.name)) : g.name+" "+e.name;
+                assert(g.azimuth == e.azimuth && g.elevation == e.elevation) : g.name;
+            }
+
+            // Count the epochs that contributed, by their names.
+            int numEpochsSeen = 0;
+            for (int epoch=0; epoch < r.options.numEpochs; epoch++) {
+                String suffix = epochStarName("", epoch, r.options.epochSpacingHours);
+                for (StarObservation so : got) {
+                    boolean named = (epoch == 0)? so.name.indexOf(" @+") < 0 :
+                                                  so.name.endsWith(suffix);
+                    if (named) {
+                        numEpochsSeen++;
+                        break;
+                    }
+                }
+            }
+            if (pass == 0) {
+                assert(numEpochsSeen > 0 && numEpochsSeen < r.options.numEpochs) :
+                    numEpochsSeen;
+            }
+            else {
+                assert(numEpochsSeen == r.options.numEpochs) : numEpochsSeen;
+            }
+        }
+    }
+
+    /** Check that 'b.addCandidates(base, ...)' just queued a candidate
+      * for exactly those empty cells next to 'base' that share at least
+      * MINIMUM_COMMON_STARS stars with it, with the right count, and
+      * return how many it skipped for sharing fewer. */
+    private int checkCandidates(BestFirstBuilder b, SurfaceSquare base,
+        int latIndex, int lonIndex)
+    {
+        Map<String, Vector3f> baseStars = this.getVisibleStars(base.latitude, base.longitude);
+        int numSkipped = 0;
+        int[][] moves = { {+1,0}, {-1,0}, {0,+1}, {0,-1} };
+        for (int[] move : moves) {
+            int newLatIndex = latIndex + move[0];
+            int newLonIndex = (lonIndex + move[1] + b.numLongitudes) % b.numLongitudes;
+            float newLatitude = b.latitude(newLatIndex);
+            if (b.placed.contains(b.cellKey(newLatIndex, newLonIndex)) ||
+                !( -90 < newLatitude && newLatitude < 90 ))
+            {
+                continue;
+            }
+
+            int common = 0;
+            for (String starName : this.getVisibleStars(
+                     newLatitude, b.longitude(newLonIndex)).keySet()) {
+                if (baseStars.containsKey(starName)) {
+                    common++;
+                }
+            }
+
+            BestFirstCandidate found = null;
+            for (BestFirstCandidate c : b.queue) {
+                if (c.base == base && c.latIndex == newLatIndex && c.lonIndex == newLonIndex) {
+                    assert(found == null);
+                    found = c;
+                }
+            }
+            if (common < MINIMUM_COMMON_STARS) {
+                assert(found == null) : newLatitude+" "+common;
+                numSkipped++;
+            }
+            else {
+                assert(found != null && found.commonStars == common) : newLatitude+" "+common;
+            }
+        }
+        return numSkipped;
+    }
+
+    /** Check that the best-first build expands the frontier cell with
+      * the most common stars first, and never queues one with too few,
+      * by running its loop step by step and comparing with the build. */
+    private static void testBestFirst()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        r.options.buildStepDegrees = 30;
+        r.options.bestFirstBuild = true;
+        List<SurfaceSquare> built =
+            r.buildEarthSurfaceFromStarData(BuildProgress.NONE).getSurfaceSquares();
+        assert(built.size() > 1 && built.size() <= gridCells(30));
+
+        SurfaceSquare start = built.get(0);
+        BestFirstBuilder b = r.new BestFirstBuilder(start);
+        assert(b.totalCells == gridCells(30));
+        int numSkipped = r.checkCandidates(b, start, 0, 0);
+        ArrayList<SurfaceSquare> placed = new ArrayList<SurfaceSquare>();
+        placed.add(start);
+        int numOrdered = 0;
+        while (!b.queue.isEmpty()) {
+            BestFirstCandidate c = b.queue.poll();
+            assert(c.commonStars >= MINIMUM_COMMON_STARS);
+            if (!b.queue.isEmpty()) {
+                BestFirstCandidate next = b.queue.peek();
+                assert(c.commonStars >= next.commonStars);
+                if (c.commonStars > next.commonStars) {
+                    numOrdered++;
+                }
+            }
+
+            long key = b.cellKey(c.latIndex, c.lonIndex);
+            if (b.placed.contains(key)) {
+                continue;
+            }
+            SurfaceSquare s = r.createAndAutomaticallyOrientSquare(c.base,
+                c.latitude, c.longitude);
+            if (s == null) {
+                continue;
+            }
+            placed.add(s);
+            b.placed.add(key);
+            b.addCandidates(s, c.latIndex, c.lonIndex);
+            numSkipped += r.checkCandidates(b, s, c.latIndex, c.lonIndex);
+        }
+
+        // The build placed the same squares in the same order.
+        assert(placed.size() == built.size()) : placed.size()+" "+built.size();
+        for (int i=0; i < placed.size(); i++) {
+            assert(placed.get(i).latitude == built.get(i).latitude &&
+                   placed.get(i).longitude == built.get(i).longitude) : i;
+        }
+
+        // The ordering and the minimum both mattered.
+        assert(numOrdered > 0);
+        assert(numSkipped > 0);
+        System.out.println("best-first: "+placed.size()+" squares, "+
+            numSkipped+" cells skipped for too few common stars");
+    }
+
+    /** Run the tests above. */
+    /** Orient squares adjacent to a base square with the closed-form
+      * solution (for infinitely distant stars) or Levenberg-Marquardt.
+      * The closed-form solution must fit at least as well as the hill
+      * climber's.  With stars at finite distances, the clamping in the
+      * modified closest approach leaves local minima a few hundredths
+      * of a degree apart, and the two methods can settle in different
+      * ones, so there the fit need only be within a hundredth of a
+      * degree. */
+    private static void testOrientation(WorldObservations obs, boolean infinite)
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(obs);
+        r.options.assumeInfiniteStarDistance = infinite;
+        SurfaceSquare base = new SurfaceSquare(
+            new Vector3f(0,0,0), new Vector3f(0,0,-1), new Vector3f(0,1,0),
+            DEFAULT_SQUARE_SIZE_KM, 38, -122, null, null, new Vector3f(0,0,0));
+        r.addMatchingData(base);
+
+        float[][] moves = { {9,0}, {0,9}, {-9,0}, {0,-9} };
+        for (float[] move : moves) {
+            SurfaceSquare derived = r.createRotatedAdjacentSquare(base,
+                base.latitude + move[0], base.longitude + move[1],
+                new Vector3f(2, -1, 3));
+            r.addMatchingData(derived);
+
+            r.options.closedFormOrientation = false;
+            r.options.levenbergMarquardtOrientation = false;
+            SurfaceSquare climbed = r.automaticallyOrientSquare(derived);
+            r.options.closedFormOrientation = infinite;
+            r.options.levenbergMarquardtOrientation = !infinite;
+            SurfaceSquare solved = r.automaticallyOrientSquare(derived);
+            assert(climbed != null && solved != null);
+
+            double climbedVariance = r.fitOfObservations(climbed).variance;
+            double solvedVariance = r.fitOfObservations(solved).variance;
+            double allowed = infinite? climbedVariance * 1.01 + 1e-9 : 1e-4;
+            assert(solvedVariance <= allowed) :
+                obs.getDescription()+" "+solvedVariance+" "+climbedVariance;
+        }
+    }
+
+    private static void runTests()
+    {
+        testEpochs();
+        testBestFirst();
+        testRefinement();
+        testOrientation(new RealWorldObservations(), true);
+        testOrientation(new CloseStarObservations(), false);
+        testOrientation(new BowlObservations(), false);
+        System.out.println("SurfaceReconstructor tests passed");
+    }
+
+    // ------------------------------ Headless ------------------------------
+    /** Make the observations named on the command line. */
+    private static WorldObservations makeObservations(String name)
+    {
+        if (name.equals("real")) {
+            return new RealWorldObservations();
+        }
+        else if (name.equals("close")) {
+            return new CloseStarObservations();
+        }
+        else if (name.equals("ae")) {
+            return new AzimuthalEquidistantObservations();
+        }
+        else if (name.equals("bowl")) {
+            return new BowlObservations();
+        }
+        else if (name.equals("saddle")) {
+            return new SaddleObservations();
+        }
+        else {
+            throw new RuntimeException("unknown model: "+name+
+                " (expected real, close, ae, bowl, or saddle)");
+        }
+    }
+
+    /** Build a surface without any display and print a summary.
+      * Usage: -test | [-parallel] [-bestfirst] [-adaptive] [-bundle] [-loops]
+      * [-closedform] [-lm] [-pattern directions] [-checkpoint file]
+      * [-ensemble members [-noise degrees] [-seed seed]]
+      * [-sweep name=v1,v2,...]... [-walk walkers steps [-seed seed]]
+      * [-ablate | -ablatepairs] [-catalog file [-maxmag magnitude]]
+      * [model], where model is as accepted by 'makeObservations'.
+      * -closedform and -lm turn on the closed-form and
+      * Levenberg-Marquardt orientation solvers.
+      * With -catalog, use real world data with the stars of the
+      * given StarCatalogFile at least as bright as the magnitude.  With
+      * -ensemble, build a NoiseEnsemble instead and print its table.
+      * With -sweep, build a ParameterSweep over the given settings
+      * and print its table.  With -walk, build with RandomWalkBuilder
+      * instead.  With -ablate, build a StarAblation, leaving out each
+      * star, and with -ablatepairs, each pair too, and print its
+      * table.  With -test, run the self-tests instead. */
+    public static void main(String args[])
+    {
+        String modelName = "real";
+        boolean parallel = false;
+        boolean adaptive = false;
+        boolean bundle = false;
+        boolean loops = false;
+        boolean bestFirst = false;
+        boolean closedForm = false;
+        boolean levenbergMarquardt = false;
+        int patternDirections = 0;
+        String checkpointFile = null;
+        int ensembleMembers = 0;
+        double noiseDegrees = NoiseEnsemble.DEFAULT_NOISE_DEGREES;
+        long seed = 1;
+        ArrayList<String> sweepAxes = new ArrayList<String>();
+        int walkers = 0;
+        int walkSteps = 0;
+        boolean ablate = false;
+        boolean ablatePairs = false;
+        String catalogFile = null;
+        float maxMagnitude = StarCatalogFile.DEFAULT_MAX_MAGNITUDE;
+        for (int i=0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-test")) {
+                runTests();
+                return;
+            }
+            else if (arg.equals("-checkpoint") && i+1 < args.length) {
+                checkpointFile = args[++i];
+            }
+            else if (arg.equals("-ensemble") && i+1 < args.length) {
+                ensembleMembers = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("-noise") && i+1 < args.length) {
+                noiseDegrees = Double.parseDouble(args[++i]);
+            }
+            else if (arg.equals("-seed") && i+1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            }
+            else if (arg.equals("-walk") && i+2 < args.length) {
+                walkers = Integer.parseInt(args[++i]);
+                walkSteps = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("-sweep") && i+1 < args.length) {
+                sweepAxes.add(args[++i]);
+            }
+            else if (arg.equals("-catalog") && i+1 < args.length) {
+                catalogFile = args[++i];
+            }
+            else if (arg.equals("-maxmag") && i+1 < args.length) {
+                maxMagnitude = Float.parseFloat(args[++i]);
+            }
+            else if (arg.equals("-pattern") && i+1 < args.length) {
+                patternDirections = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("-parallel")) {
+                parallel = true;
+            }
+            else if (arg.equals("-bestfirst")) {
+                bestFirst = true;
+            }
+            else if (arg.equals("-adaptive")) {
+                adaptive = true;
+            }
+            else if (arg.equals("-bundle")) {
+                bundle = true;
+            }
+            else if (arg.equals("-loops")) {
+                loops = true;
+            }
+            else if (arg.equals("-closedform")) {
+                closedForm = true;
+            }
+            else if (arg.equals("-lm")) {
+                levenbergMarquardt = true;
+            }
+            else if (arg.equals("-ablate")) {
+                ablate = true;
+            }
+            else if (arg.equals("-ablatepairs")) {
+                ablate = true;
+                ablatePairs = true;
+            }
+            else {
+                modelName = arg;
+            }
+        }
+        WorldObservations observations;
+        if (catalogFile != null) {
+            try {
+                StarCatalogFile catalog = StarCatalogFile.open(new File(catalogFile));
+                System.out.println(catalog);
+                observations = new RealWorldObservations(catalog.makeCatalog(maxMagnitude));
+            }
+            catch (IOException e) {
+                throw new RuntimeException("SurfaceReconstructor: cannot read "+
+                    catalogFile+": "+e, e);
+            }
+        }
+        else {
+            observations = makeObservations(modelName);
+        }
+        SurfaceReconstructor r = new SurfaceReconstructor(observations);
+        r.options.parallelBuild = parallel;
+        r.options.adaptiveRefinement = adaptive;
+        r.options.bundleAdjust = bundle;
+        r.options.closeLoops = loops;
+        r.options.bestFirstBuild = bestFirst;
+        r.options.closedFormOrientation = closedForm;
+        r.options.levenbergMarquardtOrientation = levenbergMarquardt;
+        if (patternDirections != 0) {
+            r.options.patternSearchOrientation = true;
+            r.options.patternSearchDirections = patternDirections;
+            r.options.parallelPatternSearch = parallel;
+        }
+        r.options.checkpointFile = checkpointFile;
+        if (ensembleMembers > 0) {
+            NoiseEnsemble ens = new NoiseEnsemble(r, ensembleMembers, noiseDegrees, seed);
+            NoiseEnsemble.printTable(System.out, ens.run());
+            return;
+        }
+        if (ablate) {
+            StarAblation ab = new StarAblation(r);
+            ab.includePairs = ablatePairs;
+            StarAblation.printTable(System.out, ab.run());
+            System.out.println(ab.getObservations());
+            return;
+        }
+        if (walkers > 0) {
+            RandomWalkBuilder walk = new RandomWalkBuilder(r, walkers, walkSteps, seed);
+            System.out.println(walk.build());
+            return;
+        }
+        if (!sweepAxes.isEmpty()) {
+            ParameterSweep sweep = new ParameterSweep(r);
+            for (String spec : sweepAxes) {
+                sweep.addAxis(spec);
+            }
+            ParameterSweep.printTable(System.out, sweep.run());
+            System.out.println(sweep.getLastCache());
+            return;
+        }
+        ReconstructedSurface surface = r.buildEarthSurfaceFromStarData(BuildProgress.NONE);
+        System.out.println(surface);
+    }
+}
+
+// EOF
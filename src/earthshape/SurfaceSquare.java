@@ -5,10 +5,16 @@ package earthshape;
 
 import java.util.HashMap;
 
+import util.Matrix3d;
 import util.Vector3f;
 
 /** Represent a single square on a surface in space. */
 public class SurfaceSquare {
+    // ---- Constants ----
+    /** Units in 3D space coordinates per km in surface being mapped. */
+    public static final float SPACE_UNITS_PER_KM = 0.001f;
+
+    // ---- Instance data ----
     /** Location of the center point of the square. */
     public Vector3f center;
 
@@ -113,6 +119,27 @@ public class SurfaceSquare {
         return this.starObs.get(starName);
     }
 
+    /** Return the orientation of this square as the rotation matrix
+      * taking the nominal North and up vectors to its own. */
+    public Matrix3d orientation()
+    {
+        return orientation(this.north, this.up);
+    }
+
+    /** Return the rotation matrix taking the nominal North and up
+      * vectors to 'north' and 'up'. */
+    public static Matrix3d orientation(Vector3f north, Vector3f up)
+    {
+        Vector3f n = north.normalize();
+        Vector3f u = up.normalize();
+        Vector3f e = n.cross(u).normalize();
+
+        // Nominal East, up, and South are the unit axes.
+        return new Matrix3d(e.x(), u.x(), -n.x(),
+                            e.y(), u.y(), -n.y(),
+                            e.z(), u.z(), -n.z());
+    }
+
     public String toString()
     {
         Vector3f east = this.north.cross(this.up);
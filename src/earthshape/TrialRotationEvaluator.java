@@ -0,0 +1,971 @@
+// TrialRotationEvaluator.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import util.FloatUtil;
+import util.Matrix3d;
+import util.Vector3d;
+import util.Vector3f;
+
+/** Scores trial orientations of one derived square against its base.
+  *
+  * 'SurfaceReconstructor.fitOfAdjustedSquare' answers the same question,
+  * but it rebuilds a SurfaceSquare for every trial: it fetches the
+  * travel observation again, rotates North and up, and then looks up
+  * each star by name and recomputes the base square's rays.  None of
+  * that depends on the trial rotation, so this class does it once,
+  * and after that evaluating a rotation is a loop over primitive
+  * arrays that allocates nothing.  The orientation searches call this
+  * many thousands of times per square.
+  *
+  * The math is the same as in 'fitOfObservations', except carried out
+  * in double precision, so results agree with it to within the
+  * precision of the single-precision squares.
+  *
+  * Orientations are represented as nominal-to-world rotation matrices,
+  * and a trial rotation is a rotation vector (axis times degrees)
+  * relative to the square's current orientation, just like the
+  * argument to 'fitOfAdjustedSquare'.
+  *
+  * An evaluator has mutable scratch state, so it must only be used
+  * by one thread at a time. */
+public class TrialRotationEvaluator {
+    // ---- Instance data ----
+    /** True to treat star rays as parallel lines (stars infinitely far
+      * away), false to use 'getModifiedClosestApproach'. */
+    private final boolean assumeInfiniteStarDistance;
+
+    /** With infinite star distance, only compare elevations. */
+    private final boolean onlyCompareElevations;
+
+    /** Number of stars observed at both the square and its base. */
+    private final int numSamples;
+
+    /** For each sample, the unit ray to the star from the derived
+      * square, in nominal square coordinates; 3 entries per sample. */
+    private final double[] nominalRays;
+
+    /** For each sample, the world-coordinate unit ray to the star from
+      * the base square; 3 entries per sample. */
+    private final double[] baseRays;
+
+    /** Center of the base square. */
+    private final double[] baseCenter;
+
+    /** Point halfway between base and derived according to the base
+      * orientation, which does not depend on the derived orientation. */
+    private final double[] midPoint;
+
+    /** Vector from 'midPoint' to the derived square center, in nominal
+      * square coordinates (so it rotates with the square). */
+    private final double[] nominalHalfTravel;
+
+    /** The square's up vector, in nominal square coordinates.  This
+      * is nominally +Y. */
+    private final double[] nominalUp;
+
+    /** Rotation from nominal of the base square. */
+    private final Matrix3d baseOrientation;
+
+    /** Current orientation of the derived square, as a row-major
+      * nominal-to-world matrix.  'adjust' changes it. */
+    private final double[] orientation = new double[9];
+
+    /** Difference between the center of the square passed to
+      * 'setOrientation' and the center computed from its orientation,
+      * due to the square being stored in single precision.  This is
+      * added to trial centers so that evaluating the square itself
+      * agrees with 'fitOfObservations'. */
+    private final double[] centerCorrection = new double[3];
+
+    /** Scratch: trial rotation and trial orientation. */
+    private final double[] rotation = new double[9];
+    private final double[] trial = new double[9];
+
+    /** Scratch: trial center, up vector, and one world star ray. */
+    private final double[] trialCenter = new double[3];
+    private final double[] trialUp = new double[3];
+    private final double[] trialRay = new double[3];
+
+    /** Maximum separation found by the most recent evaluation. */
+    private double lastMaxSeparation;
+
+    // ---- Methods ----
+    /** Prepare to evaluate orientations of 'derived', which must have
+      * a base square.  'tobs' is the travel observation from the base
+      * to 'derived'. */
+    public TrialRotationEvaluator(SurfaceSquare derived, TravelObservation tobs,
+        SolverOptions options)
+    {
+        SurfaceSquare base = derived.baseSquare;
+        this.assumeInfiniteStarDistance = options.assumeInfiniteStarDistance;
+        this.onlyCompareElevations = options.onlyCompareElevations;
+
+        // Match up the observations.
+        ArrayList<Vector3f> nominal = new ArrayList<Vector3f>();
+        ArrayList<Vector3f> baseWorld = new ArrayList<Vector3f>();
+        for (StarObservation so : derived.starObs.values()) {
+            StarObservation baseObservation = base.findObservation(so.name);
+            if (baseObservation != null) {
+                nominal.add(Vector3f.azimuthElevationToVector(so.azimuth, so.elevation));
+                baseWorld.add(SurfaceReconstructor.rayToStar(base, baseObservation));
+            }
+        }
+        this.numSamples = nominal.size();
+        this.nominalRays = new double[this.numSamples * 3];
+        this.baseRays = new double[this.numSamples * 3];
+        for (int i=0; i < this.numSamples; i++) {
+            copy(nominal.get(i), this.nominalRays, i*3);
+            copy(baseWorld.get(i), this.baseRays, i*3);
+        }
+
+        // This part mirrors 'createRotatedAdjacentSquare'.  The travel
+        // direction at the new square is the base's North rotated by
+        // the end heading, which then rotates along with the square.
+        this.baseOrientation = rotationMatrix(new Vector3d(base.rotationFromNominal));
+        Matrix3d toNominal = this.baseOrientation.transpose();
+        float halfDistWorld = tobs.distanceKm / 2.0f * SurfaceSquare.SPACE_UNITS_PER_KM;
+        Vector3f oldTravel = base.north.rotateDeg(-tobs.startToEndHeading, base.up);
+        Vector3f newTravel = base.north.rotateDeg(-tobs.endToStartHeading + 180, base.up);
+
+        this.baseCenter = new Vector3d(base.center).getArray();
+        this.midPoint = new Vector3d(base.center.plus(oldTravel.times(halfDistWorld))).getArray();
+        this.nominalHalfTravel =
+            toNominal.times(new Vector3d(newTravel.times(halfDistWorld))).getArray();
+        this.nominalUp = toNominal.times(new Vector3d(base.up)).getArray();
+
+        this.setOrientation(derived);
+    }
+
+    /** Copy 'v' into 'dest' starting at 'index'. */
+    private static void copy(Vector3f v, double[] dest, int index)
+    {
+        dest[index] = v.x();
+        dest[index+1] = v.y();
+        dest[index+2] = v.z();
+    }
+
+    /** Return the matrix for a rotation vector with length in degrees. */
+    private static Matrix3d rotationMatrix(Vector3d angleAxis)
+    {
+        return Matrix3d.rotateRad(FloatUtil.degreesToRadians(angleAxis.length()), angleAxis);
+    }
+
+    /** Number of stars in common between the square and its base.
+      * The fit is only meaningful if this is at least 2. */
+    public int getNumSamples()
+    {
+        return this.numSamples;
+    }
+
+    /** Maximum separation angle, in degrees, among the samples in the
+      * most recent call to 'variance' or 'residuals'. */
+    public double getLastMaxSeparation()
+    {
+        return this.lastMaxSeparation;
+    }
+
+    /** Make the current orientation that of 'square', which must be
+      * at the same location as the square this was made for. */
+    public void setOrientation(SurfaceSquare square)
+    {
+        Matrix3d m = rotationMatrix(new Vector3d(square.rotationFromNominal));
+        this.orientation[0] = m.a11();
+        this.orientation[1] = m.a12();
+        this.orientation[2] = m.a13();
+        this.orientation[3] = m.a21();
+        this.orientation[4] = m.a22();
+        this.orientation[5] = m.a23();
+        this.orientation[6] = m.a31();
+        this.orientation[7] = m.a32();
+        this.orientation[8] = m.a33();
+
+        double[] o = this.orientation;
+        double[] h = this.nominalHalfTravel;
+        this.centerCorrection[0] = square.center.x() -
+            (this.midPoint[0] + o[0]*h[0] + o[1]*h[1] + o[2]*h[2]);
+        this.centerCorrection[1] = square.center.y() -
+            (this.midPoint[1] + o[3]*h[0] + o[4]*h[1] + o[5]*h[2]);
+        this.centerCorrection[2] = square.center.z() -
+            (this.midPoint[2] + o[6]*h[0] + o[7]*h[1] + o[8]*h[2]);
+    }
+
+    /** Change the current orientation by rotation vector (ax,ay,az),
+      * in degrees, relative to the current orientation. */
+    public void adjust(double ax, double ay, double az)
+    {
+        this.computeTrial(ax, ay, az);
+        System.arraycopy(this.trial, 0, this.orientation, 0, 9);
+    }
+
+    /** Get the rotation from the base square that produces the current
+      * orientation, suitable for 'createRotatedAdjacentSquare'. */
+    public Vector3f getRotationFromBase()
+    {
+        double[] o = this.orientation;
+        Matrix3d current = new Matrix3d(o[0], o[1], o[2],
+                                        o[3], o[4], o[5],
+                                        o[6], o[7], o[8]);
+        return current.times(this.baseOrientation.transpose())
+                      .rotationVectorDegrees().toVector3f();
+    }
+
+    /** Set 'trial' to the current orientation followed by a local
+      * rotation of (ax,ay,az). */
+    private void computeTrial(double ax, double ay, double az)
+    {
+        if (ax == 0 && ay == 0 && az == 0) {
+            System.arraycopy(this.orientation, 0, this.trial, 0, 9);
+            return;
+        }
+        rotationMatrixDegrees(ax, ay, az, this.rotation);
+        multiply(this.orientation, this.rotation, this.trial);
+    }
+
+    /** Set 'r' to the row-major matrix for rotation vector (ax,ay,az),
+      * whose length is in degrees.  This is the same as
+      * 'Matrix3d.rotateRad', but without allocating. */
+    static void rotationMatrixDegrees(double ax, double ay, double az, double[] r)
+    {
+        double degrees = Math.sqrt(ax*ax + ay*ay + az*az);
+        if (degrees == 0) {
+            r[0] = 1; r[1] = 0; r[2] = 0;
+            r[3] = 0; r[4] = 1; r[5] = 0;
+            r[6] = 0; r[7] = 0; r[8] = 1;
+            return;
+        }
+
+        double x = ax / degrees;
+        double y = ay / degrees;
+        double z = az / degrees;
+        double radians = FloatUtil.degreesToRadians(degrees);
+        double c = Math.cos(radians);
+        double s = Math.sin(radians);
+        r[0] = x*x*(1-c)+c;   r[1] = x*y*(1-c)-z*s; r[2] = x*z*(1-c)+y*s;
+        r[3] = y*x*(1-c)+z*s; r[4] = y*y*(1-c)+c;   r[5] = y*z*(1-c)-x*s;
+        r[6] = z*x*(1-c)-y*s; r[7] = z*y*(1-c)+x*s; r[8] = z*z*(1-c)+c;
+    }
+
+    /** Set 'dest' to the product of row-major 3x3 matrices 'a' and 'b'.
+      * 'dest' must not be either of the operands. */
+    static void multiply(double[] a, double[] b, double[] dest)
+    {
+        for (int row=0; row < 3; row++) {
+            for (int col=0; col < 3; col++) {
+                dest[row*3 + col] =
+                    a[row*3]     * b[col] +
+                    a[row*3 + 1] * b[3 + col] +
+                    a[row*3 + 2] * b[6 + col];
+            }
+        }
+    }
+
+    /** Set 'dest', starting at 'destIndex', to 'm' times the vector in
+      * 'v' starting at 'vIndex'. */
+    static void transform(double[] m, double[] v, int vIndex,
+        double[] dest, int destIndex)
+    {
+        double x = v[vIndex];
+        double y = v[vIndex+1];
+        double z = v[vIndex+2];
+        dest[destIndex]   = m[0]*x + m[1]*y + m[2]*z;
+        dest[destIndex+1] = m[3]*x + m[4]*y + m[5]*z;
+        dest[destIndex+2] = m[6]*x + m[7]*y + m[8]*z;
+    }
+
+    /** Return the variance, as defined by 'ObservationStats.variance',
+      * of the square after adjusting its current orientation by the
+      * rotation vector (ax,ay,az), in degrees.  Returns NaN if there
+      * are no samples. */
+    public double variance(double ax, double ay, double az)
+    {
+        return this.evaluate(ax, ay, az, null, Double.POSITIVE_INFINITY) / this.numSamples;
+    }
+
+    /** Like 'variance', except that as soon as the sum over the samples
+      * so far shows the variance will exceed 'cutoff', stop and return
+      * some value greater than 'cutoff'.  Searches use this to abandon
+      * trials that cannot beat the best one found so far.  When it
+      * stops early, 'getLastMaxSeparation' is not meaningful. */
+    public double variance(double ax, double ay, double az, double cutoff)
+    {
+        return this.evaluate(ax, ay, az, null, cutoff * this.numSamples) / this.numSamples;
+    }
+
+    /** Like 'variance', but store in 'out', which must have length
+      * 3*getNumSamples(), a residual 3-vector for each sample as
+      * described at 'compareRays'.  Returns the sum of squares. */
+    public double residuals(double ax, double ay, double az, double[] out)
+    {
+        return this.evaluate(ax, ay, az, out, Double.POSITIVE_INFINITY);
+    }
+
+    /** Degrees per radian. */
+    private static final double DEGREES_PER_RADIAN = 180 / Math.PI;
+
+    /** Eigenvalues of the curvature at most this fraction of the
+      * largest are treated as zero. */
+    private static final double CURVATURE_NULL_TOLERANCE = 1e-6;
+
+    /** Eigendecomposition of the curvature of the variance around the
+      * current orientation, as a function of the trial rotation.  See
+      * 'curvature'. */
+    public static class Curvature {
+        /** Eigenvalues, in increasing order.  The variance is in square
+          * degrees and the rotation in degrees, so these are unitless. */
+        public final double[] eigenvalues = new double[3];
+
+        /** Unit eigenvectors, as rotation axes in the square's local
+          * coordinates, in the same order as 'eigenvalues'. */
+        public final Vector3d[] axes = new Vector3d[3];
+
+        /** Number of leading eigenvalues that are effectively zero.
+          * Rotating about any combination of their axes does not change
+          * the fit, so it does not determine that part of the
+          * orientation. */
+        public int numUnconstrained = 0;
+
+        /** The least constrained axis if it is unconstrained, else null. */
+        public Vector3d unconstrainedAxis()
+        {
+            return this.numUnconstrained > 0? this.axes[0] : null;
+        }
+
+        /** True if rotating about 'axis', a unit vector, is mostly
+          * rotating about the unconstrained axes, so cannot improve
+          * the fit by much. */
+        public boolean isMostlyUnconstrained(Vector3d axis)
+        {
+            double sumOfSquares = 0;
+            for (int i=0; i < this.numUnconstrained; i++) {
+                double d = axis.dot(this.axes[i]);
+                sumOfSquares += d*d;
+            }
+            return sumOfSquares > 0.5;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Curvature(numUnconstrained="+this.numUnconstrained);
+            for (int i=0; i < 3; i++) {
+                sb.append(", "+(float)this.eigenvalues[i]+" about "+this.axes[i]);
+            }
+            sb.append(")");
+            return sb.toString();
+        }
+    }
+
+    /** Estimate the curvature (Hessian) of 'variance' with respect to
+      * the trial rotation, at the current orientation, and decompose
+      * it into principal axes.
+      *
+      * The curvature is the Gauss-Newton approximation, (2/n) J^T J,
+      * where J is the Jacobian of the residual vectors from
+      * 'residualsAndJacobian'.  It leaves out the term involving the
+      * second derivatives of the residuals, which is small near a good
+      * fit, and this way it is never negative, so a zero eigenvalue
+      * means exactly that the residuals do not change, to first order,
+      * when rotating about that axis.  That is what happens when, say,
+      * only elevations are compared, as turning in place changes none
+      * of them.  The hill climbers only try a few axes, so they cannot
+      * tell a flat direction from one where they have not tried the
+      * right step; this can. */
+    public Curvature curvature()
+    {
+        int n = this.numSamples;
+        double[][] J = new double[3][3*n];
+        this.residualsAndJacobian(new double[3*n], J);
+
+        double[] h = new double[9];
+        for (int a=0; a < 3; a++) {
+            for (int b=a; b < 3; b++) {
+                double sum = 0;
+                for (int i=0; i < 3*n; i++) {
+                    sum += J[a][i] * J[b][i];
+                }
+                h[a*3 + b] = h[b*3 + a] = 2 * sum / n;
+            }
+        }
+
+        Matrix3d[] vd = new Matrix3d(h[0], h[1], h[2],
+                                     h[3], h[4], h[5],
+                                     h[6], h[7], h[8]).symmetricEigenDecomposition();
+        Matrix3d v = vd[0];
+        Curvature ret = new Curvature();
+        ret.eigenvalues[0] = vd[1].a11();
+        ret.eigenvalues[1] = vd[1].a22();
+        ret.eigenvalues[2] = vd[1].a33();
+        ret.axes[0] = new Vector3d(v.a11(), v.a21(), v.a31());
+        ret.axes[1] = new Vector3d(v.a12(), v.a22(), v.a32());
+        ret.axes[2] = new Vector3d(v.a13(), v.a23(), v.a33());
+
+        double threshold = ret.eigenvalues[2] * CURVATURE_NULL_TOLERANCE;
+        while (ret.numUnconstrained < 3 &&
+               ret.eigenvalues[ret.numUnconstrained] <= threshold)
+        {
+            ret.numUnconstrained++;
+        }
+        return ret;
+    }
+
+    /** Store the residuals of the current orientation in 'out', as
+      * 'residuals(0,0,0,out)' does, and their derivatives with respect
+      * to the three components of the trial rotation, in degrees, in
+      * 'jacobian', which must be three arrays of length
+      * 3*getNumSamples().  Returns the sum of squares.
+      *
+      * The derivatives are computed analytically.  At a trial rotation
+      * of zero, rotating by a small angle about local axis k moves any
+      * vector v carried by the square by (pi/180) O (e_k x v) per
+      * degree, where O is the current orientation, and that gives the
+      * derivatives of the star ray, the center, and up.  Those are
+      * taken through the comparison in 'compareRaysDerivative'.  Where
+      * the modified closest approach switches between its cases, the
+      * residuals have a kink, and this gives the derivative of the
+      * case that applies at the current orientation. */
+    public double residualsAndJacobian(double[] out, double[][] jacobian)
+    {
+        double ret = this.evaluate(0, 0, 0, out, Double.POSITIVE_INFINITY);
+        double[] o = this.orientation;
+
+        // Derivatives of center and up for each component.
+        double[] local = new double[3];
+        double[][] dCenter = new double[3][3];
+        double[][] dUp = new double[3][3];
+        for (int k=0; k < 3; k++) {
+            crossAxis(k, this.nominalHalfTravel, 0, local);
+            transform(o, local, 0, dCenter[k], 0);
+            crossAxis(k, this.nominalUp, 0, local);
+            transform(o, local, 0, dUp[k], 0);
+            for (int a=0; a < 3; a++) {
+                dCenter[k][a] /= DEGREES_PER_RADIAN;
+                dUp[k][a] /= DEGREES_PER_RADIAN;
+            }
+        }
+
+        double[] ray = new double[3];
+        double[] dRay = new double[3];
+        for (int i=0; i < this.numSamples; i++) {
+            transform(o, this.nominalRays, i*3, ray, 0);
+            for (int k=0; k < 3; k++) {
+                crossAxis(k, this.nominalRays, i*3, local);
+                transform(o, local, 0, dRay, 0);
+                for (int a=0; a < 3; a++) {
+                    dRay[a] /= DEGREES_PER_RADIAN;
+                }
+                compareRaysDerivative(
+                    this.assumeInfiniteStarDistance, this.onlyCompareElevations,
+                    this.trialCenter, dCenter[k], this.trialUp, dUp[k], ray, dRay,
+                    this.baseCenter, this.baseRays, i*3,
+                    jacobian[k], i*3);
+            }
+        }
+        return ret;
+    }
+
+    /** Set 'dest' to e_k x v, where e_k is the unit vector along axis
+      * 'k' and v is the vector in 'v' at 'vIndex'. */
+    private static void crossAxis(int k, double[] v, int vIndex, double[] dest)
+    {
+        double x = v[vIndex];
+        double y = v[vIndex+1];
+        double z = v[vIndex+2];
+        switch (k) {
+            case 0:  dest[0] = 0;  dest[1] = -z; dest[2] = y;  break;
+            case 1:  dest[0] = z;  dest[1] = 0;  dest[2] = -x; break;
+            default: dest[0] = -y; dest[1] = x;  dest[2] = 0;  break;
+        }
+    }
+
+    /** Derivative of the residual 3-vector 'compareRays' computes, when
+      * the square's 'center', 'up', and unit 'ray' change at rates
+      * 'dCenter', 'dUp', and 'dRay', which must keep the lengths of
+      * 'up' and 'ray' constant.  Stores it in 'dest' at 'destIndex'.
+      *
+      * When comparing whole rays, the residual is e h(|e|), where e is
+      * the chord from the unit comparison direction q to the ray and
+      * h(L) = 2 asin(L/2) / L in degrees, so its derivative is
+      * de h + e h'(L) (e . de) / L. */
+    static void compareRaysDerivative(
+        boolean assumeInfiniteStarDistance, boolean onlyCompareElevations,
+        double[] center, double[] dCenter, double[] up, double[] dUp,
+        double[] ray, double[] dRay,
+        double[] baseCenter, double[] baseRays, int baseIndex,
+        double[] dest, int destIndex)
+    {
+        double ux = ray[0], uy = ray[1], uz = ray[2];
+        double dux = dRay[0], duy = dRay[1], duz = dRay[2];
+        double bx = baseRays[baseIndex];
+        double by = baseRays[baseIndex+1];
+        double bz = baseRays[baseIndex+2];
+
+        if (assumeInfiniteStarDistance && onlyCompareElevations) {
+            // The elevation of unit r is atan2(v, H), v = r . up and
+            // H = sqrt(|r|^2 - v^2).  When |r| does not change, its
+            // derivative is dv / H.
+            dest[destIndex] = DEGREES_PER_RADIAN *
+                (elevationRate(ux, uy, uz,
+                     dux*up[0] + duy*up[1] + duz*up[2] +
+                     ux*dUp[0] + uy*dUp[1] + uz*dUp[2], up) -
+                 elevationRate(bx, by, bz,
+                     bx*dUp[0] + by*dUp[1] + bz*dUp[2], up));
+            dest[destIndex+1] = 0;
+            dest[destIndex+2] = 0;
+            return;
+        }
+
+        // Comparison direction q and its derivative.
+        double qx, qy, qz;
+        double dqx, dqy, dqz;
+        if (assumeInfiniteStarDistance) {
+            qx = bx;
+            qy = by;
+            qz = bz;
+            dqx = dqy = dqz = 0;
+        }
+        else {
+            double dx = baseCenter[0] - center[0];
+            double dy = baseCenter[1] - center[1];
+            double dz = baseCenter[2] - center[2];
+            double ddx = -dCenter[0], ddy = -dCenter[1], ddz = -dCenter[2];
+
+            double nX = uy*bz - uz*by;
+            double nY = uz*bx - ux*bz;
+            double nZ = ux*by - uy*bx;
+            if (nX == 0 && nY == 0 && nZ == 0) {
+                // 'compareRays' reports no separation here.
+                dest[destIndex] = dest[destIndex+1] = dest[destIndex+2] = 0;
+                return;
+            }
+
+            // The same cases as 'compareRays', each differentiated.
+            double b = ux*bx + uy*by + uz*bz;
+            double dd1 = dx*ux + dy*uy + dz*uz;
+            double dd2 = dx*bx + dy*by + dz*bz;
+            double denom = 1 - b*b;
+            double s1 = (dd1 - b*dd2) / denom;
+            double t2 = (b*dd1 - dd2) / denom;
+
+            double db = dux*bx + duy*by + duz*bz;
+            double ddd1 = ddx*ux + ddy*uy + ddz*uz + dx*dux + dy*duy + dz*duz;
+            double ddd2 = ddx*bx + ddy*by + ddz*bz;
+            double dt2 = (b*ddd1 + db*dd1 - ddd2 + 2*b*db*t2) / denom;
+
+            if (s1 < 1.0) {
+                t2 = b - dd2;
+                dt2 = db - ddd2;
+            }
+            if (t2 < 1.0) {
+                t2 = 1.0;
+                dt2 = 0;
+            }
+
+            qx = dx + t2*bx;
+            qy = dy + t2*by;
+            qz = dz + t2*bz;
+            dqx = ddx + dt2*bx;
+            dqy = ddy + dt2*by;
+            dqz = ddz + dt2*bz;
+        }
+
+        // Unit comparison direction and its derivative.
+        double qLen = Math.sqrt(qx*qx + qy*qy + qz*qz);
+        double hx = qx/qLen, hy = qy/qLen, hz = qz/qLen;
+        double along = hx*dqx + hy*dqy + hz*dqz;
+        double dhx = (dqx - hx*along) / qLen;
+        double dhy = (dqy - hy*along) / qLen;
+        double dhz = (dqz - hz*along) / qLen;
+
+        // Chord and its derivative.
+        double ex = ux - hx, ey = uy - hy, ez = uz - hz;
+        double dex = dux - dhx, dey = duy - dhy, dez = duz - dhz;
+        double eLen = Math.sqrt(ex*ex + ey*ey + ez*ez);
+
+        // h(L) and h'(L) / L, using the series near zero, where
+        // h(L) = (180/pi) (1 + L^2/24 + ...).
+        double h, hPrimeOverL;
+        if (eLen < 1e-4) {
+            h = DEGREES_PER_RADIAN * (1 + eLen*eLen/24);
+            hPrimeOverL = DEGREES_PER_RADIAN / 12;
+        }
+        else {
+            double half = Math.min(1, eLen/2);
+            double angle = Math.asin(half);
+            double cosine = Math.max(1e-12, Math.sqrt(1 - half*half));
+            h = DEGREES_PER_RADIAN * 2 * angle / eLen;
+            hPrimeOverL = DEGREES_PER_RADIAN *
+                (1 / (eLen * cosine) - 2 * angle / (eLen*eLen)) / eLen;
+        }
+        double eDotDe = ex*dex + ey*dey + ez*dez;
+        dest[destIndex]   = dex*h + ex*hPrimeOverL*eDotDe;
+        dest[destIndex+1] = dey*h + ey*hPrimeOverL*eDotDe;
+        dest[destIndex+2] = dez*h + ez*hPrimeOverL*eDotDe;
+    }
+
+    /** Rate of change, in radians, of the elevation of ray (rx,ry,rz)
+      * relative to unit 'up', when its vertical component changes at
+      * rate 'dv' and its length does not change. */
+    private static double elevationRate(double rx, double ry, double rz,
+        double dv, double[] up)
+    {
+        double v = rx*up[0] + ry*up[1] + rz*up[2];
+        double horizontal = Math.sqrt(Math.max(0, rx*rx + ry*ry + rz*rz - v*v));
+        return (horizontal > 0)? dv / horizontal : 0;
+    }
+
+    /** Compute the sum of squared separations, and optionally the
+      * residual vectors.  Stop early, returning the partial sum, once
+      * it exceeds 'cutoff'. */
+    private double evaluate(double ax, double ay, double az, double[] out,
+        double cutoff)
+    {
+        this.computeTrial(ax, ay, az);
+        double[] t = this.trial;
+
+        // Trial center and up.
+        transform(t, this.nominalHalfTravel, 0, this.trialCenter, 0);
+        for (int i=0; i < 3; i++) {
+            this.trialCenter[i] += this.midPoint[i] + this.centerCorrection[i];
+        }
+        transform(t, this.nominalUp, 0, this.trialUp, 0);
+
+        double sumOfSquares = 0;
+        double maxSeparation = 0;
+
+        for (int i=0; i < this.numSamples; i++) {
+            // Ray to star in world coordinates.
+            transform(t, this.nominalRays, i*3, this.trialRay, 0);
+
+            double sep = compareRays(
+                this.assumeInfiniteStarDistance, this.onlyCompareElevations,
+                this.trialCenter, this.trialUp, this.trialRay, 0,
+                this.baseCenter, this.baseRays, i*3,
+                out, i*3);
+
+            if (sep > maxSeparation) {
+                maxSeparation = sep;
+            }
+            sumOfSquares += sep * sep;
+            if (sumOfSquares > cutoff) {
+                break;
+            }
+        }
+
+        this.lastMaxSeparation = maxSeparation;
+        return sumOfSquares;
+    }
+
+    /** Compare the ray in 'rays' at 'rayIndex', seen from a square with
+      * 'center' and unit 'up', to the ray in 'baseRays' at 'baseIndex',
+      * seen from 'baseCenter', the way 'fitOfObservations' does, and
+      * return the separation in degrees.
+      *
+      * If 'out' is not null, also store a residual 3-vector there at
+      * 'outIndex'.  When comparing whole rays, it has length equal to
+      * the separation and points from the direction the ray is compared
+      * against toward the ray.  When only comparing elevations, its
+      * first component is the signed difference in elevation and the
+      * others are zero. */
+    static double compareRays(
+        boolean assumeInfiniteStarDistance, boolean onlyCompareElevations,
+        double[] center, double[] up, double[] rays, int rayIndex,
+        double[] baseCenter, double[] baseRays, int baseIndex,
+        double[] out, int outIndex)
+    {
+        double ux = rays[rayIndex];
+        double uy = rays[rayIndex+1];
+        double uz = rays[rayIndex+2];
+        double bx = baseRays[baseIndex];
+        double by = baseRays[baseIndex+1];
+        double bz = baseRays[baseIndex+2];
+
+        // Direction, from the square, against which the star ray
+        // is compared.
+        double qx, qy, qz;
+        double sep;
+        if (assumeInfiniteStarDistance) {
+            qx = bx;
+            qy = by;
+            qz = bz;
+            if (onlyCompareElevations) {
+                double diff = elevation(up[0], up[1], up[2], ux, uy, uz) -
+                              elevation(up[0], up[1], up[2], bx, by, bz);
+                if (out != null) {
+                    out[outIndex] = diff;
+                    out[outIndex+1] = 0;
+                    out[outIndex+2] = 0;
+                }
+                return Math.abs(diff);
+            }
+            sep = separationAngleDegrees(ux, uy, uz, qx, qy, qz);
+        }
+        else {
+            // This part mirrors 'getClosestApproach' followed by
+            // the modifications in 'getModifiedClosestApproach',
+            // which together determine a point on the base ray,
+            // at 't2' units along it, to compare against.
+            double dx = baseCenter[0] - center[0];
+            double dy = baseCenter[1] - center[1];
+            double dz = baseCenter[2] - center[2];
+
+            double nX = uy*bz - uz*by;
+            double nY = uz*bx - ux*bz;
+            double nZ = ux*by - uy*bx;
+            if (nX == 0 && nY == 0 && nZ == 0) {
+                // Parallel rays: separation is reported as zero.
+                sep = 0;
+                qx = ux;
+                qy = uy;
+                qz = uz;
+            }
+            else {
+                double b = ux*bx + uy*by + uz*bz;
+                double dd1 = dx*ux + dy*uy + dz*uz;
+                double dd2 = dx*bx + dy*by + dz*bz;
+                double denom = 1 - b*b;
+                double s1 = (dd1 - b*dd2) / denom;
+                double t2 = (b*dd1 - dd2) / denom;
+
+                if (s1 < 1.0) {
+                    // Push the point on line 1 out to one unit, and
+                    // take the closest point on line 2 to that.
+                    t2 = b - dd2;
+                }
+                if (t2 < 1.0) {
+                    t2 = 1.0;
+                }
+
+                qx = dx + t2*bx;
+                qy = dy + t2*by;
+                qz = dz + t2*bz;
+                sep = separationAngleDegrees(ux, uy, uz, qx, qy, qz);
+            }
+        }
+
+        if (out != null) {
+            // Chord from the unit comparison direction to the unit
+            // ray, scaled to have length 'sep'.
+            double qLen = Math.sqrt(qx*qx + qy*qy + qz*qz);
+            double ex = ux - qx/qLen;
+            double ey = uy - qy/qLen;
+            double ez = uz - qz/qLen;
+            double eLen = Math.sqrt(ex*ex + ey*ey + ez*ez);
+            double scale = (eLen > 0)? sep / eLen : 0;
+            out[outIndex] = ex * scale;
+            out[outIndex+1] = ey * scale;
+            out[outIndex+2] = ez * scale;
+        }
+
+        return sep;
+    }
+
+    /** Separation angle between two vectors, in degrees, as computed
+      * by 'Vectord.separationAngleDegrees'. */
+    static double separationAngleDegrees(
+        double x1, double y1, double z1,
+        double x2, double y2, double z2)
+    {
+        double len1 = Math.sqrt(x1*x1 + y1*y1 + z1*z1);
+        double len2 = Math.sqrt(x2*x2 + y2*y2 + z2*z2);
+        return FloatUtil.acosDeg((x1/len1)*(x2/len2) +
+                                 (y1/len1)*(y2/len2) +
+                                 (z1/len1)*(z2/len2));
+    }
+
+    /** Elevation of ray 'r' at a location with unit up vector 'u',
+      * in degrees, as computed by 'SurfaceReconstructor.getElevation'. */
+    static double elevation(
+        double ux, double uy, double uz,
+        double rx, double ry, double rz)
+    {
+        double vLen = rx*ux + ry*uy + rz*uz;
+        double hx = rx - ux*vLen;
+        double hy = ry - uy*vLen;
+        double hz = rz - uz*vLen;
+        return FloatUtil.atan2Deg(vLen, Math.sqrt(hx*hx + hy*hy + hz*hz));
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check that the evaluator agrees with 'varianceOfAdjustedSquare'
+      * for several squares and trial rotations. */
+    private static void testAgreement(WorldObservations obs,
+        boolean infinite, boolean onlyElevations)
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(obs);
+        r.options.assumeInfiniteStarDistance = infinite;
+        r.options.onlyCompareElevations = onlyElevations;
+
+        SurfaceSquare base = new SurfaceSquare(
+            new Vector3f(0,0,0), new Vector3f(0,0,-1), new Vector3f(0,1,0),
+            SurfaceReconstructor.DEFAULT_SQUARE_SIZE_KM, 38, -122,
+            null, null, new Vector3f(0,0,0));
+        r.addMatchingData(base);
+
+        Random rand = new Random(1);
+        float[][] moves = { {9,0}, {0,9}, {-9,0}, {0,-9}, {9,9} };
+        for (float[] move : moves) {
+            // Give the derived square an arbitrary starting orientation
+            // so the test does not only exercise the identity.
+            SurfaceSquare derived = r.createRotatedAdjacentSquare(base,
+                base.latitude + move[0], base.longitude + move[1],
+                new Vector3f(3, -2, 5));
+            r.addMatchingData(derived);
+            TrialRotationEvaluator ev = r.makeTrialRotationEvaluator(derived);
+
+            for (int i=0; i < 20; i++) {
+                float scale = (i < 10)? 10 : 0.1f;
+                Vector3f rot = new Vector3f(
+                    (rand.nextFloat()-0.5f) * scale,
+                    (rand.nextFloat()-0.5f) * scale,
+                    (rand.nextFloat()-0.5f) * scale);
+                double expect = r.varianceOfAdjustedSquare(derived, rot);
+                double actual = ev.variance(rot.x(), rot.y(), rot.z());
+                if (Math.abs(expect - actual) > 1e-3 + 1e-3 * expect) {
+                    throw new RuntimeException("testAgreement failed:"+
+                        " model="+obs.getDescription()+
+                        " infinite="+infinite+
+                        " onlyElevations="+onlyElevations+
+                        " derived="+derived+
+                        " rot="+rot+
+                        " expect="+expect+
+                        " actual="+actual);
+                }
+            }
+
+            // Adjusting and then evaluating at zero should be the same
+            // as evaluating the adjustment.
+            double before = ev.variance(1, 2, 3);
+            ev.adjust(1, 2, 3);
+            double after = ev.variance(0, 0, 0);
+            if (Math.abs(before - after) > 1e-9 * (1 + before)) {
+                throw new RuntimeException("testAgreement: adjust failed");
+            }
+        }
+    }
+
+    /** Check that 'curvature' finds the yaw axis unconstrained when
+      * only elevations are compared, and nothing unconstrained when
+      * whole rays are. */
+    private static void testCurvature(boolean onlyElevations)
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        r.options.assumeInfiniteStarDistance = true;
+        r.options.onlyCompareElevations = onlyElevations;
+
+        SurfaceSquare base = new SurfaceSquare(
+            new Vector3f(0,0,0), new Vector3f(0,0,-1), new Vector3f(0,1,0),
+            SurfaceReconstructor.DEFAULT_SQUARE_SIZE_KM, 38, -122,
+            null, null, new Vector3f(0,0,0));
+        r.addMatchingData(base);
+        SurfaceSquare derived = r.createRotatedAdjacentSquare(base,
+            base.latitude + 9, base.longitude, new Vector3f(3, -2, 5));
+        r.addMatchingData(derived);
+
+        Curvature c = r.makeTrialRotationEvaluator(derived).curvature();
+        System.out.println("onlyElevations="+onlyElevations+": "+c);
+        if (onlyElevations) {
+            if (c.numUnconstrained != 1 ||
+                Math.abs(Math.abs(c.unconstrainedAxis().y()) - 1) > 1e-6)
+            {
+                throw new RuntimeException("testCurvature: expected yaw to be unconstrained");
+            }
+            if (!c.isMostlyUnconstrained(new Vector3d(0, -1, 0)) ||
+                c.isMostlyUnconstrained(new Vector3d(1, 0, 0)))
+            {
+                throw new RuntimeException("testCurvature: isMostlyUnconstrained failed");
+            }
+        }
+        else if (c.numUnconstrained != 0) {
+            throw new RuntimeException("testCurvature: expected full constraint");
+        }
+    }
+
+    /** Check 'residualsAndJacobian' against central differences of
+      * 'residuals', for several squares and orientations. */
+    private static void testJacobian(WorldObservations obs,
+        boolean infinite, boolean onlyElevations)
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(obs);
+        r.options.assumeInfiniteStarDistance = infinite;
+        r.options.onlyCompareElevations = onlyElevations;
+
+        SurfaceSquare base = new SurfaceSquare(
+            new Vector3f(0,0,0), new Vector3f(0,0,-1), new Vector3f(0,1,0),
+            SurfaceReconstructor.DEFAULT_SQUARE_SIZE_KM, 38, -122,
+            null, null, new Vector3f(0,0,0));
+        r.addMatchingData(base);
+
+        Random rand = new Random(2);
+        double step = 1e-5;
+        float[][] moves = { {9,0}, {0,9}, {-9,0}, {0,-9}, {9,9} };
+        for (float[] move : moves) {
+            SurfaceSquare derived = r.createRotatedAdjacentSquare(base,
+                base.latitude + move[0], base.longitude + move[1],
+                new Vector3f(3, -2, 5));
+            r.addMatchingData(derived);
+            TrialRotationEvaluator ev = r.makeTrialRotationEvaluator(derived);
+            int m = 3 * ev.getNumSamples();
+            double[] out = new double[m];
+            double[] plus = new double[m];
+            double[] minus = new double[m];
+            double[][] J = new double[3][m];
+
+            // At the square's own orientation, then at others nearer
+            // to and farther from the best fit.
+            for (int trial=0; trial < 4; trial++) {
+                if (trial > 0) {
+                    double scale = (trial == 1)? 0.1 : 3;
+                    ev.adjust((rand.nextDouble()-0.5) * scale,
+                              (rand.nextDouble()-0.5) * scale,
+                              (rand.nextDouble()-0.5) * scale);
+                }
+                double cost = ev.residualsAndJacobian(out, J);
+                if (Math.abs(cost - ev.residuals(0, 0, 0, plus)) > 1e-12 * (1 + cost)) {
+                    throw new RuntimeException("testJacobian: residuals differ");
+                }
+                for (int k=0; k < 3; k++) {
+                    ev.residuals(k==0? step : 0, k==1? step : 0, k==2? step : 0, plus);
+                    ev.residuals(k==0? -step : 0, k==1? -step : 0, k==2? -step : 0, minus);
+                    for (int i=0; i < m; i++) {
+                        double expect = (plus[i] - minus[i]) / (2 * step);
+                        if (Math.abs(J[k][i] - expect) > 1e-4 * (1 + Math.abs(expect))) {
+                            throw new RuntimeException("testJacobian failed:"+
+                                " model="+obs.getDescription()+
+                                " infinite="+infinite+
+                                " onlyElevations="+onlyElevations+
+                                " derived="+derived+
+                                " k="+k+" i="+i+
+                                " expect="+expect+
+                                " actual="+J[k][i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public static void main(String args[])
+    {
+        testJacobian(new RealWorldObservations(), false, false);
+        testJacobian(new RealWorldObservations(), true, false);
+        testJacobian(new RealWorldObservations(), true, true);
+        testJacobian(new CloseStarObservations(), false, false);
+        testJacobian(new BowlObservations(), false, false);
+        testCurvature(false);
+        testCurvature(true);
+        testAgreement(new RealWorldObservations(), false, false);
+        testAgreement(new RealWorldObservations(), true, false);
+        testAgreement(new RealWorldObservations(), true, true);
+        testAgreement(new CloseStarObservations(), false, false);
+        testAgreement(new BowlObservations(), false, false);
+        System.out.println("TrialRotationEvaluator tests passed");
+    }
+}
+
+// EOF
@@ -0,0 +1,342 @@
+// VisibleStarCache.java
+// See copyright.txt for license and terms of use.
+
+package earthshape;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import util.Vector3f;
+
+/** Bounded, thread-safe, least-recently-used cache of the star
+  * observations that qualify for use at a given place and time.
+  *
+  * SurfaceReconstructor asks for the same locations over and over:
+  * every derived square's base is looked up again when the next
+  * square is placed, 'addMatchingData' wants the same observations
+  * that 'calcRequiredRotation' just filtered, and the parallel build
+  * has several strips asking at once.  Each lookup goes to the
+  * WorldObservations, which for the synthetic models computes every
+  * star from the catalog, and then checks the Sun for each of them.
+  *
+  * Entries are keyed by everything the result depends on: the time,
+  * the location, the enabled-star map, the Sun and star elevation
+  * settings, the observation epochs, and the observations themselves.
+  * The maps are compared by identity, since SurfaceReconstructor
+  * replaces rather than modifies them, so a change to any of those
+  * simply stops old entries from matching.
+  * The reconstructor also calls 'clear' when it replaces them, so
+  * stale entries do not occupy the cache. */
+public class VisibleStarCache {
+    // ---- Constants ----
+    /** Default maximum number of entries.  A full build at the default
+      * step visits several hundred locations, and each entry is only
+      * a few dozen observations, so this holds all of them. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // ---- Types ----
+    /** Everything the set of qualifying observations depends on. */
+    private static class Key {
+        public final double unixTime;
+        public final float latitude;
+        public final float longitude;
+        public final boolean useSunElevation;
+        public final float maximumSunElevation;
+        public final float minimumStarElevation;
+        public final int numEpochs;
+        public final float epochSpacingHours;
+        public final WorldObservations worldObservations;
+        public final Map<String, Boolean> enabledStars;
+
+        public Key(double unixTime_, float latitude_, float longitude_,
+            boolean useSunElevation_, float maximumSunElevation_,
+            float minimumStarElevation_,
+            int numEpochs_, float epochSpacingHours_,
+            WorldObservations worldObservations_,
+            Map<String, Boolean> enabledStars_)
+        {
+            this.unixTime = unixTime_;
+            this.latitude = latitude_;
+            this.longitude = longitude_;
+            this.useSunElevation = useSunElevation_;
+            this.maximumSunElevation = maximumSunElevation_;
+            this.minimumStarElevation = minimumStarElevation_;
+            this.numEpochs = numEpochs_;
+            this.epochSpacingHours = epochSpacingHours_;
+            this.worldObservations = worldObservations_;
+            this.enabledStars = enabledStars_;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)obj;
+            return this.unixTime == k.unixTime &&
+                   this.latitude == k.latitude &&
+                   this.longitude == k.longitude &&
+                   this.useSunElevation == k.useSunElevation &&
+                   this.maximumSunElevation == k.maximumSunElevation &&
+                   this.minimumStarElevation == k.minimumStarElevation &&
+                   this.numEpochs == k.numEpochs &&
+                   this.epochSpacingHours == k.epochSpacingHours &&
+                   this.worldObservations == k.worldObservations &&
+                   this.enabledStars == k.enabledStars;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int h = Double.hashCode(this.unixTime);
+            h = h*31 + Float.hashCode(this.latitude);
+            h = h*31 + Float.hashCode(this.longitude);
+            h = h*31 + (this.useSunElevation? 1 : 0);
+            h = h*31 + Float.hashCode(this.maximumSunElevation);
+            h = h*31 + Float.hashCode(this.minimumStarElevation);
+            h = h*31 + this.numEpochs;
+            h = h*31 + Float.hashCode(this.epochSpacingHours);
+            h = h*31 + System.identityHashCode(this.worldObservations);
+            h = h*31 + System.identityHashCode(this.enabledStars);
+            return h;
+        }
+    }
+
+    /** The qualifying observations at one location, in the two forms
+      * SurfaceReconstructor uses.  Both are read-only and may be
+      * shared among threads. */
+    public static class Entry {
+        /** Qualifying observations, in the order the WorldObservations
+          * returned them. */
+        public final List<StarObservation> observations;
+
+        /** Map from star name to its azimuth and elevation as a unit
+          * vector in the nominal, -Z facing, coordinates. */
+        public final Map<String, Vector3f> visibleStars;
+
+        public Entry(List<StarObservation> observations_)
+        {
+            this.observations = Collections.unmodifiableList(observations_);
+
+            HashMap<String, Vector3f> vs = new HashMap<String, Vector3f>();
+            for (StarObservation so : observations_) {
+                vs.put(so.name,
+                    Vector3f.azimuthElevationToVector(so.azimuth, so.elevation));
+            }
+            this.visibleStars = Collections.unmodifiableMap(vs);
+        }
+    }
+
+    // ---- Instance data ----
+    /** Maximum number of entries to keep. */
+    private final int capacity;
+
+    /** Entries in access order, least recently used first.  All
+      * access is synchronized on 'this'. */
+    private final LinkedHashMap<Key, Entry> entries;
+
+    /** Number of 'get' calls that found an entry. */
+    private long hits = 0;
+
+    /** Number of 'get' calls that did not. */
+    private long misses = 0;
+
+    // ---- Methods ----
+    public VisibleStarCache(int capacity_)
+    {
+        this.capacity = capacity_;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true /*accessOrder*/) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+            {
+                return this.size() > VisibleStarCache.this.capacity;
+            }
+        };
+    }
+
+    public VisibleStarCache()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Make the key for a lookup. */
+    private static Key makeKey(double unixTime, float latitude, float longitude,
+        SolverOptions options, WorldObservations worldObservations,
+        Map<String, Boolean> enabledStars)
+    {
+        return new Key(unixTime, latitude, longitude,
+            options.useSunElevation, options.maximumSunElevation,
+            options.minimumStarElevation,
+            options.numEpochs, options.epochSpacingHours,
+            worldObservations, enabledStars);
+    }
+
+    /** Get the entry for the given circumstances, or null if it is
+      * not in the cache. */
+    public synchronized Entry get(double unixTime, float latitude, float longitude,
+        SolverOptions options, WorldObservations worldObservations,
+        Map<String, Boolean> enabledStars)
+    {
+        Entry e = this.entries.get(makeKey(unixTime, latitude, longitude,
+            options, worldObservations, enabledStars));
+        if (e == null) {
+            this.misses++;
+        }
+        else {
+            this.hits++;
+        }
+        return e;
+    }
+
+    /** Record the entry for the given circumstances.  Two threads can
+      * compute the same entry at once; the results are the same, so
+      * whichever is stored last is kept. */
+    public synchronized void put(double unixTime, float latitude, float longitude,
+        SolverOptions options, WorldObservations worldObservations,
+        Map<String, Boolean> enabledStars, Entry entry)
+    {
+        this.entries.put(makeKey(unixTime, latitude, longitude,
+            options, worldObservations, enabledStars), entry);
+    }
+
+    /** Discard all entries.  The hit and miss counts are kept. */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+    }
+
+    /** Number of entries currently held. */
+    public synchronized int size()
+    {
+        return this.entries.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "VisibleStarCache("+
+            "size="+this.entries.size()+
+            ", capacity="+this.capacity+
+            ", hits="+this.hits+
+            ", misses="+this.misses+
+            ")";
+    }
+
+    // --------------------------- Test code ------------------------------
+    /** Check that the least recently used entry is the one evicted. */
+    private static void testEviction()
+    {
+        VisibleStarCache c = new VisibleStarCache(2);
+        SolverOptions opts = new SolverOptions();
+        WorldObservations wo = new RealWorldObservations();
+        Map<String, Boolean> es = new HashMap<String, Boolean>();
+        Entry e = new Entry(new ArrayList<StarObservation>());
+
+        c.put(0, 1, 1, opts, wo, es, e);
+        c.put(0, 2, 2, opts, wo, es, e);
+        assert(c.get(0, 1, 1, opts, wo, es) == e);   // Now 2 is eldest.
+        c.put(0, 3, 3, opts, wo, es, e);
+        assert(c.size() == 2);
+        assert(c.get(0, 2, 2, opts, wo, es) == null);
+        assert(c.get(0, 1, 1, opts, wo, es) == e);
+        assert(c.get(0, 3, 3, opts, wo, es) == e);
+        assert(c.getHits() == 3);
+        assert(c.getMisses() == 1);
+
+        // Any change to the key misses.
+        opts.maximumSunElevation += 1;
+        assert(c.get(0, 1, 1, opts, wo, es) == null);
+        opts.maximumSunElevation -= 1;
+        assert(c.get(0, 1, 1, opts, wo, es) == e);
+        opts.minimumStarElevation += 1;
+        assert(c.get(0, 1, 1, opts, wo, es) == null);
+        opts.minimumStarElevation -= 1;
+        opts.numEpochs += 1;
+        assert(c.get(0, 1, 1, opts, wo, es) == null);
+        opts.numEpochs -= 1;
+        assert(c.get(0, 1, 1, opts, wo, new HashMap<String, Boolean>(es)) == null);
+        assert(c.get(1, 1, 1, opts, wo, es) == null);
+
+        c.clear();
+        assert(c.size() == 0);
+    }
+
+    /** Check that SurfaceReconstructor uses the cache, and that
+      * changing its settings is reflected in what it reports. */
+    private static void testReconstructor()
+    {
+        SurfaceReconstructor r = new SurfaceReconstructor(new RealWorldObservations());
+        VisibleStarCache c = r.getVisibleStarCache();
+
+        SurfaceSquare s1 = makeSquare();
+        r.addMatchingData(s1);
+        SurfaceSquare s2 = makeSquare();
+        r.addMatchingData(s2);
+        assert(c.getHits() == 1);
+        assert(c.getMisses() == 1);
+        assert(s1.starObs.size() > 2);
+        assert(s1.starObs.size() == s2.starObs.size());
+
+        // Disable one of the stars that was used.
+        String disabled = s1.starObs.values().iterator().next().name;
+        LinkedHashMap<String, Boolean> stars =
+            new LinkedHashMap<String, Boolean>(r.getEnabledStars());
+        stars.put(disabled, false);
+        r.setEnabledStars(stars);
+        assert(c.size() == 0);
+
+        SurfaceSquare s3 = makeSquare();
+        r.addMatchingData(s3);
+        assert(s3.starObs.size() == s1.starObs.size() - 1);
+        assert(!s3.starObs.containsKey(disabled));
+
+        // A copy shares the cache.
+        SurfaceReconstructor r2 = new SurfaceReconstructor(r);
+        r2.addMatchingData(makeSquare());
+        assert(c.getHits() == 2);
+
+        // But the copy's options are its own, and an Sun elevation
+        // below all of them leaves nothing.
+        r2.options.useSunElevation = true;
+        r2.options.maximumSunElevation = -90;
+        SurfaceSquare s4 = makeSquare();
+        r2.addMatchingData(s4);
+        assert(s4.starObs.size() == 0);
+        assert(c.getMisses() == 3);
+    }
+
+    /** Make a square at the usual starting location. */
+    private static SurfaceSquare makeSquare()
+    {
+        return new SurfaceSquare(
+            new Vector3f(0,0,0), new Vector3f(0,0,-1), new Vector3f(0,1,0),
+            SurfaceReconstructor.DEFAULT_SQUARE_SIZE_KM, 38, -122,
+            null, null, new Vector3f(0,0,0));
+    }
+
+    public static void main(String[] args)
+    {
+        testEviction();
+        testReconstructor();
+        System.out.println("VisibleStarCache tests passed");
+    }
+}
+
+// EOF
@@ -3,6 +3,7 @@
 
 package earthshape;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +37,25 @@ public abstract class WorldObservations {
         float latitude,
         float longitude);
 
+    /** Get those of 'getStarObservations' that are at least
+      * 'minimumElevation' degrees above the horizon, in the same order.
+      * Reconstruction only uses those, so subclasses that can find them
+      * without synthesizing the rest should override this. */
+    public List<StarObservation> getStarObservationsAbove(
+        double unixTime,
+        float latitude,
+        float longitude,
+        float minimumElevation)
+    {
+        ArrayList<StarObservation> ret = new ArrayList<StarObservation>();
+        for (StarObservation so : this.getStarObservations(unixTime, latitude, longitude)) {
+            if (so.elevation >= minimumElevation) {
+                ret.add(so);
+            }
+        }
+        return ret;
+    }
+
     /** Get an observed position of the Sun, which can be used to
       * disqualify a set of star observations as being invisible
       * due to the glare of the Sun.  This can return null. */
@@ -47,6 +67,21 @@ public abstract class WorldObservations {
         return null;
     }
 
+    /** Return true if, at the given time and place, the Sun is more
+      * than 'elevationDegrees' above the horizon, according to
+      * 'getSunObservation'.  Subclasses that can answer without
+      * building an observation should override this, since it is
+      * asked for every square considered for construction. */
+    public boolean sunIsAbove(
+        double unixTime,
+        float latitude,
+        float longitude,
+        float elevationDegrees)
+    {
+        StarObservation sun = this.getSunObservation(unixTime, latitude, longitude);
+        return sun != null && sun.elevation > elevationDegrees;
+    }
+
     // ---- Theoretical model ----
     // The following methods allow an observation set to include
     // information about what the reconstruction should look like
@@ -138,6 +138,116 @@ public class Matrix3d {
         return new Vector3d(this.mat.largestRealEigenvector());
     }
 
+    /** Eigendecomposition of this matrix, which must be symmetric.
+      * See 'Matrixd.symmetricEigenDecomposition'. */
+    public Matrix3d[] symmetricEigenDecomposition()
+    {
+        Matrixd[] vd = this.mat.symmetricEigenDecomposition();
+        return new Matrix3d[] { new Matrix3d(vd[0]), new Matrix3d(vd[1]) };
+    }
+
+    /** Matrix with rows and columns swapped.  For a rotation matrix,
+      * this is its inverse. */
+    public Matrix3d transpose()
+    {
+        return new Matrix3d(this.mat.transpose());
+    }
+
+    /** Return the determinant of this matrix. */
+    public double determinant()
+    {
+        return this.mat.determinant();
+    }
+
+    /** Interpret this matrix as a rotation and return the equivalent
+      * rotation vector, whose direction is the axis and whose length
+      * is the angle in degrees.  This is the inverse of 'rotateRad',
+      * and the result is suitable for 'Vector3d.rotateAA'. */
+    public Vector3d rotationVectorDegrees()
+    {
+        // The trace is 1 + 2cos(angle).
+        double cosAngle = (a11() + a22() + a33() - 1) / 2;
+        double angle = FloatUtil.acosRad(cosAngle);
+
+        // The antisymmetric part is 2sin(angle) times the cross
+        // product matrix of the unit axis.
+        Vector3d axis = new Vector3d(a32() - a23(),
+                                     a13() - a31(),
+                                     a21() - a12());
+        double axisLength = axis.length();
+        if (axisLength < 1e-6) {
+            if (cosAngle > 0) {
+                // Identity, or close enough.
+                return new Vector3d(0,0,0);
+            }
+
+            // Rotation by 180 degrees: the antisymmetric part vanishes,
+            // but the symmetric part is 2*axis*axis^T - I, so the axis
+            // is the column with the largest diagonal.
+            double xx = (a11() + 1) / 2;
+            double yy = (a22() + 1) / 2;
+            double zz = (a33() + 1) / 2;
+            if (xx >= yy && xx >= zz) {
+                axis = new Vector3d(xx, a21()/2, a31()/2);
+            }
+            else if (yy >= zz) {
+                axis = new Vector3d(a12()/2, yy, a32()/2);
+            }
+            else {
+                axis = new Vector3d(a13()/2, a23()/2, zz);
+            }
+        }
+
+        return axis.normalize().times(FloatUtil.radiansToDegrees(angle));
+    }
+
+    /** Return the rotation matrix R that minimizes the sum over i of
+      * |R*src[i] - dest[i]|^2, which is Wahba's problem.  This uses
+      * the SVD of the cross-covariance matrix (the Kabsch algorithm),
+      * correcting for reflection.  If the rotation is not uniquely
+      * determined, for example because all of the 'src' vectors are
+      * parallel, return null.
+      *
+      * 'src' and 'dest' must have the same length.  The vectors are
+      * normally unit vectors, but need not be; longer vectors simply
+      * get more weight. */
+    public static Matrix3d bestFitRotation(Vector3d[] src, Vector3d[] dest)
+    {
+        assert(src.length == dest.length);
+
+        // Cross-covariance H = sum of src[i] * dest[i]^T.
+        double[] h = new double[9];
+        for (int i=0; i < src.length; i++) {
+            double[] s = src[i].getArray();
+            double[] d = dest[i].getArray();
+            for (int r=0; r < 3; r++) {
+                for (int c=0; c < 3; c++) {
+                    h[r*3 + c] += s[r] * d[c];
+                }
+            }
+        }
+
+        // H = U*S*V^T.
+        Matrixd[] usv = new Matrixd(3, 3, h).singularValueDecomposition();
+        Matrix3d U = new Matrix3d(usv[0]);
+        Matrix3d S = new Matrix3d(usv[1]);
+        Matrix3d V = new Matrix3d(usv[2]);
+
+        // With fewer than two independent directions, rotation about
+        // the one direction is free.
+        if (S.a22() <= S.a11() * 1e-9) {
+            return null;
+        }
+
+        // R = V * diag(1,1,d) * U^T, where 'd' flips the last axis if
+        // needed to make R a proper rotation rather than a reflection.
+        double d = (V.times(U.transpose()).determinant() < 0)? -1 : 1;
+        Matrix3d D = new Matrix3d(1, 0, 0,
+                                  0, 1, 0,
+                                  0, 0, d);
+        return V.times(D).times(U.transpose());
+    }
+
     // --------------------------- Test code ------------------------------
     private static void testOneMatrixInverse(Matrix3d m)
     {
@@ -236,10 +346,121 @@ public class Matrix3d {
         testOneEigenvector(Matrix3d.rotateRad(angle, new Vector3d(0, 0, 1)));
     }
 
+    private static void testSymmetricEigenDecomposition()
+    {
+        // Eigenvalues 0, 1, and 4, with the zero along (-1,1,0).
+        Matrix3d r = Matrix3d.rotateRad(Math.PI/4, new Vector3d(0, 0, 1));
+        Matrix3d d = new Matrix3d(
+            4, 0, 0,
+            0, 0, 0,
+            0, 0, 1);
+        Matrix3d m = r.times(d).times(r.transpose());
+
+        Matrix3d[] vd = m.symmetricEigenDecomposition();
+        Matrix3d v = vd[0];
+        Matrix3d e = vd[1];
+        System.out.println("V: "+v);
+        System.out.println("D: "+e);
+
+        if (!v.times(e).times(v.transpose()).equalsWithin(m, TEST_THRESHOLD)) {
+            throw new RuntimeException("symmetricEigenDecomposition: V*D*V^T is not m");
+        }
+        if (Math.abs(e.a11()) > TEST_THRESHOLD ||
+            Math.abs(e.a22() - 1) > TEST_THRESHOLD ||
+            Math.abs(e.a33() - 4) > TEST_THRESHOLD)
+        {
+            throw new RuntimeException("symmetricEigenDecomposition: wrong eigenvalues");
+        }
+
+        // The null space is the first column.
+        Vector3d n = new Vector3d(v.a11(), v.a21(), v.a31());
+        if (m.times(n).length() > TEST_THRESHOLD ||
+            Math.abs(Math.abs(n.dot(new Vector3d(-1, 1, 0).normalize())) - 1) > TEST_THRESHOLD)
+        {
+            throw new RuntimeException("symmetricEigenDecomposition: wrong null space");
+        }
+    }
+
+    private static void testOneRotationVector(Vector3d rot)
+    {
+        Matrix3d m = Matrix3d.rotateRad(
+            FloatUtil.degreesToRadians(rot.length()), rot);
+        Vector3d v = m.rotationVectorDegrees();
+
+        // Compare the matrices rather than the vectors since a 180
+        // degree rotation about 'axis' is the same as one about -axis.
+        Matrix3d m2 = Matrix3d.rotateRad(
+            FloatUtil.degreesToRadians(v.length()), v);
+        if (!m2.equalsWithin(m, TEST_THRESHOLD)) {
+            System.err.println("rot: "+rot);
+            System.err.println("v: "+v);
+            throw new RuntimeException("testOneRotationVector failed");
+        }
+    }
+
+    private static void testRotationVectors()
+    {
+        testOneRotationVector(new Vector3d(0, 0, 0));
+        testOneRotationVector(new Vector3d(10, 0, 0));
+        testOneRotationVector(new Vector3d(0, -45, 0));
+        testOneRotationVector(new Vector3d(30, 40, -50));
+        testOneRotationVector(new Vector3d(180, 0, 0));
+        testOneRotationVector(new Vector3d(0, 0, -180));
+        testOneRotationVector(new Vector3d(1e-4, 2e-4, 0));
+    }
+
+    private static void testOneBestFitRotation(Vector3d rot, Vector3d[] src)
+    {
+        Matrix3d m = Matrix3d.rotateRad(
+            FloatUtil.degreesToRadians(rot.length()), rot);
+        Vector3d[] dest = new Vector3d[src.length];
+        for (int i=0; i < src.length; i++) {
+            dest[i] = m.times(src[i]);
+        }
+
+        Matrix3d fit = Matrix3d.bestFitRotation(src, dest);
+        if (fit == null || !fit.equalsWithin(m, TEST_THRESHOLD)) {
+            System.err.println("rot: "+rot);
+            System.err.println("m: "+m);
+            System.err.println("fit: "+fit);
+            throw new RuntimeException("testOneBestFitRotation failed");
+        }
+    }
+
+    private static void testBestFitRotation()
+    {
+        Vector3d[] two = new Vector3d[] {
+            new Vector3d(0, 0, -1),
+            new Vector3d(0.6, 0.8, 0),
+        };
+        Vector3d[] four = new Vector3d[] {
+            new Vector3d(1, 0, 0),
+            new Vector3d(0, 1, 0),
+            new Vector3d(0, 0, 1),
+            new Vector3d(1, 1, 1).normalize(),
+        };
+        testOneBestFitRotation(new Vector3d(0, 0, 0), two);
+        testOneBestFitRotation(new Vector3d(5, -3, 2), two);
+        testOneBestFitRotation(new Vector3d(0, 170, 0), four);
+        testOneBestFitRotation(new Vector3d(-20, 60, 90), four);
+
+        // Parallel vectors do not determine a rotation.
+        Vector3d[] parallel = new Vector3d[] {
+            new Vector3d(0, 1, 0),
+            new Vector3d(0, 2, 0),
+        };
+        if (Matrix3d.bestFitRotation(parallel, parallel) != null) {
+            throw new RuntimeException("bestFitRotation should have failed");
+        }
+    }
+
     public static void main(String[] args)
     {
         testMatrixInverse();
         testEigenvalues();
+        testSymmetricEigenDecomposition();
+        testRotationVectors();
+        testBestFitRotation();
         System.out.println("Matrix3d tests passed");
     }
 }
@@ -5,6 +5,7 @@ package util;
 
 import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
+import Jama.SingularValueDecomposition;
 
 /** Arbitrary-size immutable matrix of double. */
 public class Matrixd {
@@ -324,6 +325,48 @@ public class Matrixd {
         return adjugate().times(1/det);
     }
 
+    /** Compute the singular value decomposition of this matrix, which
+      * must have at least as many rows as columns.  Returns an array
+      * {U, S, V} such that 'this' equals U*S*V^T, S is diagonal with
+      * non-negative entries in decreasing order, and U and V have
+      * orthonormal columns. */
+    public Matrixd[] singularValueDecomposition()
+    {
+        assert(R() >= C());
+        SingularValueDecomposition svd = this.toJamaMatrix().svd();
+        return new Matrixd[] {
+            new Matrixd(svd.getU()),
+            new Matrixd(svd.getS()),
+            new Matrixd(svd.getV())
+        };
+    }
+
+    /** Compute the eigendecomposition of this matrix, which must be
+      * symmetric.  Returns an array {V, D} such that 'this' equals
+      * V*D*V^T, D is diagonal with the (real) eigenvalues in
+      * increasing order, and V is orthogonal, its columns being the
+      * corresponding eigenvectors. */
+    public Matrixd[] symmetricEigenDecomposition()
+    {
+        assert(R() == C());
+        assert(this.equalsWithin(this.transpose(), 1e-9 * (1 + this.maxAbs())));
+        EigenvalueDecomposition ed = this.toJamaMatrix().eig();
+        return new Matrixd[] {
+            new Matrixd(ed.getV()),
+            new Matrixd(ed.getD())
+        };
+    }
+
+    /** Largest absolute value of any entry. */
+    public double maxAbs()
+    {
+        double ret = 0;
+        for (double v : this.vals) {
+            ret = Math.max(ret, Math.abs(v));
+        }
+        return ret;
+    }
+
     /** Return the eigenvector with real eigenvalue and largest
       * eigenvalue.  This might be zero if there are no such
       * eigenvectors. */
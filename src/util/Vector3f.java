@@ -100,6 +100,18 @@ public class Vector3f {
         return this.under.isZero();
     }
 
+    /** True if 'a' and 'b' are both null or have exactly the same
+      * components, as compared by Float.compare. */
+    public static boolean identical(Vector3f a, Vector3f b)
+    {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return Float.compare(a.x(), b.x()) == 0 &&
+               Float.compare(a.y(), b.y()) == 0 &&
+               Float.compare(a.z(), b.z()) == 0;
+    }
+
     /** Return a normalized version of this vector.  The zero
       * vector is returned unchanged. */
     public Vector3f normalize()